@@ -0,0 +1,35 @@
+import java.util.List;
+
+/**
+ * Loading values into a set whose ancestors all have to pick them up, one at a time and as a batch
+ */
+final class AddItemBenchmark {
+    private AddItemBenchmark() {
+    }
+
+    static void run(Harness harness) {
+        for(NestedSet.Storage storage : Harness.storages()) {
+            for(int size : Harness.ints("size", 1000, 100000)) {
+                for(int depth : Harness.ints("depth", 1, 8)) {
+                    for(int width : Harness.ints("width", 1, 16)) {
+                        String params = Hierarchies.describe(storage, size, depth, width);
+                        List<Integer> values = Hierarchies.values(0, size);
+
+                        harness.measure("AddItemBenchmark.addEachItem", params,
+                                () -> Hierarchies.leafWithAncestors(storage, depth, width),
+                                leaf -> {
+                                    for(Integer value : values) {
+                                        leaf.addItem(value);
+                                    }
+                                    return leaf;
+                                }, size);
+
+                        harness.measure("AddItemBenchmark.addAllItems", params,
+                                () -> Hierarchies.leafWithAncestors(storage, depth, width),
+                                leaf -> leaf.addAllItems(values), size);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Runs the benchmarks in this module.
+ *
+ * With no arguments every benchmark runs; otherwise only those whose names are given, e.g.
+ *      java -Dbench.depth=8 Benchmarks AddItemBenchmark RemoveItemBenchmark
+ */
+public class Benchmarks {
+    public static void main(String[] args) {
+        Map<String, Consumer<Harness>> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("AddItemBenchmark", AddItemBenchmark::run);
+        benchmarks.put("RemoveItemBenchmark", RemoveItemBenchmark::run);
+        benchmarks.put("SpawnBenchmark", SpawnBenchmark::run);
+        benchmarks.put("UnionIntersectionBenchmark", UnionIntersectionBenchmark::run);
+        benchmarks.put("ReadBenchmark", ReadBenchmark::run);
+
+        // -Dbench.parallelThreshold=0 builds every union and intersection in parallel, for comparison
+        NestedSet.setParallelBuildThreshold(Harness.ints("parallelThreshold", NestedSet.parallelBuildThreshold())[0]);
+
+        Harness harness = new Harness();
+        for(Map.Entry<String, Consumer<Harness>> benchmark : benchmarks.entrySet()) {
+            if(args.length == 0 || java.util.Arrays.asList(args).contains(benchmark.getKey())) {
+                benchmark.getValue().accept(harness);
+            }
+        }
+        System.out.println("(checksum " + harness.sink() + ")");
+    }
+}
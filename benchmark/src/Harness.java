@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * A small benchmark harness in the spirit of JMH.
+ *
+ * JMH itself can't drive these benchmarks: it won't generate code for classes in the default package, and the sets
+ *      live in the default package, which can't be imported from any other.  So this keeps to the parts of its
+ *      method that matter here: each measured call gets a state built beforehand and not timed, warmup iterations
+ *      run before the measured ones, and every result is consumed so the JIT can't drop the work.
+ *
+ * Warmup and measurement counts, and every benchmark parameter, can be overridden with system properties, e.g.
+ *      -Dbench.iterations=10 or -Dbench.size=1000,1000000.  Benchmarks runs every class it is given in the one
+ *      JVM, so name a single class per run to keep profiles from one from skewing the next.
+ */
+final class Harness {
+    interface Operation<S> {
+        Object run(S state);
+    }
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final int invocationsPerIteration;
+
+    // Everything measured is folded in here, and printed at the end, so none of it is dead code
+    private long sink;
+
+    Harness() {
+        this.warmupIterations = ints("warmup", 5)[0];
+        this.measurementIterations = ints("iterations", 5)[0];
+        this.invocationsPerIteration = ints("invocations", 10)[0];
+    }
+
+    /*
+    Parameters, with defaults that can be overridden from the command line
+     */
+
+    static int[] ints(String name, int... defaults) {
+        String override = System.getProperty("bench." + name);
+        if(override == null) {
+            return defaults;
+        }
+        return Arrays.stream(override.split(",")).mapToInt(value -> Integer.parseInt(value.trim())).toArray();
+    }
+
+    static String[] strings(String name, String... defaults) {
+        String override = System.getProperty("bench." + name);
+        if(override == null) {
+            return defaults;
+        }
+        return Arrays.stream(override.split(",")).map(String::trim).toArray(String[]::new);
+    }
+
+    static NestedSet.Storage[] storages() {
+        String override = System.getProperty("bench.storage");
+        if(override == null) {
+            return new NestedSet.Storage[] { NestedSet.Storage.HASH, NestedSet.Storage.BITMAP };
+        }
+        return Arrays.stream(override.split(",")).map(value -> NestedSet.Storage.valueOf(value.trim()))
+                .toArray(NestedSet.Storage[]::new);
+    }
+
+    /*
+    Measurement
+     */
+
+    // Times operation against a state from setup, reporting the mean and best time per operation, where a single
+    //      call of operation counts as operationsPerCall operations
+    <S> void measure(String name, String params, Supplier<S> setup, Operation<S> operation, int operationsPerCall) {
+        for(int i = 0; i < this.warmupIterations; i++) {
+            iterate(setup, operation);
+        }
+
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < this.measurementIterations; i++) {
+            long elapsed = iterate(setup, operation);
+            total += elapsed;
+            best = Math.min(best, elapsed);
+        }
+
+        double mean = (double) total / this.measurementIterations / operationsPerCall;
+        System.out.println(String.format("%-48s %-45s %14.1f ns/op  (best %.1f)", name, params, mean,
+                (double) best / operationsPerCall));
+    }
+
+    <S> void measure(String name, String params, Supplier<S> setup, Operation<S> operation) {
+        measure(name, params, setup, operation, 1);
+    }
+
+    // Returns the mean time of one call over an iteration
+    private <S> long iterate(Supplier<S> setup, Operation<S> operation) {
+        long elapsed = 0;
+        for(int i = 0; i < this.invocationsPerIteration; i++) {
+            S state = setup.get();
+            long start = System.nanoTime();
+            Object result = operation.run(state);
+            elapsed += System.nanoTime() - start;
+            this.sink += System.identityHashCode(result);
+        }
+        return elapsed / this.invocationsPerIteration;
+    }
+
+    long sink() {
+        return this.sink;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the hierarchies the benchmarks run against.
+ *
+ * depth is the length of a chain of spawned sets, and width the number of unions or intersections hung directly off
+ *      the end of that chain, so that a single write reaches depth + width relatives.
+ */
+final class Hierarchies {
+    private Hierarchies() {
+    }
+
+    static List<Integer> values(int from, int count) {
+        List<Integer> values = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            values.add(from + i);
+        }
+        return values;
+    }
+
+    static NestedSet<Integer> filled(NestedSet.Storage storage, List<Integer> values) {
+        NestedSet<Integer> set = new NestedSet<>(storage);
+        set.addAllItems(values);
+        return set;
+    }
+
+    // An empty leaf with depth spawned ancestors above it, and width unions of the leaf with some other empty set
+    static NestedSet<Integer> leafWithAncestors(NestedSet.Storage storage, int depth, int width) {
+        NestedSet<Integer> leaf = new NestedSet<>(storage);
+        NestedSet<Integer> top = leaf;
+        for(int i = 0; i < depth; i++) {
+            top = top.spawnParent();
+        }
+        for(int i = 0; i < width; i++) {
+            leaf.unionWith(new NestedSet<>(storage));
+        }
+        return leaf;
+    }
+
+    // A root holding values, with depth spawned descendants below it, and width intersections of the root with some
+    //      other set holding the same values
+    static NestedSet<Integer> rootWithDescendants(NestedSet.Storage storage, int depth, int width,
+                                                  List<Integer> values) {
+        NestedSet<Integer> root = filled(storage, values);
+        NestedSet<Integer> bottom = root;
+        for(int i = 0; i < depth; i++) {
+            bottom = bottom.spawnChild();
+        }
+        for(int i = 0; i < width; i++) {
+            root.intersectionWith(filled(storage, values));
+        }
+        return root;
+    }
+
+    // A chain of depth sets spawned one below the next from a root holding values, listed from the top down
+    static List<NestedSet<Integer>> chain(NestedSet.Storage storage, int depth, List<Integer> values) {
+        List<NestedSet<Integer>> chain = new ArrayList<>(depth);
+        NestedSet<Integer> bottom = filled(storage, values);
+        chain.add(bottom);
+        for(int i = 1; i < depth; i++) {
+            bottom = bottom.spawnChild();
+            chain.add(bottom);
+        }
+        return chain;
+    }
+
+    // A set holding values, with width other sets each holding half of them, and the union and intersection of it
+    //      with each, so that it has width immediate parents and width immediate children
+    static NestedSet<Integer> hub(NestedSet.Storage storage, int width, List<Integer> values) {
+        NestedSet<Integer> hub = filled(storage, values);
+        for(int i = 0; i < width; i++) {
+            NestedSet<Integer> other = filled(storage, values.subList(i % 2 == 0 ? 0 : values.size() / 2,
+                    i % 2 == 0 ? values.size() / 2 : values.size()));
+            hub.unionWith(other);
+            hub.intersectionWith(other);
+        }
+        return hub;
+    }
+
+    static String describe(NestedSet.Storage storage, int size, int depth, int width) {
+        return String.format("storage=%s size=%d depth=%d width=%d", storage, size, depth, width);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Reads of a set inside a hierarchy: containsItem for values that are and aren't there, the filter check for values
+ *      that aren't there, getValues, and sums over the value view's sequential and parallel streams
+ */
+final class ReadBenchmark {
+    private static final int PROBES = 1024;
+
+    private ReadBenchmark() {
+    }
+
+    static void run(Harness harness) {
+        for(NestedSet.Storage storage : Harness.storages()) {
+            for(int size : Harness.ints("size", 1000, 100000)) {
+                for(int depth : Harness.ints("depth", 1, 8)) {
+                    for(int width : Harness.ints("width", 1, 16)) {
+                        NestedSet<Integer> leaf = Hierarchies.leafWithAncestors(storage, depth, width);
+                        leaf.addAllItems(Hierarchies.values(0, size));
+
+                        // Boxed up front, so the benchmarks measure the lookup rather than the boxing
+                        Integer[] present = new Integer[PROBES];
+                        Integer[] absent = new Integer[PROBES];
+                        for(int i = 0; i < PROBES; i++) {
+                            present[i] = (int) ((long) i * size / PROBES);
+                            absent[i] = size + i;
+                        }
+
+                        String params = Hierarchies.describe(storage, size, depth, width);
+                        harness.measure("ReadBenchmark.containsPresentItem", params,
+                                () -> leaf, set -> countContained(set, present), PROBES);
+                        harness.measure("ReadBenchmark.containsAbsentItem", params,
+                                () -> leaf, set -> countContained(set, absent), PROBES);
+                        // The filter is built by the first call, during warmup
+                        harness.measure("ReadBenchmark.mightContainAbsentItem", params,
+                                () -> leaf, set -> countMaybeContained(set, absent), PROBES);
+                        harness.measure("ReadBenchmark.getValues", params,
+                                () -> leaf, NestedSet::getValues);
+                        harness.measure("ReadBenchmark.streamValues", params,
+                                () -> leaf, set -> set.values().stream().mapToLong(Integer::longValue).sum());
+                        harness.measure("ReadBenchmark.parallelStreamValues", params,
+                                () -> leaf, set -> set.values().parallelStream().mapToLong(Integer::longValue).sum());
+                    }
+                }
+            }
+        }
+    }
+
+    private static Integer countContained(NestedSet<Integer> set, Integer[] probes) {
+        int contained = 0;
+        for(Integer probe : probes) {
+            if(set.containsItem(probe)) {
+                contained++;
+            }
+        }
+        return contained;
+    }
+
+    private static Integer countMaybeContained(NestedSet<Integer> set, Integer[] probes) {
+        int contained = 0;
+        for(Integer probe : probes) {
+            if(set.mightContainItem(probe)) {
+                contained++;
+            }
+        }
+        return contained;
+    }
+}
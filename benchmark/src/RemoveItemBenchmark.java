@@ -0,0 +1,51 @@
+import java.util.List;
+
+/**
+ * Emptying a set whose descendants all have to drop the values too, one at a time and as a batch, and one at a time
+ *      with the descendants left to a later flush
+ */
+final class RemoveItemBenchmark {
+    private RemoveItemBenchmark() {
+    }
+
+    static void run(Harness harness) {
+        for(NestedSet.Storage storage : Harness.storages()) {
+            for(int size : Harness.ints("size", 1000, 100000)) {
+                for(int depth : Harness.ints("depth", 1, 8)) {
+                    for(int width : Harness.ints("width", 1, 16)) {
+                        String params = Hierarchies.describe(storage, size, depth, width);
+                        List<Integer> values = Hierarchies.values(0, size);
+
+                        harness.measure("RemoveItemBenchmark.removeEachItem", params,
+                                () -> Hierarchies.rootWithDescendants(storage, depth, width, values),
+                                root -> {
+                                    for(Integer value : values) {
+                                        root.removeItem(value);
+                                    }
+                                    return root;
+                                }, size);
+
+                        // Only the removals themselves are timed; the flush afterwards is the cleanup they put off
+                        harness.measure("RemoveItemBenchmark.removeEachItemDeferred", params,
+                                () -> {
+                                    NestedSet<Integer> root = Hierarchies.rootWithDescendants(storage, depth, width,
+                                            values);
+                                    root.deferredRemovals().setEnabled(true);
+                                    return root;
+                                },
+                                root -> {
+                                    for(Integer value : values) {
+                                        root.removeItem(value);
+                                    }
+                                    return root;
+                                }, size);
+
+                        harness.measure("RemoveItemBenchmark.removeAllItems", params,
+                                () -> Hierarchies.rootWithDescendants(storage, depth, width, values),
+                                root -> root.removeAllItems(values), size);
+                    }
+                }
+            }
+        }
+    }
+}
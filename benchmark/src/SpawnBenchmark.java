@@ -0,0 +1,99 @@
+import java.util.List;
+
+/**
+ * Spawning a child or parent in hierarchies of different shapes:
+ *      single  - a lone large set, where the cost is copying everything in it
+ *      chain   - the bottom and the middle of a chain of depth spawned sets, where the new set is linked below or
+ *                above the sets on either side of it
+ *      hub     - a set with width unions above it and width intersections below it, all of which the new set is
+ *                linked in between
+ */
+final class SpawnBenchmark {
+    private SpawnBenchmark() {
+    }
+
+    static void run(Harness harness) {
+        for(NestedSet.Storage storage : Harness.storages()) {
+            for(String shape : Harness.strings("shape", "single", "chain", "hub")) {
+                switch (shape) {
+                    case "single":
+                        runSingle(harness, storage);
+                        break;
+                    case "chain":
+                        runChain(harness, storage);
+                        break;
+                    case "hub":
+                        runHub(harness, storage);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown hierarchy shape " + shape);
+                }
+            }
+        }
+    }
+
+    private static void runSingle(Harness harness, NestedSet.Storage storage) {
+        for(int size : Harness.ints("size", 1000, 100000, 1000000)) {
+            String params = String.format("shape=single storage=%s size=%d", storage, size);
+
+            harness.measure("SpawnBenchmark.spawnChild", params,
+                    () -> Hierarchies.filled(storage, Hierarchies.values(0, size)),
+                    NestedSet::spawnChild);
+
+            harness.measure("SpawnBenchmark.spawnParent", params,
+                    () -> Hierarchies.filled(storage, Hierarchies.values(0, size)),
+                    NestedSet::spawnParent);
+        }
+    }
+
+    private static void runChain(Harness harness, NestedSet.Storage storage) {
+        for(int size : Harness.ints("size", 1000, 100000)) {
+            for(int depth : Harness.ints("depth", 64, 1024)) {
+                String params = String.format("shape=chain storage=%s size=%d depth=%d", storage, size, depth);
+                List<Integer> values = Hierarchies.values(0, size);
+
+                harness.measure("SpawnBenchmark.spawnChild", params,
+                        () -> bottomOf(Hierarchies.chain(storage, depth, values)),
+                        NestedSet::spawnChild);
+
+                harness.measure("SpawnBenchmark.spawnParent", params,
+                        () -> bottomOf(Hierarchies.chain(storage, depth, values)),
+                        NestedSet::spawnParent);
+
+                // Spliced in halfway down, so the new set has depth / 2 relatives on either side to be indexed against
+                harness.measure("SpawnBenchmark.spawnChildMidChain", params,
+                        () -> middleOf(Hierarchies.chain(storage, depth, values)),
+                        NestedSet::spawnChild);
+
+                harness.measure("SpawnBenchmark.spawnParentMidChain", params,
+                        () -> middleOf(Hierarchies.chain(storage, depth, values)),
+                        NestedSet::spawnParent);
+            }
+        }
+    }
+
+    private static void runHub(Harness harness, NestedSet.Storage storage) {
+        for(int size : Harness.ints("size", 1000, 10000)) {
+            for(int width : Harness.ints("width", 8, 64)) {
+                String params = String.format("shape=hub storage=%s size=%d width=%d", storage, size, width);
+                List<Integer> values = Hierarchies.values(0, size);
+
+                harness.measure("SpawnBenchmark.spawnChild", params,
+                        () -> Hierarchies.hub(storage, width, values),
+                        NestedSet::spawnChild);
+
+                harness.measure("SpawnBenchmark.spawnParent", params,
+                        () -> Hierarchies.hub(storage, width, values),
+                        NestedSet::spawnParent);
+            }
+        }
+    }
+
+    private static NestedSet<Integer> middleOf(List<NestedSet<Integer>> chain) {
+        return chain.get(chain.size() / 2);
+    }
+
+    private static NestedSet<Integer> bottomOf(List<NestedSet<Integer>> chain) {
+        return chain.get(chain.size() - 1);
+    }
+}
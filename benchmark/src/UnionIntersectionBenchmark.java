@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unions and intersections of two half-overlapping sets, both built from scratch and looked up once memoized, and
+ *      intersections of many sets, chained pairwise and built in one go.  Also estimates of the sizes of the two,
+ *      with each set's cardinality sketch built up front.  Lastly (A | B) & (C | D) over four such sets, chained by
+ *      hand and streamed as a SetExpression.
+ */
+final class UnionIntersectionBenchmark {
+    private UnionIntersectionBenchmark() {
+    }
+
+    // Two sets of size values each, sharing half of them
+    private static NestedSet<Integer>[] operands(NestedSet.Storage storage, int size) {
+        @SuppressWarnings("unchecked")
+        NestedSet<Integer>[] operands = (NestedSet<Integer>[]) new NestedSet<?>[] {
+                Hierarchies.filled(storage, Hierarchies.values(0, size)),
+                Hierarchies.filled(storage, Hierarchies.values(size / 2, size))
+        };
+        return operands;
+    }
+
+    // Sets of size values each, every one starting a little further along than the last.  Their union is built too,
+    //      which puts them all in one hierarchy, so joining hierarchies isn't part of what's measured.
+    private static List<NestedSet<Integer>> manyOperands(NestedSet.Storage storage, int size, int count) {
+        List<NestedSet<Integer>> operands = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            operands.add(Hierarchies.filled(storage, Hierarchies.values(i * size / (2 * count), size)));
+        }
+        NestedSet.unionOf(operands);
+        return operands;
+    }
+
+    private static NestedSet<Integer> chainedIntersection(List<NestedSet<Integer>> operands) {
+        NestedSet<Integer> intersection = operands.get(0);
+        for(NestedSet<Integer> operand : operands.subList(1, operands.size())) {
+            intersection = intersection.intersectionWith(operand);
+        }
+        return intersection;
+    }
+
+    private static NestedSet<Integer> chainedExpression(List<NestedSet<Integer>> operands) {
+        return operands.get(0).unionWith(operands.get(1)).intersectionWith(operands.get(2).unionWith(operands.get(3)));
+    }
+
+    private static int streamedExpression(List<NestedSet<Integer>> operands) {
+        return (int) SetExpression.of(operands.get(0)).union(operands.get(1))
+                .intersection(SetExpression.of(operands.get(2)).union(operands.get(3)))
+                .stream().count();
+    }
+
+    static void run(Harness harness) {
+        for(NestedSet.Storage storage : Harness.storages()) {
+            for(int size : Harness.ints("size", 1000, 100000)) {
+                String params = String.format("storage=%s size=%d", storage, size);
+
+                // Fresh operands for every call, so nothing is memoized yet
+                harness.measure("UnionIntersectionBenchmark.coldUnion", params,
+                        () -> operands(storage, size), sets -> sets[0].unionWith(sets[1]));
+                harness.measure("UnionIntersectionBenchmark.coldLazyUnion", params,
+                        () -> operands(storage, size), sets -> sets[0].lazyUnionWith(sets[1]));
+                harness.measure("UnionIntersectionBenchmark.coldIntersection", params,
+                        () -> operands(storage, size), sets -> sets[0].intersectionWith(sets[1]));
+
+                // The same operands throughout, with their union and intersection already built
+                NestedSet<Integer>[] memoized = operands(storage, size);
+                memoized[0].unionWith(memoized[1]);
+                memoized[0].intersectionWith(memoized[1]);
+                harness.measure("UnionIntersectionBenchmark.memoizedUnion", params,
+                        () -> memoized, sets -> sets[0].unionWith(sets[1]));
+                harness.measure("UnionIntersectionBenchmark.memoizedIntersection", params,
+                        () -> memoized, sets -> sets[0].intersectionWith(sets[1]));
+
+                // Estimated once during setup, so each set has its sketch and nothing gets built while measuring
+                NestedSet<Integer>[] sketched = operands(storage, size);
+                NestedSet.estimateUnionSize(sketched);
+                harness.measure("UnionIntersectionBenchmark.estimateUnionSize", params,
+                        () -> sketched, NestedSet::estimateUnionSize);
+                harness.measure("UnionIntersectionBenchmark.estimateIntersectionSize", params,
+                        () -> sketched, NestedSet::estimateIntersectionSize);
+
+                for(int count : Harness.ints("operands", 16)) {
+                    String naryParams = params + " operands=" + count;
+                    harness.measure("UnionIntersectionBenchmark.coldChainedIntersection", naryParams,
+                            () -> manyOperands(storage, size, count), UnionIntersectionBenchmark::chainedIntersection);
+                    harness.measure("UnionIntersectionBenchmark.coldIntersectionOf", naryParams,
+                            () -> manyOperands(storage, size, count), NestedSet::intersectionOf);
+                }
+
+                harness.measure("UnionIntersectionBenchmark.coldChainedExpression", params,
+                        () -> manyOperands(storage, size, 4), UnionIntersectionBenchmark::chainedExpression);
+                harness.measure("UnionIntersectionBenchmark.streamedExpression", params,
+                        () -> manyOperands(storage, size, 4), UnionIntersectionBenchmark::streamedExpression);
+            }
+        }
+    }
+}
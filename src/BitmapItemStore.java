@@ -0,0 +1,168 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the items of a set as a compressed bitmap of their dense registry ids.
+ *
+ * Unions and intersections with another bitmap store are a container-wise OR/AND, rather than a copy of every
+ *      item.  Items are resolved back from ids through the owning set's registry when iterating.
+ */
+class BitmapItemStore<T> implements ItemStore<T> {
+    private final NestedSet<T> owner;
+    private CompressedIntBitmap ids;
+
+    BitmapItemStore(NestedSet<T> owner) {
+        this(owner, new CompressedIntBitmap());
+    }
+
+    BitmapItemStore(NestedSet<T> owner, CompressedIntBitmap ids) {
+        this.owner = owner;
+        this.ids = ids;
+    }
+
+    // The ids themselves, not a copy, for NestedSetFile to write out
+    CompressedIntBitmap ids() {
+        return this.ids;
+    }
+
+    @Override
+    public boolean add(NestedSetItem<T> item) {
+        return this.ids.add(item.getId());
+    }
+
+    @Override
+    public boolean remove(NestedSetItem<T> item) {
+        return contains(item) && this.ids.remove(item.getId());
+    }
+
+    @Override
+    public boolean contains(NestedSetItem<T> item) {
+        // The id alone isn't enough, since an item from some other hierarchy may share it
+        return this.ids.contains(item.getId()) && item.equals(this.owner.registry().itemWithId(item.getId()));
+    }
+
+    @Override
+    public int size() {
+        return this.ids.cardinality();
+    }
+
+    @Override
+    public Iterator<NestedSetItem<T>> iterator() {
+        return new Iterator<NestedSetItem<T>>() {
+            // Iteration asks for the next id after the last one returned, so removals along the way are safe
+            private int nextId = ids.nextValue(0);
+            private int lastId = -1;
+
+            @Override
+            public boolean hasNext() {
+                return this.nextId >= 0;
+            }
+
+            @Override
+            public NestedSetItem<T> next() {
+                if(this.nextId < 0) {
+                    throw new NoSuchElementException();
+                }
+                this.lastId = this.nextId;
+                this.nextId = ids.nextValue(this.lastId + 1);
+                return owner.registry().itemWithId(this.lastId);
+            }
+
+            @Override
+            public void remove() {
+                if(this.lastId < 0) {
+                    throw new IllegalStateException();
+                }
+                ids.remove(this.lastId);
+                this.lastId = -1;
+            }
+        };
+    }
+
+    // Splits along the bitmap's containers, looking up the item for each id as it goes
+    @Override
+    public Spliterator<NestedSetItem<T>> spliterator() {
+        return new ItemSpliterator(this.ids.spliterator());
+    }
+
+    private final class ItemSpliterator implements Spliterator<NestedSetItem<T>> {
+        private final Spliterator.OfInt ids;
+
+        ItemSpliterator(Spliterator.OfInt ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super NestedSetItem<T>> action) {
+            return this.ids.tryAdvance((int id) -> action.accept(owner.registry().itemWithId(id)));
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super NestedSetItem<T>> action) {
+            NestedSetItemRegistry<T> registry = owner.registry();
+            this.ids.forEachRemaining((int id) -> action.accept(registry.itemWithId(id)));
+        }
+
+        @Override
+        public Spliterator<NestedSetItem<T>> trySplit() {
+            Spliterator.OfInt prefix = this.ids.trySplit();
+            return prefix == null ? null : new ItemSpliterator(prefix);
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.ids.estimateSize();
+        }
+
+        // Sorted by id, which means nothing for the items
+        @Override
+        public int characteristics() {
+            return this.ids.characteristics() & ~Spliterator.SORTED;
+        }
+    }
+
+    @Override
+    public ItemStore<T> emptyStore(NestedSet<T> owner) {
+        return new BitmapItemStore<>(owner);
+    }
+
+    @Override
+    public ItemStore<T> copy(NestedSet<T> owner) {
+        return new BitmapItemStore<>(owner, this.ids.copy());
+    }
+
+    // A store still paged out of a NestedSetFile is read in first, so bitmaps loaded from one combine word-wise
+    @Override
+    public ItemStore<T> union(ItemStore<T> other, NestedSet<T> owner) {
+        ItemStore<T> settled = PagedItemStore.pagedIn(other);
+        if(settled instanceof BitmapItemStore) {
+            CompressedIntBitmap otherIds = ((BitmapItemStore<T>) settled).ids;
+            return new BitmapItemStore<>(owner,
+                    ParallelBuild.appliesTo(this, settled) ? this.ids.parallelOr(otherIds) : this.ids.or(otherIds));
+        }
+
+        BitmapItemStore<T> combined = new BitmapItemStore<>(owner, this.ids.copy());
+        other.iterator().forEachRemaining(combined::add);
+        return combined;
+    }
+
+    @Override
+    public ItemStore<T> intersection(ItemStore<T> other, NestedSet<T> owner) {
+        ItemStore<T> settled = PagedItemStore.pagedIn(other);
+        if(settled instanceof BitmapItemStore) {
+            CompressedIntBitmap otherIds = ((BitmapItemStore<T>) settled).ids;
+            return new BitmapItemStore<>(owner,
+                    ParallelBuild.appliesTo(this, settled) ? this.ids.parallelAnd(otherIds) : this.ids.and(otherIds));
+        }
+
+        BitmapItemStore<T> combined = new BitmapItemStore<>(owner);
+        this.iterator().forEachRemaining(item -> {
+            if(other.contains(item)) {
+                combined.add(item);
+            }
+        });
+        return combined;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * A HyperLogLog sketch of a set of values, estimating how many distinct values it was offered.
+ *
+ * Each of the 2^PRECISION registers keeps the longest run of leading zeros seen among the hashes routed to it, so
+ *      offering a value twice changes nothing, and two sketches merge into a sketch of the union of their values by
+ *      taking the larger of each pair of registers.  At this precision a sketch takes 16KB, and estimates are
+ *      typically within 1% or so.
+ * Sketches can only ever grow; forgetting a value means building the sketch again.
+ *
+ * Offers and merges are synchronized, since sets of a concurrent hierarchy are written from many threads.
+ */
+class CardinalitySketch {
+    static final int PRECISION = 14;
+    private static final int REGISTERS = 1 << PRECISION;
+
+    private final byte[] registers;
+
+    CardinalitySketch() {
+        this.registers = new byte[REGISTERS];
+    }
+
+    // Takes a value's 64-bit fingerprint (see HashingStrategy)
+    synchronized void offer(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - PRECISION));
+
+        // The guard bit caps the run at the bits left over once the index is taken
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if(rank > this.registers[index]) {
+            this.registers[index] = (byte) rank;
+        }
+    }
+
+    synchronized void merge(CardinalitySketch other) {
+        byte[] theirs = other.registersCopy();
+        for(int i = 0; i < REGISTERS; i++) {
+            if(theirs[i] > this.registers[i]) {
+                this.registers[i] = theirs[i];
+            }
+        }
+    }
+
+    CardinalitySketch copy() {
+        CardinalitySketch copy = new CardinalitySketch();
+        copy.merge(this);
+        return copy;
+    }
+
+    private synchronized byte[] registersCopy() {
+        return this.registers.clone();
+    }
+
+    // The raw HyperLogLog estimate, falling back on linear counting while enough registers are still empty for that
+    //      to do better
+    synchronized long estimate() {
+        double sum = 0;
+        int empty = 0;
+        for(byte register : this.registers) {
+            sum += 1.0 / (1L << register);
+            if(register == 0) {
+                empty++;
+            }
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if(estimate <= 2.5 * REGISTERS && empty > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / empty);
+        }
+        return Math.round(estimate);
+    }
+
+    // Spreads a 32-bit hash code over 64 bits (the finalizer of MurmurHash3), since hash codes of small integers and
+    //      the like are far from uniform
+    static long mix(int hashCode) {
+        long hash = hashCode;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
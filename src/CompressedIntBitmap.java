@@ -0,0 +1,778 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed bitmap of non-negative ints, laid out like a Roaring bitmap.
+ *
+ * Values are split into a 16-bit high key and a 16-bit low part.  Each high key owns a container holding the low
+ *      parts, which is a sorted char array while it is sparse and a flat 65536-bit bitmap once it is dense.  Unions
+ *      and intersections work container by container, and bitmap containers combine a 64-bit word at a time.
+ *
+ * Containers are copy-on-write.  Copying a bitmap, or OR-ing in a container with no counterpart, shares the
+ *      container rather than copying it, and whichever bitmap first writes to a shared container copies just that
+ *      container.  So a copy costs one entry per 65536 values up front, and diverging costs at most 8KB per write.
+ */
+class CompressedIntBitmap {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private char[] keys;
+    private Container[] containers;
+    private int containerCount;
+
+    // Whether each container is this bitmap's alone, and so safe to write to in place
+    private boolean[] owned;
+
+    CompressedIntBitmap() {
+        this(new char[INITIAL_CAPACITY], new Container[INITIAL_CAPACITY], 0);
+    }
+
+    private CompressedIntBitmap(char[] keys, Container[] containers, int containerCount) {
+        this.keys = keys;
+        this.containers = containers;
+        this.containerCount = containerCount;
+        this.owned = new boolean[containers.length];
+    }
+
+    /*
+    Single value operations
+     */
+
+    boolean add(int value) {
+        char key = highBits(value);
+        int index = indexOfKey(key);
+        if(index >= 0) {
+            if(this.containers[index].contains(lowBits(value))) {
+                return false;
+            }
+            this.containers[index] = writableContainer(index).add(lowBits(value));
+            return true;
+        }
+
+        insertContainerAt(-index - 1, key, new ArrayContainer().add(lowBits(value)));
+        return true;
+    }
+
+    boolean remove(int value) {
+        int index = indexOfKey(highBits(value));
+        if(index < 0) {
+            return false;
+        }
+
+        if(!this.containers[index].contains(lowBits(value))) {
+            return false;
+        }
+
+        Container updated = writableContainer(index).remove(lowBits(value));
+        if(updated.cardinality() == 0) {
+            removeContainerAt(index);
+        } else {
+            this.containers[index] = updated;
+        }
+        return true;
+    }
+
+    boolean contains(int value) {
+        int index = indexOfKey(highBits(value));
+        return index >= 0 && this.containers[index].contains(lowBits(value));
+    }
+
+    int cardinality() {
+        int total = 0;
+        for(int i = 0; i < this.containerCount; i++) {
+            total += this.containers[i].cardinality();
+        }
+        return total;
+    }
+
+    boolean isEmpty() {
+        return this.containerCount == 0;
+    }
+
+    // Returns the smallest value in this bitmap that is >= from, or -1 if there is none
+    int nextValue(int from) {
+        if(from < 0) {
+            from = 0;
+        }
+
+        int index = indexOfKey(highBits(from));
+        int low = lowBits(from);
+        if(index < 0) {
+            index = -index - 1;
+            low = 0;
+        }
+
+        for(; index < this.containerCount; index++) {
+            int found = this.containers[index].nextValue(low);
+            if(found >= 0) {
+                return (this.keys[index] << 16) | found;
+            }
+            low = 0;
+        }
+        return -1;
+    }
+
+    /*
+    Splitting iteration, for parallel streams
+    A spliterator splits between containers while it spans several, with an exact size either side.  Within a single
+        container it halves the range of low bits instead, where sizes can only be estimated.
+     */
+
+    private static final int CONTAINER_RANGE = 1 << 16;
+    private static final int MIN_SPLIT_RANGE = 1 << 10;
+
+    Spliterator.OfInt spliterator() {
+        return new ValueSpliterator(0, this.containerCount, 0, CONTAINER_RANGE, true, cardinality());
+    }
+
+    private final class ValueSpliterator implements Spliterator.OfInt {
+        // Covers containers from index up to endIndex, starting at low in the first and stopping before endLow in the
+        //      last
+        private int index;
+        private final int endIndex;
+        private int low;
+        private final int endLow;
+        private boolean exact;
+        private long remaining;
+
+        ValueSpliterator(int index, int endIndex, int low, int endLow, boolean exact, long remaining) {
+            this.index = index;
+            this.endIndex = endIndex;
+            this.low = low;
+            this.endLow = endLow;
+            this.exact = exact;
+            this.remaining = remaining;
+        }
+
+        // The values in whole containers from index on
+        private long countFrom(int index) {
+            long count = 0;
+            for(int i = index; i < this.endIndex; i++) {
+                count += containers[i].cardinality();
+            }
+            return count;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            while(this.index < this.endIndex) {
+                boolean last = this.index == this.endIndex - 1;
+                int found = this.low < CONTAINER_RANGE ? containers[this.index].nextValue(this.low) : -1;
+                if(found >= 0 && (!last || found < this.endLow)) {
+                    action.accept((keys[this.index] << 16) | found);
+                    this.low = found + 1;
+                    this.remaining = Math.max(0, this.remaining - 1);
+                    return true;
+                }
+                if(last) {
+                    break;
+                }
+                this.index++;
+                this.low = 0;
+            }
+            this.index = this.endIndex;
+            this.remaining = 0;
+            return false;
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit() {
+            if(this.endIndex - this.index > 1) {
+                // The second half is whole containers, so when this is exact both halves are too
+                int middle = (this.index + this.endIndex) >>> 1;
+                long suffix = this.exact ? countFrom(middle) : this.remaining / 2;
+                ValueSpliterator prefix = new ValueSpliterator(this.index, middle, this.low, CONTAINER_RANGE,
+                        this.exact, Math.max(0, this.remaining - suffix));
+                this.index = middle;
+                this.low = 0;
+                this.remaining = suffix;
+                return prefix;
+            } else if(this.endIndex - this.index == 1 && this.endLow - this.low >= 2 * MIN_SPLIT_RANGE) {
+                int middle = (this.low + this.endLow) >>> 1;
+                ValueSpliterator prefix = new ValueSpliterator(this.index, this.index + 1, this.low, middle, false,
+                        this.remaining / 2);
+                this.low = middle;
+                this.exact = false;
+                this.remaining -= prefix.remaining;
+                return prefix;
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            int characteristics = Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL;
+            return this.exact ? characteristics | Spliterator.SIZED | Spliterator.SUBSIZED : characteristics;
+        }
+
+        // Ints in their natural order
+        @Override
+        public Comparator<? super Integer> getComparator() {
+            return null;
+        }
+    }
+
+    CompressedIntBitmap copy() {
+        Arrays.fill(this.owned, false);
+        return new CompressedIntBitmap(Arrays.copyOf(this.keys, this.keys.length),
+                Arrays.copyOf(this.containers, this.containers.length), this.containerCount);
+    }
+
+    /*
+    Whole-bitmap operations
+    Both walk the two sorted key arrays side by side, combining containers whose keys match.
+     */
+
+    CompressedIntBitmap or(CompressedIntBitmap other) {
+        return orRange(other, 0, this.containerCount, 0, other.containerCount);
+    }
+
+    CompressedIntBitmap and(CompressedIntBitmap other) {
+        return andRange(other, 0, this.containerCount, 0, other.containerCount);
+    }
+
+    // Combines this bitmap's containers from i to iEnd with other's from j to jEnd
+    private CompressedIntBitmap orRange(CompressedIntBitmap other, int i, int iEnd, int j, int jEnd) {
+        int capacity = Math.max(INITIAL_CAPACITY, (iEnd - i) + (jEnd - j));
+        CompressedIntBitmap result = new CompressedIntBitmap(new char[capacity], new Container[capacity], 0);
+
+        while(i < iEnd && j < jEnd) {
+            if(this.keys[i] == other.keys[j]) {
+                result.appendContainer(this.keys[i], this.containers[i].or(other.containers[j]), true);
+                i++;
+                j++;
+            } else if(this.keys[i] < other.keys[j]) {
+                result.appendContainer(this.keys[i], this.shareContainer(i), false);
+                i++;
+            } else {
+                result.appendContainer(other.keys[j], other.shareContainer(j), false);
+                j++;
+            }
+        }
+        for(; i < iEnd; i++) {
+            result.appendContainer(this.keys[i], this.shareContainer(i), false);
+        }
+        for(; j < jEnd; j++) {
+            result.appendContainer(other.keys[j], other.shareContainer(j), false);
+        }
+        return result;
+    }
+
+    private CompressedIntBitmap andRange(CompressedIntBitmap other, int i, int iEnd, int j, int jEnd) {
+        int capacity = Math.max(INITIAL_CAPACITY, Math.min(iEnd - i, jEnd - j));
+        CompressedIntBitmap result = new CompressedIntBitmap(new char[capacity], new Container[capacity], 0);
+
+        while(i < iEnd && j < jEnd) {
+            if(this.keys[i] == other.keys[j]) {
+                Container combined = this.containers[i].and(other.containers[j]);
+                if(combined.cardinality() > 0) {
+                    result.appendContainer(this.keys[i], combined, true);
+                }
+                i++;
+                j++;
+            } else if(this.keys[i] < other.keys[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /*
+    Parallel versions of the above
+    The key space is cut at the middle key of whichever operand has more containers left, and each side is combined
+        as its own fork-join task, down to a handful of containers per task.  Every task touches only its own
+        containers, and the pieces come back in key order, so they are just laid end to end.
+     */
+
+    private static final int PARALLEL_LEAF_CONTAINERS = 8;
+
+    CompressedIntBitmap parallelOr(CompressedIntBitmap other) {
+        return ForkJoinPool.commonPool().invoke(
+                new CombineTask(this, other, true, 0, this.containerCount, 0, other.containerCount));
+    }
+
+    CompressedIntBitmap parallelAnd(CompressedIntBitmap other) {
+        return ForkJoinPool.commonPool().invoke(
+                new CombineTask(this, other, false, 0, this.containerCount, 0, other.containerCount));
+    }
+
+    // ForkJoinTask is Serializable, though these tasks are never serialized
+    private static final class CombineTask extends RecursiveTask<CompressedIntBitmap> {
+        private static final long serialVersionUID = 1L;
+
+        private final CompressedIntBitmap left;
+        private final CompressedIntBitmap right;
+        private final boolean union;
+        private final int i;
+        private final int iEnd;
+        private final int j;
+        private final int jEnd;
+
+        CombineTask(CompressedIntBitmap left, CompressedIntBitmap right, boolean union, int i, int iEnd, int j, int jEnd) {
+            this.left = left;
+            this.right = right;
+            this.union = union;
+            this.i = i;
+            this.iEnd = iEnd;
+            this.j = j;
+            this.jEnd = jEnd;
+        }
+
+        @Override
+        protected CompressedIntBitmap compute() {
+            if(Math.max(this.iEnd - this.i, this.jEnd - this.j) <= PARALLEL_LEAF_CONTAINERS) {
+                return this.union ? this.left.orRange(this.right, this.i, this.iEnd, this.j, this.jEnd)
+                        : this.left.andRange(this.right, this.i, this.iEnd, this.j, this.jEnd);
+            }
+
+            // Keys are strictly increasing, so cutting at a middle key always leaves something on either side
+            char cut = this.iEnd - this.i >= this.jEnd - this.j ? this.left.keys[(this.i + this.iEnd) >>> 1]
+                    : this.right.keys[(this.j + this.jEnd) >>> 1];
+            int iCut = this.left.lowerBound(cut, this.i, this.iEnd);
+            int jCut = this.right.lowerBound(cut, this.j, this.jEnd);
+
+            CombineTask below = new CombineTask(this.left, this.right, this.union, this.i, iCut, this.j, jCut);
+            CombineTask above = new CombineTask(this.left, this.right, this.union, iCut, this.iEnd, jCut, this.jEnd);
+            below.fork();
+            CompressedIntBitmap upper = above.compute();
+            return concatenate(below.join(), upper);
+        }
+    }
+
+    private static CompressedIntBitmap concatenate(CompressedIntBitmap lower, CompressedIntBitmap upper) {
+        int count = lower.containerCount + upper.containerCount;
+        CompressedIntBitmap result = new CompressedIntBitmap(new char[Math.max(INITIAL_CAPACITY, count)],
+                new Container[Math.max(INITIAL_CAPACITY, count)], 0);
+        for(CompressedIntBitmap piece : new CompressedIntBitmap[] {lower, upper}) {
+            System.arraycopy(piece.keys, 0, result.keys, result.containerCount, piece.containerCount);
+            System.arraycopy(piece.containers, 0, result.containers, result.containerCount, piece.containerCount);
+            System.arraycopy(piece.owned, 0, result.owned, result.containerCount, piece.containerCount);
+            result.containerCount += piece.containerCount;
+        }
+        return result;
+    }
+
+    /*
+    Serialization, as used by NestedSetFile
+    A bitmap is written as its container count, then each container's key and cardinality, followed by either its
+        sorted low parts, two bytes each, or once past ARRAY_LIMIT its 1024 words.  The form follows from the
+        cardinality, so reading it back needs no other marker.
+     */
+
+    int serializedSize() {
+        int size = 4;
+        for(int i = 0; i < this.containerCount; i++) {
+            int cardinality = this.containers[i].cardinality();
+            size += 6 + (cardinality <= ARRAY_LIMIT ? 2 * cardinality : 8 * BitmapContainer.WORDS);
+        }
+        return size;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(this.containerCount);
+        for(int i = 0; i < this.containerCount; i++) {
+            Container container = this.containers[i];
+            int cardinality = container.cardinality();
+            out.writeChar(this.keys[i]);
+            out.writeInt(cardinality);
+            if(cardinality > ARRAY_LIMIT) {
+                for(long word : ((BitmapContainer) container).words) {
+                    out.writeLong(word);
+                }
+            } else if(container instanceof ArrayContainer) {
+                char[] content = ((ArrayContainer) container).content;
+                for(int j = 0; j < cardinality; j++) {
+                    out.writeChar(content[j]);
+                }
+            } else {
+                // A bitmap container that was combined down to a few values without being converted
+                int low = container.nextValue(0);
+                while(low >= 0) {
+                    out.writeChar(low);
+                    low = low < CONTAINER_RANGE - 1 ? container.nextValue(low + 1) : -1;
+                }
+            }
+        }
+    }
+
+    // Reads a bitmap written by writeTo, leaving the buffer just past it.  Every container is copied out of the
+    //      buffer, so the bitmap owns all of them.
+    static CompressedIntBitmap readFrom(ByteBuffer in) {
+        int count = in.getInt();
+        int capacity = Math.max(INITIAL_CAPACITY, count);
+        CompressedIntBitmap bitmap = new CompressedIntBitmap(new char[capacity], new Container[capacity], 0);
+        for(int i = 0; i < count; i++) {
+            char key = in.getChar();
+            int cardinality = in.getInt();
+            Container container;
+            if(cardinality > ARRAY_LIMIT) {
+                long[] words = new long[BitmapContainer.WORDS];
+                in.asLongBuffer().get(words);
+                in.position(in.position() + 8 * BitmapContainer.WORDS);
+                container = new BitmapContainer(words, cardinality);
+            } else {
+                char[] content = new char[Math.max(1, cardinality)];
+                in.asCharBuffer().get(content, 0, cardinality);
+                in.position(in.position() + 2 * cardinality);
+                container = new ArrayContainer(content, cardinality);
+            }
+            bitmap.appendContainer(key, container, true);
+        }
+        return bitmap;
+    }
+
+    /*
+    Copy-on-write bookkeeping
+     */
+
+    private Container writableContainer(int index) {
+        if(!this.owned[index]) {
+            this.containers[index] = this.containers[index].copy();
+            this.owned[index] = true;
+        }
+        return this.containers[index];
+    }
+
+    private Container shareContainer(int index) {
+        this.owned[index] = false;
+        return this.containers[index];
+    }
+
+    /*
+    Key array bookkeeping
+     */
+
+    private int indexOfKey(char key) {
+        return Arrays.binarySearch(this.keys, 0, this.containerCount, key);
+    }
+
+    // The index of the first key from from to to that is >= key
+    private int lowerBound(char key, int from, int to) {
+        int index = Arrays.binarySearch(this.keys, from, to, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private void insertContainerAt(int index, char key, Container container) {
+        ensureCapacity(this.containerCount + 1);
+        System.arraycopy(this.keys, index, this.keys, index + 1, this.containerCount - index);
+        System.arraycopy(this.containers, index, this.containers, index + 1, this.containerCount - index);
+        System.arraycopy(this.owned, index, this.owned, index + 1, this.containerCount - index);
+        this.keys[index] = key;
+        this.containers[index] = container;
+        this.owned[index] = true;
+        this.containerCount++;
+    }
+
+    private void appendContainer(char key, Container container, boolean owned) {
+        ensureCapacity(this.containerCount + 1);
+        this.keys[this.containerCount] = key;
+        this.containers[this.containerCount] = container;
+        this.owned[this.containerCount] = owned;
+        this.containerCount++;
+    }
+
+    private void removeContainerAt(int index) {
+        System.arraycopy(this.keys, index + 1, this.keys, index, this.containerCount - index - 1);
+        System.arraycopy(this.containers, index + 1, this.containers, index, this.containerCount - index - 1);
+        System.arraycopy(this.owned, index + 1, this.owned, index, this.containerCount - index - 1);
+        this.containerCount--;
+        this.containers[this.containerCount] = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > this.keys.length) {
+            int newLength = Math.max(capacity, this.keys.length * 2);
+            this.keys = Arrays.copyOf(this.keys, newLength);
+            this.containers = Arrays.copyOf(this.containers, newLength);
+            this.owned = Arrays.copyOf(this.owned, newLength);
+        }
+    }
+
+    private static char highBits(int value) {
+        return (char) (value >>> 16);
+    }
+
+    private static char lowBits(int value) {
+        return (char) value;
+    }
+
+    /*
+    Containers
+    Mutating operations return the container that should be stored from then on, which lets a container switch
+        between the array and bitmap representations as its cardinality crosses ARRAY_LIMIT.
+     */
+
+    private static final int ARRAY_LIMIT = 4096;
+
+    private static abstract class Container {
+        abstract Container add(char value);
+        abstract Container remove(char value);
+        abstract boolean contains(char value);
+        abstract int cardinality();
+        abstract int nextValue(int from);
+        abstract Container copy();
+        abstract Container or(Container other);
+        abstract Container and(Container other);
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] content;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[INITIAL_CAPACITY], 0);
+        }
+
+        ArrayContainer(char[] content, int cardinality) {
+            this.content = content;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(this.content, 0, this.cardinality, value);
+            if(index >= 0) {
+                return this;
+            }
+            if(this.cardinality >= ARRAY_LIMIT) {
+                return toBitmapContainer().add(value);
+            }
+
+            index = -index - 1;
+            if(this.cardinality == this.content.length) {
+                this.content = Arrays.copyOf(this.content, Math.min(ARRAY_LIMIT, this.content.length * 2));
+            }
+            System.arraycopy(this.content, index, this.content, index + 1, this.cardinality - index);
+            this.content[index] = value;
+            this.cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(this.content, 0, this.cardinality, value);
+            if(index >= 0) {
+                System.arraycopy(this.content, index + 1, this.content, index, this.cardinality - index - 1);
+                this.cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(this.content, 0, this.cardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return this.cardinality;
+        }
+
+        @Override
+        int nextValue(int from) {
+            int index = Arrays.binarySearch(this.content, 0, this.cardinality, (char) from);
+            if(index < 0) {
+                index = -index - 1;
+            }
+            return index < this.cardinality ? this.content[index] : -1;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(this.content, Math.max(1, this.cardinality)), this.cardinality);
+        }
+
+        @Override
+        Container or(Container other) {
+            if(other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+
+            ArrayContainer that = (ArrayContainer) other;
+            char[] merged = new char[this.cardinality + that.cardinality];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while(i < this.cardinality && j < that.cardinality) {
+                char a = this.content[i];
+                char b = that.content[j];
+                if(a == b) {
+                    merged[k++] = a;
+                    i++;
+                    j++;
+                } else if(a < b) {
+                    merged[k++] = a;
+                    i++;
+                } else {
+                    merged[k++] = b;
+                    j++;
+                }
+            }
+            while(i < this.cardinality) {
+                merged[k++] = this.content[i++];
+            }
+            while(j < that.cardinality) {
+                merged[k++] = that.content[j++];
+            }
+
+            ArrayContainer result = new ArrayContainer(merged, k);
+            return k > ARRAY_LIMIT ? result.toBitmapContainer() : result;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] retained = new char[Math.max(1, this.cardinality)];
+            int k = 0;
+            for(int i = 0; i < this.cardinality; i++) {
+                if(other.contains(this.content[i])) {
+                    retained[k++] = this.content[i];
+                }
+            }
+            return new ArrayContainer(retained, k);
+        }
+
+        private BitmapContainer toBitmapContainer() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for(int i = 0; i < this.cardinality; i++) {
+                bitmap.set(this.content[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private static final int WORDS = 1024;
+
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[WORDS], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        void set(char value) {
+            long mask = 1L << value;
+            int index = value >>> 6;
+            if((this.words[index] & mask) == 0) {
+                this.words[index] |= mask;
+                this.cardinality++;
+            }
+        }
+
+        @Override
+        Container add(char value) {
+            set(value);
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long mask = 1L << value;
+            int index = value >>> 6;
+            if((this.words[index] & mask) != 0) {
+                this.words[index] &= ~mask;
+                this.cardinality--;
+            }
+            return this.cardinality <= ARRAY_LIMIT ? toArrayContainer() : this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (this.words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return this.cardinality;
+        }
+
+        @Override
+        int nextValue(int from) {
+            int index = from >>> 6;
+            long word = this.words[index] & (-1L << from);
+            while(true) {
+                if(word != 0) {
+                    return (index << 6) + Long.numberOfTrailingZeros(word);
+                }
+                if(++index == WORDS) {
+                    return -1;
+                }
+                word = this.words[index];
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(Arrays.copyOf(this.words, WORDS), this.cardinality);
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer result = (BitmapContainer) copy();
+            if(other instanceof BitmapContainer) {
+                long[] otherWords = ((BitmapContainer) other).words;
+                int total = 0;
+                for(int i = 0; i < WORDS; i++) {
+                    result.words[i] |= otherWords[i];
+                    total += Long.bitCount(result.words[i]);
+                }
+                result.cardinality = total;
+            } else {
+                ArrayContainer that = (ArrayContainer) other;
+                for(int i = 0; i < that.cardinality; i++) {
+                    result.set(that.content[i]);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Container and(Container other) {
+            if(other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+
+            long[] otherWords = ((BitmapContainer) other).words;
+            long[] combined = new long[WORDS];
+            int total = 0;
+            for(int i = 0; i < WORDS; i++) {
+                combined[i] = this.words[i] & otherWords[i];
+                total += Long.bitCount(combined[i]);
+            }
+
+            BitmapContainer result = new BitmapContainer(combined, total);
+            return total <= ARRAY_LIMIT ? result.toArrayContainer() : result;
+        }
+
+        private ArrayContainer toArrayContainer() {
+            char[] content = new char[Math.max(1, this.cardinality)];
+            int k = 0;
+            for(int i = 0; i < WORDS; i++) {
+                long word = this.words[i];
+                while(word != 0) {
+                    content[k++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(content, this.cardinality);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of longs, kept as one CompressedIntBitmap of low halves for each distinct high half.
+ *
+ * This holds set ids, which are handed out in order from one, so in practice every id lands in the first bitmap and
+ *      this costs a branch over using a CompressedIntBitmap directly.  Bitmaps for the other high halves are only
+ *      created once ids pass 2^32.
+ */
+class CompressedLongBitmap {
+    private final CompressedIntBitmap first;
+    private Map<Integer, CompressedIntBitmap> rest;
+
+    CompressedLongBitmap() {
+        this.first = new CompressedIntBitmap();
+    }
+
+    private CompressedLongBitmap(CompressedIntBitmap first, Map<Integer, CompressedIntBitmap> rest) {
+        this.first = first;
+        this.rest = rest;
+    }
+
+    boolean add(long value) {
+        int high = (int) (value >>> 32);
+        if(high == 0) {
+            return this.first.add((int) value);
+        }
+        if(this.rest == null) {
+            this.rest = new HashMap<>();
+        }
+        return this.rest.computeIfAbsent(high, h -> new CompressedIntBitmap()).add((int) value);
+    }
+
+    boolean contains(long value) {
+        int high = (int) (value >>> 32);
+        if(high == 0) {
+            return this.first.contains((int) value);
+        }
+        CompressedIntBitmap lows = this.rest == null ? null : this.rest.get(high);
+        return lows != null && lows.contains((int) value);
+    }
+
+    int cardinality() {
+        int cardinality = this.first.cardinality();
+        if(this.rest != null) {
+            for(CompressedIntBitmap lows : this.rest.values()) {
+                cardinality += lows.cardinality();
+            }
+        }
+        return cardinality;
+    }
+
+    CompressedLongBitmap copy() {
+        if(this.rest == null) {
+            return new CompressedLongBitmap(this.first.copy(), null);
+        }
+        Map<Integer, CompressedIntBitmap> copiedRest = new HashMap<>();
+        for(Map.Entry<Integer, CompressedIntBitmap> entry : this.rest.entrySet()) {
+            copiedRest.put(entry.getKey(), entry.getValue().copy());
+        }
+        return new CompressedLongBitmap(this.first.copy(), copiedRest);
+    }
+}
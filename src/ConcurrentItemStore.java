@@ -0,0 +1,379 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the items of a set in a concurrent hash map, so that writers of different values never block each other
+ *      and readers never block at all.  Iteration is weakly consistent.
+ *
+ * Each item maps to the span of versions it has been in the set for.  While no snapshot is open (see
+ *      NestedSetSnapshot), that is all there is and removing an item drops it.  While snapshots are open, removing
+ *      an item closes its span instead, and adding it back starts a new one in front of the old, so that a
+ *      snapshot can still tell what the set held at its version.  Spans no open snapshot can see are purged by the
+ *      registry once those snapshots are closed.
+ */
+class ConcurrentItemStore<T> implements ItemStore<T> {
+    private static final long LIVE = Long.MAX_VALUE;
+
+    // The versions from added (inclusive) to removed (exclusive), linked to the item's earlier spans.  A span is
+    //      never changed once published; closing or trimming one replaces it.
+    private static final class Span {
+        final long added;
+        final long removed;
+        final Span older;
+
+        Span(long added, long removed, Span older) {
+            this.added = added;
+            this.removed = removed;
+            this.older = older;
+        }
+
+        boolean isLive() {
+            return this.removed == LIVE;
+        }
+
+        boolean covers(long version) {
+            for(Span span = this; span != null && span.removed > version; span = span.older) {
+                if(span.added <= version) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Drops the spans that closed at or before oldest, which no open snapshot can see
+        Span trim(long oldest) {
+            if(!isLive() && this.removed <= oldest) {
+                return null;
+            }
+            Span trimmed = this.older == null ? null : this.older.trim(oldest);
+            return trimmed == this.older ? this : new Span(this.added, this.removed, trimmed);
+        }
+    }
+
+    private final NestedSet<T> owner;
+    private final ConcurrentHashMap<NestedSetItem<T>, Span> items;
+    private final AtomicInteger size;
+
+    // Items with spans kept only for open snapshots, for the purge to visit
+    private final Set<NestedSetItem<T>> withHistory;
+
+    ConcurrentItemStore(NestedSet<T> owner) {
+        this.owner = owner;
+        this.items = new ConcurrentHashMap<>();
+        this.size = new AtomicInteger();
+        this.withHistory = ConcurrentHashMap.newKeySet();
+    }
+
+    /*
+    Writes.  Writers of one item are serialized by the hierarchy's value lock, so only the purge can race them, and
+        both go through compute.
+     */
+
+    @Override
+    public boolean add(NestedSetItem<T> item) {
+        Span current = this.items.get(item);
+        if(current != null && current.isLive()) {
+            return false;
+        }
+
+        NestedSetItemRegistry<T> registry = this.owner.registry();
+        long version = registry.writeVersion();
+        boolean keepHistory = registry.hasOpenSnapshots();
+        this.items.compute(item, (key, latest) -> new Span(version, LIVE, keepHistory ? latest : null));
+        if(keepHistory && current != null) {
+            rememberHistory(registry, item);
+        }
+        this.size.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public boolean remove(NestedSetItem<T> item) {
+        Span current = this.items.get(item);
+        if(current == null || !current.isLive()) {
+            return false;
+        }
+
+        NestedSetItemRegistry<T> registry = this.owner.registry();
+        if(registry.hasOpenSnapshots()) {
+            long version = registry.writeVersion();
+            this.items.compute(item, (key, latest) -> new Span(latest.added, version, latest.older));
+            rememberHistory(registry, item);
+        } else {
+            this.items.remove(item);
+        }
+        this.size.decrementAndGet();
+        return true;
+    }
+
+    private void rememberHistory(NestedSetItemRegistry<T> registry, NestedSetItem<T> item) {
+        this.withHistory.add(item);
+        registry.keepHistoryOf(this);
+    }
+
+    /*
+    Reads of the set as it is now
+     */
+
+    @Override
+    public boolean contains(NestedSetItem<T> item) {
+        Span span = this.items.get(item);
+        return span != null && span.isLive();
+    }
+
+    @Override
+    public int size() {
+        return this.size.get();
+    }
+
+    @Override
+    public Iterator<NestedSetItem<T>> iterator() {
+        return new VersionIterator(LIVE - 1, true);
+    }
+
+    // Splits along the map's bins, skipping entries kept only for snapshots.  Like iteration, it is weakly
+    //      consistent, so the size is only an estimate.
+    @Override
+    public Spliterator<NestedSetItem<T>> spliterator() {
+        return new LiveSpliterator(this.items.entrySet().spliterator());
+    }
+
+    private final class LiveSpliterator implements Spliterator<NestedSetItem<T>> {
+        private final Spliterator<Map.Entry<NestedSetItem<T>, Span>> entries;
+
+        LiveSpliterator(Spliterator<Map.Entry<NestedSetItem<T>, Span>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super NestedSetItem<T>> action) {
+            boolean[] found = new boolean[1];
+            while(!found[0] && this.entries.tryAdvance(entry -> {
+                if(entry.getValue().isLive()) {
+                    found[0] = true;
+                    action.accept(entry.getKey());
+                }
+            })) {
+                // Keep going until a live entry turns up or the entries run out
+            }
+            return found[0];
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super NestedSetItem<T>> action) {
+            this.entries.forEachRemaining(entry -> {
+                if(entry.getValue().isLive()) {
+                    action.accept(entry.getKey());
+                }
+            });
+        }
+
+        @Override
+        public Spliterator<NestedSetItem<T>> trySplit() {
+            Spliterator<Map.Entry<NestedSetItem<T>, Span>> prefix = this.entries.trySplit();
+            return prefix == null ? null : new LiveSpliterator(prefix);
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.entries.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.CONCURRENT;
+        }
+    }
+
+    /*
+    Snapshots and purging
+     */
+
+    @Override
+    public ItemStore<T> snapshot(NestedSet<T> owner, long version) {
+        return new VersionView(version);
+    }
+
+    // Trims every span that closed at or before oldest, returning true once no history is left
+    boolean purge(long oldest) {
+        for(NestedSetItem<T> item : this.withHistory) {
+            Span trimmed = this.items.computeIfPresent(item, (key, span) -> span.trim(oldest));
+            if(trimmed == null || (trimmed.isLive() && trimmed.older == null)) {
+                this.withHistory.remove(item);
+
+                // A writer may have started new history for the item in the meantime
+                Span latest = this.items.get(item);
+                if(latest != null && (!latest.isLive() || latest.older != null)) {
+                    this.withHistory.add(item);
+                }
+            }
+        }
+        return !hasHistory();
+    }
+
+    boolean hasHistory() {
+        return !this.withHistory.isEmpty();
+    }
+
+    // Walks the items present at version.  When live, that is the items present now, and removal is allowed.
+    private final class VersionIterator implements Iterator<NestedSetItem<T>> {
+        private final Iterator<Map.Entry<NestedSetItem<T>, Span>> entries;
+        private final long version;
+        private final boolean live;
+        private NestedSetItem<T> upcoming;
+        private NestedSetItem<T> last;
+
+        VersionIterator(long version, boolean live) {
+            this.entries = items.entrySet().iterator();
+            this.version = version;
+            this.live = live;
+            advance();
+        }
+
+        private void advance() {
+            this.upcoming = null;
+            while(this.entries.hasNext()) {
+                Map.Entry<NestedSetItem<T>, Span> entry = this.entries.next();
+                if(this.live ? entry.getValue().isLive() : entry.getValue().covers(this.version)) {
+                    this.upcoming = entry.getKey();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.upcoming != null;
+        }
+
+        @Override
+        public NestedSetItem<T> next() {
+            if(this.upcoming == null) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.upcoming;
+            advance();
+            return this.last;
+        }
+
+        @Override
+        public void remove() {
+            if(!this.live || this.last == null) {
+                throw new IllegalStateException();
+            }
+            ConcurrentItemStore.this.remove(this.last);
+            this.last = null;
+        }
+    }
+
+    // A read-only view of this store as of a snapshot's version
+    private final class VersionView implements ItemStore<T> {
+        private final long version;
+        private volatile int size = -1;
+
+        VersionView(long version) {
+            this.version = version;
+        }
+
+        @Override
+        public boolean contains(NestedSetItem<T> item) {
+            Span span = items.get(item);
+            return span != null && span.covers(this.version);
+        }
+
+        @Override
+        public int size() {
+            if(this.size < 0) {
+                int counted = 0;
+                for(Iterator<NestedSetItem<T>> iterator = iterator(); iterator.hasNext(); iterator.next()) {
+                    counted++;
+                }
+                this.size = counted;
+            }
+            return this.size;
+        }
+
+        @Override
+        public Iterator<NestedSetItem<T>> iterator() {
+            return new VersionIterator(this.version, false);
+        }
+
+        @Override
+        public boolean add(NestedSetItem<T> item) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(NestedSetItem<T> item) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ItemStore<T> emptyStore(NestedSet<T> owner) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ItemStore<T> copy(NestedSet<T> owner) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ItemStore<T> union(ItemStore<T> other, NestedSet<T> owner) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ItemStore<T> intersection(ItemStore<T> other, NestedSet<T> owner) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /*
+    Stores for derived sets, which start out with no history
+     */
+
+    @Override
+    public ItemStore<T> emptyStore(NestedSet<T> owner) {
+        return new ConcurrentItemStore<>(owner);
+    }
+
+    @Override
+    public ItemStore<T> copy(NestedSet<T> owner) {
+        ConcurrentItemStore<T> copied = new ConcurrentItemStore<>(owner);
+        this.iterator().forEachRemaining(copied::adopt);
+        return copied;
+    }
+
+    // Adopting is safe from any thread, so large operands are simply streamed in parallel
+    @Override
+    public ItemStore<T> union(ItemStore<T> other, NestedSet<T> owner) {
+        boolean parallel = ParallelBuild.appliesTo(this, other);
+        ConcurrentItemStore<T> combined = new ConcurrentItemStore<>(owner);
+        ParallelBuild.items(this, parallel).forEach(combined::adopt);
+        ParallelBuild.items(other, parallel).forEach(combined::adopt);
+        return combined;
+    }
+
+    @Override
+    public ItemStore<T> intersection(ItemStore<T> other, NestedSet<T> owner) {
+        ConcurrentItemStore<T> combined = new ConcurrentItemStore<>(owner);
+        ParallelBuild.items(this, ParallelBuild.appliesTo(this, other))
+                .filter(other::contains)
+                .forEach(combined::adopt);
+        return combined;
+    }
+
+    // Adds an item to a store nobody else can see yet, as present from the current version on
+    private void adopt(NestedSetItem<T> item) {
+        if(this.items.putIfAbsent(item, new Span(this.owner.registry().writeVersion(), LIVE, null)) == null) {
+            this.size.incrementAndGet();
+        }
+    }
+}
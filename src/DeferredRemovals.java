@@ -0,0 +1,177 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets a hierarchy put off the fan-out of removals to descendant sets.
+ *
+ * Removing a value from a set normally takes it out of every descendant holding it, and out of every union left
+ *      without it, before returning.  Once deferred removal is enabled, removeItem only takes the value out of the set
+ *      it was called on and leaves a tombstone naming that set.  containsItem, the value view and the reverse lookups
+ *      read through the tombstones, so they answer as if the removal had been carried out in full right away.
+ * The rest of the work is done later, a value at a time and oldest first, by compact or flush, or as soon as that
+ *      value is written to again.  Until then the Collection methods of a descendant set, which read its store as it
+ *      stands, still see the value.  Spawning a set, building a materialized union or intersection, taking a
+ *      snapshot or joining two hierarchies flushes first.
+ *
+ * In a concurrent hierarchy compacting holds each value's lock while it works on that value, so it is safe alongside
+ *      readers and writers and can be left to a background executor (see scheduleCompaction).  Any other hierarchy
+ *      should be compacted from whichever thread uses it.
+ */
+public class DeferredRemovals<T> {
+    private final NestedSetItemRegistry<T> registry;
+    private volatile boolean enabled;
+
+    // The sets each value was removed from while its removal was pending, and the values in the order they were
+    //      first removed.  A value settled early by a write stays queued, and is skipped once it comes up.
+    private final Map<NestedSetItem<T>, List<NestedSet<T>>> tombstones;
+    private final Queue<NestedSetItem<T>> backlog;
+
+    private final AtomicInteger pendingCount;
+    private final AtomicLong recordedCount;
+    private final AtomicLong compactedCount;
+
+    DeferredRemovals(NestedSetItemRegistry<T> registry, boolean concurrent) {
+        this.registry = registry;
+        this.tombstones = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+        this.backlog = concurrent ? new ConcurrentLinkedQueue<>() : new ArrayDeque<>();
+        this.pendingCount = new AtomicInteger();
+        this.recordedCount = new AtomicLong();
+        this.compactedCount = new AtomicLong();
+    }
+
+    /*
+    Configuration.  Turning deferred removal off flushes whatever is still pending.
+     */
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if(!enabled) {
+            flush();
+        }
+    }
+
+    /*
+    Compaction
+     */
+
+    // Carries out the pending removals of up to maxValues values, returning how many values were compacted
+    public int compact(int maxValues) {
+        int compacted = 0;
+        while(compacted < maxValues) {
+            NestedSetItem<T> item = this.backlog.poll();
+            if(item == null) {
+                break;
+            }
+
+            HierarchyLock lock = this.registry.lockValue(item.getValue());
+            try {
+                if(settle(item)) {
+                    this.registry.resolve().releaseIfUnused(item);
+                    compacted++;
+                }
+            } finally {
+                if(lock != null) {
+                    lock.unlockValue(item.getValue());
+                }
+            }
+        }
+        return compacted;
+    }
+
+    public void flush() {
+        compact(Integer.MAX_VALUE);
+    }
+
+    // Compacts up to maxValues values every period, until the returned future is cancelled
+    public ScheduledFuture<?> scheduleCompaction(ScheduledExecutorService executor, long period, TimeUnit unit,
+                                                 int maxValues) {
+        if(!this.registry.isConcurrent()) {
+            throw new IllegalStateException("Only concurrent NestedSets can be compacted in the background");
+        }
+        return executor.scheduleWithFixedDelay(() -> compact(maxValues), period, period, unit);
+    }
+
+    /*
+    Counters, for watching the backlog
+     */
+
+    // Tombstones not yet compacted, counting a value once for each set it was removed from
+    public int pendingCount() {
+        return this.pendingCount.get();
+    }
+
+    public int pendingValueCount() {
+        return this.tombstones.size();
+    }
+
+    public long recordedCount() {
+        return this.recordedCount.get();
+    }
+
+    public long compactedCount() {
+        return this.compactedCount.get();
+    }
+
+    /*
+    Hooks used by NestedSet and the registry.  Callers hold the value lock of the item, if the hierarchy has one.
+     */
+
+    boolean isEmpty() {
+        return this.tombstones.isEmpty();
+    }
+
+    // The sets an item was removed from while its removal is pending, or null if none is
+    List<NestedSet<T>> removedFrom(NestedSetItem<T> item) {
+        return this.tombstones.get(item);
+    }
+
+    Set<NestedSetItem<T>> pendingItems() {
+        return this.tombstones.keySet();
+    }
+
+    // The lists are replaced rather than added to, so lock-free readers never see one change under them
+    void record(NestedSet<T> set, NestedSetItem<T> item) {
+        List<NestedSet<T>> previous = this.tombstones.get(item);
+        List<NestedSet<T>> sets = new ArrayList<>(previous == null ? Collections.emptyList() : previous);
+        sets.add(set);
+        this.tombstones.put(item, sets);
+        if(previous == null) {
+            this.backlog.add(item);
+        }
+        this.pendingCount.incrementAndGet();
+        this.recordedCount.incrementAndGet();
+    }
+
+    // Carries out the pending removals of an item, returning false if there were none.  The tombstones are dropped
+    //      first, so readers see the removals being carried out just as they would see a removeItem in progress.
+    boolean settle(NestedSetItem<T> item) {
+        List<NestedSet<T>> sets = this.tombstones.remove(item);
+        if(sets == null) {
+            return false;
+        }
+
+        for(NestedSet<T> set : sets) {
+            set.completeRemoval(item);
+        }
+        this.pendingCount.addAndGet(-sets.size());
+        this.compactedCount.addAndGet(sets.size());
+        return true;
+    }
+}
@@ -0,0 +1,206 @@
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounds how many unions and intersections a hierarchy keeps materialized.
+ *
+ * Derived sets stay registered in their operands' memo maps for good, which is what makes asking for the same pair
+ *      twice return the same set.  What this cache bounds is their materialized copies: once it holds more than
+ *      maxEntries sets or maxWeight items, the least recently used sets are demoted back to lazy views over their
+ *      operands (see NestedSet.dematerialize), and they get materialized again if they are read often enough.
+ *
+ * Because every derived set is reachable from its operands, the garbage collector can't reclaim one on its own.
+ *      Instead, SOFT and WEAK retention hang a canary off a soft or weak reference, and demote everything they can
+ *      once the collector has cleared it.
+ */
+public class DerivedSetCache<T> {
+    public enum Retention {
+        STRONG,
+        SOFT,
+        WEAK
+    }
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_MAX_WEIGHT = Long.MAX_VALUE;
+
+    private int maxEntries;
+    private long maxWeight;
+    private Retention retention;
+    private Reference<Object> canary;
+
+    // Materialized derived sets in least-recently-used order, along with the weight each was admitted with
+    private LinkedHashMap<NestedSet<T>, Long> entries;
+    private long totalWeight;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    DerivedSetCache() {
+        this.maxEntries = DEFAULT_MAX_ENTRIES;
+        this.maxWeight = DEFAULT_MAX_WEIGHT;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        setRetention(Retention.STRONG);
+    }
+
+    /*
+    Configuration
+     */
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        evictOverflow();
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evictOverflow();
+    }
+
+    public void setRetention(Retention retention) {
+        this.retention = retention;
+        this.canary = newCanary();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public Retention getRetention() {
+        return retention;
+    }
+
+    /*
+    Counters, for sizing the cache
+     */
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public long weight() {
+        return this.totalWeight;
+    }
+
+    /*
+    Hooks used by NestedSet
+     */
+
+    void recordHit(NestedSet<T> derived) {
+        this.hitCount++;
+        this.entries.get(derived);
+        checkCanary();
+    }
+
+    void recordMiss() {
+        this.missCount++;
+        checkCanary();
+    }
+
+    void admit(NestedSet<T> derived) {
+        Long previous = this.entries.put(derived, (long) derived.size());
+        if(previous != null) {
+            this.totalWeight -= previous;
+        }
+        this.totalWeight += derived.size();
+        evictOverflow();
+    }
+
+    void forget(NestedSet<T> derived) {
+        Long weight = this.entries.remove(derived);
+        if(weight != null) {
+            this.totalWeight -= weight;
+        }
+    }
+
+    // Folds in the entries of another hierarchy's cache when the two hierarchies are joined
+    void absorb(DerivedSetCache<T> other) {
+        if(other == this) {
+            return;
+        }
+
+        this.hitCount += other.hitCount;
+        this.missCount += other.missCount;
+        this.evictionCount += other.evictionCount;
+        for(Map.Entry<NestedSet<T>, Long> entry : other.entries.entrySet()) {
+            this.entries.put(entry.getKey(), entry.getValue());
+            this.totalWeight += entry.getValue();
+        }
+        other.entries.clear();
+        evictOverflow();
+    }
+
+    /*
+    Eviction
+    Sets that can't be demoted (e.g. a union that was written to directly, so no longer matches its operands) are
+        dropped from the cache without being demoted, and are no longer counted against its bounds.
+     */
+
+    private void evictOverflow() {
+        List<NestedSet<T>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<NestedSet<T>, Long>> eldest = this.entries.entrySet().iterator();
+        while((this.entries.size() > this.maxEntries || this.totalWeight > this.maxWeight) && eldest.hasNext()) {
+            Map.Entry<NestedSet<T>, Long> entry = eldest.next();
+            this.totalWeight -= entry.getValue();
+            evicted.add(entry.getKey());
+            eldest.remove();
+        }
+
+        for(NestedSet<T> derived : evicted) {
+            demote(derived);
+        }
+    }
+
+    private void checkCanary() {
+        if(this.canary == null || this.canary.get() != null) {
+            return;
+        }
+
+        List<NestedSet<T>> everything = new ArrayList<>(this.entries.keySet());
+        this.entries.clear();
+        this.totalWeight = 0;
+        for(NestedSet<T> derived : everything) {
+            demote(derived);
+        }
+        this.canary = newCanary();
+    }
+
+    private void demote(NestedSet<T> derived) {
+        if(derived.dematerialize()) {
+            this.evictionCount++;
+        }
+    }
+
+    private Reference<Object> newCanary() {
+        switch(this.retention) {
+            case SOFT:
+                return new SoftReference<>(new Object());
+            case WEAK:
+                return new WeakReference<>(new Object());
+            default:
+                return null;
+        }
+    }
+}
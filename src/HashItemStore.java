@@ -0,0 +1,179 @@
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+/**
+ * The default store, which keeps the items of a set in a HashSet.
+ *
+ * Copies are copy-on-write: a copy shares its source's table until either store is written to, at which point the
+ *      writer takes a private copy of the table.  Spawning a set therefore costs nothing up front, and a spawned set
+ *      that is only ever read never costs anything at all.
+ */
+class HashItemStore<T> implements ItemStore<T> {
+    // A table along with how many stores are sharing it
+    private static final class Table<T> {
+        final HashSet<NestedSetItem<T>> items;
+        int owners;
+
+        Table(HashSet<NestedSetItem<T>> items) {
+            this.items = items;
+            this.owners = 1;
+        }
+    }
+
+    private Table<T> table;
+
+    HashItemStore() {
+        this(new HashSet<>());
+    }
+
+    private HashItemStore(HashSet<NestedSetItem<T>> items) {
+        this.table = new Table<>(items);
+    }
+
+    private HashItemStore(Table<T> shared) {
+        shared.owners++;
+        this.table = shared;
+    }
+
+    // The table to write to, which is this store's alone
+    private HashSet<NestedSetItem<T>> writableItems() {
+        if(this.table.owners > 1) {
+            this.table.owners--;
+            this.table = new Table<>(new HashSet<>(this.table.items));
+        }
+        return this.table.items;
+    }
+
+    @Override
+    public boolean add(NestedSetItem<T> item) {
+        // Checking first means adding something already held never forces a copy
+        return !this.table.items.contains(item) && writableItems().add(item);
+    }
+
+    @Override
+    public boolean remove(NestedSetItem<T> item) {
+        return this.table.items.contains(item) && writableItems().remove(item);
+    }
+
+    @Override
+    public boolean contains(NestedSetItem<T> item) {
+        return this.table.items.contains(item);
+    }
+
+    @Override
+    public int size() {
+        return this.table.items.size();
+    }
+
+    @Override
+    public Iterator<NestedSetItem<T>> iterator() {
+        Table<T> iterated = this.table;
+        Iterator<NestedSetItem<T>> iterator = iterated.items.iterator();
+        return new Iterator<NestedSetItem<T>>() {
+            private NestedSetItem<T> last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public NestedSetItem<T> next() {
+                this.last = iterator.next();
+                return this.last;
+            }
+
+            // While the table is shared, removing takes a private copy and carries on iterating the shared one
+            @Override
+            public void remove() {
+                if(table == iterated && iterated.owners == 1) {
+                    iterator.remove();
+                } else {
+                    HashItemStore.this.remove(this.last);
+                }
+            }
+        };
+    }
+
+    // Splits along the hash table's buckets.  A write that takes a private copy of the table leaves this reading the
+    //      one it started on.
+    @Override
+    public Spliterator<NestedSetItem<T>> spliterator() {
+        return this.table.items.spliterator();
+    }
+
+    @Override
+    public List<NestedSetItem<T>> addAll(Collection<NestedSetItem<T>> incoming) {
+        // When the batch outweighs what's already here, size a new table for both once instead of letting it double
+        //      its way up.  Rehashing the existing items costs no more than the batch, and doubles as the private
+        //      copy a shared table would need anyway.
+        if(incoming.size() > this.size()) {
+            HashSet<NestedSetItem<T>> resized = presized(this.size() + incoming.size());
+            resized.addAll(this.table.items);
+            this.table.owners--;
+            this.table = new Table<>(resized);
+        }
+        return ItemStore.super.addAll(incoming);
+    }
+
+    // A table that holds expected items without growing
+    private static <T> HashSet<NestedSetItem<T>> presized(int expected) {
+        return new HashSet<>((int) (expected / 0.75f) + 1);
+    }
+
+    @Override
+    public ItemStore<T> emptyStore(NestedSet<T> owner) {
+        return new HashItemStore<>();
+    }
+
+    @Override
+    public ItemStore<T> copy(NestedSet<T> owner) {
+        return new HashItemStore<>(this.table);
+    }
+
+    @Override
+    public ItemStore<T> union(ItemStore<T> other, NestedSet<T> owner) {
+        if(ParallelBuild.appliesTo(this, other)) {
+            // Find what other adds across workers, then fill a table sized for both in one pass
+            List<NestedSetItem<T>> extra = ParallelBuild.items(other, true)
+                    .filter(item -> !this.table.items.contains(item))
+                    .collect(Collectors.toList());
+            HashSet<NestedSetItem<T>> combined = presized(this.size() + extra.size());
+            combined.addAll(this.table.items);
+            combined.addAll(extra);
+            return new HashItemStore<>(combined);
+        }
+
+        HashSet<NestedSetItem<T>> combined = new HashSet<>(this.table.items);
+        other.iterator().forEachRemaining(combined::add);
+        return new HashItemStore<>(combined);
+    }
+
+    @Override
+    public ItemStore<T> intersection(ItemStore<T> other, NestedSet<T> owner) {
+        // Walk the smaller of the two and probe the larger
+        ItemStore<T> smaller = this.size() <= other.size() ? this : other;
+        ItemStore<T> larger = smaller == this ? other : this;
+
+        if(ParallelBuild.appliesTo(this, other)) {
+            List<NestedSetItem<T>> survivors = ParallelBuild.items(smaller, true)
+                    .filter(larger::contains)
+                    .collect(Collectors.toList());
+            HashSet<NestedSetItem<T>> combined = presized(survivors.size());
+            combined.addAll(survivors);
+            return new HashItemStore<>(combined);
+        }
+
+        HashSet<NestedSetItem<T>> combined = new HashSet<>();
+        smaller.iterator().forEachRemaining(item -> {
+            if(larger.contains(item)) {
+                combined.add(item);
+            }
+        });
+        return new HashItemStore<>(combined);
+    }
+}
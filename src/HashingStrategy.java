@@ -0,0 +1,44 @@
+/**
+ * How a hierarchy of NestedSets tells its values apart: which values are the same, their hash codes, and a 64-bit
+ *      fingerprint for sketches and filters.
+ *
+ * Each value's hash and fingerprint are worked out once, when the hierarchy first sees it, and kept in its
+ *      NestedSetItem, so a value costing a lot to hash is only hashed again when looked up by value.  Equivalent
+ *      values must have the same hash and fingerprint.
+ * Only hierarchies using equal strategies can be combined.
+ */
+public interface HashingStrategy<T> {
+    int hash(T value);
+
+    boolean equivalent(T left, T right);
+
+    // Given the hash this strategy gave the value, so it needn't be worked out again.  Fingerprints should be spread
+    //      over all 64 bits, since sketches and filters take their register, block and bit indices straight from
+    //      them.  By default the hash is mixed, which is plenty short of billions of values.
+    default long fingerprint(T value, int hash) {
+        return CardinalitySketch.mix(hash);
+    }
+
+    // Values' own equals and hashCode
+    @SuppressWarnings("unchecked")
+    static <T> HashingStrategy<T> natural() {
+        return (HashingStrategy<T>) Natural.INSTANCE;
+    }
+
+    final class Natural implements HashingStrategy<Object> {
+        private static final Natural INSTANCE = new Natural();
+
+        private Natural() {
+        }
+
+        @Override
+        public int hash(Object value) {
+            return value.hashCode();
+        }
+
+        @Override
+        public boolean equivalent(Object left, Object right) {
+            return left.equals(right);
+        }
+    }
+}
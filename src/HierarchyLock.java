@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Coordinates writers in a concurrent hierarchy of NestedSets.
+ *
+ * Adding or removing a value only ever touches that value's item and its membership in each set, so value writes
+ *      take a shared hold on the hierarchy plus the one lock stripe the value hashes to.  Writes of values in
+ *      different stripes run in parallel, no matter which sets they touch.  Changes to the shape of the hierarchy
+ *      (spawning, building unions and intersections, joining hierarchies) take the hierarchy exclusively.
+ *
+ * Readers never take any of these locks; they rely on the concurrent registry and stores instead.
+ */
+class HierarchyLock {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final AtomicLong NEXT_ORDER = new AtomicLong();
+
+    private final ReentrantReadWriteLock structure;
+    private final ReentrantLock[] stripes;
+
+    // Values are striped by the hierarchy's hash, so equivalent values share a stripe
+    private final HashingStrategy<Object> hashing;
+
+    // Used to always take two hierarchies' locks in the same order when joining them
+    private final long order;
+
+    @SuppressWarnings("unchecked")
+    HierarchyLock(HashingStrategy<?> hashing) {
+        this.hashing = (HashingStrategy<Object>) hashing;
+        this.structure = new ReentrantReadWriteLock();
+        this.stripes = new ReentrantLock[DEFAULT_STRIPES];
+        for(int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.order = NEXT_ORDER.getAndIncrement();
+    }
+
+    void lockValue(Object value) {
+        this.structure.readLock().lock();
+        stripeFor(value).lock();
+    }
+
+    void unlockValue(Object value) {
+        stripeFor(value).unlock();
+        this.structure.readLock().unlock();
+    }
+
+    // Held by reads that walk the shape of the hierarchy, which may run alongside value writes but not alongside
+    //      changes to the shape
+    void lockStructureShared() {
+        this.structure.readLock().lock();
+    }
+
+    void unlockStructureShared() {
+        this.structure.readLock().unlock();
+    }
+
+    void lockStructure() {
+        this.structure.writeLock().lock();
+    }
+
+    void unlockStructure() {
+        this.structure.writeLock().unlock();
+    }
+
+    static void lockStructures(HierarchyLock first, HierarchyLock second) {
+        if(first == second) {
+            first.lockStructure();
+        } else if(first.order < second.order) {
+            first.lockStructure();
+            second.lockStructure();
+        } else {
+            second.lockStructure();
+            first.lockStructure();
+        }
+    }
+
+    static void unlockStructures(HierarchyLock first, HierarchyLock second) {
+        first.unlockStructure();
+        if(first != second) {
+            second.unlockStructure();
+        }
+    }
+
+    private ReentrantLock stripeFor(Object value) {
+        int hash = this.hashing.hash(value);
+        hash ^= (hash >>> 16);
+        return this.stripes[hash & (this.stripes.length - 1)];
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * A NestedSet of int values, with the same spawn, union, intersection and parent-child semantics.
+ *
+ * Values live unboxed in an open-addressing table per set, with no NestedSetItem or registry behind them, which
+ *      takes a few bytes per value per set rather than a boxed value, an item and its set of containing sets.
+ */
+public class IntNestedSet extends PrimitiveNestedSet<IntNestedSet> {
+    private IntOpenHashSet values;
+
+    public IntNestedSet() {
+        this.values = new IntOpenHashSet();
+    }
+
+    public IntNestedSet(int expectedSize) {
+        this.values = new IntOpenHashSet(expectedSize);
+    }
+
+    /*
+    Add a value to this set
+    Also adds it to all parents, maintaining the subset relationships.
+     */
+
+    public boolean addItem(int value) {
+        if(!this.values.add(value)) {
+            return false;
+        }
+
+        // A parent that already held the value is not walked past, since its own ancestors must hold it too
+        List<IntNestedSet> gainedBy = new ArrayList<>();
+        gainedBy.add(this);
+        Deque<IntNestedSet> toVisit = new ArrayDeque<>(this.parentSets.values());
+        while(!toVisit.isEmpty()) {
+            IntNestedSet parent = toVisit.poll();
+            if(parent.values.add(value)) {
+                gainedBy.add(parent);
+                toVisit.addAll(parent.parentSets.values());
+            }
+        }
+
+        // Adding a value can only grow the intersections of the sets that gained it
+        for(IntNestedSet set : gainedBy) {
+            for(IntNestedSet intersection : new ArrayList<>(set.intersections.values())) {
+                if(intersection.otherOperand(set).values.contains(value)) {
+                    intersection.addItem(value);
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+    Remove a value from this set
+    Also removes it from all children sets, preserving the subset relationship
+     */
+
+    public boolean removeItem(int value) {
+        if(!this.values.remove(value)) {
+            return false;
+        }
+
+        List<IntNestedSet> lostBy = new ArrayList<>();
+        lostBy.add(this);
+        Deque<IntNestedSet> toVisit = new ArrayDeque<>(this.childSets.values());
+        while(!toVisit.isEmpty()) {
+            IntNestedSet child = toVisit.poll();
+            if(child.values.remove(value)) {
+                lostBy.add(child);
+                toVisit.addAll(child.childSets.values());
+            }
+        }
+
+        // Removing a value can only shrink the unions of the sets that lost it, and a union keeps the value for as
+        //      long as one of its children still holds it
+        for(IntNestedSet set : lostBy) {
+            for(IntNestedSet union : new ArrayList<>(set.unions.values())) {
+                if(union.values.contains(value) && !union.holdsBelow(value)) {
+                    union.removeItem(value);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean holdsBelow(int value) {
+        for(IntNestedSet child : this.childSets.values()) {
+            if(child.values.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsItem(int value) {
+        return this.values.contains(value);
+    }
+
+    @Override
+    public int size() {
+        return this.values.size();
+    }
+
+    public void forEachItem(IntConsumer action) {
+        this.values.forEach(action);
+    }
+
+    public int[] toArray() {
+        return this.values.toArray();
+    }
+
+    /*
+    Value storage for the shared hierarchy code
+     */
+
+    @Override
+    IntNestedSet emptySet() {
+        return new IntNestedSet();
+    }
+
+    @Override
+    void copyValuesOf(IntNestedSet source) {
+        this.values = source.values.copy();
+    }
+
+    @Override
+    void unionValuesOf(IntNestedSet left, IntNestedSet right) {
+        IntNestedSet larger = left.size() >= right.size() ? left : right;
+        IntNestedSet smaller = larger == left ? right : left;
+        this.values = larger.values.copy();
+        smaller.values.forEach(this.values::add);
+    }
+
+    @Override
+    void intersectValuesOf(IntNestedSet left, IntNestedSet right) {
+        IntNestedSet smaller = left.size() <= right.size() ? left : right;
+        IntNestedSet larger = smaller == left ? right : left;
+        this.values = new IntOpenHashSet(smaller.size());
+        smaller.values.forEach(value -> {
+            if(larger.values.contains(value)) {
+                this.values.add(value);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return this.values.toString();
+    }
+}
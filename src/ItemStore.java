@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * The storage behind a NestedSet's membership.
+ *
+ * A NestedSet only deals with canonical items handed out by its hierarchy's NestedSetItemRegistry, so stores are
+ *      free to key membership on the item's dense id rather than on its value.
+ */
+interface ItemStore<T> {
+    boolean add(NestedSetItem<T> item);
+
+    boolean remove(NestedSetItem<T> item);
+
+    boolean contains(NestedSetItem<T> item);
+
+    int size();
+
+    Iterator<NestedSetItem<T>> iterator();
+
+    // Splits by handing out batches from the iterator; stores that can split along their own layout do better
+    default Spliterator<NestedSetItem<T>> spliterator() {
+        return Spliterators.spliterator(iterator(), size(), Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    /*
+    Bulk writes, returning the items that were actually added or removed
+     */
+
+    default List<NestedSetItem<T>> addAll(Collection<NestedSetItem<T>> items) {
+        List<NestedSetItem<T>> added = new ArrayList<>();
+        for(NestedSetItem<T> item : items) {
+            if(add(item)) {
+                added.add(item);
+            }
+        }
+        return added;
+    }
+
+    default List<NestedSetItem<T>> removeAll(Collection<NestedSetItem<T>> items) {
+        List<NestedSetItem<T>> removed = new ArrayList<>();
+        for(NestedSetItem<T> item : items) {
+            if(remove(item)) {
+                removed.add(item);
+            }
+        }
+        return removed;
+    }
+
+    /*
+    Stores for derived sets.  Each is owned by the set it is handed to, and is of the same kind as this store.
+     */
+
+    ItemStore<T> emptyStore(NestedSet<T> owner);
+
+    ItemStore<T> copy(NestedSet<T> owner);
+
+    ItemStore<T> union(ItemStore<T> other, NestedSet<T> owner);
+
+    ItemStore<T> intersection(ItemStore<T> other, NestedSet<T> owner);
+
+    // A read-only view of this store as of a snapshot's version.  Copies of copy-on-write stores cost nothing until
+    //      one side is written, so those stand in for the view.
+    default ItemStore<T> snapshot(NestedSet<T> owner, long version) {
+        return copy(owner);
+    }
+}
@@ -0,0 +1,213 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An open-addressing hash table of a registry's items, found by value through the hierarchy's HashingStrategy.
+ *
+ * Items carry the hash their value was given when it was interned, and the table keeps a tag of it alongside each
+ *      item.  Probes run over the tags alone, which are packed sixteen to a cache line, and only touch an item, and
+ *      ask the strategy whether two values are equivalent, once the tags match.  Growing the table never hashes a
+ *      value again.
+ * Lookups never lock, since readers of a concurrent hierarchy don't.  Writes are made under the registry's monitor,
+ *      and removals leave a tombstone rather than shifting later items back, so a lookup running alongside a removal
+ *      can't miss an item that was moved past it.  Tombstones are cleared whenever the table is rebuilt.
+ */
+class ItemTable<T> {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final NestedSetItem<?> TOMBSTONE = new NestedSetItem<>(null, 0, 0, -1, null);
+
+    private final HashingStrategy<? super T> hashing;
+
+    // Replaced as a whole when the table is rebuilt, so a lookup sees either the old slots or the new ones
+    private volatile Slots<T> slots;
+    private int size;
+    private int tombstones;
+
+    // A slot is empty while its tag is zero.  The item is written before its tag, each with lazySet, so a reader that
+    //      sees a tag sees the item, as it was built.
+    private static final class Slots<T> {
+        private final AtomicIntegerArray tags;
+        private final AtomicReferenceArray<NestedSetItem<T>> items;
+
+        private Slots(int capacity) {
+            this.tags = new AtomicIntegerArray(capacity);
+            this.items = new AtomicReferenceArray<>(capacity);
+        }
+
+        private int capacity() {
+            return this.tags.length();
+        }
+
+        private void set(int index, NestedSetItem<T> item, int tag) {
+            this.items.lazySet(index, item);
+            this.tags.lazySet(index, tag);
+        }
+    }
+
+    ItemTable(HashingStrategy<? super T> hashing) {
+        this.hashing = hashing;
+        this.slots = new Slots<>(INITIAL_CAPACITY);
+    }
+
+    NestedSetItem<T> get(T value) {
+        return get(value, this.hashing.hash(value));
+    }
+
+    // For callers that need the hash of the value anyway
+    NestedSetItem<T> get(T value, int hash) {
+        Slots<T> current = this.slots;
+        int tag = tagOf(hash);
+        int mask = current.capacity() - 1;
+        for(int index = spread(tag) & mask, slotTag; (slotTag = current.tags.get(index)) != 0;
+            index = (index + 1) & mask) {
+            if(slotTag == tag) {
+                // Any strategy takes a value to be equivalent to itself, so that is tried first
+                NestedSetItem<T> item = current.items.get(index);
+                if(item != TOMBSTONE && (item.getValue() == value || this.hashing.equivalent(item.getValue(), value))) {
+                    return item;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Adds the item, which is expected not to have an equivalent item here already
+    void put(NestedSetItem<T> item) {
+        if(this.size + this.tombstones + 1 > this.slots.capacity() * LOAD_FACTOR) {
+            rebuild();
+        }
+        Slots<T> current = this.slots;
+        int tag = tagOf(item.hashCode());
+        int mask = current.capacity() - 1;
+        int index = spread(tag) & mask;
+        while(current.tags.get(index) != 0 && current.items.get(index) != TOMBSTONE) {
+            index = (index + 1) & mask;
+        }
+        if(current.tags.get(index) != 0) {
+            this.tombstones--;
+        }
+        current.set(index, item, tag);
+        this.size++;
+    }
+
+    // Removes this very item, and not some other item equivalent to it.  Its tag stays, so probes go on past it.
+    boolean remove(NestedSetItem<T> item) {
+        Slots<T> current = this.slots;
+        int tag = tagOf(item.hashCode());
+        int mask = current.capacity() - 1;
+        for(int index = spread(tag) & mask; current.tags.get(index) != 0; index = (index + 1) & mask) {
+            if(current.items.get(index) == item) {
+                current.items.lazySet(index, tombstone());
+                this.size--;
+                this.tombstones++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    // A read-only view of the items, which shouldn't be iterated while the table is being written to
+    Collection<NestedSetItem<T>> items() {
+        return new AbstractCollection<NestedSetItem<T>>() {
+            @Override
+            public Iterator<NestedSetItem<T>> iterator() {
+                return new ItemIterator(ItemTable.this.slots.items);
+            }
+
+            @Override
+            public int size() {
+                return ItemTable.this.size();
+            }
+        };
+    }
+
+    private final class ItemIterator implements Iterator<NestedSetItem<T>> {
+        private final AtomicReferenceArray<NestedSetItem<T>> items;
+        private int index;
+
+        private ItemIterator(AtomicReferenceArray<NestedSetItem<T>> items) {
+            this.items = items;
+            this.index = nextOccupied(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.index < this.items.length();
+        }
+
+        @Override
+        public NestedSetItem<T> next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            NestedSetItem<T> item = this.items.get(this.index);
+            this.index = nextOccupied(this.index + 1);
+            return item;
+        }
+
+        private int nextOccupied(int from) {
+            int index = from;
+            while(index < this.items.length()
+                    && (this.items.get(index) == null || this.items.get(index) == TOMBSTONE)) {
+                index++;
+            }
+            return index;
+        }
+    }
+
+    /*
+    Rebuilding
+    The table is kept at most three quarters full, counting tombstones.  It doubles once more than half the slots
+        that may be filled hold items, and is otherwise rebuilt at the same size to clear out tombstones.  Either way
+        the new slots are filled before they are published.
+     */
+
+    private void rebuild() {
+        Slots<T> old = this.slots;
+        int capacity = old.capacity();
+        if(this.size + 1 > capacity * LOAD_FACTOR / 2) {
+            capacity *= 2;
+        }
+
+        Slots<T> rebuilt = new Slots<>(capacity);
+        int mask = capacity - 1;
+        for(int i = 0; i < old.capacity(); i++) {
+            int tag = old.tags.get(i);
+            NestedSetItem<T> item = old.items.get(i);
+            if(tag != 0 && item != TOMBSTONE) {
+                int index = spread(tag) & mask;
+                while(rebuilt.tags.get(index) != 0) {
+                    index = (index + 1) & mask;
+                }
+                rebuilt.set(index, item, tag);
+            }
+        }
+        this.tombstones = 0;
+        this.slots = rebuilt;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> NestedSetItem<T> tombstone() {
+        return (NestedSetItem<T>) TOMBSTONE;
+    }
+
+    // Zero is kept for empty slots, so a hash of zero shares its tag with a hash of one
+    private static int tagOf(int hash) {
+        return hash == 0 ? 1 : hash;
+    }
+
+    // Strategies' hashes of small integers and the like are far from uniform
+    private static int spread(int tag) {
+        int spread = tag * 0x9E3779B9;
+        return spread ^ (spread >>> 16);
+    }
+}
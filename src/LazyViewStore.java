@@ -0,0 +1,272 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * A store that holds no items of its own, but answers for the union or intersection of two operand sets.
+ *
+ * Membership and size are worked out from the operands on every read, and iteration streams through the operands
+ *      without building a buffer.  The owning set swaps this out for a real store (see NestedSet.materialize) when
+ *      it is written to, when it is explicitly asked to, or once it has been read readLimit times.
+ */
+class LazyViewStore<T> implements ItemStore<T> {
+    enum Operation {
+        UNION,
+        INTERSECTION
+    }
+
+    static final int DEFAULT_READ_LIMIT = 32;
+
+    private final Operation operation;
+    private final NestedSet<T> left;
+    private final NestedSet<T> right;
+    private final NestedSet<T> owner;
+
+    // A store of the kind this view turns into once materialized
+    private final ItemStore<T> template;
+
+    private final int readLimit;
+    private int reads;
+
+    LazyViewStore(Operation operation, NestedSet<T> left, NestedSet<T> right, NestedSet<T> owner,
+                  ItemStore<T> template, int readLimit) {
+        this.operation = operation;
+        this.left = left;
+        this.right = right;
+        this.owner = owner;
+        this.template = template;
+        this.readLimit = readLimit;
+        this.reads = 0;
+    }
+
+    // Called when a materialized set is demoted back to this view, so it starts counting reads afresh
+    void resetReads() {
+        this.reads = 0;
+    }
+
+    Operation operation() {
+        return this.operation;
+    }
+
+    NestedSet<T> left() {
+        return this.left;
+    }
+
+    NestedSet<T> right() {
+        return this.right;
+    }
+
+    // Counts a read, returning true once the owner has been materialized in response
+    private boolean readAndMaybeMaterialize() {
+        if(++this.reads > this.readLimit) {
+            this.owner.materialize();
+            return true;
+        }
+        return false;
+    }
+
+    /*
+    Writes.  Adding something already visible through the operands is a no-op; anything else materializes first.
+        The write goes to the owner's new store rather than through the owner, which is already on its way to
+        noting the change, and the owner is only admitted to the cache once the write has been made.
+     */
+
+    @Override
+    public boolean add(NestedSetItem<T> item) {
+        if(viewContains(item)) {
+            return false;
+        }
+        boolean added = this.owner.materializedStore().add(item);
+        this.owner.admitToCache();
+        return added;
+    }
+
+    @Override
+    public boolean remove(NestedSetItem<T> item) {
+        if(!viewContains(item)) {
+            return false;
+        }
+        boolean removed = this.owner.materializedStore().remove(item);
+        this.owner.admitToCache();
+        return removed;
+    }
+
+    /*
+    Reads, answered by delegating to the operands
+     */
+
+    @Override
+    public boolean contains(NestedSetItem<T> item) {
+        if(readAndMaybeMaterialize()) {
+            return this.owner.contains(item);
+        }
+        if(this.operation == Operation.UNION) {
+            return this.left.contains(item) || this.right.contains(item);
+        }
+        return this.left.contains(item) && this.right.contains(item);
+    }
+
+    // Membership as the operands stand, without counting as a read of either, so that working out what a change
+    //      does to the hierarchy never materializes a view partway through
+    boolean viewContains(NestedSetItem<T> item) {
+        if(this.operation == Operation.UNION) {
+            return this.left.holds(item) || this.right.holds(item);
+        }
+        return this.left.holds(item) && this.right.holds(item);
+    }
+
+    @Override
+    public int size() {
+        if(readAndMaybeMaterialize()) {
+            return this.owner.size();
+        }
+
+        int size = 0;
+        Iterator<NestedSetItem<T>> iterator = viewIterator();
+        while(iterator.hasNext()) {
+            iterator.next();
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<NestedSetItem<T>> iterator() {
+        if(readAndMaybeMaterialize()) {
+            return this.owner.iterator();
+        }
+        return viewIterator();
+    }
+
+    // Working out the size would mean a pass over the operands of its own, so none is given
+    @Override
+    public Spliterator<NestedSetItem<T>> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    // For a union, everything in left and then whatever in right isn't in left.  For an intersection, whatever in
+    //      the smaller operand is also in the larger one.
+    private Iterator<NestedSetItem<T>> viewIterator() {
+        if(this.operation == Operation.UNION) {
+            return new ConcatenatingIterator<>(this.left.iterator(),
+                    new FilteringIterator<>(this.right, this.left, false));
+        }
+
+        NestedSet<T> smaller = this.left.size() <= this.right.size() ? this.left : this.right;
+        NestedSet<T> larger = smaller == this.left ? this.right : this.left;
+        return new FilteringIterator<>(smaller, larger, true);
+    }
+
+    // Whether the store holds exactly what this view does, so that its owner can go back to being this view
+    boolean viewEquals(ItemStore<T> store) {
+        int size = 0;
+        Iterator<NestedSetItem<T>> iterator = viewIterator();
+        while(iterator.hasNext()) {
+            if(!store.contains(iterator.next())) {
+                return false;
+            }
+            size++;
+        }
+        return size == store.size();
+    }
+
+    /*
+    Stores for derived sets are always real ones, of the kind this view materializes into
+     */
+
+    @Override
+    public ItemStore<T> emptyStore(NestedSet<T> owner) {
+        return this.template.emptyStore(owner);
+    }
+
+    @Override
+    public ItemStore<T> copy(NestedSet<T> owner) {
+        ItemStore<T> copied = this.template.emptyStore(owner);
+        viewIterator().forEachRemaining(copied::add);
+        return copied;
+    }
+
+    @Override
+    public ItemStore<T> union(ItemStore<T> other, NestedSet<T> owner) {
+        ItemStore<T> combined = copy(owner);
+        other.iterator().forEachRemaining(combined::add);
+        return combined;
+    }
+
+    @Override
+    public ItemStore<T> intersection(ItemStore<T> other, NestedSet<T> owner) {
+        ItemStore<T> combined = this.template.emptyStore(owner);
+        viewIterator().forEachRemaining(item -> {
+            if(other.contains(item)) {
+                combined.add(item);
+            }
+        });
+        return combined;
+    }
+
+    /*
+    Iterators used to stream through the operands
+     */
+
+    private static final class ConcatenatingIterator<T> implements Iterator<NestedSetItem<T>> {
+        private final Iterator<NestedSetItem<T>> first;
+        private final Iterator<NestedSetItem<T>> second;
+
+        ConcatenatingIterator(Iterator<NestedSetItem<T>> first, Iterator<NestedSetItem<T>> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.first.hasNext() || this.second.hasNext();
+        }
+
+        @Override
+        public NestedSetItem<T> next() {
+            return this.first.hasNext() ? this.first.next() : this.second.next();
+        }
+    }
+
+    // Yields the items of source whose membership in probe matches keepIfContained
+    private static final class FilteringIterator<T> implements Iterator<NestedSetItem<T>> {
+        private final Iterator<NestedSetItem<T>> source;
+        private final NestedSet<T> probe;
+        private final boolean keepIfContained;
+        private NestedSetItem<T> upcoming;
+
+        FilteringIterator(NestedSet<T> source, NestedSet<T> probe, boolean keepIfContained) {
+            this.source = source.iterator();
+            this.probe = probe;
+            this.keepIfContained = keepIfContained;
+            advance();
+        }
+
+        private void advance() {
+            this.upcoming = null;
+            while(this.source.hasNext()) {
+                NestedSetItem<T> candidate = this.source.next();
+                if(this.probe.contains(candidate) == this.keepIfContained) {
+                    this.upcoming = candidate;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.upcoming != null;
+        }
+
+        @Override
+        public NestedSetItem<T> next() {
+            if(this.upcoming == null) {
+                throw new NoSuchElementException();
+            }
+            NestedSetItem<T> current = this.upcoming;
+            advance();
+            return current;
+        }
+    }
+}
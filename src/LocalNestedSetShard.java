@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A shard held in this process, owned by a worker thread of its own.
+ *
+ * Every call is queued to the worker and applied there, one at a time, so the sets of the shard are only ever
+ *      touched by one thread and can use any storage.  The worker is a daemon thread, and stops once the shard is
+ *      closed.
+ */
+public class LocalNestedSetShard<T> implements NestedSetShard<T> {
+    private static final AtomicInteger NEXT_WORKER = new AtomicInteger();
+
+    private final NestedSet.Storage storage;
+    private final HashingStrategy<? super T> hashing;
+    private final ExecutorService worker;
+
+    // Sets by id, and ids by set.  Only the worker reads or writes these.
+    private final List<NestedSet<T>> sets;
+    private final Map<NestedSet<T>, Integer> ids;
+
+    public LocalNestedSetShard(NestedSet.Storage storage) {
+        this(storage, HashingStrategy.natural());
+    }
+
+    public LocalNestedSetShard(NestedSet.Storage storage, HashingStrategy<? super T> hashing) {
+        this.storage = storage;
+        this.hashing = hashing;
+        this.worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "nested-set-shard-" + NEXT_WORKER.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sets = new ArrayList<>();
+        this.ids = new IdentityHashMap<>();
+    }
+
+    private <R> CompletableFuture<R> onWorker(Supplier<R> operation) {
+        return CompletableFuture.supplyAsync(operation, this.worker);
+    }
+
+    // The id of a set, handing out the next one if the set is new to this shard
+    private int idOf(NestedSet<T> set) {
+        Integer id = this.ids.get(set);
+        if(id == null) {
+            id = this.sets.size();
+            this.sets.add(set);
+            this.ids.put(set, id);
+        }
+        return id;
+    }
+
+    /*
+    Changes to the shape of the hierarchy
+     */
+
+    @Override
+    public CompletableFuture<Integer> newSet() {
+        return onWorker(() -> idOf(new NestedSet<>(this.storage, this.hashing)));
+    }
+
+    @Override
+    public CompletableFuture<Integer> spawnChild(int set) {
+        return onWorker(() -> idOf(this.sets.get(set).spawnChild()));
+    }
+
+    @Override
+    public CompletableFuture<Integer> spawnParent(int set) {
+        return onWorker(() -> idOf(this.sets.get(set).spawnParent()));
+    }
+
+    @Override
+    public CompletableFuture<Integer> unionWith(int set, int other) {
+        return onWorker(() -> idOf(this.sets.get(set).unionWith(this.sets.get(other))));
+    }
+
+    @Override
+    public CompletableFuture<Integer> intersectionWith(int set, int other) {
+        return onWorker(() -> idOf(this.sets.get(set).intersectionWith(this.sets.get(other))));
+    }
+
+    /*
+    Values
+     */
+
+    @Override
+    public CompletableFuture<Boolean> addItem(int set, T value) {
+        return onWorker(() -> this.sets.get(set).addItem(value));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeItem(int set, T value) {
+        return onWorker(() -> this.sets.get(set).removeItem(value));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addAllItems(int set, Collection<T> values) {
+        return onWorker(() -> this.sets.get(set).addAllItems(values));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeAllItems(int set, Collection<T> values) {
+        return onWorker(() -> this.sets.get(set).removeAllItems(values));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> containsItem(int set, T value) {
+        return onWorker(() -> this.sets.get(set).containsItem(value));
+    }
+
+    /*
+    Reads
+     */
+
+    @Override
+    public CompletableFuture<Integer> size(int set) {
+        return onWorker(() -> this.sets.get(set).size());
+    }
+
+    @Override
+    public CompletableFuture<Set<T>> getValues(int set) {
+        return onWorker(() -> this.sets.get(set).getValues());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> isChildOf(int set, int other) {
+        return onWorker(() -> this.sets.get(set).isChildOf(this.sets.get(other)));
+    }
+
+    @Override
+    public void close() {
+        this.worker.shutdown();
+    }
+}
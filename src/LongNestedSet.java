@@ -0,0 +1,151 @@
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * A NestedSet of long values, with the same spawn, union, intersection and parent-child semantics.
+ *
+ * Values live unboxed in an open-addressing table per set, with no NestedSetItem or registry behind them, which
+ *      takes a few bytes per value per set rather than a boxed value, an item and its set of containing sets.
+ */
+public class LongNestedSet extends PrimitiveNestedSet<LongNestedSet> {
+    private LongOpenHashSet values;
+
+    public LongNestedSet() {
+        this.values = new LongOpenHashSet();
+    }
+
+    public LongNestedSet(int expectedSize) {
+        this.values = new LongOpenHashSet(expectedSize);
+    }
+
+    /*
+    Add a value to this set
+    Also adds it to all parents, maintaining the subset relationships.
+     */
+
+    public boolean addItem(long value) {
+        if(!this.values.add(value)) {
+            return false;
+        }
+
+        // A parent that already held the value is not walked past, since its own ancestors must hold it too
+        List<LongNestedSet> gainedBy = new ArrayList<>();
+        gainedBy.add(this);
+        Deque<LongNestedSet> toVisit = new ArrayDeque<>(this.parentSets.values());
+        while(!toVisit.isEmpty()) {
+            LongNestedSet parent = toVisit.poll();
+            if(parent.values.add(value)) {
+                gainedBy.add(parent);
+                toVisit.addAll(parent.parentSets.values());
+            }
+        }
+
+        // Adding a value can only grow the intersections of the sets that gained it
+        for(LongNestedSet set : gainedBy) {
+            for(LongNestedSet intersection : new ArrayList<>(set.intersections.values())) {
+                if(intersection.otherOperand(set).values.contains(value)) {
+                    intersection.addItem(value);
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+    Remove a value from this set
+    Also removes it from all children sets, preserving the subset relationship
+     */
+
+    public boolean removeItem(long value) {
+        if(!this.values.remove(value)) {
+            return false;
+        }
+
+        List<LongNestedSet> lostBy = new ArrayList<>();
+        lostBy.add(this);
+        Deque<LongNestedSet> toVisit = new ArrayDeque<>(this.childSets.values());
+        while(!toVisit.isEmpty()) {
+            LongNestedSet child = toVisit.poll();
+            if(child.values.remove(value)) {
+                lostBy.add(child);
+                toVisit.addAll(child.childSets.values());
+            }
+        }
+
+        // Removing a value can only shrink the unions of the sets that lost it, and a union keeps the value for as
+        //      long as one of its children still holds it
+        for(LongNestedSet set : lostBy) {
+            for(LongNestedSet union : new ArrayList<>(set.unions.values())) {
+                if(union.values.contains(value) && !union.holdsBelow(value)) {
+                    union.removeItem(value);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean holdsBelow(long value) {
+        for(LongNestedSet child : this.childSets.values()) {
+            if(child.values.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsItem(long value) {
+        return this.values.contains(value);
+    }
+
+    @Override
+    public int size() {
+        return this.values.size();
+    }
+
+    public void forEachItem(LongConsumer action) {
+        this.values.forEach(action);
+    }
+
+    public long[] toArray() {
+        return this.values.toArray();
+    }
+
+    /*
+    Value storage for the shared hierarchy code
+     */
+
+    @Override
+    LongNestedSet emptySet() {
+        return new LongNestedSet();
+    }
+
+    @Override
+    void copyValuesOf(LongNestedSet source) {
+        this.values = source.values.copy();
+    }
+
+    @Override
+    void unionValuesOf(LongNestedSet left, LongNestedSet right) {
+        LongNestedSet larger = left.size() >= right.size() ? left : right;
+        LongNestedSet smaller = larger == left ? right : left;
+        this.values = larger.values.copy();
+        smaller.values.forEach(this.values::add);
+    }
+
+    @Override
+    void intersectValuesOf(LongNestedSet left, LongNestedSet right) {
+        LongNestedSet smaller = left.size() <= right.size() ? left : right;
+        LongNestedSet larger = smaller == left ? right : left;
+        this.values = new LongOpenHashSet(smaller.size());
+        smaller.values.forEach(value -> {
+            if(larger.values.contains(value)) {
+                this.values.add(value);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return this.values.toString();
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An open-addressing hash set of longs, with linear probing, used by LongNestedSet.
+ *
+ * Values are stored inline in one long array, so there is no boxing and no per-value node.  Zero marks an empty
+ *      slot, which is why zero itself is tracked with a separate flag.  Removal shifts later entries of the probe
+ *      run back rather than leaving tombstones, so lookups never slow down as values come and go.
+ */
+class LongOpenHashSet {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] slots;
+    private boolean containsZero;
+    private int size;
+
+    LongOpenHashSet() {
+        this(INITIAL_CAPACITY);
+    }
+
+    LongOpenHashSet(int expectedSize) {
+        this.slots = new long[capacityFor(expectedSize)];
+    }
+
+    LongOpenHashSet copy() {
+        LongOpenHashSet copied = new LongOpenHashSet(0);
+        copied.slots = this.slots.clone();
+        copied.containsZero = this.containsZero;
+        copied.size = this.size;
+        return copied;
+    }
+
+    boolean add(long value) {
+        if(value == 0) {
+            if(this.containsZero) {
+                return false;
+            }
+            this.containsZero = true;
+            this.size++;
+            return true;
+        }
+
+        int mask = this.slots.length - 1;
+        int index = mix(value) & mask;
+        while(this.slots[index] != 0) {
+            if(this.slots[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+
+        this.slots[index] = value;
+        if(++this.size > this.slots.length * LOAD_FACTOR) {
+            rehash(this.slots.length * 2);
+        }
+        return true;
+    }
+
+    boolean remove(long value) {
+        if(value == 0) {
+            if(!this.containsZero) {
+                return false;
+            }
+            this.containsZero = false;
+            this.size--;
+            return true;
+        }
+
+        int index = indexOf(value);
+        if(index < 0) {
+            return false;
+        }
+        shiftBack(index);
+        this.size--;
+        return true;
+    }
+
+    boolean contains(long value) {
+        return value == 0 ? this.containsZero : indexOf(value) >= 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    void forEach(LongConsumer action) {
+        if(this.containsZero) {
+            action.accept(0);
+        }
+        for(long value : this.slots) {
+            if(value != 0) {
+                action.accept(value);
+            }
+        }
+    }
+
+    long[] toArray() {
+        long[] values = new long[this.size];
+        int count = 0;
+        if(this.containsZero) {
+            values[count++] = 0;
+        }
+        for(long value : this.slots) {
+            if(value != 0) {
+                values[count++] = value;
+            }
+        }
+        return values;
+    }
+
+    /*
+    Probing
+     */
+
+    private int indexOf(long value) {
+        int mask = this.slots.length - 1;
+        int index = mix(value) & mask;
+        while(this.slots[index] != 0) {
+            if(this.slots[index] == value) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Closes the gap left at index by moving back any later entry of the run that would no longer be reachable
+    private void shiftBack(int gap) {
+        int mask = this.slots.length - 1;
+        int index = (gap + 1) & mask;
+        while(this.slots[index] != 0) {
+            int home = mix(this.slots[index]) & mask;
+            // Move the entry if its home slot is not cyclically within (gap, index]
+            if(((index - home) & mask) >= ((index - gap) & mask)) {
+                this.slots[gap] = this.slots[index];
+                gap = index;
+            }
+            index = (index + 1) & mask;
+        }
+        this.slots[gap] = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = this.slots;
+        this.slots = new long[capacity];
+        int mask = capacity - 1;
+        for(long value : old) {
+            if(value != 0) {
+                int index = mix(value) & mask;
+                while(this.slots[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                this.slots[index] = value;
+            }
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = INITIAL_CAPACITY;
+        while(capacity * LOAD_FACTOR <= expectedSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    // Spreads sequential ids across the table, which plain identity hashing with linear probing would cluster
+    private static int mix(long value) {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        long[] values = toArray();
+        Arrays.sort(values);
+        return Arrays.toString(values);
+    }
+}
@@ -1,45 +1,142 @@
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by brandon on 3/26/17.
  */
 
-public class NestedSet<T> extends HashSet<NestedSetItem<T>> {
+public class NestedSet<T> extends AbstractSet<NestedSetItem<T>> {
 
-    private Collection<NestedSet<T>> parentSets;
-    private Collection<NestedSet<T>> childSets;
-    private Map<NestedSet<T>, NestedSet<T>> unions;
-    private Map<NestedSet<T>, NestedSet<T>> intersections;
+    /*
+    How a set stores its members.  HASH keeps the items in a HashSet, while BITMAP keeps a compressed bitmap of the
+        items' dense ids, which is far smaller for large sets and turns unions and intersections into OR/AND.
+    CONCURRENT makes the whole hierarchy safe for concurrent use: writers of different values don't contend (see
+        HierarchyLock), and containsItem never blocks.  Unions and intersections in such a hierarchy are always
+        built eagerly and never demoted, since materializing a lazy view on read would mean writing while reading.
+    Sets spawned from or derived from a set use the same storage as it.
+     */
+    public enum Storage {
+        HASH,
+        BITMAP,
+        CONCURRENT
+    }
+
+    // Ids start at one, which leaves zero free for SetIdMap to mark empty slots with
+    private static final AtomicLong NEXT_SET_ID = new AtomicLong(1);
+
+    /*
+    The hierarchy is kept as its immediate edges only (the Hasse diagram of the subset relation), plus a compact
+        reachability index: each set holds a bitmap of the ids of all its ancestors.  Nothing is kept about a set's
+        descendants, so splicing a set into the middle of the hierarchy only has to touch those below it.
+     */
+    private final long setId;
+    private SetIdMap<NestedSet<T>> parentSets;
+    private SetIdMap<NestedSet<T>> childSets;
+    private CompressedLongBitmap ancestorIds;
+
+    // Pairwise unions and intersections this set is an operand of, keyed by the id of the other operand
+    private SetIdMap<NestedSet<T>> unions;
+    private SetIdMap<NestedSet<T>> intersections;
+
+    // N-ary unions and intersections this set is an operand of, keyed by all of their operands
+    private Map<Set<NestedSet<T>>, NestedSet<T>> naryUnions;
+    private Map<Set<NestedSet<T>>, NestedSet<T>> naryIntersections;
+
+    // For an n-ary union or intersection, its operands and which of the two it is
+    private List<NestedSet<T>> operands;
+    private LazyViewStore.Operation naryOperation;
+
+    // Shared by every set in this hierarchy, so each value maps to exactly one NestedSetItem
+    private NestedSetItemRegistry<T> registry;
+
+    private ItemStore<T> store;
+
+    // For unions and intersections, a view over the two operands.  This is the store while the set is lazy, and what
+    //      it is demoted back to when the derived set cache evicts it.
+    private LazyViewStore<T> derivation;
+
+    // Set once a derived set has been written to directly, so no longer matches its operands and can't be demoted
+    private boolean diverged;
+
+    // A sketch of this set's values, kept from the first time its size is estimated (see sketch()).  It is only
+    //      ever offered what the set gains, so losing an item marks it stale until it is rebuilt.
+    private volatile CardinalitySketch sketch;
+    private volatile boolean sketchStale;
+
+    // A filter of this set's values, kept from the first time it is asked whether it might hold a value (see
+    //      filter()).  While it is being rebuilt, the replacement is offered what the set gains too.
+    private volatile ValueFilter filter;
+    private volatile ValueFilter pendingFilter;
 
     /*
     Different constructors for different use cases
      */
 
     public NestedSet() {
-        this.parentSets = new HashSet<>();
-        this.childSets = new HashSet<>();
+        this(Storage.HASH);
+    }
+
+    public NestedSet(Storage storage) {
+        this(storage, HashingStrategy.natural());
+    }
+
+    // A set whose hierarchy tells values apart by the given strategy, rather than by their own equals and hashCode
+    public NestedSet(Storage storage, HashingStrategy<? super T> hashing) {
+        this.setId = NEXT_SET_ID.getAndIncrement();
+        this.parentSets = new SetIdMap<>();
+        this.childSets = new SetIdMap<>();
+        this.ancestorIds = new CompressedLongBitmap();
+        this.registry = new NestedSetItemRegistry<>(storage == Storage.CONCURRENT, hashing);
+        this.store = createStore(storage);
         createEmptyUnionAndIntersectionSets();
+        this.registry.addRoot(this);
     }
 
     public NestedSet(Collection<? extends NestedSetItem<T>> c) {
-        super(c);
-        this.parentSets = new HashSet<>();
-        this.childSets = new HashSet<>();
-        createEmptyUnionAndIntersectionSets();
+        this();
+
+        for (NestedSetItem<T> item : c) {
+            this.addItem(item.getValue());
+        }
     }
 
-    // This constructor is private because initialization of parent and children sets needs to be handled
-    //      with care.
-    private NestedSet(Collection<NestedSet<T>> parentSets, Collection<NestedSet<T>> childSets) {
-        this.parentSets = parentSets;
-        this.childSets = childSets;
+    // This constructor is private because the new set has to be linked into the hierarchy with care (see linkSets).
+    private NestedSet(NestedSetItemRegistry<T> registry, ItemStore<T> storeTemplate) {
+        this.setId = NEXT_SET_ID.getAndIncrement();
+        this.parentSets = new SetIdMap<>();
+        this.childSets = new SetIdMap<>();
+        this.ancestorIds = new CompressedLongBitmap();
+        this.registry = registry;
+        this.store = storeTemplate.emptyStore(this);
         this.createEmptyUnionAndIntersectionSets();
+        registry.addRoot(this);
+        if(registry.changes().isObserved()) {
+            registry.changes().recordCreated(this);
+        }
+    }
+
+    private ItemStore<T> createStore(Storage storage) {
+        switch (storage) {
+            case BITMAP:
+                return new BitmapItemStore<>(this);
+            case CONCURRENT:
+                return new ConcurrentItemStore<>(this);
+            default:
+                return new HashItemStore<>();
+        }
     }
 
     private void createEmptyUnionAndIntersectionSets() {
-        this.unions = new HashMap<>();
-        this.intersections = new HashMap<>();
+        this.unions = new SetIdMap<>();
+        this.intersections = new SetIdMap<>();
+        this.naryUnions = new HashMap<>();
+        this.naryIntersections = new HashMap<>();
     }
 
     /*
@@ -48,107 +145,800 @@ public class NestedSet<T> extends HashSet<NestedSetItem<T>> {
      */
 
     public boolean addItem(T value) {
-        return this.addSetItem(new NestedSetItem<>(value));
+        HierarchyLock lock = this.registry().lockValue(value);
+        try {
+            NestedSetItem<T> setItem = this.registry().intern(value);
+            this.registry().deferredRemovals().settle(setItem);
+            return this.addSetItem(setItem);
+        } finally {
+            unlockValue(lock, value);
+        }
     }
 
     private boolean addSetItem(NestedSetItem<T> setItem) {
+        return this.addSetItem(setItem, new HashSet<>());
+    }
+
+    private boolean addSetItem(NestedSetItem<T> setItem, Set<NestedSet<T>> passedOn) {
         // Attempt to put this setItem in this NestedSet.
         // Note that Collections.add() returns true if the collection was modified (i.e. the element
         //      was added)
-        boolean result = super.add(setItem);
+        boolean result = this.add(setItem);
         if(result) {
-
-            setItem.addContainingSet(this);
-            addToAllParents(setItem);
-
+            this.passOnGain(setItem, passedOn);
         }
         return result;
     }
 
-    private void addToAllParents(NestedSetItem<T> setItem) {
-        for (NestedSet<T> parent : this.parentSets) {
-            setItem.addContainingSet(parent);
-            parent.add(setItem);
+    // Passes an item this set has just gained on to its ancestors, and to the intersections that gain it in turn.
+    //      passedOn holds the sets the same change has already reached, so that a lazy view is only passed it once.
+    private void passOnGain(NestedSetItem<T> setItem, Set<NestedSet<T>> passedOn) {
+        passedOn.add(this);
+        Collection<NestedSet<T>> gainedBy = addToAllParents(setItem, passedOn);
+        passedOn.addAll(gainedBy);
+        gainedBy.add(this);
+        addToDependentIntersections(setItem, gainedBy, passedOn);
+        for (NestedSet<T> set : gainedBy) {
+            set.noteIfDiverged(setItem);
         }
     }
 
+    // Walks up the immediate parents, returning the ancestors that did not already hold the item.
+    // A parent that already held the item is not walked past, since its own ancestors must hold the item too.
+    //      A lazy view reports the item as held once an operand has gained it, so it is walked through unless it
+    //      held the item before then (see viewHoldsGiven).
+    private Collection<NestedSet<T>> addToAllParents(NestedSetItem<T> setItem, Set<NestedSet<T>> passedOn) {
+        Collection<NestedSet<T>> gainedBy = new ArrayList<>();
+        Deque<NestedSet<T>> toVisit = new ArrayDeque<>(this.parentSets.values());
+        while (!toVisit.isEmpty()) {
+            NestedSet<T> parent = toVisit.poll();
+            Predicate<NestedSet<T>> reached = set -> gainedBy.contains(set) || passedOn.contains(set);
+            if(!parent.add(setItem) && (parent.isMaterialized() || gainedBy.contains(parent)
+                    || parent.viewHoldsGiven(setItem, reached, false))) {
+                continue;
+            }
+            gainedBy.add(parent);
+            toVisit.addAll(parent.parentSets.values());
+        }
+        return gainedBy;
+    }
+
     /*
     Remove an item from this NestedSet
-    Also removes it from all children sets, preserving the subset relationship
+    Also removes it from all children sets, preserving the subset relationship.  With deferred removal enabled, only
+        this set is written to here, and the rest is left to the hierarchy's DeferredRemovals.
      */
 
     public boolean removeItem(T value) {
-        return this.removeSetItem(new NestedSetItem<>(value));
+        HierarchyLock lock = this.registry().lockValue(value);
+        try {
+            NestedSetItem<T> setItem = this.registry().lookup(value);
+            if(setItem == null) {
+                return false;
+            }
+
+            DeferredRemovals<T> deferred = this.registry().deferredRemovals();
+            if(deferred.isEnabled()) {
+                return this.deferRemoval(setItem, deferred);
+            }
+
+            deferred.settle(setItem);
+            boolean result = this.removeSetItem(setItem);
+            this.registry().releaseIfUnused(setItem);
+            return result;
+        } finally {
+            unlockValue(lock, value);
+        }
     }
 
-    private boolean removeSetItem(NestedSetItem<T> setItem) {
+    boolean removeSetItem(NestedSetItem<T> setItem) {
+        return this.removeSetItem(setItem, new HashSet<>());
+    }
+
+    private boolean removeSetItem(NestedSetItem<T> setItem, Set<NestedSet<T>> passedOn) {
         // Attempt to remove set item from this set.
         // Note that Collections.remove() returns true if the item was removed successfully
         boolean result = this.remove(setItem);
         if(result) {
-            setItem.removeContainingSet(this);
-            removeFromChildren(setItem);
+            this.passOnLoss(setItem, passedOn);
         }
         return result;
     }
 
-    private void removeFromChildren(NestedSetItem<T> setItem) {
-        for (NestedSet<T> parent : this.childSets) {
-            setItem.removeContainingSet(parent);
-            parent.remove(setItem);
+    // Takes the item out of this set alone and leaves a tombstone for the rest of removeSetItem.  The item stays in
+    //      the registry until the tombstone is compacted, since the descendants still hold it until then.
+    private boolean deferRemoval(NestedSetItem<T> setItem, DeferredRemovals<T> deferred) {
+        if(this.removalPending(setItem) || !this.remove(setItem)) {
+            return false;
+        }
+
+        if(this.isDerived() && this.operandsCallFor(setItem)) {
+            this.diverged = true;
+        }
+        deferred.record(this, setItem);
+        return true;
+    }
+
+    // Carries out the rest of a deferred removal of the item from this set (see DeferredRemovals.settle)
+    void completeRemoval(NestedSetItem<T> setItem) {
+        this.passOnLoss(setItem, new HashSet<>());
+    }
+
+    // Passes an item this set has just lost on to its descendants, and to the unions that lose it in turn, as with
+    //      passOnGain
+    private void passOnLoss(NestedSetItem<T> setItem, Set<NestedSet<T>> passedOn) {
+        passedOn.add(this);
+        Collection<NestedSet<T>> lostBy = removeFromChildren(setItem, passedOn);
+        passedOn.addAll(lostBy);
+        lostBy.add(this);
+        removeFromDependentUnions(setItem, lostBy, passedOn);
+        for (NestedSet<T> set : lostBy) {
+            set.noteIfDiverged(setItem);
+        }
+    }
+
+    // Walks down the immediate children, returning the descendants that held the item.  As with addToAllParents,
+    //      a child that didn't hold the item is not walked past unless it is a lazy view that held it until now.
+    private Collection<NestedSet<T>> removeFromChildren(NestedSetItem<T> setItem, Set<NestedSet<T>> passedOn) {
+        Collection<NestedSet<T>> lostBy = new ArrayList<>();
+        Deque<NestedSet<T>> toVisit = new ArrayDeque<>(this.childSets.values());
+        while (!toVisit.isEmpty()) {
+            NestedSet<T> child = toVisit.poll();
+            Predicate<NestedSet<T>> reached = set -> lostBy.contains(set) || passedOn.contains(set);
+            if(!child.remove(setItem) && (child.isMaterialized() || lostBy.contains(child)
+                    || !child.viewHoldsGiven(setItem, reached, true))) {
+                continue;
+            }
+            lostBy.add(child);
+            toVisit.addAll(child.childSets.values());
+        }
+        return lostBy;
+    }
+
+    // Whether this lazy view holds the item, taking the sets that reached accepts to hold it or not as reachedHold
+    //      says.  A change being passed on has reached some sets already, and may have materialized this view too, so
+    //      this is how the view tells what it held before the change, or will hold once the change is done.
+    private boolean viewHoldsGiven(NestedSetItem<T> setItem, Predicate<NestedSet<T>> reached, boolean reachedHold) {
+        boolean left = this.derivation.left().holdsGiven(setItem, reached, reachedHold);
+        boolean right = this.derivation.right().holdsGiven(setItem, reached, reachedHold);
+        return this.derivation.operation() == LazyViewStore.Operation.UNION ? left || right : left && right;
+    }
+
+    private boolean holdsGiven(NestedSetItem<T> setItem, Predicate<NestedSet<T>> reached, boolean reachedHold) {
+        if(reached.test(this)) {
+            return reachedHold;
+        }
+        if(this.isMaterialized()) {
+            return this.store.contains(setItem);
+        }
+        return this.viewHoldsGiven(setItem, reached, reachedHold);
+    }
+
+    /*
+    Keep cached unions and intersections up to date
+    Adding an item can only ever grow an intersection of the sets that gained it, and removing one can only ever
+        shrink a union of the sets that lost it; the other two cases are already handled by propagating up and down.
+        Each change is applied as a delta to the derived sets of the sets it touched, and cascades from there through
+        addSetItem and removeSetItem.
+    A lazy view has nothing to apply the delta to, but its relatives still need the change cascaded to them, since
+        the view gains or loses the item through its operands.  Asking the view whether it now holds the item can't
+        tell that apart from holding it all along, so this goes by what the operand gained or lost instead.  Since an
+        operand may itself be a lazy view that is walked through, each view only passes on a given change once.
+     */
+
+    private static <T> void addToDependentIntersections(NestedSetItem<T> setItem, Collection<NestedSet<T>> gainedBy,
+                                                        Set<NestedSet<T>> passedOn) {
+        for (NestedSet<T> set : gainedBy) {
+            for (NestedSet<T> intersection : new ArrayList<>(set.intersections.values())) {
+                if(!intersection.otherOperand(set).holds(setItem)) {
+                    continue;
+                }
+                if(!intersection.isMaterialized()) {
+                    if(passedOn.add(intersection)) {
+                        intersection.passOnGain(setItem, passedOn);
+                    }
+                } else if(!intersection.contains(setItem)) {
+                    intersection.addSetItem(setItem, passedOn);
+                }
+            }
+            for (NestedSet<T> intersection : new ArrayList<>(set.naryIntersections.values())) {
+                if(!intersection.contains(setItem) && intersection.operandsAllContain(setItem)) {
+                    intersection.addSetItem(setItem, passedOn);
+                }
+            }
+        }
+    }
+
+    // A union keeps an item for as long as some set below it still holds that item.  If that set isn't one its
+    //      operands account for, such as a set spawned in between, the union no longer matches its operands.
+    private static <T> void removeFromDependentUnions(NestedSetItem<T> setItem, Collection<NestedSet<T>> lostBy,
+                                                      Set<NestedSet<T>> passedOn) {
+        for (NestedSet<T> set : lostBy) {
+            for (NestedSet<T> union : set.unionsAbove()) {
+                if(!union.isMaterialized()) {
+                    if(!union.holds(setItem) && passedOn.add(union)) {
+                        union.passOnLoss(setItem, passedOn);
+                    }
+                } else if(union.contains(setItem)) {
+                    if(!union.holdsBelow(setItem)) {
+                        union.removeSetItem(setItem, passedOn);
+                    } else {
+                        union.noteIfDiverged(setItem);
+                    }
+                }
+            }
+        }
+    }
+
+    // For a pairwise union or intersection, whichever of its two operands isn't the given one
+    private NestedSet<T> otherOperand(NestedSet<T> operand) {
+        return this.derivation.left() == operand ? this.derivation.right() : this.derivation.left();
+    }
+
+    private List<NestedSet<T>> dependentUnions() {
+        List<NestedSet<T>> dependents = new ArrayList<>(this.unions.values());
+        dependents.addAll(this.naryUnions.values());
+        return dependents;
+    }
+
+    // The unions to check once this set loses an item: those built from it, and those directly above it, which
+    //      needn't be the same once a set has been spawned in between
+    private Collection<NestedSet<T>> unionsAbove() {
+        Set<NestedSet<T>> above = new LinkedHashSet<>(this.dependentUnions());
+        for (NestedSet<T> parent : this.parentSets.values()) {
+            if(parent.isDependentUnion()) {
+                above.add(parent);
+            }
+        }
+        return above;
+    }
+
+    private boolean isDerived() {
+        return this.derivation != null || this.operands != null;
+    }
+
+    // Marks a derived set that has just gained or lost the item as diverged if its operands don't account for the
+    //      change, whether it was written to directly or reached through some other relative, such as a set spawned
+    //      below it.  Called once the change has been passed on, so the operands have caught up with whatever they
+    //      will.
+    private void noteIfDiverged(NestedSetItem<T> setItem) {
+        if(this.isDerived() && this.isMaterialized() && this.holds(setItem) != this.operandsCallFor(setItem)) {
+            this.diverged = true;
+        }
+    }
+
+    // Whether a derived set's operands call for it to hold the item, which tells a direct write that goes along with
+    //      them from one that makes the set diverge
+    private boolean operandsCallFor(NestedSetItem<T> setItem) {
+        if(this.derivation != null) {
+            return this.derivation.viewContains(setItem);
+        } else if(this.naryOperation == LazyViewStore.Operation.UNION) {
+            return this.operands.stream().anyMatch(operand -> operand.holds(setItem));
+        }
+        return this.operands.stream().allMatch(operand -> operand.holds(setItem));
+    }
+
+    private boolean operandsAllContain(NestedSetItem<T> setItem) {
+        for (NestedSet<T> operand : this.operands) {
+            if(!operand.holds(setItem)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Every descendant sits below some immediate child, and every child is a subset of this set, so it is enough to
+    //      ask the immediate children.  An intersection built from this set only holds what this set does, so it
+    //      doesn't count.
+    private boolean holdsBelow(NestedSetItem<T> setItem) {
+        return this.holdsBelowExcept(setItem, set -> false);
+    }
+
+    // Likewise, taking the sets that lost accepts not to hold the item any more
+    private boolean holdsBelowExcept(NestedSetItem<T> setItem, Predicate<NestedSet<T>> lost) {
+        for (NestedSet<T> child : this.childSets.values()) {
+            if(!child.isBuiltFrom(this) && child.holdsGiven(setItem, lost, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    Batch versions of addItem and removeItem
+    The batch is applied to this set first, and only what this set actually gained or lost is offered to its
+        relatives, as one bulk merge per relative rather than one traversal per value.  In a concurrent hierarchy a
+        batch holds the whole hierarchy while it is applied.
+     */
+
+    public boolean addAllItems(Collection<? extends T> values) {
+        return withStructureLocked(() -> {
+            NestedSetItemRegistry<T> registry = this.registry();
+            List<NestedSetItem<T>> setItems = new ArrayList<>(values.size());
+            for (T value : values) {
+                NestedSetItem<T> setItem = registry.intern(value);
+                registry.deferredRemovals().settle(setItem);
+                setItems.add(setItem);
+            }
+            return this.addSetItems(setItems);
+        });
+    }
+
+    public boolean addAllItems(Stream<? extends T> values) {
+        return this.addAllItems(values.collect(Collectors.toList()));
+    }
+
+    private boolean addSetItems(Collection<NestedSetItem<T>> setItems) {
+        return this.addSetItems(setItems, new HashMap<>());
+    }
+
+    private boolean addSetItems(Collection<NestedSetItem<T>> setItems,
+                                Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        // Duplicates within the batch, and items this set already held, are dropped here
+        List<NestedSetItem<T>> added = this.store.addAll(setItems);
+        if(added.isEmpty()) {
+            return false;
+        }
+        this.noteGained(added);
+
+        this.passOnGains(added, passedOn);
+        return true;
+    }
+
+    // Batch counterpart of passOnGain, where passedOn holds the items the change has already reached each set with
+    private void passOnGains(List<NestedSetItem<T>> added, Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        notePassedOn(this, added, passedOn);
+        Map<NestedSet<T>, List<NestedSetItem<T>>> gainedBy = addAllToParents(added, passedOn);
+        gainedBy.forEach((set, gained) -> notePassedOn(set, gained, passedOn));
+        gainedBy.put(this, added);
+        addAllToDependentIntersections(gainedBy, passedOn);
+        for (Map.Entry<NestedSet<T>, List<NestedSetItem<T>>> gained : gainedBy.entrySet()) {
+            for (NestedSetItem<T> setItem : gained.getValue()) {
+                gained.getKey().noteIfDiverged(setItem);
+            }
+        }
+    }
+
+    // Batch counterpart of addToAllParents, returning what each ancestor gained.  An ancestor is only offered what
+    //      the relative it was reached through gained, since anything else it lacked that relative would lack too.
+    private Map<NestedSet<T>, List<NestedSetItem<T>>> addAllToParents(
+            List<NestedSetItem<T>> added, Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        Map<NestedSet<T>, List<NestedSetItem<T>>> gainedBy = new LinkedHashMap<>();
+        Map<NestedSet<T>, List<NestedSetItem<T>>> offered = new HashMap<>();
+        Deque<NestedSet<T>> toVisit = new ArrayDeque<>();
+        offerTo(this.parentSets.values(), added, offered, toVisit);
+        while (!toVisit.isEmpty()) {
+            NestedSet<T> parent = toVisit.poll();
+            List<NestedSetItem<T>> candidates = offered.get(parent);
+            boolean lazy = !parent.isMaterialized();
+
+            List<NestedSetItem<T>> gained = parent.store.addAll(candidates);
+            parent.noteGained(gained);
+
+            // As with addToAllParents, lazy views are walked through with whatever they didn't hold before
+            List<NestedSetItem<T>> passOn = lazy ? parent.viewChanges(candidates, gainedBy, passedOn, true) : gained;
+            if(!passOn.isEmpty()) {
+                gainedBy.put(parent, passOn);
+                offerTo(parent.parentSets.values(), passOn, offered, toVisit);
+            }
+        }
+        return gainedBy;
+    }
+
+    public boolean removeAllItems(Collection<? extends T> values) {
+        return withStructureLocked(() -> {
+            NestedSetItemRegistry<T> registry = this.registry();
+            DeferredRemovals<T> deferred = registry.deferredRemovals();
+            List<NestedSetItem<T>> setItems = new ArrayList<>(values.size());
+            for (T value : values) {
+                NestedSetItem<T> setItem = registry.lookup(value);
+                if(setItem != null) {
+                    setItems.add(setItem);
+                }
+            }
+
+            if(deferred.isEnabled()) {
+                boolean result = false;
+                for (NestedSetItem<T> setItem : setItems) {
+                    result |= this.deferRemoval(setItem, deferred);
+                }
+                return result;
+            }
+
+            for (NestedSetItem<T> setItem : setItems) {
+                deferred.settle(setItem);
+            }
+            boolean result = this.removeSetItems(setItems);
+            for (NestedSetItem<T> setItem : setItems) {
+                registry.releaseIfUnused(setItem);
+            }
+            return result;
+        });
+    }
+
+    public boolean removeAllItems(Stream<? extends T> values) {
+        return this.removeAllItems(values.collect(Collectors.toList()));
+    }
+
+    private boolean removeSetItems(Collection<NestedSetItem<T>> setItems) {
+        return this.removeSetItems(setItems, new HashMap<>());
+    }
+
+    private boolean removeSetItems(Collection<NestedSetItem<T>> setItems,
+                                   Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        List<NestedSetItem<T>> removed = this.store.removeAll(setItems);
+        if(removed.isEmpty()) {
+            return false;
+        }
+        this.noteLost(removed);
+
+        this.passOnLosses(removed, passedOn);
+        return true;
+    }
+
+    // Batch counterpart of passOnLoss
+    private void passOnLosses(List<NestedSetItem<T>> removed, Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        notePassedOn(this, removed, passedOn);
+        Map<NestedSet<T>, List<NestedSetItem<T>>> lostBy = removeAllFromChildren(removed, passedOn);
+        lostBy.forEach((set, lost) -> notePassedOn(set, lost, passedOn));
+        lostBy.put(this, removed);
+        removeAllFromDependentUnions(lostBy, passedOn);
+        for (Map.Entry<NestedSet<T>, List<NestedSetItem<T>>> lost : lostBy.entrySet()) {
+            for (NestedSetItem<T> setItem : lost.getValue()) {
+                lost.getKey().noteIfDiverged(setItem);
+            }
+        }
+    }
+
+    // Batch counterpart of removeFromChildren.  A descendant can only hold what the relative it was reached through
+    //      lost, so that is all it is asked to remove.
+    private Map<NestedSet<T>, List<NestedSetItem<T>>> removeAllFromChildren(
+            List<NestedSetItem<T>> removed, Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        Map<NestedSet<T>, List<NestedSetItem<T>>> lostBy = new LinkedHashMap<>();
+        Map<NestedSet<T>, List<NestedSetItem<T>>> offered = new HashMap<>();
+        Deque<NestedSet<T>> toVisit = new ArrayDeque<>();
+        offerTo(this.childSets.values(), removed, offered, toVisit);
+        while (!toVisit.isEmpty()) {
+            NestedSet<T> child = toVisit.poll();
+            List<NestedSetItem<T>> candidates = offered.get(child);
+            boolean lazy = !child.isMaterialized();
+
+            List<NestedSetItem<T>> lost = child.store.removeAll(candidates);
+            if(!lost.isEmpty()) {
+                child.noteLost(lost);
+            }
+
+            List<NestedSetItem<T>> passOn = lazy ? child.viewChanges(candidates, lostBy, passedOn, false) : lost;
+            if(!passOn.isEmpty()) {
+                lostBy.put(child, passOn);
+                offerTo(child.childSets.values(), passOn, offered, toVisit);
+            }
+        }
+        return lostBy;
+    }
+
+    // The candidates a lazy view reached by a batch change is walked through with: for a gain, those it didn't hold
+    //      before, and for a loss, those it did (see viewHoldsGiven)
+    private List<NestedSetItem<T>> viewChanges(List<NestedSetItem<T>> candidates,
+                                                 Map<NestedSet<T>, List<NestedSetItem<T>>> changed,
+                                                 Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn, boolean gained) {
+        List<NestedSetItem<T>> passOn = new ArrayList<>();
+        for (NestedSetItem<T> setItem : candidates) {
+            Predicate<NestedSet<T>> reached = set -> changed.containsKey(set) && changed.get(set).contains(setItem)
+                    || passedOn.containsKey(set) && passedOn.get(set).contains(setItem);
+            if(this.viewHoldsGiven(setItem, reached, !gained) != gained) {
+                passOn.add(setItem);
+            }
+        }
+        return passOn;
+    }
+
+    // Queues each relative that hasn't been offered anything yet
+    private static <T> void offerTo(Collection<NestedSet<T>> relatives, List<NestedSetItem<T>> setItems,
+                                    Map<NestedSet<T>, List<NestedSetItem<T>>> offered, Deque<NestedSet<T>> toVisit) {
+        for (NestedSet<T> relative : relatives) {
+            if(offered.putIfAbsent(relative, setItems) == null) {
+                toVisit.add(relative);
+            }
         }
     }
 
+    private static <T> void addAllToDependentIntersections(Map<NestedSet<T>, List<NestedSetItem<T>>> gainedBy,
+                                                           Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        for (Map.Entry<NestedSet<T>, List<NestedSetItem<T>>> gained : gainedBy.entrySet()) {
+            NestedSet<T> set = gained.getKey();
+            for (NestedSet<T> intersection : new ArrayList<>(set.intersections.values())) {
+                NestedSet<T> other = intersection.otherOperand(set);
+                boolean lazy = !intersection.isMaterialized();
+                List<NestedSetItem<T>> joining = new ArrayList<>();
+                for (NestedSetItem<T> setItem : gained.getValue()) {
+                    if(other.holds(setItem)
+                            && (lazy ? notYetPassedOn(intersection, setItem, passedOn) : !intersection.contains(setItem))) {
+                        joining.add(setItem);
+                    }
+                }
+                if(joining.isEmpty()) {
+                    continue;
+                }
+                if(lazy) {
+                    intersection.passOnGains(joining, passedOn);
+                } else {
+                    intersection.addSetItems(joining, passedOn);
+                }
+            }
+            for (NestedSet<T> intersection : new ArrayList<>(set.naryIntersections.values())) {
+                List<NestedSetItem<T>> joining = new ArrayList<>();
+                for (NestedSetItem<T> setItem : gained.getValue()) {
+                    if(!intersection.contains(setItem) && intersection.operandsAllContain(setItem)) {
+                        joining.add(setItem);
+                    }
+                }
+                if(!joining.isEmpty()) {
+                    intersection.addSetItems(joining, passedOn);
+                }
+            }
+        }
+    }
+
+    private static <T> void removeAllFromDependentUnions(Map<NestedSet<T>, List<NestedSetItem<T>>> lostBy,
+                                                         Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        for (Map.Entry<NestedSet<T>, List<NestedSetItem<T>>> lost : lostBy.entrySet()) {
+            for (NestedSet<T> union : lost.getKey().unionsAbove()) {
+                boolean lazy = !union.isMaterialized();
+                List<NestedSetItem<T>> leaving = new ArrayList<>();
+                for (NestedSetItem<T> setItem : lost.getValue()) {
+                    if(lazy) {
+                        if(!union.holds(setItem) && notYetPassedOn(union, setItem, passedOn)) {
+                            leaving.add(setItem);
+                        }
+                    } else if(union.contains(setItem)) {
+                        if(!union.holdsBelow(setItem)) {
+                            leaving.add(setItem);
+                        } else {
+                            union.noteIfDiverged(setItem);
+                        }
+                    }
+                }
+                if(leaving.isEmpty()) {
+                    continue;
+                }
+                if(lazy) {
+                    union.passOnLosses(leaving, passedOn);
+                } else {
+                    union.removeSetItems(leaving, passedOn);
+                }
+            }
+        }
+    }
+
+    private static <T> void notePassedOn(NestedSet<T> set, List<NestedSetItem<T>> setItems,
+                                         Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        passedOn.computeIfAbsent(set, key -> new HashSet<>()).addAll(setItems);
+    }
+
+    // Records that the lazy view is passing the item on, returning false if it already has
+    private static <T> boolean notYetPassedOn(NestedSet<T> view, NestedSetItem<T> setItem,
+                                              Map<NestedSet<T>, Set<NestedSetItem<T>>> passedOn) {
+        return passedOn.computeIfAbsent(view, key -> new HashSet<>()).add(setItem);
+    }
+
     /*
     Checks for containment of an item
      */
     public boolean containsItem(T value) {
-        return this.contains(new NestedSetItem<T>(value));
+        NestedSetItem<T> setItem = this.registry().lookup(value);
+        return setItem != null && this.contains(setItem) && !this.removalPending(setItem);
+    }
+
+    // containsItem for an item already looked up, which skips looking it up again if it belongs to this hierarchy
+    boolean containsSetItem(NestedSetItem<T> setItem) {
+        if(setItem.getRegistry() != this.registry()) {
+            return this.containsItem(setItem.getValue());
+        }
+        return this.contains(setItem) && !this.removalPending(setItem);
+    }
+
+    // The items of this set, leaving out those whose removal is pending
+    Stream<NestedSetItem<T>> settledItems() {
+        Stream<NestedSetItem<T>> items = StreamSupport.stream(this.spliterator(), false);
+        return this.hasPendingRemovals() ? items.filter(setItem -> !this.removalPending(setItem)) : items;
+    }
+
+    /*
+    Reads that see pending deferred removals as done
+    A removal reaches every set below the set it was made from, and then every union above a set that lost the item
+        and left with no other child holding it, which is how removeFromChildren and removeFromDependentUnions go about
+        it once it is compacted.  losingSets works out which sets that comes to without touching them.
+     */
+
+    boolean removalPending(NestedSetItem<T> setItem) {
+        List<NestedSet<T>> removedFrom = this.registry().deferredRemovals().removedFrom(setItem);
+        if(removedFrom == null) {
+            return false;
+        }
+
+        // Anything below a set the item was removed from loses it outright.  This is also all a reader can rely on
+        //      while a removal is being compacted alongside it, since the stores losingSets looks at are then being
+        //      emptied from the top down.
+        for (NestedSet<T> set : removedFrom) {
+            if(set == this || this.isChildOf(set)) {
+                return true;
+            }
+        }
+        return losingSets(setItem, removedFrom).contains(this.setId);
+    }
+
+    // A union is only decided once every child it holds the item through has been, so one that still has a child
+    //      left to decide is looked at again when that child turns out to lose the item too
+    private static <T> LongOpenHashSet losingSets(NestedSetItem<T> setItem, List<NestedSet<T>> removedFrom) {
+        LongOpenHashSet losing = new LongOpenHashSet();
+        Predicate<NestedSet<T>> lost = set -> losing.contains(set.setId);
+        Deque<NestedSet<T>> toVisit = new ArrayDeque<>(removedFrom);
+        while (!toVisit.isEmpty()) {
+            NestedSet<T> set = toVisit.poll();
+            if(!losing.add(set.setId)) {
+                continue;
+            }
+            for (NestedSet<T> child : set.childSets.values()) {
+                if(child.isMaterialized() ? child.holds(setItem) : child.viewHoldsGiven(setItem, lost, true)) {
+                    toVisit.add(child);
+                }
+            }
+            for (NestedSet<T> union : set.unionsAbove()) {
+                if(losing.contains(union.setId)) {
+                    continue;
+                }
+                boolean loses = union.isMaterialized()
+                        ? union.holds(setItem) && !union.holdsBelowExcept(setItem, lost)
+                        : union.viewHoldsGiven(setItem, lost, true) && !union.viewHoldsGiven(setItem, lost, false);
+                if(loses) {
+                    toVisit.add(union);
+                }
+            }
+        }
+        return losing;
+    }
+
+    private boolean isDependentUnion() {
+        LazyViewStore.Operation operation = this.derivation != null ? this.derivation.operation() : this.naryOperation;
+        return operation == LazyViewStore.Operation.UNION;
+    }
+
+    // The number of items, less those hidden by pending removals, which are few next to the items of a set
+    int settledSize() {
+        DeferredRemovals<T> deferred = this.registry().deferredRemovals();
+        int size = this.size();
+        if(!deferred.isEmpty()) {
+            for (NestedSetItem<T> setItem : deferred.pendingItems()) {
+                if(this.holds(setItem) && this.removalPending(setItem)) {
+                    size--;
+                }
+            }
+        }
+        return size;
+    }
+
+    boolean hasPendingRemovals() {
+        return !this.registry().deferredRemovals().isEmpty();
     }
 
     /*
-    Unwraps the values inside and gives a standard collection
+    Unwraps the values inside and gives a standard collection.  getValues copies them, while values() is a read-only
+        view that reads through to this set, and whose streams split along the set's store.
      */
+    public Set<T> values() {
+        return new NestedSetValues<>(this);
+    }
+
     public HashSet<T> getValues() {
         HashSet<T> output = new HashSet<T>();
+        boolean filter = this.hasPendingRemovals();
         for(NestedSetItem<T> item : this) {
-            output.add(item.getValue());
+            if(!filter || !this.removalPending(item)) {
+                output.add(item.getValue());
+            }
         }
         return output;
     }
 
+    /*
+    Reverse lookups: which sets of this set's hierarchy hold a value, or all or any of several values
+    Every set is a subset of its parents, so the sets holding a value are closed upwards: a set that doesn't hold it
+        has no descendant that does.  The same goes for holding all, or any, of several values.  The walk down from
+        the roots therefore stops at the first set on each path that fails, and only visits the sets it returns and
+        their immediate children.
+    In a concurrent hierarchy this walks alongside value writes, so a set written to meanwhile may or may not count.
+     */
+
+    public Set<NestedSet<T>> setsContaining(T value) {
+        return setsContainingAll(Collections.singleton(value));
+    }
+
+    public Set<NestedSet<T>> setsContainingAll(Collection<? extends T> values) {
+        return withStructureShared(() -> {
+            List<NestedSetItem<T>> setItems = new ArrayList<>(values.size());
+            for (T value : values) {
+                NestedSetItem<T> setItem = this.registry().lookup(value);
+                if(setItem == null) {
+                    return new HashSet<>();
+                }
+                setItems.add(setItem);
+            }
+            return this.setsWhere(set -> setItems.stream().allMatch(set::holdsSettled));
+        });
+    }
+
+    public Set<NestedSet<T>> setsContainingAny(Collection<? extends T> values) {
+        return withStructureShared(() -> {
+            List<NestedSetItem<T>> setItems = new ArrayList<>(values.size());
+            for (T value : values) {
+                NestedSetItem<T> setItem = this.registry().lookup(value);
+                if(setItem != null) {
+                    setItems.add(setItem);
+                }
+            }
+            return this.setsWhere(set -> setItems.stream().anyMatch(set::holdsSettled));
+        });
+    }
+
+    private boolean holdsSettled(NestedSetItem<T> setItem) {
+        return this.holds(setItem) && !this.removalPending(setItem);
+    }
+
+    private Set<NestedSet<T>> setsWhere(Predicate<NestedSet<T>> test) {
+        Set<NestedSet<T>> found = new HashSet<>();
+        CompressedLongBitmap visited = new CompressedLongBitmap();
+        Deque<NestedSet<T>> toVisit = new ArrayDeque<>(this.registry().roots());
+        while (!toVisit.isEmpty()) {
+            NestedSet<T> set = toVisit.poll();
+            if(visited.add(set.setId) && test.test(set)) {
+                found.add(set);
+                toVisit.addAll(set.childSets.values());
+            }
+        }
+        return found;
+    }
+
     /*
     Creates an immediate child set below this one.
     That child inherits all of this set's children, and is inherited by all of this set's parents
      */
 
     public NestedSet<T> spawnChild() {
-        // Get a set of all its parents
-        Collection<NestedSet<T>> itsParents = new ArrayList<>(this.parentSets);
-        itsParents.add(this);
+        return withStructureLocked(this::buildChild);
+    }
 
-        // Likewise for its children
-        Collection<NestedSet<T>> itsChildren = new ArrayList<>(this.childSets);
+    private NestedSet<T> buildChild() {
+        // The splice moves sets away from the relatives pending removals are read through, so they are carried out
+        //      first, as a snapshot does
+        this.registry().deferredRemovals().flush();
+
+        boolean materialized = this.materializeForSplice();
 
         // Spawn the new child
-        NestedSet<T> newChild = new NestedSet<>(itsParents, itsChildren);
+        NestedSet<T> newChild = new NestedSet<>(this.registry(), this.store);
+
+        // Populate the child with all the elements from this set.  The two share storage until either is written to.
+        newChild.store = this.store.copy(newChild);
 
-        // Populate the child with all the elements from this set
-        newChild.addAll(this);
+        // Assign it as a child of this set, which makes it a descendant of all this set's ancestors too
+        linkImmediate(this, newChild);
 
-        // Add the new child as a containing set for all the items in this set
-        for (NestedSetItem<T> item: this) {
-            item.addContainingSet(newChild);
+        // This set's immediate children now sit immediately below the new child instead
+        for(NestedSet<T> grandchild : new ArrayList<>(this.childSets.values())) {
+            if(grandchild != newChild) {
+                unlinkImmediate(this, grandchild);
+                linkImmediate(newChild, grandchild);
+            }
         }
 
-        // Assign it as a child to all its parents (will be done via loop in this method)
-        this.addChildSet(newChild);
+        CompressedLongBitmap ancestors = this.ancestorIds.copy();
+        ancestors.add(this.setId);
+        newChild.indexSpliced(ancestors);
 
-        // Assign it as a parent to all its children (grandchildren of this)
-        for(NestedSet<T> grandchild : itsChildren) {
-            grandchild.parentSets.add(newChild);
+        if(materialized) {
+            this.admitToCache();
         }
-
         return newChild;
     }
 
@@ -158,35 +948,49 @@ public class NestedSet<T> extends HashSet<NestedSetItem<T>> {
      */
 
     public NestedSet<T> spawnParent() {
-        // Get a set of all its parents
-        HashSet<NestedSet<T>> itsParents = new HashSet<>(this.parentSets);
+        return withStructureLocked(this::buildParent);
+    }
 
-        // Likewise for its children
-        HashSet<NestedSet<T>> itsChildren = new HashSet<>(this.childSets);
-        itsChildren.add(this);
+    private NestedSet<T> buildParent() {
+        // As with buildChild, nothing may be pending removal while the sets around this one are relinked
+        this.registry().deferredRemovals().flush();
 
         // Spawn the new parent
-        NestedSet<T> newParent = new NestedSet<>(itsParents, itsChildren);
-
-        // Populate the parent
-        newParent.addAll(this);
-
-        // Add the new parent as a containing set for all the items in this set
-        for (NestedSetItem<T> item: this) {
-            item.addContainingSet(newParent);
+        NestedSet<T> newParent = new NestedSet<>(this.registry(), this.store);
+
+        // Populate the parent, which likewise shares storage with this set until either is written to
+        newParent.store = this.store.copy(newParent);
+
+        // This set's immediate parents now sit immediately above the new parent instead
+        List<NestedSet<T>> materialized = new ArrayList<>();
+        for(NestedSet<T> grandparent : new ArrayList<>(this.parentSets.values())) {
+            if(grandparent.materializeForSplice()) {
+                materialized.add(grandparent);
+            }
+            unlinkImmediate(grandparent, this);
+            linkImmediate(grandparent, newParent);
         }
 
-        // Assign it as a parent to all its children (will be done via loop in this method)
-        this.addParentSet(newParent);
-
-        // Assign it as a child to all its parents (grandparents of this)
-        for(NestedSet<T> grandparent : itsParents) {
-            grandparent.childSets.add(newParent);
-        }
+        // Assign it as a parent of this set, which makes it an ancestor of all this set's descendants too
+        linkImmediate(newParent, this);
+        newParent.indexSpliced(this.ancestorIds.copy());
 
+        materialized.forEach(NestedSet::admitToCache);
         return newParent;
     }
 
+    // A union keeps an item for as long as a set below it holds it, but a lazy union can only answer through its
+    //      operands, so it takes a store of its own before a spawned set that may outlast them is spliced in below it.
+    //      It is only admitted to the cache once the splice is done, since until then it could be evicted straight
+    //      back to being a view.  Returns whether it had to be materialized.
+    private boolean materializeForSplice() {
+        if(this.isMaterialized() || !this.isDependentUnion()) {
+            return false;
+        }
+        this.materializedStore();
+        return true;
+    }
+
     /*
     Build a NestedSet that is the union of this with another similarly-typed NestedSet
     Updates the unions Map of both this NestedSet and the one passed as an argument, and also
@@ -196,51 +1000,76 @@ public class NestedSet<T> extends HashSet<NestedSetItem<T>> {
      */
 
     public NestedSet<T> unionWith(NestedSet<T> other) {
+        return unionWith(other, false);
+    }
+
+    /*
+    Same as unionWith, except a newly-built union is a lazy view that reads through to the two operands rather than
+        holding a copy of their items.  See materialize() for when it stops being one.
+     */
+
+    public NestedSet<T> lazyUnionWith(NestedSet<T> other) {
+        return unionWith(other, true);
+    }
+
+    private NestedSet<T> unionWith(NestedSet<T> other, boolean lazy) {
+        return withStructuresLocked(other, () -> findUnionWith(other, lazy && !this.registry().isConcurrent()));
+    }
+
+    private NestedSet<T> findUnionWith(NestedSet<T> other, boolean lazy) {
         if(this.equals(other)) {
             return this;
-        } else if(this.childSets.contains(other)) {
+        } else if(this.isParentOf(other)) {
             return this;
-        } else if(this.parentSets.contains(other)) {
+        } else if(this.isChildOf(other)) {
             return other;
         } else {
-            return lookupUnionWith(other);
+            return lookupUnionWith(other, lazy);
         }
     }
 
-    private NestedSet<T> lookupUnionWith(NestedSet<T> other) {
+    private NestedSet<T> lookupUnionWith(NestedSet<T> other, boolean lazy) {
         // Perform a lookup in the HashMap of unions
-        if (!this.unions.containsKey(other)) {
-            NestedSet<T> newUnion = buildSimpleUnionWith(other);
+        if (this.unions.containsKey(other.setId)) {
+            this.derivedSetCache().recordHit(this.unions.get(other.setId));
+        } else {
+            this.joinRegistryOf(other);
+            this.derivedSetCache().recordMiss();
+            NestedSet<T> newUnion = lazy ? buildLazyUnionWith(other) : buildSimpleUnionWith(other);
 
-            this.unions.put(other, newUnion);
-            other.unions.put(this, newUnion);
+            this.unions.put(other.setId, newUnion);
+            other.unions.put(this.setId, newUnion);
 
-            this.addParentSet(newUnion);
-            other.addParentSet(newUnion);
+            linkSets(newUnion, this);
+            linkSets(newUnion, other);
         }
-        return this.unions.get(other);
+        return this.unions.get(other.setId);
     }
 
     private NestedSet<T> buildSimpleUnionWith(NestedSet<T> other) {
-        // We need to accumulate all the children of this union
-        // Those would be these two sets, as well as all children of each
-        HashSet<NestedSet<T>> childrenOfUnion = new HashSet<>(Arrays.asList(this, other));
-        childrenOfUnion.addAll(this.childSets);
-        childrenOfUnion.addAll(other.childSets);
-
-        // instantiate the new union
-        NestedSet<T> newUnion = new NestedSet<>(new HashSet<>(), childrenOfUnion);
+        // The stores are combined as they stand, so they mustn't still hold anything pending removal
+        this.registry().deferredRemovals().flush();
+        NestedSet<T> newUnion = buildEmptyUnionWith(other);
 
         // populate it with everything from the union of these sets
-        HashSet<NestedSetItem<T>> itemsToInsert = new HashSet<>(this);
-        itemsToInsert.addAll(other);
-        newUnion.addAll(itemsToInsert);
+        newUnion.store = this.store.union(other.store, newUnion);
 
-        // add the new union as a containing set for all the inserted items
-        for(NestedSetItem<T> item : itemsToInsert) {
-            item.addContainingSet(newUnion);
-        }
+        this.derivedSetCache().admit(newUnion);
+        return newUnion;
+    }
+
+    private NestedSet<T> buildLazyUnionWith(NestedSet<T> other) {
+        NestedSet<T> newUnion = buildEmptyUnionWith(other);
+        newUnion.store = newUnion.derivation;
+        return newUnion;
+    }
 
+    // The union is linked in as the immediate parent of both sets by lookupUnionWith, which also puts it above all
+    //      of their descendants
+    private NestedSet<T> buildEmptyUnionWith(NestedSet<T> other) {
+        NestedSet<T> newUnion = new NestedSet<>(this.registry(), this.store);
+        newUnion.derivation = new LazyViewStore<>(LazyViewStore.Operation.UNION, this, other, newUnion, this.store,
+                LazyViewStore.DEFAULT_READ_LIMIT);
         return newUnion;
     }
 
@@ -253,69 +1082,1040 @@ public class NestedSet<T> extends HashSet<NestedSetItem<T>> {
      */
 
     public NestedSet<T> intersectionWith(NestedSet<T> other) {
+        return intersectionWith(other, false);
+    }
+
+    public NestedSet<T> lazyIntersectionWith(NestedSet<T> other) {
+        return intersectionWith(other, true);
+    }
+
+    private NestedSet<T> intersectionWith(NestedSet<T> other, boolean lazy) {
+        return withStructuresLocked(other,
+                () -> findIntersectionWith(other, lazy && !this.registry().isConcurrent()));
+    }
+
+    private NestedSet<T> findIntersectionWith(NestedSet<T> other, boolean lazy) {
         if(this.equals(other)) {
             return this;
-        } else if(this.childSets.contains(other)) {
+        } else if(this.isParentOf(other)) {
             return other;
-        } else if(this.parentSets.contains(other)) {
+        } else if(this.isChildOf(other)) {
             return this;
         } else {
-            return lookupIntersectionWith(other);
+            return lookupIntersectionWith(other, lazy);
         }
     }
 
-    private NestedSet<T> lookupIntersectionWith(NestedSet<T> other) {
-        if (!this.intersections.containsKey(other)) {
-            NestedSet<T> newIntersection = buildSimpleIntersectionWith(other);
+    private NestedSet<T> lookupIntersectionWith(NestedSet<T> other, boolean lazy) {
+        if (this.intersections.containsKey(other.setId)) {
+            this.derivedSetCache().recordHit(this.intersections.get(other.setId));
+        } else {
+            this.joinRegistryOf(other);
+            this.derivedSetCache().recordMiss();
+            NestedSet<T> newIntersection = lazy ? buildLazyIntersectionWith(other) : buildSimpleIntersectionWith(other);
 
-            this.intersections.put(other, newIntersection);
-            other.intersections.put(this, newIntersection);
+            this.intersections.put(other.setId, newIntersection);
+            other.intersections.put(this.setId, newIntersection);
 
-            this.addChildSet(newIntersection);
-            other.addChildSet(newIntersection);
+            linkSets(this, newIntersection);
+            linkSets(other, newIntersection);
         }
-        return this.intersections.get(other);
+        return this.intersections.get(other.setId);
     }
 
     private NestedSet<T> buildSimpleIntersectionWith(NestedSet<T> other) {
-        // Accumulate all the parents of the intersection, which is these two sets plus all their respective parents
-        HashSet<NestedSet<T>> parentsOfIntersection = new HashSet<>(Arrays.asList(this, other));
-        parentsOfIntersection.addAll(this.parentSets);
-        parentsOfIntersection.addAll(other.parentSets);
-
-        // Instantiate the new intersection set
-        NestedSet<T> newIntersection = new NestedSet<>(parentsOfIntersection, new HashSet<>());
+        // As with buildSimpleUnionWith, nothing may be pending removal while the stores are combined
+        this.registry().deferredRemovals().flush();
+        NestedSet<T> newIntersection = buildEmptyIntersectionWith(other);
 
         // Populate it with everything in the intersection of these two sets
-        HashSet<NestedSetItem<T>> itemsToInsert = new HashSet<>(this);
-        itemsToInsert.retainAll(other);
-        newIntersection.addAll(itemsToInsert);
+        newIntersection.store = this.store.intersection(other.store, newIntersection);
+
+        this.derivedSetCache().admit(newIntersection);
+        return newIntersection;
+    }
+
+    private NestedSet<T> buildLazyIntersectionWith(NestedSet<T> other) {
+        NestedSet<T> newIntersection = buildEmptyIntersectionWith(other);
+        newIntersection.store = newIntersection.derivation;
+        return newIntersection;
+    }
+
+    // Likewise, the intersection is linked in as the immediate child of both sets by lookupIntersectionWith
+    private NestedSet<T> buildEmptyIntersectionWith(NestedSet<T> other) {
+        NestedSet<T> newIntersection = new NestedSet<>(this.registry(), this.store);
+        newIntersection.derivation = new LazyViewStore<>(LazyViewStore.Operation.INTERSECTION, this, other,
+                newIntersection, this.store, LazyViewStore.DEFAULT_READ_LIMIT);
+        return newIntersection;
+    }
+
+    /*
+    N-ary unions and intersections
+    Combining many sets at once computes the result in one pass and registers it as a single derived set, linked
+        directly above (for a union) or below (for an intersection) each operand, where chaining unionWith or
+        intersectionWith would build and memoize every intermediate set along the way.
+    Operands implied by others are dropped first: a union has no use for a set below another operand, nor an
+        intersection for a set above one.  If two operands remain, the result is just their pairwise union or
+        intersection.  Otherwise it is memoized by its operands and kept up to date as they change, like a pairwise
+        one, but is always materialized and never demoted by the derived set cache.
+     */
+
+    public static <T> NestedSet<T> unionOf(Collection<NestedSet<T>> sets) {
+        return combine(sets, true);
+    }
+
+    @SafeVarargs
+    public static <T> NestedSet<T> unionOf(NestedSet<T>... sets) {
+        // The sets are copied out rather than the array handed on, which keeps @SafeVarargs true
+        List<NestedSet<T>> operands = new ArrayList<>(sets.length);
+        for (NestedSet<T> set : sets) {
+            operands.add(set);
+        }
+        return combine(operands, true);
+    }
+
+    public static <T> NestedSet<T> intersectionOf(Collection<NestedSet<T>> sets) {
+        return combine(sets, false);
+    }
+
+    @SafeVarargs
+    public static <T> NestedSet<T> intersectionOf(NestedSet<T>... sets) {
+        List<NestedSet<T>> operands = new ArrayList<>(sets.length);
+        for (NestedSet<T> set : sets) {
+            operands.add(set);
+        }
+        return combine(operands, false);
+    }
+
+    private static <T> NestedSet<T> combine(Collection<NestedSet<T>> sets, boolean union) {
+        List<NestedSet<T>> operands = new ArrayList<>(new LinkedHashSet<>(sets));
+        if(operands.isEmpty()) {
+            throw new IllegalArgumentException("At least one NestedSet is needed");
+        }
+
+        // Bring every operand into one hierarchy, a pair at a time, then build holding that whole hierarchy.  As with
+        //      withStructuresLocked, this retries if the hierarchy was joined onto another in between.
+        NestedSet<T> first = operands.get(0);
+        while (true) {
+            for (NestedSet<T> operand : operands) {
+                first.withStructuresLocked(operand, () -> {
+                    first.joinRegistryOf(operand);
+                    return null;
+                });
+            }
+
+            NestedSet<T> combined = first.withStructureLocked(() -> {
+                for (NestedSet<T> operand : operands) {
+                    if(operand.registry() != first.registry()) {
+                        return null;
+                    }
+                }
+                return union ? findUnionOf(operands) : findIntersectionOf(operands);
+            });
+            if(combined != null) {
+                return combined;
+            }
+        }
+    }
+
+    private static <T> NestedSet<T> findUnionOf(List<NestedSet<T>> operands) {
+        List<NestedSet<T>> needed = new ArrayList<>();
+        for (NestedSet<T> operand : operands) {
+            if(operands.stream().noneMatch(operand::isChildOf)) {
+                needed.add(operand);
+            }
+        }
+
+        if(needed.size() == 1) {
+            return needed.get(0);
+        } else if(needed.size() == 2) {
+            return needed.get(0).findUnionWith(needed.get(1), false);
+        }
+
+        Set<NestedSet<T>> key = new HashSet<>(needed);
+        NestedSet<T> existing = needed.get(0).naryUnions.get(key);
+        if(existing != null) {
+            return existing;
+        }
+
+        // Start from a copy of the largest operand, which costs nothing for copy-on-write stores, and add the rest.
+        //      As with a pairwise union, nothing may be pending removal while the stores are combined.
+        needed.get(0).registry().deferredRemovals().flush();
+        NestedSet<T> largest = Collections.max(needed, Comparator.comparingInt(NestedSet::size));
+        NestedSet<T> newUnion = new NestedSet<>(largest.registry(), largest.store);
+        newUnion.store = largest.store.copy(newUnion);
+        for (NestedSet<T> operand : needed) {
+            if(operand != largest) {
+                newUnion.store.addAll(operand);
+            }
+        }
+
+        newUnion.operands = needed;
+        newUnion.naryOperation = LazyViewStore.Operation.UNION;
+        for (NestedSet<T> operand : needed) {
+            operand.naryUnions.put(key, newUnion);
+            linkSets(newUnion, operand);
+        }
+        return newUnion;
+    }
+
+    private static <T> NestedSet<T> findIntersectionOf(List<NestedSet<T>> operands) {
+        List<NestedSet<T>> needed = new ArrayList<>();
+        for (NestedSet<T> operand : operands) {
+            if(operands.stream().noneMatch(operand::isParentOf)) {
+                needed.add(operand);
+            }
+        }
 
-        // add the new union as a containing set for all the inserted items
-        for(NestedSetItem<T> item : itemsToInsert) {
-            item.addContainingSet(newIntersection);
+        if(needed.size() == 1) {
+            return needed.get(0);
+        } else if(needed.size() == 2) {
+            return needed.get(0).findIntersectionWith(needed.get(1), false);
         }
 
+        Set<NestedSet<T>> key = new HashSet<>(needed);
+        NestedSet<T> existing = needed.get(0).naryIntersections.get(key);
+        if(existing != null) {
+            return existing;
+        }
+
+        // Intersect from the smallest operand up, so the running result shrinks as fast as possible, and stop as soon
+        //      as it is empty.  Only the stores are combined along the way, which for bitmaps is a container-wise AND,
+        //      so nothing may be pending removal meanwhile.
+        needed.get(0).registry().deferredRemovals().flush();
+        List<NestedSet<T>> bySize = new ArrayList<>(needed);
+        bySize.sort(Comparator.comparingInt(NestedSet::size));
+        NestedSet<T> smallest = bySize.get(0);
+        NestedSet<T> newIntersection = new NestedSet<>(smallest.registry(), smallest.store);
+        ItemStore<T> running = smallest.store.intersection(bySize.get(1).store, newIntersection);
+        for (int i = 2; i < bySize.size() && running.size() > 0; i++) {
+            running = running.intersection(bySize.get(i).store, newIntersection);
+        }
+        newIntersection.store = running;
+
+        newIntersection.operands = needed;
+        newIntersection.naryOperation = LazyViewStore.Operation.INTERSECTION;
+        for (NestedSet<T> operand : needed) {
+            operand.naryIntersections.put(key, newIntersection);
+            linkSets(operand, newIntersection);
+        }
         return newIntersection;
     }
 
     /*
-    Add and remove parent and child NestedSets
-    Note that when a child is added, it is inherited by all parents, and when a parent is added, it inherits all children
+    Adopts a set worked out outside the hierarchy, such as the value of a SetExpression, as a new child of each of
+        the given parents, or as a new root of host's hierarchy if there are none.  Only the values every parent holds
+        are kept, so the new set starts out a subset of each.  Like a spawned child it is a copy from then on: it
+        loses what its parents lose, but isn't kept up to date with whatever it was worked out from.
+     */
+
+    static <T> NestedSet<T> adopt(NestedSet<T> host, Collection<NestedSet<T>> parents, Collection<? extends T> values) {
+        List<NestedSet<T>> joined = new ArrayList<>(new LinkedHashSet<>(parents));
+        while (true) {
+            for (NestedSet<T> parent : joined) {
+                host.withStructuresLocked(parent, () -> {
+                    host.joinRegistryOf(parent);
+                    return null;
+                });
+            }
+
+            NestedSet<T> adopted = host.withStructureLocked(() -> {
+                NestedSetItemRegistry<T> registry = host.registry();
+                for (NestedSet<T> parent : joined) {
+                    if(parent.registry() != registry) {
+                        return null;
+                    }
+                }
+
+                // Value writers are held off meanwhile, so every parent's holdings stay put while they are checked
+                NestedSet<T> newSet = new NestedSet<>(registry, host.store);
+                for (T value : values) {
+                    NestedSetItem<T> setItem = joined.isEmpty() ? registry.intern(value) : registry.lookup(value);
+                    if(setItem != null && joined.stream().allMatch(parent -> parent.holdsSettled(setItem))) {
+                        newSet.store.add(setItem);
+                    }
+                }
+                for (NestedSet<T> parent : joined) {
+                    linkSets(parent, newSet);
+                }
+                return newSet;
+            });
+            if(adopted != null) {
+                return adopted;
+            }
+        }
+    }
+
+    /*
+    Estimated sizes of unions and intersections, worked out without building or memoizing them
+    Operands implied by others are dropped first, as in unionOf and intersectionOf.  A single remaining operand, or
+        a pair whose union or intersection is already built, is answered exactly.  Otherwise a union is estimated by
+        merging the operands' cardinality sketches, and an intersection by inclusion-exclusion over the unions of
+        every group of operands, which takes 2^n merges and compounds the error of each, so is only offered for up
+        to MAX_ESTIMATED_INTERSECTION_OPERANDS operands.
+    Sketches only depend on values, so sets of different hierarchies can be estimated together without joining them.
      */
 
-    private void addParentSet(NestedSet<T> parent) {
-        this.parentSets.add(parent);
-        for (NestedSet<T> child : this.childSets) {
-            child.parentSets.add(parent);
+    public static final int MAX_ESTIMATED_INTERSECTION_OPERANDS = 16;
+
+    public static <T> long estimateUnionSize(Collection<NestedSet<T>> sets) {
+        return estimateSize(sets, true);
+    }
+
+    @SafeVarargs
+    public static <T> long estimateUnionSize(NestedSet<T>... sets) {
+        List<NestedSet<T>> operands = new ArrayList<>(sets.length);
+        for (NestedSet<T> set : sets) {
+            operands.add(set);
+        }
+        return estimateSize(operands, true);
+    }
+
+    public static <T> long estimateIntersectionSize(Collection<NestedSet<T>> sets) {
+        return estimateSize(sets, false);
+    }
+
+    @SafeVarargs
+    public static <T> long estimateIntersectionSize(NestedSet<T>... sets) {
+        List<NestedSet<T>> operands = new ArrayList<>(sets.length);
+        for (NestedSet<T> set : sets) {
+            operands.add(set);
+        }
+        return estimateSize(operands, false);
+    }
+
+    private static <T> long estimateSize(Collection<NestedSet<T>> sets, boolean union) {
+        List<NestedSet<T>> operands = new ArrayList<>(new LinkedHashSet<>(sets));
+        if(operands.isEmpty()) {
+            throw new IllegalArgumentException("At least one NestedSet is needed");
+        }
+
+        // Holding the first operand's hierarchy still covers looking up a result built from operands all in it
+        NestedSet<T> first = operands.get(0);
+        return first.withStructureShared(() -> {
+            List<NestedSet<T>> needed = new ArrayList<>();
+            for (NestedSet<T> operand : operands) {
+                if(operands.stream().noneMatch(union ? operand::isChildOf : operand::isParentOf)) {
+                    needed.add(operand);
+                }
+            }
+
+            NestedSet<T> built = needed.size() == 1 ? needed.get(0) : findBuilt(needed, union);
+            if(built != null) {
+                return (long) built.size();
+            }
+            return union ? estimateUnionOf(needed) : estimateIntersectionOf(needed);
+        });
+    }
+
+    // The union or intersection of exactly these operands, none implied by another, if it has been built and still
+    //      matches them
+    static <T> NestedSet<T> findBuilt(List<NestedSet<T>> operands, boolean union) {
+        if(operands.size() < 2) {
+            return null;
+        }
+        NestedSet<T> left = operands.get(0);
+        for (NestedSet<T> operand : operands) {
+            if(operand.registry() != left.registry()) {
+                return null;
+            }
+        }
+
+        NestedSet<T> built;
+        if(operands.size() == 2) {
+            built = (union ? left.unions : left.intersections).get(operands.get(1).setId);
+        } else {
+            built = (union ? left.naryUnions : left.naryIntersections).get(new HashSet<>(operands));
+        }
+        return built == null || built.diverged ? null : built;
+    }
+
+    // Clamped to what the exact sizes of the operands allow
+    private static <T> long estimateUnionOf(List<NestedSet<T>> operands) {
+        CardinalitySketch merged = new CardinalitySketch();
+        long largest = 0;
+        long total = 0;
+        for (NestedSet<T> operand : operands) {
+            merged.merge(operand.sketch());
+            long size = operand.size();
+            largest = Math.max(largest, size);
+            total += size;
+        }
+        return Math.max(largest, Math.min(total, merged.estimate()));
+    }
+
+    private static <T> long estimateIntersectionOf(List<NestedSet<T>> operands) {
+        if(operands.size() > MAX_ESTIMATED_INTERSECTION_OPERANDS) {
+            throw new IllegalArgumentException("Intersection sizes can only be estimated for up to "
+                    + MAX_ESTIMATED_INTERSECTION_OPERANDS + " NestedSets");
+        }
+
+        List<CardinalitySketch> sketches = new ArrayList<>(operands.size());
+        long[] sizes = new long[operands.size()];
+        long smallest = Long.MAX_VALUE;
+        for (int i = 0; i < operands.size(); i++) {
+            sketches.add(operands.get(i).sketch());
+            sizes[i] = operands.get(i).size();
+            smallest = Math.min(smallest, sizes[i]);
+        }
+
+        long estimate = Math.round(inclusionExclusion(sketches, sizes, 0, null, 0));
+        return Math.max(0, Math.min(smallest, estimate));
+    }
+
+    // Adds up the terms for every group of operands that extends the chosen ones (merged into chosen, and numbering
+    //      count) with operands from index on.  A group of k operands counts its union's size with sign (-1)^(k+1),
+    //      and a group of one counts its exact size.
+    private static double inclusionExclusion(List<CardinalitySketch> sketches, long[] sizes, int index,
+                                             CardinalitySketch chosen, int count) {
+        double total = 0;
+        for (int i = index; i < sketches.size(); i++) {
+            CardinalitySketch merged = chosen == null ? sketches.get(i) : chosen.copy();
+            long size = sizes[i];
+            if(chosen != null) {
+                merged.merge(sketches.get(i));
+                size = merged.estimate();
+            }
+
+            total += count % 2 == 0 ? size : -size;
+            total += inclusionExclusion(sketches, sizes, i + 1, merged, count + 1);
+        }
+        return total;
+    }
+
+    // This set's sketch, built from its items the first time it is asked for or once it has gone stale, and offered
+    //      whatever the set gains from then on.  The fresh sketch is put in place before it is filled, so items
+    //      gained meanwhile by concurrent writers aren't missed.  Lazy views work theirs out on every call.
+    private CardinalitySketch sketch() {
+        if(!this.isMaterialized()) {
+            if(this.derivation.operation() == LazyViewStore.Operation.UNION) {
+                CardinalitySketch merged = this.derivation.left().sketch().copy();
+                merged.merge(this.derivation.right().sketch());
+                return merged;
+            }
+            return sketchOf(this);
+        }
+
+        CardinalitySketch current = this.sketch;
+        if(current == null || this.sketchStale) {
+            this.sketchStale = false;
+            current = new CardinalitySketch();
+            this.sketch = current;
+            for (NestedSetItem<T> setItem : this) {
+                current.offer(setItem.fingerprint());
+            }
         }
+        return current;
     }
 
-    private void addChildSet(NestedSet<T> child) {
-        this.childSets.add(child);
-        for(NestedSet<T> parent : this.parentSets) {
-            parent.childSets.add(child);
+    private static <T> CardinalitySketch sketchOf(Iterable<NestedSetItem<T>> items) {
+        CardinalitySketch sketch = new CardinalitySketch();
+        for (NestedSetItem<T> setItem : items) {
+            sketch.offer(setItem.fingerprint());
         }
+        return sketch;
+    }
+
+    /*
+    Quick negative answers to whether sets hold a value
+    Each set keeps a Bloom filter of its values (see ValueFilter) from the first time it is asked, updated as it gains
+        items and rebuilt once enough have been removed.  A filter never turns away a value its set holds, but lets
+        through about one in a hundred it doesn't, so these only narrow down where to look.  A lazy view asks its
+        operands' filters.
+    Over a hierarchy, a set whose filter turns a value away has no descendant holding it either, so the walk from the
+        roots stops there, as in setsContaining.
+     */
+
+    public boolean mightContainItem(T value) {
+        HashingStrategy<? super T> hashing = this.registry().hashing();
+        return mightContainFingerprint(hashing.fingerprint(value, hashing.hash(value)));
+    }
+
+    // Filters are keyed by the value's fingerprint, so walks over many sets work it out just the once
+    private boolean mightContainFingerprint(long fingerprint) {
+        if(!this.isMaterialized()) {
+            boolean left = this.derivation.left().mightContainFingerprint(fingerprint);
+            boolean right = this.derivation.right().mightContainFingerprint(fingerprint);
+            return this.derivation.operation() == LazyViewStore.Operation.UNION ? left || right : left && right;
+        }
+        return this.filter().mightContain(fingerprint);
+    }
+
+    public Set<NestedSet<T>> candidateSetsFor(T value) {
+        return withStructureShared(() -> {
+            // A value the registry doesn't know is in no set at all
+            NestedSetItem<T> setItem = this.registry().lookup(value);
+            if(setItem == null) {
+                return new HashSet<>();
+            }
+            return this.setsWhere(set -> set.mightContainFingerprint(setItem.fingerprint()));
+        });
+    }
+
+    public static <T> List<NestedSet<T>> candidateSetsFor(T value, Collection<NestedSet<T>> sets) {
+        List<NestedSet<T>> candidates = new ArrayList<>();
+
+        // The sets may be of separate hierarchies, so fingerprints are worked out once for each strategy among them
+        Map<HashingStrategy<? super T>, Long> fingerprints = new HashMap<>();
+        for (NestedSet<T> set : sets) {
+            long fingerprint = fingerprints.computeIfAbsent(set.registry().hashing(),
+                    hashing -> hashing.fingerprint(value, hashing.hash(value)));
+            if(set.mightContainFingerprint(fingerprint)) {
+                candidates.add(set);
+            }
+        }
+        return candidates;
+    }
+
+    private ValueFilter filter() {
+        ValueFilter current = this.filter;
+        return current == null || current.needsRebuild() ? rebuildFilter() : current;
+    }
+
+    // Readers go on using the old filter until the new one is filled.  A writer either finds the new one pending
+    //      and offers it what it gained, or gained it before the new one is filled from this set's items.
+    private synchronized ValueFilter rebuildFilter() {
+        ValueFilter current = this.filter;
+        if(current != null && !current.needsRebuild()) {
+            return current;
+        }
+
+        ValueFilter rebuilt = new ValueFilter(this.size());
+        this.pendingFilter = rebuilt;
+        for (NestedSetItem<T> setItem : this) {
+            rebuilt.add(setItem.fingerprint());
+        }
+        this.filter = rebuilt;
+        this.pendingFilter = null;
+        return rebuilt;
+    }
+
+    // Keeps this set's sketch and filter, where it has them, in step with what it gained or lost, and tells any
+    //      subscribers.  The pending filter is read first: if a rebuild finishes in between, the filter read next is
+    //      the rebuilt one.
+    private void noteGained(List<NestedSetItem<T>> gained) {
+        NestedSetChanges<T> changes = this.registry().changes();
+        if(changes.isObserved()) {
+            changes.recordAdded(this, gained);
+        }
+
+        CardinalitySketch currentSketch = this.sketch;
+        ValueFilter pending = this.pendingFilter;
+        ValueFilter currentFilter = this.filter;
+        if(currentSketch == null && currentFilter == null && pending == null) {
+            return;
+        }
+
+        for (NestedSetItem<T> setItem : gained) {
+            if(currentSketch != null) {
+                currentSketch.offer(setItem.fingerprint());
+            }
+            if(currentFilter != null) {
+                currentFilter.add(setItem.fingerprint());
+            }
+            if(pending != null) {
+                pending.add(setItem.fingerprint());
+            }
+        }
+    }
+
+    private void noteLost(List<NestedSetItem<T>> lost) {
+        NestedSetChanges<T> changes = this.registry().changes();
+        if(changes.isObserved()) {
+            changes.recordRemoved(this, lost);
+        }
+
+        this.sketchStale = true;
+        ValueFilter currentFilter = this.filter;
+        if(currentFilter != null) {
+            currentFilter.noteRemoved(lost.size());
+        }
+    }
+
+    // Whether a set other than this union's operands, or a set built from it, sits immediately below it (see
+    //      materializeForSplice)
+    private boolean hasSplicedChild() {
+        if(!this.isDependentUnion()) {
+            return false;
+        }
+        for (NestedSet<T> child : this.childSets.values()) {
+            if(!this.isBuiltFrom(child) && !child.isBuiltFrom(this)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBuiltFrom(NestedSet<T> set) {
+        if(this.derivation != null) {
+            return this.derivation.left() == set || this.derivation.right() == set;
+        }
+        return this.operands != null && this.operands.contains(set);
+    }
+
+    /*
+    Lazy views
+    A lazy union or intersection is turned into an ordinary set holding its own items when it is written to, once it
+        has been read often enough, or when asked to here.  The derived set cache may later demote it back to a lazy
+        view to bound memory.
+     */
+
+    // Gives this set a store of its own if it is still a lazy view, returning the store it holds its own items in
+    //      from then on.  A write to a lazy view goes to this store and only then admits the set to the cache, since
+    //      admitting it can evict it straight back to being a view.
+    ItemStore<T> materializedStore() {
+        if(!this.isMaterialized()) {
+            this.store = this.derivation.copy(this);
+            this.restorePendingRemovals();
+        }
+        return this.store;
+    }
+
+    // The sets a pending removal was made from no longer hold the item, but nothing built on them has lost it yet, so
+    //      a view materialized meanwhile is given back what it held until then, for the removal to take out once it
+    //      is compacted
+    private void restorePendingRemovals() {
+        DeferredRemovals<T> deferred = this.registry().deferredRemovals();
+        if(deferred.isEmpty()) {
+            return;
+        }
+        for (NestedSetItem<T> setItem : deferred.pendingItems()) {
+            List<NestedSet<T>> removedFrom = deferred.removedFrom(setItem);
+            if(removedFrom != null && this.viewHoldsGiven(setItem, removedFrom::contains, true)) {
+                this.store.add(setItem);
+            }
+        }
+    }
+
+    void admitToCache() {
+        this.derivedSetCache().admit(this);
+    }
+
+    public void materialize() {
+        if(this.isMaterialized()) {
+            return;
+        }
+
+        this.materializedStore();
+        this.admitToCache();
+    }
+
+    // Drops this derived set's own copy of its items and goes back to reading through to its operands.  Returns
+    //      false if this isn't a derived set, is already lazy, or no longer matches its operands.
+    boolean dematerialize() {
+        if(this.derivation == null || this.diverged || !this.isMaterialized() || this.registry().isConcurrent()) {
+            return false;
+        }
+        if(this.hasSplicedChild()) {
+            return false;
+        }
+        // diverged is only brought up to date once a change has been passed on in full, but a write that materializes
+        //      a set can evict it, or another set, partway through one, so what it holds is checked as well
+        if(!this.derivation.viewEquals(this.store)) {
+            return false;
+        }
+
+        this.derivation.resetReads();
+        this.store = this.derivation;
+        this.sketch = null;
+        this.filter = null;
+        return true;
+    }
+
+    /*
+    Unions and intersections whose operands hold at least this many items between them are built across the common
+        fork-join pool (see ParallelBuild).  This applies to every hierarchy.
+     */
+
+    public static int parallelBuildThreshold() {
+        return ParallelBuild.threshold();
+    }
+
+    public static void setParallelBuildThreshold(int threshold) {
+        ParallelBuild.setThreshold(threshold);
+    }
+
+    public DerivedSetCache<T> derivedSetCache() {
+        return this.registry().derivedSetCache();
+    }
+
+    public DeferredRemovals<T> deferredRemovals() {
+        return this.registry().deferredRemovals();
+    }
+
+    // Subscriptions to what changes in this set's hierarchy.  They follow the hierarchy when it is joined to another.
+    public NestedSetChanges<T> changes() {
+        return this.registry().changes();
+    }
+
+    public boolean isMaterialized() {
+        return !(this.store instanceof LazyViewStore);
+    }
+
+    boolean isDiverged() {
+        return this.diverged;
+    }
+
+
+    /*
+    Snapshots
+    Takes an immutable view of this set's whole hierarchy, holding the hierarchy only while each set is frozen (see
+        NestedSetSnapshot).  Anything that only older, since closed snapshots could see is freed up on the way out.
+     */
+
+    public NestedSetSnapshot<T> snapshot() {
+        NestedSetSnapshot<T> snapshot = withStructureLocked(() -> {
+            // Frozen stores are taken as they stand, so they mustn't still hold anything pending removal
+            this.registry().deferredRemovals().flush();
+            return NestedSetSnapshot.take(this.registry());
+        });
+        this.registry().reclaimSnapshots();
+        return snapshot;
+    }
+
+    // Freezes this set's contents and reachability index, leaving its relations to linkFrozen
+    SnapshotSet<T> freeze(NestedSetSnapshot<T> snapshot) {
+        CompressedLongBitmap ancestors = this.ancestorIds.copy();
+        if(this.isMaterialized()) {
+            return new SnapshotSet<>(snapshot, this.setId, ancestors, this.store.snapshot(this, snapshot.version()));
+        }
+        return new SnapshotSet<>(snapshot, this.setId, ancestors, this.derivation.operation());
+    }
+
+    void linkFrozen(SnapshotSet<T> frozen, Map<NestedSet<T>, SnapshotSet<T>> all) {
+        List<SnapshotSet<T>> parents = new ArrayList<>(this.parentSets.size());
+        for(NestedSet<T> parent : this.parentSets.values()) {
+            parents.add(all.get(parent));
+        }
+        List<SnapshotSet<T>> children = new ArrayList<>(this.childSets.size());
+        for(NestedSet<T> child : this.childSets.values()) {
+            children.add(all.get(child));
+        }
+
+        if(this.isMaterialized()) {
+            frozen.link(parents, children, null, null);
+        } else {
+            frozen.link(parents, children, all.get(this.derivation.left()), all.get(this.derivation.right()));
+        }
+    }
+
+    /*
+    Saving and restoring, for NestedSetFile
+    A saved hierarchy is put back edge by edge and memo by memo as it was, rather than by replaying the operations
+        that built it, so nothing is worked out again and no set's items are read.
+     */
+
+    // The kind of store this set keeps, or would keep once materialized
+    Storage storage() {
+        if(this.registry().isConcurrent()) {
+            return Storage.CONCURRENT;
+        }
+        return this.store.emptyStore(this) instanceof BitmapItemStore ? Storage.BITMAP : Storage.HASH;
+    }
+
+    LazyViewStore<T> derivation() {
+        return this.derivation;
+    }
+
+    List<NestedSet<T>> operands() {
+        return this.operands;
+    }
+
+    LazyViewStore.Operation naryOperation() {
+        return this.naryOperation;
+    }
+
+    // A new, empty root of the hierarchy being restored
+    static <T> NestedSet<T> restore(NestedSetItemRegistry<T> registry, Storage storage) {
+        NestedSet<T> restored = new NestedSet<>(registry, new HashItemStore<>());
+        restored.store = restored.createStore(storage);
+        return restored;
+    }
+
+    // Leaves the items in the file until they are first needed.  Concurrent sets read theirs in straight away, since
+    //      paging in on a read would mean writing while reading.
+    void restoreItems(ByteBuffer contents, int size) {
+        PagedItemStore<T> paged = new PagedItemStore<>(this, this.store, contents, size);
+        this.store = this.registry().isConcurrent() ? paged.loaded() : paged;
+    }
+
+    // Called by a PagedItemStore of this set once it has read in the items
+    void pagedIn(ItemStore<T> paged, ItemStore<T> loaded) {
+        if(this.store == paged) {
+            this.store = loaded;
+        }
+    }
+
+    // The immediate edge alone.  Reachability is filled in by restoreAncestors once every edge is in.
+    static <T> void restoreLink(NestedSet<T> parent, NestedSet<T> child) {
+        parent.childSets.put(child.setId, child);
+        child.parentSets.put(parent.setId, parent);
+        child.registry().removeRoot(child);
+    }
+
+    void restoreAncestors() {
+        for (NestedSet<T> ancestor : selfAndAncestors()) {
+            if(ancestor != this) {
+                this.ancestorIds.add(ancestor.setId);
+            }
+        }
+    }
+
+    // As built by lookupUnionWith or lookupIntersectionWith, with the set's items already restored unless it is lazy
+    void restoreDerivation(LazyViewStore.Operation operation, NestedSet<T> left, NestedSet<T> right, boolean lazy,
+                           boolean diverged) {
+        this.derivation = new LazyViewStore<>(operation, left, right, this, this.store,
+                LazyViewStore.DEFAULT_READ_LIMIT);
+        this.diverged = diverged;
+        if(operation == LazyViewStore.Operation.UNION) {
+            left.unions.put(right.setId, this);
+            right.unions.put(left.setId, this);
+        } else {
+            left.intersections.put(right.setId, this);
+            right.intersections.put(left.setId, this);
+        }
+
+        if(lazy) {
+            this.store = this.derivation;
+        } else {
+            this.derivedSetCache().admit(this);
+        }
+    }
+
+    // As built by findUnionOf or findIntersectionOf
+    void restoreOperands(LazyViewStore.Operation operation, List<NestedSet<T>> operands, boolean diverged) {
+        this.operands = operands;
+        this.naryOperation = operation;
+        this.diverged = diverged;
+        Set<NestedSet<T>> key = new HashSet<>(operands);
+        for (NestedSet<T> operand : operands) {
+            if(operation == LazyViewStore.Operation.UNION) {
+                operand.naryUnions.put(key, this);
+            } else {
+                operand.naryIntersections.put(key, this);
+            }
+        }
+    }
+
+    /*
+    Add parent and child NestedSets
+    Note that when a child is added, it is inherited by all ancestors of the parent, and every descendant of the child
+        inherits the parent and all its ancestors.  Only the immediate edge is stored; the reachability index is
+        updated by walking up from the parent and down from the child.
+     */
+
+    private static <T> void linkSets(NestedSet<T> parent, NestedSet<T> child) {
+        linkImmediate(parent, child);
+
+        List<NestedSet<T>> newAncestors = parent.selfAndAncestors();
+        for (NestedSet<T> descendant : child.selfAndDescendants()) {
+            for (NestedSet<T> ancestor : newAncestors) {
+                descendant.ancestorIds.add(ancestor.setId);
+            }
+        }
+    }
+
+    // The immediate edge alone, leaving the reachability index to the caller
+    private static <T> void linkImmediate(NestedSet<T> parent, NestedSet<T> child) {
+        parent.childSets.put(child.setId, child);
+        child.parentSets.put(parent.setId, parent);
+        child.registry().removeRoot(child);
+        if(child.registry().changes().isObserved()) {
+            child.registry().changes().recordLinked(parent, child);
+        }
+    }
+
+    // Indexes a set just spliced in between relatives by spawnChild or spawnParent, given the ids of its ancestors,
+    //      which are those of the set it was spawned from.  Each of its descendants already has each of its ancestors
+    //      as an ancestor, so the set itself is all they gain, and relinking costs one walk down rather than one walk
+    //      up per descendant.
+    private void indexSpliced(CompressedLongBitmap ancestors) {
+        this.ancestorIds = ancestors;
+        for (NestedSet<T> descendant : this.selfAndDescendants()) {
+            if(descendant != this) {
+                descendant.ancestorIds.add(this.setId);
+            }
+        }
+    }
+
+    // Drops an immediate edge that is about to be implied by a longer path, leaving the reachability index and the
+    //      registry's roots alone
+    private static <T> void unlinkImmediate(NestedSet<T> parent, NestedSet<T> child) {
+        parent.childSets.remove(child.setId);
+        child.parentSets.remove(parent.setId);
+        if(child.registry().changes().isObserved()) {
+            child.registry().changes().recordUnlinked(parent, child);
+        }
+    }
+
+    private List<NestedSet<T>> selfAndAncestors() {
+        return walkFromSelf(true);
+    }
+
+    List<NestedSet<T>> selfAndDescendants() {
+        return walkFromSelf(false);
+    }
+
+    private List<NestedSet<T>> walkFromSelf(boolean upwards) {
+        List<NestedSet<T>> reached = new ArrayList<>();
+        // Not a bitmap, since walking up meets ids in descending order, which a sorted container inserts slowly
+        LongOpenHashSet visited = new LongOpenHashSet();
+        Deque<NestedSet<T>> toVisit = new ArrayDeque<>();
+        toVisit.add(this);
+        while (!toVisit.isEmpty()) {
+            NestedSet<T> set = toVisit.poll();
+            if(visited.add(set.setId)) {
+                reached.add(set);
+                toVisit.addAll(upwards ? set.parentSets.values() : set.childSets.values());
+            }
+        }
+        return reached;
+    }
+
+    /*
+    Item registry plumbing
+    Sets from two separate hierarchies get their registries merged the first time they are combined, so items stay
+        canonical across the joined hierarchy.
+     */
+
+    NestedSetItemRegistry<T> registry() {
+        this.registry = this.registry.resolve();
+        return this.registry;
+    }
+
+    private void joinRegistryOf(NestedSet<T> other) {
+        this.registry().join(other.registry());
+    }
+
+    /*
+    Locking, for concurrent hierarchies only.  In any other hierarchy the lock is null and these do nothing.
+     */
+
+    private static void unlockValue(HierarchyLock lock, Object value) {
+        if(lock != null) {
+            lock.unlockValue(value);
+        }
+    }
+
+    private <R> R withStructureLocked(Supplier<R> operation) {
+        return withStructuresLocked(this, operation);
+    }
+
+    // Runs an operation that changes the shape of the hierarchies of this set and other, holding both exclusively.
+    //      As in NestedSetItemRegistry.lockValue, this retries if either hierarchy was joined onto another meanwhile.
+    private <R> R withStructuresLocked(NestedSet<T> other, Supplier<R> operation) {
+        while (true) {
+            NestedSetItemRegistry<T> mine = this.registry();
+            NestedSetItemRegistry<T> theirs = other.registry();
+            if(!mine.hashing().equals(theirs.hashing())) {
+                throw new IllegalArgumentException("NestedSets hashing values differently can't be combined");
+            }
+            if(mine.lock() == null && theirs.lock() == null) {
+                return operation.get();
+            } else if(mine.lock() == null || theirs.lock() == null) {
+                throw new IllegalArgumentException("Concurrent NestedSets can only be combined with other concurrent NestedSets");
+            }
+
+            HierarchyLock.lockStructures(mine.lock(), theirs.lock());
+            try {
+                if(mine.isCurrent() && theirs.isCurrent()) {
+                    return operation.get();
+                }
+            } finally {
+                HierarchyLock.unlockStructures(mine.lock(), theirs.lock());
+            }
+        }
+    }
+
+    // Runs a read of the hierarchy's shape, keeping it from changing meanwhile but letting value writes carry on
+    <R> R withStructureShared(Supplier<R> operation) {
+        while (true) {
+            NestedSetItemRegistry<T> registry = this.registry();
+            if(registry.lock() == null) {
+                return operation.get();
+            }
+
+            registry.lock().lockStructureShared();
+            try {
+                if(registry.isCurrent()) {
+                    return operation.get();
+                }
+            } finally {
+                registry.lock().unlockStructureShared();
+            }
+        }
+    }
+
+    // Membership as it stands, without counting as a read of a lazy view
+    boolean holds(NestedSetItem<T> setItem) {
+        return this.isMaterialized() ? this.store.contains(setItem) : this.derivation.viewContains(setItem);
+    }
+
+    // Replaces the stored contents wholesale, without touching any relatives.  Used when a registry merge has
+    //      changed item ids or swapped items for their canonical counterparts.
+    void reloadItems(Collection<NestedSetItem<T>> items) {
+        if(!this.isMaterialized()) {
+            // A lazy view holds nothing of its own, and reads through to its operands, which get reloaded themselves
+            return;
+        }
+
+        this.store = this.store.emptyStore(this);
+        for(NestedSetItem<T> item : items) {
+            this.store.add(item);
+        }
+        this.sketchStale = true;
+        this.filter = null;
+    }
+
+    /*
+    Collection methods, backed by the item store.
+    Note that these operate on this set alone; use addItem and removeItem to keep relatives in sync.
+     */
+
+    @Override
+    public boolean add(NestedSetItem<T> setItem) {
+        boolean added = this.store.add(setItem);
+        if(added) {
+            this.noteGained(Collections.singletonList(setItem));
+        }
+        return added;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        NestedSetItem<T> setItem = asSetItem(o);
+        boolean removed = setItem != null && this.store.remove(setItem);
+        if(removed) {
+            this.noteLost(Collections.singletonList(setItem));
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        NestedSetItem<T> setItem = asSetItem(o);
+        return setItem != null && this.store.contains(setItem);
+    }
+
+    // The cast item is only looked up or removed, never stored, so one of some other type can't get in
+    @SuppressWarnings("unchecked")
+    private static <T> NestedSetItem<T> asSetItem(Object o) {
+        return (o instanceof NestedSetItem) ? (NestedSetItem<T>) o : null;
+    }
+
+    @Override
+    public Iterator<NestedSetItem<T>> iterator() {
+        return this.store.iterator();
+    }
+
+    @Override
+    public int size() {
+        return this.store.size();
+    }
+
+    @Override
+    public Spliterator<NestedSetItem<T>> spliterator() {
+        return this.store.spliterator();
     }
 
     /*
@@ -323,11 +2123,11 @@ public class NestedSet<T> extends HashSet<NestedSetItem<T>> {
      */
 
     public boolean isChildOf(NestedSet<T> other) {
-        return this.parentSets.contains(other);
+        return this.ancestorIds.contains(other.setId);
     }
 
     public boolean isParentOf(NestedSet<T> other) {
-        return this.childSets.contains(other);
+        return other.ancestorIds.contains(this.setId);
     }
 
     /*
@@ -335,27 +2135,31 @@ public class NestedSet<T> extends HashSet<NestedSetItem<T>> {
      */
 
     int numberOfChildrenSets() {
-        return this.childSets.size();
+        return this.selfAndDescendants().size() - 1;
     }
 
     int numberOfParentSets() {
-        return this.parentSets.size();
+        return this.ancestorIds.cardinality();
     }
 
     /*
-    AbstractSet has some goofy implementations of equals and hashCode that cause lots of problems with this class.
-    I need to go back and understand why they do what they do, but in the meantime, using the Object implementation of
-        these methods here seems to work just fine.
+    Identity
+    AbstractSet would compare sets by their contents, which would make two sets that happen to hold the same values
+        stand in for each other as relatives and memo keys.  Instead every set is only equal to itself, going by its
+        id, which is unique across every hierarchy and handed out in the order sets are created.
      */
 
+    public long getSetId() {
+        return this.setId;
+    }
+
     @Override
     public boolean equals(Object o) {
-        NestedSet<T> other = (NestedSet<T>) o;
-        return this.hashCode() == other.hashCode();
+        return (o instanceof NestedSet) && ((NestedSet<?>) o).setId == this.setId;
     }
 
     @Override
     public int hashCode() {
-        return System.identityHashCode(this);
+        return Long.hashCode(this.setId);
     }
 }
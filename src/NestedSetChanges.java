@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Publishes what changes in a hierarchy's sets, as batches of per-set deltas (see SetChange).
+ *
+ * Subscribers follow the protocol of java.util.concurrent.Flow: each gets a Subscription, asks for batches with
+ *      request, and is sent no more batches than it asked for.  A subscriber with no outstanding demand isn't sent
+ *      anything; its changes keep being coalesced into the batch it will get next.
+ * A batch is sent once it has gathered maxBatchChanges changes, or maxDelay after its first change, whichever comes
+ *      first.  Changes are what a set's store physically gains or loses, and links made or dropped between a set and
+ *      its immediate relatives.  A lazy view holds nothing of its own, so its values only show up once it is
+ *      materialized; until then they follow from its operands'.
+ *
+ * Batches are sent from a single daemon thread shared by every hierarchy, one at a time, so subscribers shouldn't
+ *      block in onNext.  A subscriber that throws is cancelled and sent the exception through onError.  Recording
+ *      costs nothing while a hierarchy has no subscribers.
+ */
+public class NestedSetChanges<T> {
+    public static final int DEFAULT_MAX_BATCH_CHANGES = 1024;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 50;
+
+    private static final ScheduledExecutorService DELIVERY = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "nested-set-changes");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+    The subscriber side, shaped after Flow.Subscriber and Flow.Subscription
+     */
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(List<SetChange<T>> batch);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long batches);
+
+        void cancel();
+    }
+
+    private final CopyOnWriteArrayList<ChangeSubscription<T>> subscriptions;
+
+    NestedSetChanges() {
+        this.subscriptions = new CopyOnWriteArrayList<>();
+    }
+
+    public void subscribe(Subscriber<T> subscriber) {
+        subscribe(subscriber, DEFAULT_MAX_BATCH_CHANGES, DEFAULT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void subscribe(Subscriber<T> subscriber, int maxBatchChanges, long maxDelay, TimeUnit unit) {
+        if(maxBatchChanges < 1 || maxDelay < 0) {
+            throw new IllegalArgumentException("A batch needs room for a change, and a delay can't be negative");
+        }
+
+        ChangeSubscription<T> subscription = new ChangeSubscription<>(this, subscriber, maxBatchChanges,
+                unit.toNanos(maxDelay));
+        this.subscriptions.add(subscription);
+        DELIVERY.execute(() -> subscriber.onSubscribe(subscription));
+    }
+
+    public int subscriberCount() {
+        return this.subscriptions.size();
+    }
+
+    // Sends every pending batch there is demand for now, however small, and waits until they have been sent.  Not to
+    //      be called from a subscriber.
+    public void flush() {
+        List<Future<?>> sent = new ArrayList<>();
+        for(ChangeSubscription<T> subscription : this.subscriptions) {
+            sent.add(DELIVERY.submit(() -> subscription.drain(true)));
+        }
+        for(Future<?> delivery : sent) {
+            try {
+                delivery.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch(ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    // Sends what is pending to subscribers with demand for it, then completes every subscription
+    public void complete() {
+        flush();
+        for(ChangeSubscription<T> subscription : this.subscriptions) {
+            DELIVERY.execute(subscription::complete);
+        }
+        this.subscriptions.clear();
+    }
+
+    /*
+    Recording, called by the sets of this hierarchy as they change
+     */
+
+    boolean isObserved() {
+        return !this.subscriptions.isEmpty();
+    }
+
+    void recordCreated(NestedSet<T> set) {
+        record(set, 1, SetChange::recordCreated);
+    }
+
+    void recordAdded(NestedSet<T> set, List<NestedSetItem<T>> items) {
+        record(set, items.size(), change -> {
+            for(NestedSetItem<T> item : items) {
+                change.recordAdded(item.getValue());
+            }
+        });
+    }
+
+    void recordRemoved(NestedSet<T> set, List<NestedSetItem<T>> items) {
+        record(set, items.size(), change -> {
+            for(NestedSetItem<T> item : items) {
+                change.recordRemoved(item.getValue());
+            }
+        });
+    }
+
+    void recordLinked(NestedSet<T> parent, NestedSet<T> child) {
+        record(parent, 1, change -> change.recordLinked(child, false));
+        record(child, 1, change -> change.recordLinked(parent, true));
+    }
+
+    void recordUnlinked(NestedSet<T> parent, NestedSet<T> child) {
+        record(parent, 1, change -> change.recordUnlinked(child, false));
+        record(child, 1, change -> change.recordUnlinked(parent, true));
+    }
+
+    private void record(NestedSet<T> set, int changeCount, Consumer<SetChange<T>> change) {
+        for(ChangeSubscription<T> subscription : this.subscriptions) {
+            subscription.record(set, changeCount, change);
+        }
+    }
+
+    // Takes over other's subscribers when other's hierarchy is joined to this one
+    void absorb(NestedSetChanges<T> other) {
+        if(other == this) {
+            return;
+        }
+
+        for(ChangeSubscription<T> subscription : other.subscriptions) {
+            subscription.publisher = this;
+            this.subscriptions.add(subscription);
+        }
+        other.subscriptions.clear();
+    }
+
+    private static final class ChangeSubscription<T> implements Subscription {
+        private final Subscriber<T> subscriber;
+        private final int maxBatchChanges;
+        private final long maxDelayNanos;
+        private volatile NestedSetChanges<T> publisher;
+
+        // The batch being gathered, and how much the subscriber has asked for.  All guarded by this subscription.
+        private Map<NestedSet<T>, SetChange<T>> pending;
+        private int pendingChanges;
+        private long firstChangeNanos;
+        private long demand;
+        private boolean done;
+
+        ChangeSubscription(NestedSetChanges<T> publisher, Subscriber<T> subscriber, int maxBatchChanges,
+                           long maxDelayNanos) {
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+            this.maxBatchChanges = maxBatchChanges;
+            this.maxDelayNanos = maxDelayNanos;
+            this.pending = new LinkedHashMap<>();
+        }
+
+        synchronized void record(NestedSet<T> set, int changeCount, Consumer<SetChange<T>> change) {
+            if(this.done) {
+                return;
+            }
+
+            change.accept(this.pending.computeIfAbsent(set, SetChange::new));
+            if(this.pendingChanges == 0) {
+                this.firstChangeNanos = System.nanoTime();
+                DELIVERY.schedule(() -> drain(false), this.maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+            int before = this.pendingChanges;
+            this.pendingChanges += changeCount;
+            if(before < this.maxBatchChanges && this.pendingChanges >= this.maxBatchChanges) {
+                DELIVERY.execute(() -> drain(false));
+            }
+        }
+
+        @Override
+        public void request(long batches) {
+            if(batches <= 0) {
+                cancel();
+                DELIVERY.execute(() -> this.subscriber.onError(
+                        new IllegalArgumentException("Subscribers must request a positive number of batches")));
+                return;
+            }
+
+            synchronized (this) {
+                // Demand past Long.MAX_VALUE is as good as unbounded
+                this.demand = this.demand + batches < 0 ? Long.MAX_VALUE : this.demand + batches;
+            }
+            DELIVERY.execute(() -> drain(false));
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                this.done = true;
+                this.pending.clear();
+            }
+            this.publisher.subscriptions.remove(this);
+        }
+
+        // Runs on the delivery thread: sends the pending batch if there is demand for it, and it is full, old enough
+        //      or being forced out
+        void drain(boolean force) {
+            List<SetChange<T>> batch;
+            synchronized (this) {
+                if(this.done || this.demand == 0 || this.pending.isEmpty()) {
+                    return;
+                }
+                boolean ready = force || this.pendingChanges >= this.maxBatchChanges
+                        || System.nanoTime() - this.firstChangeNanos >= this.maxDelayNanos;
+                if(!ready) {
+                    return;
+                }
+
+                batch = new ArrayList<>(this.pending.size());
+                for(SetChange<T> change : this.pending.values()) {
+                    if(!change.isEmpty()) {
+                        batch.add(change);
+                    }
+                }
+                this.pending = new LinkedHashMap<>();
+                this.pendingChanges = 0;
+                if(batch.isEmpty()) {
+                    // Everything cancelled out
+                    return;
+                }
+                if(this.demand != Long.MAX_VALUE) {
+                    this.demand--;
+                }
+            }
+
+            try {
+                this.subscriber.onNext(batch);
+            } catch(RuntimeException e) {
+                cancel();
+                this.subscriber.onError(e);
+            }
+        }
+
+        // Runs on the delivery thread
+        void complete() {
+            synchronized (this) {
+                if(this.done) {
+                    return;
+                }
+                this.done = true;
+                this.pending.clear();
+            }
+            this.subscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,475 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Saves a whole hierarchy of NestedSets to a compact binary file, and loads it back by memory-mapping the file.
+ *
+ * The file holds a dictionary of the hierarchy's values, each set's items as a compressed bitmap of the values'
+ *      ids, the immediate parent/child edges, and which sets are the memoized unions and intersections of which
+ *      others, so a loaded hierarchy is put back as it was without working anything out again.  Lazy views are saved
+ *      as views, without items.  Sketches, filters, subscribers and cache settings are not saved.
+ * Saving works from a snapshot (see NestedSetSnapshot), so it sees the hierarchy as it stood at one moment, and
+ *      doesn't hold the hierarchy while writing.
+ * Loading reads the dictionary and the shape of the hierarchy straight away, but leaves each set's items in the
+ *      mapped file until the set is first used (see PagedItemStore), so a large file loads in the time it takes to
+ *      read its values, and only the sets that are used are ever paged in.  Concurrent hierarchies are the exception:
+ *      their sets are read in as they are loaded, since paging in on a read would mean writing while reading.
+ *
+ * Layout, big-endian throughout:
+ *      header      MAGIC, VERSION
+ *      contents    each materialized set's bitmap of value ids (see CompressedIntBitmap.writeTo), one after another
+ *      dictionary  the number of values, then each value's id followed by the value as written by the ValueCodec
+ *      sets        the number of sets, then each set as written by SavedSet.writeTo
+ *      trailer     where the dictionary and the sets start, then MAGIC again
+ */
+public final class NestedSetFile {
+    private static final int MAGIC = 0x4E535346;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private NestedSetFile() {
+    }
+
+    /*
+    How values are written to the dictionary and read back from it
+     */
+
+    public interface ValueCodec<T> {
+        void write(T value, DataOutput out) throws IOException;
+
+        // Reads a value written by write, leaving the buffer just past it
+        T read(ByteBuffer in);
+    }
+
+    private static final ValueCodec<String> STRINGS = new ValueCodec<String>() {
+        @Override
+        public void write(String value, DataOutput out) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public String read(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private static final ValueCodec<Integer> INTEGERS = new ValueCodec<Integer>() {
+        @Override
+        public void write(Integer value, DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer in) {
+            return in.getInt();
+        }
+    };
+
+    private static final ValueCodec<Long> LONGS = new ValueCodec<Long>() {
+        @Override
+        public void write(Long value, DataOutput out) throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer in) {
+            return in.getLong();
+        }
+    };
+
+    // Strings as UTF-8, of any length
+    public static ValueCodec<String> strings() {
+        return STRINGS;
+    }
+
+    public static ValueCodec<Integer> integers() {
+        return INTEGERS;
+    }
+
+    public static ValueCodec<Long> longs() {
+        return LONGS;
+    }
+
+    /*
+    Saving
+    Returns every set of the hierarchy, in the order they were saved and will be loaded in, so callers can find their
+        sets again after loading.
+     */
+
+    public static <T> List<NestedSet<T>> write(NestedSet<T> set, Path path, ValueCodec<? super T> codec)
+            throws IOException {
+        SavedHierarchy<T> saved = save(set);
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            long position = HEADER_SIZE;
+            for(SavedSet savedSet : saved.sets) {
+                if(savedSet.ids != null) {
+                    savedSet.offset = position;
+                    savedSet.ids.writeTo(out);
+                    position += savedSet.ids.serializedSize();
+                }
+            }
+
+            out.flush();
+            long dictionaryOffset = channel.position();
+            out.writeInt(saved.values.size());
+            for(int i = 0; i < saved.values.size(); i++) {
+                out.writeInt(saved.valueIds[i]);
+                codec.write(saved.values.get(i), out);
+            }
+
+            out.flush();
+            long setsOffset = channel.position();
+            out.writeInt(saved.sets.size());
+            for(SavedSet savedSet : saved.sets) {
+                savedSet.writeTo(out);
+            }
+
+            out.writeLong(dictionaryOffset);
+            out.writeLong(setsOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+        return saved.liveSets;
+    }
+
+    // Gathers everything to be written from a snapshot, along with what only the live sets know, which is fixed once
+    //      a set is built and so is the same as when the snapshot was taken.  If the hierarchy was joined onto
+    //      another in between, the snapshot's ids no longer hold, so this starts over.
+    private static <T> SavedHierarchy<T> save(NestedSet<T> set) {
+        while(true) {
+            try(NestedSetSnapshot<T> snapshot = set.snapshot()) {
+                SavedHierarchy<T> saved = set.withStructureShared(
+                        () -> set.registry() == snapshot.registry() ? new SavedHierarchy<>(snapshot) : null);
+                if(saved != null) {
+                    return saved;
+                }
+            }
+        }
+    }
+
+    private static final class SavedHierarchy<T> {
+        private final List<NestedSet<T>> liveSets;
+        private final List<SavedSet> sets;
+        private final List<T> values;
+        private final int[] valueIds;
+
+        private SavedHierarchy(NestedSetSnapshot<T> snapshot) {
+            this.liveSets = new ArrayList<>(snapshot.frozenSets());
+            this.liveSets.sort(Comparator.comparingLong(NestedSet::getSetId));
+            SetIdMap<Integer> indexes = new SetIdMap<>();
+            for(int i = 0; i < this.liveSets.size(); i++) {
+                indexes.put(this.liveSets.get(i).getSetId(), i);
+            }
+
+            this.sets = new ArrayList<>(this.liveSets.size());
+            CompressedIntBitmap allIds = new CompressedIntBitmap();
+            for(NestedSet<T> live : this.liveSets) {
+                SavedSet saved = SavedSet.of(live, snapshot.of(live), indexes);
+                if(saved.ids != null) {
+                    allIds = allIds.or(saved.ids);
+                }
+                this.sets.add(saved);
+            }
+
+            // The snapshot keeps every item it can see registered under its id until it is closed
+            NestedSetItemRegistry<T> registry = snapshot.registry();
+            this.values = new ArrayList<>(allIds.cardinality());
+            this.valueIds = new int[allIds.cardinality()];
+            for(int id = allIds.nextValue(0); id >= 0; id = allIds.nextValue(id + 1)) {
+                this.valueIds[this.values.size()] = id;
+                this.values.add(registry.itemWithId(id).getValue());
+            }
+        }
+    }
+
+    /*
+    Loading
+    Values are told apart by the given strategy, which should be the one the hierarchy was saved with.  Returns the
+        loaded sets in the order they were saved.
+     */
+
+    public static <T> List<NestedSet<T>> load(Path path, ValueCodec<? extends T> codec) throws IOException {
+        return load(path, codec, HashingStrategy.natural());
+    }
+
+    public static <T> List<NestedSet<T>> load(Path path, ValueCodec<? extends T> codec,
+                                              HashingStrategy<? super T> hashing) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if(length < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException(path + " is not a NestedSet file");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, length - TRAILER_SIZE, TRAILER_SIZE);
+            long dictionaryOffset = trailer.getLong();
+            long setsOffset = trailer.getLong();
+            if(header.getInt() != MAGIC || trailer.getInt() != MAGIC) {
+                throw new IOException(path + " is not a NestedSet file");
+            } else if(header.getInt() != VERSION) {
+                throw new IOException(path + " was written by an unsupported version");
+            } else if(length - TRAILER_SIZE - dictionaryOffset > Integer.MAX_VALUE) {
+                throw new IOException(path + " has more values than can be mapped at once");
+            }
+
+            // The dictionary and the sets are read in full, so are mapped together
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset,
+                    length - TRAILER_SIZE - dictionaryOffset);
+            index.position((int) (setsOffset - dictionaryOffset));
+            List<SavedSet> saved = new ArrayList<>();
+            boolean concurrent = false;
+            for(int i = index.getInt(); i > 0; i--) {
+                SavedSet savedSet = SavedSet.readFrom(index);
+                concurrent |= savedSet.storage == NestedSet.Storage.CONCURRENT;
+                saved.add(savedSet);
+            }
+
+            NestedSetItemRegistry<T> registry = new NestedSetItemRegistry<>(concurrent, hashing);
+            index.position(0);
+            for(int i = index.getInt(); i > 0; i--) {
+                int id = index.getInt();
+                if(registry.restore(codec.read(index), id) == null) {
+                    throw new IllegalArgumentException("The file holds values the HashingStrategy takes as the same");
+                }
+            }
+            registry.finishRestoring();
+
+            return restore(registry, saved, contentsOf(channel, saved, dictionaryOffset));
+        }
+    }
+
+    // Maps the contents in as few pieces as will do, each under 2GB, and hands each set a view of its own part.  The
+    //      mappings outlive the channel.
+    private static List<ByteBuffer> contentsOf(FileChannel channel, List<SavedSet> saved, long end) throws IOException {
+        List<ByteBuffer> contents = new ArrayList<>(saved.size());
+        ByteBuffer region = null;
+        long regionStart = 0;
+        for(SavedSet savedSet : saved) {
+            if(savedSet.offset < 0) {
+                contents.add(null);
+                continue;
+            }
+            if(region == null || savedSet.offset + savedSet.length - regionStart > region.capacity()) {
+                regionStart = savedSet.offset;
+                region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                        Math.min(Integer.MAX_VALUE, end - regionStart));
+            }
+            ByteBuffer own = region.duplicate();
+            own.limit((int) (savedSet.offset + savedSet.length - regionStart));
+            own.position((int) (savedSet.offset - regionStart));
+            contents.add(own);
+        }
+        return contents;
+    }
+
+    // Puts the sets back edges first, then their reachability, items and derivations, as NestedSet builds them
+    private static <T> List<NestedSet<T>> restore(NestedSetItemRegistry<T> registry, List<SavedSet> saved,
+                                                  List<ByteBuffer> contents) throws IOException {
+        List<NestedSet<T>> sets = new ArrayList<>(saved.size());
+        for(SavedSet savedSet : saved) {
+            sets.add(NestedSet.restore(registry, savedSet.storage));
+        }
+        for(int i = 0; i < saved.size(); i++) {
+            for(int parent : saved.get(i).parents) {
+                NestedSet.restoreLink(sets.get(parent), sets.get(i));
+            }
+        }
+        for(NestedSet<T> set : sets) {
+            set.restoreAncestors();
+        }
+
+        for(int i = 0; i < saved.size(); i++) {
+            SavedSet savedSet = saved.get(i);
+            NestedSet<T> set = sets.get(i);
+            if(!savedSet.isLazy()) {
+                set.restoreItems(contents.get(i), savedSet.size);
+            } else if(savedSet.derivedBy == null) {
+                throw new IOException("A lazy view was saved without its operands");
+            }
+        }
+        for(int i = 0; i < saved.size(); i++) {
+            SavedSet savedSet = saved.get(i);
+            NestedSet<T> set = sets.get(i);
+            if(savedSet.derivedBy != null) {
+                set.restoreDerivation(savedSet.derivedBy, sets.get(savedSet.left), sets.get(savedSet.right),
+                        savedSet.isLazy(), savedSet.isDiverged());
+            } else if(savedSet.combinedBy != null) {
+                List<NestedSet<T>> operands = new ArrayList<>(savedSet.operands.length);
+                for(int operand : savedSet.operands) {
+                    operands.add(sets.get(operand));
+                }
+                set.restoreOperands(savedSet.combinedBy, operands, savedSet.isDiverged());
+            }
+        }
+        return sets;
+    }
+
+    /*
+    One set's entry in the file.  Sets refer to each other by their index in the file.
+     */
+
+    private static final class SavedSet {
+        private static final int LAZY = 1;
+        private static final int DIVERGED = 2;
+        private static final LazyViewStore.Operation[] OPERATIONS = LazyViewStore.Operation.values();
+
+        private NestedSet.Storage storage;
+        private int flags;
+
+        // Where the set's bitmap lies in the file, or -1 for a lazy view, and how many items it holds
+        private long offset = -1;
+        private int length;
+        private int size;
+
+        private int[] parents;
+
+        // A pairwise union or intersection, and its two operands
+        private LazyViewStore.Operation derivedBy;
+        private int left;
+        private int right;
+
+        // An n-ary union or intersection, and its operands
+        private LazyViewStore.Operation combinedBy;
+        private int[] operands;
+
+        // Only while saving
+        private CompressedIntBitmap ids;
+
+        private static <T> SavedSet of(NestedSet<T> live, SnapshotSet<T> frozen, SetIdMap<Integer> indexes) {
+            SavedSet saved = new SavedSet();
+            saved.storage = live.storage();
+            saved.flags = live.isDiverged() ? DIVERGED : 0;
+            ItemStore<T> store = frozen.frozenStore();
+            if(store == null) {
+                saved.flags |= LAZY;
+            } else {
+                saved.ids = idsOf(PagedItemStore.pagedIn(store));
+                saved.length = saved.ids.serializedSize();
+                saved.size = store.size();
+            }
+
+            saved.parents = new int[frozen.getParents().size()];
+            int p = 0;
+            for(SnapshotSet<T> parent : frozen.getParents()) {
+                saved.parents[p++] = indexes.get(parent.setId());
+            }
+
+            LazyViewStore<T> derivation = live.derivation();
+            if(derivation != null) {
+                saved.derivedBy = derivation.operation();
+                saved.left = indexes.get(derivation.left().getSetId());
+                saved.right = indexes.get(derivation.right().getSetId());
+            } else if(live.operands() != null) {
+                saved.combinedBy = live.naryOperation();
+                saved.operands = new int[live.operands().size()];
+                for(int i = 0; i < saved.operands.length; i++) {
+                    saved.operands[i] = indexes.get(live.operands().get(i).getSetId());
+                }
+            }
+            return saved;
+        }
+
+        // A frozen bitmap store is already a copy of its own, so its bitmap is used as it is
+        private static <T> CompressedIntBitmap idsOf(ItemStore<T> store) {
+            if(store instanceof BitmapItemStore) {
+                return ((BitmapItemStore<T>) store).ids();
+            }
+            CompressedIntBitmap ids = new CompressedIntBitmap();
+            store.iterator().forEachRemaining(item -> ids.add(item.getId()));
+            return ids;
+        }
+
+        boolean isLazy() {
+            return (this.flags & LAZY) != 0;
+        }
+
+        boolean isDiverged() {
+            return (this.flags & DIVERGED) != 0;
+        }
+
+        // Storage and flags as a byte each, then the offset, length and size of the items unless lazy, the parents,
+        //      and the derivation: a byte that is 0 for none, 1 for a pairwise union and 2 for a pairwise intersection
+        //      (then both operands), or 3 for an n-ary union and 4 for an n-ary intersection (then the operands)
+        void writeTo(DataOutput out) throws IOException {
+            out.writeByte(this.storage.ordinal());
+            out.writeByte(this.flags);
+            if(!isLazy()) {
+                out.writeLong(this.offset);
+                out.writeInt(this.length);
+                out.writeInt(this.size);
+            }
+            writeIndexes(this.parents, out);
+
+            if(this.derivedBy != null) {
+                out.writeByte(1 + this.derivedBy.ordinal());
+                out.writeInt(this.left);
+                out.writeInt(this.right);
+            } else if(this.combinedBy != null) {
+                out.writeByte(1 + OPERATIONS.length + this.combinedBy.ordinal());
+                writeIndexes(this.operands, out);
+            } else {
+                out.writeByte(0);
+            }
+        }
+
+        static SavedSet readFrom(ByteBuffer in) {
+            SavedSet saved = new SavedSet();
+            saved.storage = NestedSet.Storage.values()[in.get()];
+            saved.flags = in.get();
+            if(!saved.isLazy()) {
+                saved.offset = in.getLong();
+                saved.length = in.getInt();
+                saved.size = in.getInt();
+            }
+            saved.parents = readIndexes(in);
+
+            int derivation = in.get();
+            if(derivation > OPERATIONS.length) {
+                saved.combinedBy = OPERATIONS[derivation - 1 - OPERATIONS.length];
+                saved.operands = readIndexes(in);
+            } else if(derivation > 0) {
+                saved.derivedBy = OPERATIONS[derivation - 1];
+                saved.left = in.getInt();
+                saved.right = in.getInt();
+            }
+            return saved;
+        }
+
+        private static void writeIndexes(int[] indexes, DataOutput out) throws IOException {
+            out.writeInt(indexes.length);
+            for(int index : indexes) {
+                out.writeInt(index);
+            }
+        }
+
+        private static int[] readIndexes(ByteBuffer in) {
+            int[] indexes = new int[in.getInt()];
+            for(int i = 0; i < indexes.length; i++) {
+                indexes[i] = in.getInt();
+            }
+            return indexes;
+        }
+    }
+}
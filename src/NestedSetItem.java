@@ -1,30 +1,49 @@
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * Created by brandon on 3/26/17.
  */
 public class NestedSetItem<T> {
-    private T value;
-    private Collection<NestedSet<T>> sets;
+    private final T value;
+
+    // Worked out once by the hierarchy's HashingStrategy, when the value is interned
+    private final int hash;
+    private final long fingerprint;
+
+    // Dense id handed out by the registry, which bitmap-backed sets store in place of the item itself
+    private int id;
+    private NestedSetItemRegistry<T> registry;
 
-    NestedSetItem(T value) {
+    NestedSetItem(T value, int hash, long fingerprint, int id, NestedSetItemRegistry<T> registry) {
         this.value = value;
-        this.sets = new HashSet<>();
+        this.hash = hash;
+        this.fingerprint = fingerprint;
+        this.id = id;
+        this.registry = registry;
     }
 
-    void addContainingSet(NestedSet<T> set) {
-        this.sets.add(set);
+    int getId() {
+        return id;
     }
 
-    void removeContainingSet(NestedSet<T> set) {
-        this.sets.remove(set);
+    void setId(int id) {
+        this.id = id;
+    }
+
+    void setRegistry(NestedSetItemRegistry<T> registry) {
+        this.registry = registry;
+    }
+
+    NestedSetItemRegistry<T> getRegistry() {
+        return registry;
     }
 
     public void removeFromAllSets() {
-        for (NestedSet<T> containingSet : this.sets) {
-            containingSet.remove(this);
+        HierarchyLock lock = this.registry.lockValue(this.value);
+        try {
+            this.registry.resolve().removeEverywhere(this);
+        } finally {
+            if (lock != null) {
+                lock.unlockValue(this.value);
+            }
         }
     }
 
@@ -32,13 +51,28 @@ public class NestedSetItem<T> {
         return value;
     }
 
+    long fingerprint() {
+        return this.fingerprint;
+    }
+
+    // Items are canonical within a hierarchy, so this only gets as far as the strategy when comparing items of
+    //      separate hierarchies, which are judged by this item's
     @Override
+    @SuppressWarnings("unchecked")
     public boolean equals(Object o) {
-        return (o instanceof NestedSetItem) && (this.value == ((NestedSetItem) o).value);
+        if(o == this) {
+            return true;
+        }
+        if(!(o instanceof NestedSetItem)) {
+            return false;
+        }
+        NestedSetItem<?> other = (NestedSetItem<?>) o;
+        return other.hash == this.hash
+                && this.registry.hashing().equivalent(this.value, (T) other.value);
     }
 
     @Override
     public int hashCode() {
-        return this.value.hashCode();
+        return this.hash;
     }
 }
@@ -0,0 +1,504 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out exactly one NestedSetItem per value for a whole hierarchy of NestedSets.
+ *
+ * Every set that is spawned from, unioned with or intersected with another set shares that set's registry, so
+ *      the item stored in any of them is the same object.
+ * The registry also keeps the roots of its hierarchy, the sets with no parents.  Every set is a subset of each of
+ *      its parents, so an item is held somewhere in the hierarchy exactly when some root holds it.  That is what
+ *      lets items go without a list of the sets containing them, which would cost a write per item whenever a set
+ *      is spawned.
+ * Each item also gets a dense int id, reused once the item is released, which bitmap-backed sets store instead
+ *      of the item.
+ * Finally, the registry keeps track of the hierarchy's open snapshots, and holds on to whatever they can still see.
+ */
+class NestedSetItemRegistry<T> {
+    private final HashingStrategy<? super T> hashing;
+    private ItemTable<T> items;
+    private ArrayList<NestedSetItem<T>> itemsById;
+    private int[] freeIds;
+    private int freeIdCount;
+
+    // When two hierarchies are joined (e.g. by a union of two unrelated sets), one registry is folded into the other
+    //      and forwards to it from then on.  Sets follow the forward lazily via resolve().
+    private volatile NestedSetItemRegistry<T> forwardedTo;
+
+    private Set<NestedSet<T>> roots;
+
+    // Bounds the materialized unions and intersections of this hierarchy
+    private DerivedSetCache<T> derivedSetCache;
+
+    // Removals whose fan-out to descendant sets is still to be done
+    private DeferredRemovals<T> deferredRemovals;
+
+    // Subscribers to what changes in this hierarchy's sets
+    private NestedSetChanges<T> changes;
+
+    // Only set for concurrent hierarchies, in which case every write holds this lock (items can be read without it)
+    private final HierarchyLock lock;
+
+    // Open snapshots, and the items that fell out of every set while they were open, by the version they fell out
+    //      at.  Both are guarded by this registry's monitor.
+    private Set<SnapshotReference> openSnapshots;
+    private Map<NestedSetItem<T>, Long> deferredReleases;
+    private volatile int openSnapshotCount;
+
+    // Concurrent stores keeping spans of versions for open snapshots
+    private Set<ConcurrentItemStore<T>> storesWithHistory;
+
+    NestedSetItemRegistry() {
+        this(false, HashingStrategy.natural());
+    }
+
+    NestedSetItemRegistry(boolean concurrent, HashingStrategy<? super T> hashing) {
+        this.hashing = hashing;
+        this.derivedSetCache = new DerivedSetCache<>();
+        this.deferredRemovals = new DeferredRemovals<>(this, concurrent);
+        this.changes = new NestedSetChanges<>();
+        this.roots = new HashSet<>();
+        this.lock = concurrent ? new HierarchyLock(hashing) : null;
+        this.items = new ItemTable<>(hashing);
+        this.itemsById = new ArrayList<>();
+        this.freeIds = new int[16];
+        this.freeIdCount = 0;
+        this.openSnapshots = new HashSet<>();
+        this.deferredReleases = new IdentityHashMap<>();
+        this.storesWithHistory = ConcurrentHashMap.newKeySet();
+    }
+
+    /*
+    Lookups by raw value.  Neither of these allocate a wrapper when the value is already known.
+     */
+
+    NestedSetItem<T> lookup(T value) {
+        return this.items.get(value);
+    }
+
+    NestedSetItem<T> intern(T value) {
+        int hash = this.hashing.hash(value);
+        NestedSetItem<T> item = this.items.get(value, hash);
+        if(item == null) {
+            item = registerNew(value, hash, this.hashing.fingerprint(value, hash));
+        }
+        return item;
+    }
+
+    NestedSetItem<T> itemWithId(int id) {
+        return id < this.itemsById.size() ? this.itemsById.get(id) : null;
+    }
+
+    /*
+    Items that no longer belong to any set are dropped, so the registry doesn't pin dead values forever
+     */
+
+    void releaseIfUnused(NestedSetItem<T> item) {
+        if(hasOpenSnapshots()) {
+            // A snapshot may still hold the item, and find it by value or by id, so it stays put for now
+            if(!isHeld(item) && this.items.get(item.getValue()) == item) {
+                deferRelease(item);
+            }
+        } else {
+            release(item);
+        }
+    }
+
+    private void release(NestedSetItem<T> item) {
+        if(!isHeld(item)) {
+            unregister(item);
+        }
+    }
+
+    synchronized int size() {
+        return this.items.size();
+    }
+
+    /*
+    Roots of the hierarchy.  A set starts out as a root and stops being one once it is linked below another.
+     */
+
+    void addRoot(NestedSet<T> set) {
+        this.roots.add(set);
+    }
+
+    void removeRoot(NestedSet<T> set) {
+        this.roots.remove(set);
+    }
+
+    Set<NestedSet<T>> roots() {
+        return this.roots;
+    }
+
+    boolean isHeld(NestedSetItem<T> item) {
+        for(NestedSet<T> root : this.roots) {
+            if(root.holds(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Removing an item from every root removes it from every set below them too
+    void removeEverywhere(NestedSetItem<T> item) {
+        this.deferredRemovals.settle(item);
+        for(NestedSet<T> root : new ArrayList<>(this.roots)) {
+            if(root.holds(item)) {
+                root.removeSetItem(item);
+            }
+        }
+        releaseIfUnused(item);
+    }
+
+    HashingStrategy<? super T> hashing() {
+        return this.hashing;
+    }
+
+    HierarchyLock lock() {
+        return this.lock;
+    }
+
+    boolean isConcurrent() {
+        return this.lock != null;
+    }
+
+    // Takes the value lock of the hierarchy this registry now belongs to, returning null if it isn't concurrent.
+    // If the hierarchy gets joined onto another while waiting, the lock no longer covers it, so try again.
+    HierarchyLock lockValue(T value) {
+        while(true) {
+            NestedSetItemRegistry<T> current = resolve();
+            if(current.lock == null) {
+                return null;
+            }
+
+            current.lock.lockValue(value);
+            if(current.isCurrent()) {
+                return current.lock;
+            }
+            current.lock.unlockValue(value);
+        }
+    }
+
+    DerivedSetCache<T> derivedSetCache() {
+        return this.derivedSetCache;
+    }
+
+    DeferredRemovals<T> deferredRemovals() {
+        return this.deferredRemovals;
+    }
+
+    NestedSetChanges<T> changes() {
+        return this.changes;
+    }
+
+    /*
+    Item registration and dense id allocation
+    Registering and unregistering are synchronized since, in a concurrent hierarchy, writers of values in different
+        lock stripes may intern and release items at the same time.  The helpers below them expect the monitor held.
+     */
+
+    private synchronized NestedSetItem<T> registerNew(T value, int hash, long fingerprint) {
+        NestedSetItem<T> item = new NestedSetItem<>(value, hash, fingerprint, nextId(), this);
+        register(item);
+        return item;
+    }
+
+    // Takes on an item of a registry being absorbed, under a fresh id
+    private synchronized void registerAbsorbed(NestedSetItem<T> item) {
+        item.setId(nextId());
+        item.setRegistry(this);
+        register(item);
+    }
+
+    // Only unregisters the item if it is still the one registered for its value
+    private synchronized void unregister(NestedSetItem<T> item) {
+        if(this.items.remove(item)) {
+            releaseId(item.getId());
+        }
+    }
+
+    private int nextId() {
+        if(this.freeIdCount > 0) {
+            return this.freeIds[--this.freeIdCount];
+        }
+        this.itemsById.add(null);
+        return this.itemsById.size() - 1;
+    }
+
+    private void releaseId(int id) {
+        this.itemsById.set(id, null);
+        if(this.freeIdCount == this.freeIds.length) {
+            this.freeIds = Arrays.copyOf(this.freeIds, this.freeIds.length * 2);
+        }
+        this.freeIds[this.freeIdCount++] = id;
+    }
+
+    private void register(NestedSetItem<T> item) {
+        this.items.put(item);
+        this.itemsById.set(item.getId(), item);
+    }
+
+    /*
+    Restoring a hierarchy from a NestedSetFile
+    Each value gets back the id it was saved under, so the saved bitmaps of ids can be read as they are.  Ids in
+        between that no value was saved under are handed out again once restoring is done.
+     */
+
+    // Returns null, registering nothing, if an item equivalent to the value has already been restored
+    synchronized NestedSetItem<T> restore(T value, int id) {
+        int hash = this.hashing.hash(value);
+        if(this.items.get(value, hash) != null) {
+            return null;
+        }
+        while(this.itemsById.size() <= id) {
+            this.itemsById.add(null);
+        }
+        NestedSetItem<T> item = new NestedSetItem<>(value, hash, this.hashing.fingerprint(value, hash), id, this);
+        register(item);
+        return item;
+    }
+
+    // Frees the unused ids, lowest first to be handed out
+    synchronized void finishRestoring() {
+        for(int id = this.itemsById.size() - 1; id >= 0; id--) {
+            if(this.itemsById.get(id) == null) {
+                releaseId(id);
+            }
+        }
+    }
+
+    /*
+    Snapshots (see NestedSetSnapshot)
+    Versions come from one clock shared by every hierarchy.  Writes are stamped with the clock as it stands, and
+        taking a snapshot moves the clock on while holding the hierarchy exclusively, so every write is stamped either
+        no later than a snapshot's version, and seen by it, or later, and not.
+    While a snapshot is open nothing it could see is thrown away: an item that falls out of every set keeps its id
+        and stays registered, and concurrent stores keep the spans of versions their items were held for.  Both are
+        reclaimed once every snapshot that could see them has been closed or garbage collected.
+     */
+
+    private static final AtomicLong CLOCK = new AtomicLong();
+    private static final ReferenceQueue<NestedSetSnapshot<?>> COLLECTED_SNAPSHOTS = new ReferenceQueue<>();
+
+    // Held by an open snapshot, and by its registry until the snapshot is closed or collected
+    static final class SnapshotReference extends WeakReference<NestedSetSnapshot<?>> {
+        private final long version;
+        private final NestedSetItemRegistry<?> registry;
+
+        private SnapshotReference(NestedSetSnapshot<?> snapshot, long version, NestedSetItemRegistry<?> registry) {
+            super(snapshot, COLLECTED_SNAPSHOTS);
+            this.version = version;
+            this.registry = registry;
+        }
+
+        void close() {
+            this.registry.forget(this);
+            this.registry.reclaimSnapshots();
+        }
+    }
+
+    long writeVersion() {
+        return CLOCK.get();
+    }
+
+    boolean hasOpenSnapshots() {
+        return this.openSnapshotCount > 0;
+    }
+
+    // Called holding the hierarchy exclusively, before anything is frozen
+    static long nextSnapshotVersion() {
+        return CLOCK.getAndIncrement();
+    }
+
+    synchronized SnapshotReference openSnapshot(NestedSetSnapshot<T> snapshot) {
+        SnapshotReference reference = new SnapshotReference(snapshot, snapshot.version(), this);
+        this.openSnapshots.add(reference);
+        this.openSnapshotCount = this.openSnapshots.size();
+        return reference;
+    }
+
+    private synchronized void forget(SnapshotReference reference) {
+        this.openSnapshots.remove(reference);
+        this.openSnapshotCount = this.openSnapshots.size();
+    }
+
+    private synchronized void deferRelease(NestedSetItem<T> item) {
+        this.deferredReleases.put(item, writeVersion());
+    }
+
+    void keepHistoryOf(ConcurrentItemStore<T> store) {
+        this.storesWithHistory.add(store);
+    }
+
+    // Forgets snapshots that were collected without being closed, then frees whatever no open snapshot can see.  A
+    //      release made at version v could only be seen by snapshots older than v.
+    void reclaimSnapshots() {
+        for(Reference<?> collected; (collected = COLLECTED_SNAPSHOTS.poll()) != null; ) {
+            ((SnapshotReference) collected).registry.forget((SnapshotReference) collected);
+        }
+
+        long oldest;
+        List<NestedSetItem<T>> releasable = new ArrayList<>();
+        synchronized(this) {
+            oldest = Long.MAX_VALUE;
+            for(SnapshotReference reference : this.openSnapshots) {
+                oldest = Math.min(oldest, reference.version);
+            }
+
+            for(Iterator<Map.Entry<NestedSetItem<T>, Long>> deferred = this.deferredReleases.entrySet().iterator();
+                deferred.hasNext(); ) {
+                Map.Entry<NestedSetItem<T>, Long> entry = deferred.next();
+                if(entry.getValue() <= oldest) {
+                    releasable.add(entry.getKey());
+                    deferred.remove();
+                }
+            }
+        }
+
+        for(ConcurrentItemStore<T> store : this.storesWithHistory) {
+            if(store.purge(oldest)) {
+                this.storesWithHistory.remove(store);
+
+                // A writer may have started new history in the store in the meantime
+                if(store.hasHistory()) {
+                    this.storesWithHistory.add(store);
+                }
+            }
+        }
+
+        // Released outside the monitor, since writers defer releases while holding value locks
+        for(NestedSetItem<T> item : releasable) {
+            HierarchyLock lock = lockValue(item.getValue());
+            try {
+                if(isCurrent()) {
+                    release(item);
+                }
+            } finally {
+                if(lock != null) {
+                    lock.unlockValue(item.getValue());
+                }
+            }
+        }
+    }
+
+    // Hands each open snapshot its own copy of what it can see, so it no longer depends on this registry, and frees
+    //      everything that was kept for them.  Returns whether there were any.
+    private boolean detachSnapshots() {
+        List<NestedSetSnapshot<?>> detaching = new ArrayList<>();
+        synchronized(this) {
+            for(SnapshotReference reference : this.openSnapshots) {
+                NestedSetSnapshot<?> snapshot = reference.get();
+                if(snapshot != null) {
+                    detaching.add(snapshot);
+                }
+            }
+            this.openSnapshots.clear();
+            this.openSnapshotCount = 0;
+        }
+
+        for(NestedSetSnapshot<?> snapshot : detaching) {
+            snapshot.detach();
+        }
+        reclaimSnapshots();
+        return !detaching.isEmpty();
+    }
+
+    /*
+    Registry merging and forwarding
+     */
+
+    boolean isCurrent() {
+        return this.forwardedTo == null;
+    }
+
+    NestedSetItemRegistry<T> resolve() {
+        NestedSetItemRegistry<T> registry = this;
+        while(registry.forwardedTo != null) {
+            registry = registry.forwardedTo;
+        }
+        return registry;
+    }
+
+    // Joins the hierarchies of this registry and other, returning the registry they now share.  Whichever holds fewer
+    //      items is folded into the other, since every set of the folded hierarchy is reloaded, so the cost goes by
+    //      the smaller hierarchy whichever side the join was asked for from.  The larger hierarchy's derived set cache
+    //      and deferred removal settings carry on.
+    NestedSetItemRegistry<T> join(NestedSetItemRegistry<T> other) {
+        if(other == this) {
+            return this;
+        } else if(other.size() > this.size()) {
+            other.absorb(this);
+            return other;
+        }
+        this.absorb(other);
+        return this;
+    }
+
+    // Folds other into this registry.  Items of other are either adopted under a fresh id or, where this registry
+    //      already holds an item for the same value, replaced by that canonical item.  Every set in other's hierarchy
+    //      then has its contents reloaded, since both the ids and the item objects may have changed.
+    private void absorb(NestedSetItemRegistry<T> other) {
+        if(other == this) {
+            return;
+        }
+
+        // Tombstones name items of both registries, and the sets they were removed from
+        this.deferredRemovals.flush();
+        other.deferredRemovals.flush();
+
+        // Other's open snapshots would go on resolving other's items and ids, which are about to change
+        boolean hadSnapshots = other.detachSnapshots();
+
+        // Snapshot the contents of the affected sets while other's ids still resolve.  Lazy views hold nothing of
+        //      their own, so are left out.
+        Map<NestedSet<T>, List<NestedSetItem<T>>> contents = new HashMap<>();
+        for(NestedSet<T> root : other.roots) {
+            for(NestedSet<T> set : root.selfAndDescendants()) {
+                if(set.isMaterialized()) {
+                    contents.computeIfAbsent(set, s -> new ArrayList<>(s));
+                }
+            }
+        }
+
+        Map<NestedSetItem<T>, NestedSetItem<T>> replacements = new IdentityHashMap<>();
+        for(NestedSetItem<T> item : other.items.items()) {
+            NestedSetItem<T> canonical = this.items.get(item.getValue(), item.hashCode());
+            if(canonical == null) {
+                registerAbsorbed(item);
+            } else {
+                replacements.put(item, canonical);
+            }
+        }
+
+        // Readers of a snapshot that was detached above may still be part way through a lookup
+        if(!hadSnapshots) {
+            other.items = null;
+            other.itemsById = null;
+        }
+        this.roots.addAll(other.roots);
+        other.roots = null;
+        other.forwardedTo = this;
+        this.derivedSetCache.absorb(other.derivedSetCache);
+        other.derivedSetCache = null;
+        this.changes.absorb(other.changes);
+        other.changes = null;
+
+        for(Map.Entry<NestedSet<T>, List<NestedSetItem<T>>> entry : contents.entrySet()) {
+            List<NestedSetItem<T>> setContents = entry.getValue();
+            setContents.replaceAll(item -> replacements.getOrDefault(item, item));
+            entry.getKey().reloadItems(setContents);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One partition of a PartitionedNestedSet: a hierarchy of sets holding the values that hash to it.
+ *
+ * Sets are named by ids the shard hands out, in the order it creates them.  Every shard of a partition is sent the
+ *      same changes to the shape of the hierarchy in the same order, and the shape of the result of an operation
+ *      never depends on the values held, so all of them hand out the same id for the same set.  A union or
+ *      intersection that already exists (see NestedSet.unionWith) comes back under the id it already had.
+ * Every call returns a future, so that a shard living in another process can answer asynchronously; each call is
+ *      applied in the order it was made.
+ */
+public interface NestedSetShard<T> {
+    /*
+    Changes to the shape of the hierarchy, returning the id of the resulting set
+     */
+
+    CompletableFuture<Integer> newSet();
+
+    CompletableFuture<Integer> spawnChild(int set);
+
+    CompletableFuture<Integer> spawnParent(int set);
+
+    CompletableFuture<Integer> unionWith(int set, int other);
+
+    CompletableFuture<Integer> intersectionWith(int set, int other);
+
+    /*
+    Values, which a partition only sends to the shard they hash to
+     */
+
+    CompletableFuture<Boolean> addItem(int set, T value);
+
+    CompletableFuture<Boolean> removeItem(int set, T value);
+
+    CompletableFuture<Boolean> addAllItems(int set, Collection<T> values);
+
+    CompletableFuture<Boolean> removeAllItems(int set, Collection<T> values);
+
+    CompletableFuture<Boolean> containsItem(int set, T value);
+
+    /*
+    Reads of a set's part in this shard
+     */
+
+    CompletableFuture<Integer> size(int set);
+
+    CompletableFuture<Set<T>> getValues(int set);
+
+    CompletableFuture<Boolean> isChildOf(int set, int other);
+
+    void close();
+}
@@ -0,0 +1,93 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable view of a whole hierarchy of NestedSets as it stood at one version: every set's items, and every
+ *      parent/child relation between them.
+ *
+ * Taking a snapshot holds the hierarchy only long enough to freeze each set, which costs the same however many
+ *      items the sets hold.  Hash and bitmap stores are copy-on-write, so a frozen copy shares everything with the
+ *      live set until that set is next written to, and concurrent stores are read back as of the snapshot's version.
+ * Once taken, a snapshot never changes and never locks.  In a concurrent hierarchy it can be read from any thread
+ *      while writers carry on; in any other hierarchy it is only as thread-safe as the sets themselves, since values
+ *      are still looked up through the hierarchy's registry.
+ * Close a snapshot once done with it.  Until then the hierarchy keeps whatever the snapshot can still see, and a
+ *      snapshot that is dropped without being closed is only let go of once it has been garbage collected.
+ */
+public class NestedSetSnapshot<T> implements AutoCloseable {
+    private final NestedSetItemRegistry<T> registry;
+    private final long version;
+    private final Map<NestedSet<T>, SnapshotSet<T>> sets;
+    private NestedSetItemRegistry.SnapshotReference reference;
+
+    // Called holding the hierarchy exclusively
+    static <T> NestedSetSnapshot<T> take(NestedSetItemRegistry<T> registry) {
+        NestedSetSnapshot<T> snapshot = new NestedSetSnapshot<>(registry, NestedSetItemRegistry.nextSnapshotVersion());
+        snapshot.reference = registry.openSnapshot(snapshot);
+        return snapshot;
+    }
+
+    private NestedSetSnapshot(NestedSetItemRegistry<T> registry, long version) {
+        this.registry = registry;
+        this.version = version;
+
+        // Freeze every set first, so relations can then be pointed at the frozen sets
+        Map<NestedSet<T>, SnapshotSet<T>> frozen = new HashMap<>();
+        for(NestedSet<T> root : registry.roots()) {
+            for(NestedSet<T> set : root.selfAndDescendants()) {
+                if(!frozen.containsKey(set)) {
+                    frozen.put(set, set.freeze(this));
+                }
+            }
+        }
+        for(Map.Entry<NestedSet<T>, SnapshotSet<T>> entry : frozen.entrySet()) {
+            entry.getKey().linkFrozen(entry.getValue(), frozen);
+        }
+        this.sets = frozen;
+    }
+
+    public long version() {
+        return this.version;
+    }
+
+    // The given set as it stood when this snapshot was taken
+    public SnapshotSet<T> of(NestedSet<T> set) {
+        SnapshotSet<T> frozen = this.sets.get(set);
+        if(frozen == null) {
+            throw new IllegalArgumentException("That NestedSet was not part of this hierarchy when the snapshot was taken");
+        }
+        return frozen;
+    }
+
+    public Collection<SnapshotSet<T>> sets() {
+        return Collections.unmodifiableCollection(this.sets.values());
+    }
+
+    @Override
+    public void close() {
+        this.reference.close();
+    }
+
+    NestedSetItemRegistry<T> registry() {
+        return this.registry;
+    }
+
+    // The live sets that were frozen
+    Collection<NestedSet<T>> frozenSets() {
+        return Collections.unmodifiableCollection(this.sets.keySet());
+    }
+
+    // Called when the hierarchy is joined onto another, after which the registry's items and ids no longer match
+    //      what was frozen.  Every set takes a plain copy of its values first, then switches over to it.
+    void detach() {
+        Map<SnapshotSet<T>, Collection<T>> values = new HashMap<>();
+        for(SnapshotSet<T> set : this.sets.values()) {
+            values.put(set, set.getValues());
+        }
+        for(Map.Entry<SnapshotSet<T>, Collection<T>> entry : values.entrySet()) {
+            entry.getKey().detach(entry.getValue());
+        }
+    }
+}
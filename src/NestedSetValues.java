@@ -0,0 +1,119 @@
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * A read-only view of the values in a NestedSet, which reads through to the set rather than copying it.
+ *
+ * Streams over the view split the way the set's store does, so a parallel stream over a large set spreads across
+ *      fork-join workers without the values ever being gathered up first.
+ * Values whose removal from the set is still pending (see DeferredRemovals) are skipped, as containsItem skips them.
+ */
+class NestedSetValues<T> extends AbstractSet<T> {
+    private final NestedSet<T> set;
+
+    NestedSetValues(NestedSet<T> set) {
+        this.set = set;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) {
+        return o != null && this.set.containsItem((T) o);
+    }
+
+    @Override
+    public int size() {
+        return this.set.settledSize();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        Iterator<NestedSetItem<T>> items = this.set.iterator();
+        if(this.set.hasPendingRemovals()) {
+            Spliterator<T> values = new ValueSpliterator<>(Spliterators.spliteratorUnknownSize(items, 0), this.set);
+            return Spliterators.iterator(values);
+        }
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return items.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return items.next().getValue();
+            }
+        };
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        return new ValueSpliterator<>(this.set.spliterator(), this.set.hasPendingRemovals() ? this.set : null);
+    }
+
+    private static final class ValueSpliterator<T> implements Spliterator<T> {
+        private final Spliterator<NestedSetItem<T>> items;
+
+        // Only set while removals are pending, in which case items they hide are skipped
+        private final NestedSet<T> filter;
+
+        ValueSpliterator(Spliterator<NestedSetItem<T>> items, NestedSet<T> filter) {
+            this.items = items;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if(this.filter == null) {
+                return this.items.tryAdvance(item -> action.accept(item.getValue()));
+            }
+
+            boolean[] accepted = new boolean[1];
+            do {
+                if(!this.items.tryAdvance(item -> {
+                    if(!this.filter.removalPending(item)) {
+                        action.accept(item.getValue());
+                        accepted[0] = true;
+                    }
+                })) {
+                    return false;
+                }
+            } while(!accepted[0]);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            this.items.forEachRemaining(item -> {
+                if(this.filter == null || !this.filter.removalPending(item)) {
+                    action.accept(item.getValue());
+                }
+            });
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<NestedSetItem<T>> prefix = this.items.trySplit();
+            return prefix == null ? null : new ValueSpliterator<>(prefix, this.filter);
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.items.estimateSize();
+        }
+
+        // Each value has exactly one item, so values are as distinct as the items.  Skipping values leaves the
+        //      estimate as an upper bound only.
+        @Override
+        public int characteristics() {
+            int characteristics = this.items.characteristics() & ~Spliterator.SORTED;
+            if(this.filter != null) {
+                characteristics &= ~(Spliterator.SIZED | Spliterator.SUBSIZED);
+            }
+            return characteristics;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+
+/**
+ * The store of a set loaded from a NestedSetFile, for as long as its items are still only in the file.
+ *
+ * It holds no more than where the set's bitmap of item ids lies in the mapped file, and how many items that is, so
+ *      its size is known without reading anything.  Anything else reads the bitmap into a store of the set's own
+ *      kind, swaps that in as the owner's store, and is passed on to it.  A set that is never read never costs more
+ *      than this, and the operating system only pages in the parts of the file that are actually read.
+ * Copying a store that hasn't been read yet makes another store over the same bytes, since they never change.
+ */
+class PagedItemStore<T> implements ItemStore<T> {
+    private final NestedSet<T> owner;
+
+    // An empty store of the kind this one is read into
+    private final ItemStore<T> template;
+
+    private final ByteBuffer contents;
+    private final int size;
+    private volatile ItemStore<T> loaded;
+
+    PagedItemStore(NestedSet<T> owner, ItemStore<T> template, ByteBuffer contents, int size) {
+        this.owner = owner;
+        this.template = template;
+        this.contents = contents;
+        this.size = size;
+    }
+
+    // The store that actually holds the items of the given one
+    static <T> ItemStore<T> pagedIn(ItemStore<T> store) {
+        return store instanceof PagedItemStore ? ((PagedItemStore<T>) store).loaded() : store;
+    }
+
+    // Synchronized, so readers of a freshly loaded set can't both read it in.  Once the owner has swapped in the
+    //      loaded store, only holders of this one come through here.
+    synchronized ItemStore<T> loaded() {
+        if(this.loaded == null) {
+            this.loaded = read();
+            this.owner.pagedIn(this, this.loaded);
+        }
+        return this.loaded;
+    }
+
+    private ItemStore<T> read() {
+        CompressedIntBitmap ids = CompressedIntBitmap.readFrom(this.contents.duplicate());
+        if(this.template instanceof BitmapItemStore) {
+            return new BitmapItemStore<>(this.owner, ids);
+        }
+
+        NestedSetItemRegistry<T> registry = this.owner.registry();
+        List<NestedSetItem<T>> items = new ArrayList<>(this.size);
+        for(int id = ids.nextValue(0); id >= 0; id = ids.nextValue(id + 1)) {
+            items.add(registry.itemWithId(id));
+        }
+        ItemStore<T> store = this.template.emptyStore(this.owner);
+        store.addAll(items);
+        return store;
+    }
+
+    @Override
+    public boolean add(NestedSetItem<T> item) {
+        return loaded().add(item);
+    }
+
+    @Override
+    public boolean remove(NestedSetItem<T> item) {
+        return loaded().remove(item);
+    }
+
+    @Override
+    public boolean contains(NestedSetItem<T> item) {
+        return loaded().contains(item);
+    }
+
+    @Override
+    public int size() {
+        ItemStore<T> current = this.loaded;
+        return current == null ? this.size : current.size();
+    }
+
+    @Override
+    public Iterator<NestedSetItem<T>> iterator() {
+        return loaded().iterator();
+    }
+
+    @Override
+    public Spliterator<NestedSetItem<T>> spliterator() {
+        return loaded().spliterator();
+    }
+
+    @Override
+    public List<NestedSetItem<T>> addAll(Collection<NestedSetItem<T>> items) {
+        return loaded().addAll(items);
+    }
+
+    @Override
+    public List<NestedSetItem<T>> removeAll(Collection<NestedSetItem<T>> items) {
+        return loaded().removeAll(items);
+    }
+
+    @Override
+    public ItemStore<T> emptyStore(NestedSet<T> owner) {
+        return this.template.emptyStore(owner);
+    }
+
+    @Override
+    public ItemStore<T> copy(NestedSet<T> owner) {
+        ItemStore<T> current = this.loaded;
+        return current == null ? new PagedItemStore<>(owner, this.template, this.contents, this.size)
+                : current.copy(owner);
+    }
+
+    @Override
+    public ItemStore<T> union(ItemStore<T> other, NestedSet<T> owner) {
+        return loaded().union(pagedIn(other), owner);
+    }
+
+    @Override
+    public ItemStore<T> intersection(ItemStore<T> other, NestedSet<T> owner) {
+        return loaded().intersection(pagedIn(other), owner);
+    }
+
+    @Override
+    public ItemStore<T> snapshot(NestedSet<T> owner, long version) {
+        ItemStore<T> current = this.loaded;
+        return current == null ? copy(owner) : current.snapshot(owner, version);
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Decides when unions and intersections are built across fork-join workers rather than on the calling thread.
+ *
+ * Stores build in parallel once their operands hold at least the threshold between them, each along its own
+ *      layout: bitmaps combine ranges of containers as separate tasks, and hash and concurrent stores split their
+ *      operands along the operands' spliterators.  Lazy views are never read in parallel, since reading one counts
+ *      towards materializing it.
+ */
+final class ParallelBuild {
+    static final int DEFAULT_THRESHOLD = 1 << 17;
+
+    private static volatile int threshold = DEFAULT_THRESHOLD;
+
+    private ParallelBuild() {
+    }
+
+    static int threshold() {
+        return threshold;
+    }
+
+    static void setThreshold(int newThreshold) {
+        if(newThreshold < 0) {
+            throw new IllegalArgumentException("The parallel build threshold can't be negative");
+        }
+        threshold = newThreshold;
+    }
+
+    static <T> boolean appliesTo(ItemStore<T> first, ItemStore<T> second) {
+        return !(first instanceof LazyViewStore) && !(second instanceof LazyViewStore)
+                && (long) first.size() + second.size() >= threshold;
+    }
+
+    static <T> Stream<NestedSetItem<T>> items(ItemStore<T> store, boolean parallel) {
+        return StreamSupport.stream(store.spliterator(), parallel);
+    }
+}
@@ -0,0 +1,274 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A NestedSet whose values are split by hash across several shards, each holding a hierarchy of the same shape.
+ *
+ * Every set of a partitioned hierarchy has a part in each shard, under the same id (see NestedSetShard).  A value
+ *      only ever lives in the shard it hashes to, so adds and removes go to that shard alone, and propagate to
+ *      relatives there just as they would in a single NestedSet.  Changes to the shape of the hierarchy, and reads
+ *      of a whole set, are sent to every shard at once and their answers merged.
+ * Shards work through their calls independently, so writes to values of different shards run in parallel.  Changes
+ *      to the shape are made one at a time across the whole partition, which keeps every shard handing out the same
+ *      ids.
+ * Sets of one partition can only be combined with each other.
+ */
+public class PartitionedNestedSet<T> {
+    private final List<NestedSetShard<T>> shards;
+    private final HashingStrategy<? super T> hashing;
+    private final int setId;
+
+    public PartitionedNestedSet(int shardCount) {
+        this(shardCount, NestedSet.Storage.HASH);
+    }
+
+    public PartitionedNestedSet(int shardCount, NestedSet.Storage storage) {
+        this(shardCount, storage, HashingStrategy.natural());
+    }
+
+    public PartitionedNestedSet(int shardCount, NestedSet.Storage storage, HashingStrategy<? super T> hashing) {
+        this(localShards(shardCount, storage, hashing), hashing);
+    }
+
+    public PartitionedNestedSet(List<? extends NestedSetShard<T>> shards) {
+        this(shards, HashingStrategy.natural());
+    }
+
+    // Values are routed by the given strategy's hash, which should be the one the shards' sets tell values apart by
+    public PartitionedNestedSet(List<? extends NestedSetShard<T>> shards, HashingStrategy<? super T> hashing) {
+        if(shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.hashing = hashing;
+        this.setId = changeShape(NestedSetShard::newSet);
+    }
+
+    private PartitionedNestedSet(List<NestedSetShard<T>> shards, HashingStrategy<? super T> hashing, int setId) {
+        this.shards = shards;
+        this.hashing = hashing;
+        this.setId = setId;
+    }
+
+    private static <T> List<NestedSetShard<T>> localShards(int shardCount, NestedSet.Storage storage,
+                                                           HashingStrategy<? super T> hashing) {
+        if(shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        List<NestedSetShard<T>> shards = new ArrayList<>(shardCount);
+        for(int i = 0; i < shardCount; i++) {
+            shards.add(new LocalNestedSetShard<>(storage, hashing));
+        }
+        return shards;
+    }
+
+    /*
+    Changes to the shape of the hierarchy, made in every shard at once
+     */
+
+    // A new, empty set on the same shards, in a hierarchy of its own until it is combined with another set
+    public PartitionedNestedSet<T> newSet() {
+        return sameShards(changeShape(NestedSetShard::newSet));
+    }
+
+    public PartitionedNestedSet<T> spawnChild() {
+        return sameShards(changeShape(shard -> shard.spawnChild(this.setId)));
+    }
+
+    public PartitionedNestedSet<T> spawnParent() {
+        return sameShards(changeShape(shard -> shard.spawnParent(this.setId)));
+    }
+
+    public PartitionedNestedSet<T> unionWith(PartitionedNestedSet<T> other) {
+        checkSamePartition(other);
+        return sameShards(changeShape(shard -> shard.unionWith(this.setId, other.setId)));
+    }
+
+    public PartitionedNestedSet<T> intersectionWith(PartitionedNestedSet<T> other) {
+        checkSamePartition(other);
+        return sameShards(changeShape(shard -> shard.intersectionWith(this.setId, other.setId)));
+    }
+
+    private PartitionedNestedSet<T> sameShards(int setId) {
+        return new PartitionedNestedSet<>(this.shards, this.hashing, setId);
+    }
+
+    // Sends a change to every shard, returning the id they all agree the resulting set has
+    private int changeShape(Function<NestedSetShard<T>, CompletableFuture<Integer>> change) {
+        synchronized (this.shards) {
+            List<CompletableFuture<Integer>> answers = new ArrayList<>(this.shards.size());
+            for(NestedSetShard<T> shard : this.shards) {
+                answers.add(change.apply(shard));
+            }
+
+            int id = await(answers.get(0));
+            for(CompletableFuture<Integer> answer : answers) {
+                if(await(answer) != id) {
+                    throw new IllegalStateException("Shards disagree on the shape of the hierarchy");
+                }
+            }
+            return id;
+        }
+    }
+
+    private void checkSamePartition(PartitionedNestedSet<T> other) {
+        if(other.shards != this.shards) {
+            throw new IllegalArgumentException("PartitionedNestedSets can only be combined within one partition");
+        }
+    }
+
+    /*
+    Values, each routed to the shard it hashes to
+     */
+
+    public boolean addItem(T value) {
+        return await(shardFor(value).addItem(this.setId, value));
+    }
+
+    public boolean removeItem(T value) {
+        return await(shardFor(value).removeItem(this.setId, value));
+    }
+
+    public boolean containsItem(T value) {
+        return await(shardFor(value).containsItem(this.setId, value));
+    }
+
+    public boolean addAllItems(Collection<? extends T> values) {
+        return anyOf(routeAll(values, (shard, part) -> shard.addAllItems(this.setId, part)));
+    }
+
+    public boolean removeAllItems(Collection<? extends T> values) {
+        return anyOf(routeAll(values, (shard, part) -> shard.removeAllItems(this.setId, part)));
+    }
+
+    // Splits values by shard, and sends each shard its part of them
+    private List<CompletableFuture<Boolean>> routeAll(Collection<? extends T> values,
+                                                      BiFunction<NestedSetShard<T>, Collection<T>,
+                                                              CompletableFuture<Boolean>> call) {
+        List<List<T>> parts = new ArrayList<>(this.shards.size());
+        for(int i = 0; i < this.shards.size(); i++) {
+            parts.add(new ArrayList<>());
+        }
+        for(T value : values) {
+            parts.get(shardIndex(value)).add(value);
+        }
+
+        List<CompletableFuture<Boolean>> answers = new ArrayList<>();
+        for(int i = 0; i < this.shards.size(); i++) {
+            if(!parts.get(i).isEmpty()) {
+                answers.add(call.apply(this.shards.get(i), parts.get(i)));
+            }
+        }
+        return answers;
+    }
+
+    private static boolean anyOf(List<CompletableFuture<Boolean>> answers) {
+        boolean any = false;
+        for(CompletableFuture<Boolean> answer : answers) {
+            any |= await(answer);
+        }
+        return any;
+    }
+
+    /*
+    Reads of the whole set, gathered from every shard at once
+     */
+
+    public int size() {
+        List<CompletableFuture<Integer>> sizes = new ArrayList<>(this.shards.size());
+        for(NestedSetShard<T> shard : this.shards) {
+            sizes.add(shard.size(this.setId));
+        }
+
+        int size = 0;
+        for(CompletableFuture<Integer> part : sizes) {
+            size += await(part);
+        }
+        return size;
+    }
+
+    public HashSet<T> getValues() {
+        List<CompletableFuture<Set<T>>> parts = new ArrayList<>(this.shards.size());
+        for(NestedSetShard<T> shard : this.shards) {
+            parts.add(shard.getValues(this.setId));
+        }
+
+        HashSet<T> values = new HashSet<>();
+        for(CompletableFuture<Set<T>> part : parts) {
+            values.addAll(await(part));
+        }
+        return values;
+    }
+
+    // Every shard has the same shape, so any one of them can answer
+    public boolean isChildOf(PartitionedNestedSet<T> other) {
+        return other.shards == this.shards && await(this.shards.get(0).isChildOf(this.setId, other.setId));
+    }
+
+    public boolean isParentOf(PartitionedNestedSet<T> other) {
+        return other.isChildOf(this);
+    }
+
+    public int shardCount() {
+        return this.shards.size();
+    }
+
+    // Closes every shard, which leaves every set of this partition unusable
+    public void close() {
+        for(NestedSetShard<T> shard : this.shards) {
+            shard.close();
+        }
+    }
+
+    /*
+    Routing
+     */
+
+    private NestedSetShard<T> shardFor(T value) {
+        return this.shards.get(shardIndex(value));
+    }
+
+    private int shardIndex(T value) {
+        int hash = this.hashing.hash(value);
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, this.shards.size());
+    }
+
+    // Rethrows what a shard threw, rather than the CompletionException wrapping it
+    private static <R> R await(CompletableFuture<R> answer) {
+        try {
+            return answer.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /*
+    Identity, as for NestedSet: two handles are equal when they name the same set of the same partition
+     */
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof PartitionedNestedSet)) {
+            return false;
+        }
+        PartitionedNestedSet<?> other = (PartitionedNestedSet<?>) o;
+        return (Object) other.shards == this.shards && other.setId == this.setId;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this.shards) * 31 + this.setId;
+    }
+}
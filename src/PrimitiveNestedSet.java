@@ -0,0 +1,231 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The hierarchy shared by the primitive specializations of NestedSet, IntNestedSet and LongNestedSet.
+ *
+ * This follows NestedSet: only immediate edges are kept, plus a bitmap of the ids of all ancestors, and unions and
+ *      intersections are memoized per pair of sets.  Relatives and memos are keyed by set id, as in NestedSet.  The
+ *      values themselves are left to each specialization, so that they can be stored unboxed and without a
+ *      NestedSetItem apiece.
+ */
+abstract class PrimitiveNestedSet<S extends PrimitiveNestedSet<S>> {
+    private static final AtomicLong NEXT_SET_ID = new AtomicLong(1);
+
+    private final long setId;
+    SetIdMap<S> parentSets;
+    SetIdMap<S> childSets;
+    private CompressedLongBitmap ancestorIds;
+
+    // Memos keyed by the id of the other operand, and the two operands of a set built as a union or intersection
+    SetIdMap<S> unions;
+    SetIdMap<S> intersections;
+    private S left;
+    private S right;
+
+    PrimitiveNestedSet() {
+        this.setId = NEXT_SET_ID.getAndIncrement();
+        this.parentSets = new SetIdMap<>();
+        this.childSets = new SetIdMap<>();
+        this.ancestorIds = new CompressedLongBitmap();
+        this.unions = new SetIdMap<>();
+        this.intersections = new SetIdMap<>();
+    }
+
+    /*
+    Value storage, provided by each specialization
+     */
+
+    abstract S emptySet();
+
+    abstract void copyValuesOf(S source);
+
+    abstract void unionValuesOf(S left, S right);
+
+    abstract void intersectValuesOf(S left, S right);
+
+    public abstract int size();
+
+    @SuppressWarnings("unchecked")
+    private S self() {
+        return (S) this;
+    }
+
+    /*
+    Creates an immediate child set below this one.
+    That child inherits all of this set's children, and is inherited by all of this set's parents
+     */
+
+    public S spawnChild() {
+        S newChild = emptySet();
+        newChild.copyValuesOf(self());
+        linkImmediate(self(), newChild);
+
+        // This set's immediate children now sit immediately below the new child instead
+        for(S grandchild : new ArrayList<>(this.childSets.values())) {
+            if(grandchild != newChild) {
+                unlinkImmediate(self(), grandchild);
+                linkImmediate(newChild, grandchild);
+            }
+        }
+
+        CompressedLongBitmap ancestors = this.ancestorIds.copy();
+        ancestors.add(this.setId);
+        ((PrimitiveNestedSet<S>) newChild).indexSpliced(ancestors);
+        return newChild;
+    }
+
+    /*
+    Creates an immediate parent set above this one.
+    That parent inherits all of this set's children, and is inherited by all of this set's parents
+     */
+
+    public S spawnParent() {
+        S newParent = emptySet();
+        newParent.copyValuesOf(self());
+
+        // This set's immediate parents now sit immediately above the new parent instead
+        for(S grandparent : new ArrayList<>(this.parentSets.values())) {
+            unlinkImmediate(grandparent, self());
+            linkImmediate(grandparent, newParent);
+        }
+
+        linkImmediate(newParent, self());
+        ((PrimitiveNestedSet<S>) newParent).indexSpliced(this.ancestorIds.copy());
+        return newParent;
+    }
+
+    /*
+    Unions and intersections, as for NestedSet.  If either set is a child of the other, then the parent set IS the
+        union and the child set IS the intersection.
+     */
+
+    public S unionWith(S other) {
+        if(this == other || this.isParentOf(other)) {
+            return self();
+        } else if(this.isChildOf(other)) {
+            return other;
+        }
+
+        long otherId = ((PrimitiveNestedSet<S>) other).setId;
+        S union = this.unions.get(otherId);
+        if(union == null) {
+            union = emptySet();
+            union.unionValuesOf(self(), other);
+            union.setOperands(self(), other);
+
+            this.unions.put(otherId, union);
+            other.unions.put(this.setId, union);
+
+            linkSets(union, self());
+            linkSets(union, other);
+        }
+        return union;
+    }
+
+    public S intersectionWith(S other) {
+        if(this == other || this.isChildOf(other)) {
+            return self();
+        } else if(this.isParentOf(other)) {
+            return other;
+        }
+
+        long otherId = ((PrimitiveNestedSet<S>) other).setId;
+        S intersection = this.intersections.get(otherId);
+        if(intersection == null) {
+            intersection = emptySet();
+            intersection.intersectValuesOf(self(), other);
+            intersection.setOperands(self(), other);
+
+            this.intersections.put(otherId, intersection);
+            other.intersections.put(this.setId, intersection);
+
+            linkSets(self(), intersection);
+            linkSets(other, intersection);
+        }
+        return intersection;
+    }
+
+    void setOperands(S left, S right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    // The operand of this union or intersection other than the given one
+    S otherOperand(S operand) {
+        return this.left == operand ? this.right : this.left;
+    }
+
+    /*
+    Methods to determine the relationship between two sets
+     */
+
+    public boolean isChildOf(S other) {
+        return this.ancestorIds.contains(((PrimitiveNestedSet<S>) other).setId);
+    }
+
+    public boolean isParentOf(S other) {
+        return ((PrimitiveNestedSet<S>) other).ancestorIds.contains(this.setId);
+    }
+
+    int numberOfChildrenSets() {
+        return walkFromSelf(false).size() - 1;
+    }
+
+    int numberOfParentSets() {
+        return this.ancestorIds.cardinality();
+    }
+
+    /*
+    Linking, as in NestedSet.linkSets: only the immediate edge is stored, and the reachability index is updated by
+        walking up from the parent and down from the child.  A spawned set is spliced in with linkImmediate and
+        indexSpliced instead, as in NestedSet.
+     */
+
+    private static <S extends PrimitiveNestedSet<S>> void linkSets(S parent, S child) {
+        linkImmediate(parent, child);
+
+        List<PrimitiveNestedSet<S>> newAncestors = ((PrimitiveNestedSet<S>) parent).walkFromSelf(true);
+        for(PrimitiveNestedSet<S> descendant : ((PrimitiveNestedSet<S>) child).walkFromSelf(false)) {
+            for(PrimitiveNestedSet<S> ancestor : newAncestors) {
+                descendant.ancestorIds.add(ancestor.setId);
+            }
+        }
+    }
+
+    private static <S extends PrimitiveNestedSet<S>> void linkImmediate(S parent, S child) {
+        parent.childSets.put(((PrimitiveNestedSet<S>) child).setId, child);
+        child.parentSets.put(((PrimitiveNestedSet<S>) parent).setId, parent);
+    }
+
+    private static <S extends PrimitiveNestedSet<S>> void unlinkImmediate(S parent, S child) {
+        parent.childSets.remove(((PrimitiveNestedSet<S>) child).setId);
+        child.parentSets.remove(((PrimitiveNestedSet<S>) parent).setId);
+    }
+
+    // Each descendant of a spliced set already has each of its ancestors as an ancestor, so only the set itself is new
+    private void indexSpliced(CompressedLongBitmap ancestors) {
+        this.ancestorIds = ancestors;
+        for(PrimitiveNestedSet<S> descendant : walkFromSelf(false)) {
+            if(descendant != this) {
+                descendant.ancestorIds.add(this.setId);
+            }
+        }
+    }
+
+    private List<PrimitiveNestedSet<S>> walkFromSelf(boolean upwards) {
+        List<PrimitiveNestedSet<S>> reached = new ArrayList<>();
+        // Not a bitmap, since walking up meets ids in descending order, which a sorted container inserts slowly
+        LongOpenHashSet visited = new LongOpenHashSet();
+        Deque<PrimitiveNestedSet<S>> toVisit = new ArrayDeque<>();
+        toVisit.add(this);
+        while(!toVisit.isEmpty()) {
+            PrimitiveNestedSet<S> set = toVisit.poll();
+            if(visited.add(set.setId)) {
+                reached.add(set);
+                toVisit.addAll(upwards ? set.parentSets.values() : set.childSets.values());
+            }
+        }
+        return reached;
+    }
+}
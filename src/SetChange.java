@@ -0,0 +1,109 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What happened to one set over the course of a batch of changes (see NestedSetChanges).
+ *
+ * Changes are coalesced as they come in, so a value added and then removed again within the batch shows up in
+ *      neither added nor removed, and likewise for links.  Links are to immediate parents and children only.
+ * A set built during the batch (by spawnChild, unionWith and the like) is marked as created.  The values it was
+ *      built with aren't necessarily listed, so it should be read once with getValues.
+ */
+public class SetChange<T> {
+    private final NestedSet<T> set;
+    private boolean created;
+
+    private final Set<T> added;
+    private final Set<T> removed;
+
+    private final Set<NestedSet<T>> linkedParents;
+    private final Set<NestedSet<T>> linkedChildren;
+    private final Set<NestedSet<T>> unlinkedParents;
+    private final Set<NestedSet<T>> unlinkedChildren;
+
+    SetChange(NestedSet<T> set) {
+        this.set = set;
+        this.added = new HashSet<>();
+        this.removed = new HashSet<>();
+        this.linkedParents = new HashSet<>();
+        this.linkedChildren = new HashSet<>();
+        this.unlinkedParents = new HashSet<>();
+        this.unlinkedChildren = new HashSet<>();
+    }
+
+    public NestedSet<T> set() {
+        return this.set;
+    }
+
+    public boolean created() {
+        return this.created;
+    }
+
+    public Set<T> added() {
+        return Collections.unmodifiableSet(this.added);
+    }
+
+    public Set<T> removed() {
+        return Collections.unmodifiableSet(this.removed);
+    }
+
+    public Set<NestedSet<T>> linkedParents() {
+        return Collections.unmodifiableSet(this.linkedParents);
+    }
+
+    public Set<NestedSet<T>> linkedChildren() {
+        return Collections.unmodifiableSet(this.linkedChildren);
+    }
+
+    public Set<NestedSet<T>> unlinkedParents() {
+        return Collections.unmodifiableSet(this.unlinkedParents);
+    }
+
+    public Set<NestedSet<T>> unlinkedChildren() {
+        return Collections.unmodifiableSet(this.unlinkedChildren);
+    }
+
+    /*
+    Coalescing, as each change is recorded.  Something undone within the batch cancels out.
+     */
+
+    void recordCreated() {
+        this.created = true;
+    }
+
+    void recordAdded(T value) {
+        record(value, this.added, this.removed);
+    }
+
+    void recordRemoved(T value) {
+        record(value, this.removed, this.added);
+    }
+
+    void recordLinked(NestedSet<T> relative, boolean isParent) {
+        if(isParent) {
+            record(relative, this.linkedParents, this.unlinkedParents);
+        } else {
+            record(relative, this.linkedChildren, this.unlinkedChildren);
+        }
+    }
+
+    void recordUnlinked(NestedSet<T> relative, boolean isParent) {
+        if(isParent) {
+            record(relative, this.unlinkedParents, this.linkedParents);
+        } else {
+            record(relative, this.unlinkedChildren, this.linkedChildren);
+        }
+    }
+
+    private static <E> void record(E element, Set<E> into, Set<E> opposite) {
+        if(!opposite.remove(element)) {
+            into.add(element);
+        }
+    }
+
+    boolean isEmpty() {
+        return !this.created && this.added.isEmpty() && this.removed.isEmpty() && this.linkedParents.isEmpty()
+                && this.linkedChildren.isEmpty() && this.unlinkedParents.isEmpty() && this.unlinkedChildren.isEmpty();
+    }
+}
@@ -0,0 +1,669 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A boolean expression over NestedSets, such as (A | B) & (C | D) - E, worked out without building its intermediates.
+ *
+ * Expressions are built with union, intersection and difference, or parsed from text (see parse).  Before it is
+ *      evaluated an expression is planned against the hierarchy as it stands:
+ *          - nested unions and intersections are flattened, and equal subexpressions become one shared node;
+ *          - an operand implied by another is dropped, so a union with a set's parent is just the parent, and an
+ *            intersection with a set's child is just the child;
+ *          - a group of sets whose union or intersection has already been built (see NestedSet.unionOf) is read
+ *            from that set instead;
+ *          - a difference whose left side sits within its right side is empty.
+ * Evaluating streams the values out: a union streams each operand in turn, skipping what an earlier one held, and an
+ *      intersection streams its smallest operand and checks the rest.  Nothing is copied or memoized along the way,
+ *      and the hierarchy is left as it was unless the result is registered in it (see register).
+ *
+ * Expressions are immutable and may be shared between threads.  Each evaluation reads the sets as they stand while
+ *      it runs.
+ */
+public final class SetExpression<T> {
+    private enum Operator { SET, EMPTY, UNION, INTERSECTION, DIFFERENCE }
+
+    private static final SetExpression<?> EMPTY = new SetExpression<Object>(Operator.EMPTY, null, null,
+            Collections.emptyList());
+
+    private final Operator operator;
+    private final NestedSet<T> set;
+    private final String name;
+
+    // Two or more for unions and intersections, and left then right for differences
+    private final List<SetExpression<T>> operands;
+
+    private SetExpression(Operator operator, NestedSet<T> set, String name, List<SetExpression<T>> operands) {
+        this.operator = operator;
+        this.set = set;
+        this.name = name;
+        this.operands = operands;
+    }
+
+    /*
+    Building expressions
+     */
+
+    public static <T> SetExpression<T> of(NestedSet<T> set) {
+        return of(null, set);
+    }
+
+    // The name is only used to print the expression
+    public static <T> SetExpression<T> of(String name, NestedSet<T> set) {
+        return new SetExpression<>(Operator.SET, Objects.requireNonNull(set), name, Collections.emptyList());
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> SetExpression<T> empty() {
+        return (SetExpression<T>) EMPTY;
+    }
+
+    public SetExpression<T> union(SetExpression<T> other) {
+        return combine(Operator.UNION, other);
+    }
+
+    public SetExpression<T> union(NestedSet<T> other) {
+        return union(of(other));
+    }
+
+    public SetExpression<T> intersection(SetExpression<T> other) {
+        return combine(Operator.INTERSECTION, other);
+    }
+
+    public SetExpression<T> intersection(NestedSet<T> other) {
+        return intersection(of(other));
+    }
+
+    public SetExpression<T> difference(SetExpression<T> other) {
+        return combine(Operator.DIFFERENCE, other);
+    }
+
+    public SetExpression<T> difference(NestedSet<T> other) {
+        return difference(of(other));
+    }
+
+    private SetExpression<T> combine(Operator operator, SetExpression<T> other) {
+        List<SetExpression<T>> pair = new ArrayList<>(2);
+        pair.add(this);
+        pair.add(Objects.requireNonNull(other));
+        return new SetExpression<>(operator, null, null, Collections.unmodifiableList(pair));
+    }
+
+    /*
+    Parsing
+    Names stand for the sets given for them, and may be grouped with parentheses.  Intersection (& or U+2229) binds
+        more tightly than union (| or U+222A) and difference (- or \), which bind equally and associate to the left.
+     */
+
+    public static <T> SetExpression<T> parse(String text, Map<String, ? extends NestedSet<T>> sets) {
+        return new Parser<>(text, sets).parse();
+    }
+
+    private static final class Parser<T> {
+        private final String text;
+        private final Map<String, ? extends NestedSet<T>> sets;
+        private int position;
+
+        Parser(String text, Map<String, ? extends NestedSet<T>> sets) {
+            this.text = text;
+            this.sets = sets;
+        }
+
+        SetExpression<T> parse() {
+            SetExpression<T> expression = unionsAndDifferences();
+            if(peek() != 0) {
+                throw error("Unexpected '" + peek() + "'");
+            }
+            return expression;
+        }
+
+        private SetExpression<T> unionsAndDifferences() {
+            SetExpression<T> expression = intersections();
+            while (true) {
+                char next = peek();
+                if(next == '\u222a' || next == '|') {
+                    this.position++;
+                    expression = expression.union(intersections());
+                } else if(next == '\\' || next == '-') {
+                    this.position++;
+                    expression = expression.difference(intersections());
+                } else {
+                    return expression;
+                }
+            }
+        }
+
+        private SetExpression<T> intersections() {
+            SetExpression<T> expression = operand();
+            while (peek() == '\u2229' || peek() == '&') {
+                this.position++;
+                expression = expression.intersection(operand());
+            }
+            return expression;
+        }
+
+        private SetExpression<T> operand() {
+            char next = peek();
+            if(next == '(') {
+                this.position++;
+                SetExpression<T> grouped = unionsAndDifferences();
+                if(peek() != ')') {
+                    throw error("Expected ')'");
+                }
+                this.position++;
+                return grouped;
+            } else if(!Character.isJavaIdentifierStart(next)) {
+                throw error(next == 0 ? "Expected a set" : "Unexpected '" + next + "'");
+            }
+
+            int start = this.position;
+            while (this.position < this.text.length()
+                    && Character.isJavaIdentifierPart(this.text.charAt(this.position))) {
+                this.position++;
+            }
+            String setName = this.text.substring(start, this.position);
+            NestedSet<T> named = this.sets.get(setName);
+            if(named == null) {
+                this.position = start;
+                throw error("Unknown set '" + setName + "'");
+            }
+            return of(setName, named);
+        }
+
+        // The next character that isn't whitespace, or 0 at the end of the text
+        private char peek() {
+            while (this.position < this.text.length() && Character.isWhitespace(this.text.charAt(this.position))) {
+                this.position++;
+            }
+            return this.position < this.text.length() ? this.text.charAt(this.position) : 0;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + this.position + " of: " + this.text);
+        }
+    }
+
+    /*
+    Planning
+    Which sets an expression is known to sit within (its bounds), and which it is known to hold (its floors), are
+        worked out from the hierarchy's parent/child relations alone, never from values, so a plan stays right for as
+        long as the hierarchy keeps its shape.
+     */
+
+    public SetExpression<T> plan() {
+        NestedSet<T> host = firstSet();
+        if(host == null) {
+            return empty();
+        }
+        // Holding the first set's hierarchy still covers the lookups among sets all in it
+        return host.withStructureShared(() -> new Planner<T>().plan(this));
+    }
+
+    private static final class Planner<T> {
+        // Every node planned so far, so that equal subexpressions come out as the same node
+        private final Map<SetExpression<T>, SetExpression<T>> planned = new HashMap<>();
+
+        SetExpression<T> plan(SetExpression<T> expression) {
+            SetExpression<T> result;
+            switch (expression.operator) {
+                case UNION:
+                    result = planCombination(expression, Operator.UNION);
+                    break;
+                case INTERSECTION:
+                    result = planCombination(expression, Operator.INTERSECTION);
+                    break;
+                case DIFFERENCE:
+                    result = planDifference(expression);
+                    break;
+                default:
+                    result = expression;
+            }
+
+            SetExpression<T> existing = this.planned.putIfAbsent(result, result);
+            return existing == null ? result : existing;
+        }
+
+        private SetExpression<T> planCombination(SetExpression<T> expression, Operator operator) {
+            boolean union = operator == Operator.UNION;
+            LinkedHashSet<SetExpression<T>> flattened = new LinkedHashSet<>();
+            for (SetExpression<T> operand : expression.operands) {
+                SetExpression<T> plannedOperand = plan(operand);
+                if(plannedOperand.operator == operator) {
+                    flattened.addAll(plannedOperand.operands);
+                } else if(plannedOperand.operator == Operator.EMPTY) {
+                    if(!union) {
+                        return empty();
+                    }
+                } else {
+                    flattened.add(plannedOperand);
+                }
+            }
+
+            // Drop operands implied by another: for a union, those within another operand, and for an intersection,
+            //      those around one.  Of two operands that imply each other, the first is kept.
+            List<SetExpression<T>> candidates = new ArrayList<>(flattened);
+            List<SetExpression<T>> needed = new ArrayList<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                SetExpression<T> operand = candidates.get(i);
+                boolean implied = false;
+                for (int j = 0; j < candidates.size() && !implied; j++) {
+                    SetExpression<T> other = candidates.get(j);
+                    if(j != i) {
+                        boolean impliedByOther = union ? other.covers(operand) : operand.covers(other);
+                        boolean impliesOther = union ? operand.covers(other) : other.covers(operand);
+                        implied = impliedByOther && (!impliesOther || j < i);
+                    }
+                }
+                if(!implied) {
+                    needed.add(operand);
+                }
+            }
+
+            // Read a group of plain sets from their union or intersection, if it has been built already
+            List<NestedSet<T>> sets = new ArrayList<>();
+            for (SetExpression<T> operand : needed) {
+                if(operand.operator == Operator.SET) {
+                    sets.add(operand.set);
+                }
+            }
+            NestedSet<T> built = NestedSet.findBuilt(sets, union);
+            if(built != null) {
+                needed.removeIf(operand -> operand.operator == Operator.SET);
+                needed.add(of(built));
+            }
+
+            if(needed.isEmpty()) {
+                return empty();
+            } else if(needed.size() == 1) {
+                return needed.get(0);
+            }
+            return new SetExpression<>(operator, null, null, Collections.unmodifiableList(needed));
+        }
+
+        private SetExpression<T> planDifference(SetExpression<T> expression) {
+            SetExpression<T> left = plan(expression.operands.get(0));
+            SetExpression<T> right = plan(expression.operands.get(1));
+            if(right.operator == Operator.EMPTY) {
+                return left;
+            } else if(left.operator == Operator.EMPTY || right.covers(left)) {
+                return empty();
+            }
+
+            List<SetExpression<T>> pair = new ArrayList<>(2);
+            pair.add(left);
+            pair.add(right);
+            return new SetExpression<>(Operator.DIFFERENCE, null, null, Collections.unmodifiableList(pair));
+        }
+    }
+
+    // Whether this expression is known to hold everything other does
+    private boolean covers(SetExpression<T> other) {
+        if(other.operator == Operator.EMPTY) {
+            return true;
+        }
+
+        Set<NestedSet<T>> floors = this.floors();
+        for (NestedSet<T> bound : other.bounds()) {
+            for (NestedSet<T> floor : floors) {
+                if(bound == floor || bound.isChildOf(floor)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Sets this expression is known to sit within
+    private Set<NestedSet<T>> bounds() {
+        switch (this.operator) {
+            case SET:
+                return Collections.singleton(this.set);
+            case UNION:
+                return common(this.operands, SetExpression::bounds, true);
+            case INTERSECTION:
+                return gathered(this.operands, SetExpression::bounds);
+            case DIFFERENCE:
+                return this.operands.get(0).bounds();
+            default:
+                return Collections.emptySet();
+        }
+    }
+
+    // Sets this expression is known to hold
+    private Set<NestedSet<T>> floors() {
+        switch (this.operator) {
+            case SET:
+                return Collections.singleton(this.set);
+            case UNION:
+                return gathered(this.operands, SetExpression::floors);
+            case INTERSECTION:
+                return common(this.operands, SetExpression::floors, false);
+            default:
+                return Collections.emptySet();
+        }
+    }
+
+    private static <T> Set<NestedSet<T>> gathered(List<SetExpression<T>> operands,
+                                                  Function<SetExpression<T>, Set<NestedSet<T>>> of) {
+        Set<NestedSet<T>> all = new HashSet<>();
+        for (SetExpression<T> operand : operands) {
+            all.addAll(of.apply(operand));
+        }
+        return all;
+    }
+
+    // The gathered sets that every operand has one of at or below them (for bounds), or at or above them (for floors)
+    private static <T> Set<NestedSet<T>> common(List<SetExpression<T>> operands,
+                                                Function<SetExpression<T>, Set<NestedSet<T>>> of,
+                                                boolean above) {
+        Set<NestedSet<T>> common = new HashSet<>();
+        for (NestedSet<T> candidate : gathered(operands, of)) {
+            boolean everyOperand = true;
+            for (SetExpression<T> operand : operands) {
+                boolean found = false;
+                for (NestedSet<T> own : of.apply(operand)) {
+                    found |= own == candidate || (above ? own.isChildOf(candidate) : candidate.isChildOf(own));
+                }
+                everyOperand &= found;
+            }
+            if(everyOperand) {
+                common.add(candidate);
+            }
+        }
+        return common;
+    }
+
+    private NestedSet<T> firstSet() {
+        if(this.operator == Operator.SET) {
+            return this.set;
+        }
+        for (SetExpression<T> operand : this.operands) {
+            NestedSet<T> first = operand.firstSet();
+            if(first != null) {
+                return first;
+            }
+        }
+        return null;
+    }
+
+    /*
+    Evaluation, which plans first
+     */
+
+    public Stream<T> stream() {
+        SetExpression<T> planned = plan();
+        return planned.itemsIn(new Evaluation<>(planned)).map(NestedSetItem::getValue);
+    }
+
+    public Iterator<T> iterator() {
+        return stream().iterator();
+    }
+
+    public boolean contains(T value) {
+        SetExpression<T> planned = plan();
+        NestedSetItem<T> setItem = planned.lookup(value);
+        return setItem != null && planned.containsIn(setItem, new Evaluation<>(planned));
+    }
+
+    public HashSet<T> getValues() {
+        return stream().collect(Collectors.toCollection(HashSet::new));
+    }
+
+    // Registers the result in the hierarchy, and returns it.  A plain set, or a union or intersection of plain sets, is
+    //      returned as it is or as built by NestedSet.unionOf or intersectionOf, and is kept up to date like any
+    //      other.  Anything else is adopted as a new child of the sets it is known to sit within (see
+    //      NestedSet.adopt), holding a copy of its values.
+    public NestedSet<T> register() {
+        NestedSet<T> host = firstSet();
+        if(host == null) {
+            throw new IllegalStateException("An expression naming no sets has no hierarchy to be registered in");
+        }
+
+        SetExpression<T> planned = plan();
+        if(planned.operator == Operator.SET) {
+            return planned.set;
+        } else if(planned.isCombinationOfSets()) {
+            List<NestedSet<T>> sets = planned.operands.stream()
+                    .map(operand -> operand.set)
+                    .collect(Collectors.toList());
+            return planned.operator == Operator.UNION ? NestedSet.unionOf(sets) : NestedSet.intersectionOf(sets);
+        }
+
+        // Linking below the innermost bounds is enough, since every other bound is an ancestor of one of them
+        Set<NestedSet<T>> bounds = planned.bounds();
+        List<NestedSet<T>> parents = new ArrayList<>();
+        for (NestedSet<T> bound : bounds) {
+            if(bounds.stream().noneMatch(bound::isParentOf)) {
+                parents.add(bound);
+            }
+        }
+        return NestedSet.adopt(parents.isEmpty() ? host : parents.get(0), parents, planned.getValuesPlanned());
+    }
+
+    private boolean isCombinationOfSets() {
+        return (this.operator == Operator.UNION || this.operator == Operator.INTERSECTION)
+                && this.operands.stream().allMatch(operand -> operand.operator == Operator.SET);
+    }
+
+    private List<T> getValuesPlanned() {
+        return itemsIn(new Evaluation<>(this)).map(NestedSetItem::getValue).collect(Collectors.toList());
+    }
+
+    // The item for a value from the first hierarchy that knows it.  If none do, no set named here holds the value.
+    private NestedSetItem<T> lookup(T value) {
+        if(this.operator == Operator.SET) {
+            return this.set.registry().lookup(value);
+        }
+        for (SetExpression<T> operand : this.operands) {
+            NestedSetItem<T> setItem = operand.lookup(value);
+            if(setItem != null) {
+                return setItem;
+            }
+        }
+        return null;
+    }
+
+    /*
+    Evaluating works on items rather than values, so that within one hierarchy a value is only ever looked up once
+     */
+
+    private Stream<NestedSetItem<T>> itemsIn(Evaluation<T> evaluation) {
+        switch (this.operator) {
+            case SET:
+                return this.set.settledItems();
+            case UNION: {
+                // Largest first, so the most values stream through unchecked
+                List<SetExpression<T>> bySize = new ArrayList<>(this.operands);
+                bySize.sort(Comparator.comparingLong(SetExpression<T>::sizeBound).reversed());
+                Stream<NestedSetItem<T>> items = Stream.empty();
+                for (int i = 0; i < bySize.size(); i++) {
+                    List<SetExpression<T>> earlier = bySize.subList(0, i);
+                    items = Stream.concat(items, bySize.get(i).itemsIn(evaluation).filter(setItem ->
+                            !anyContains(earlier, setItem, evaluation)));
+                }
+                return items;
+            }
+            case INTERSECTION: {
+                // Smallest first, so the fewest values are streamed, and the rest checked most selective first
+                List<SetExpression<T>> bySize = new ArrayList<>(this.operands);
+                bySize.sort(Comparator.comparingLong(SetExpression::sizeBound));
+                List<SetExpression<T>> rest = bySize.subList(1, bySize.size());
+                return bySize.get(0).itemsIn(evaluation).filter(setItem -> allContain(rest, setItem, evaluation));
+            }
+            case DIFFERENCE: {
+                SetExpression<T> right = this.operands.get(1);
+                return this.operands.get(0).itemsIn(evaluation)
+                        .filter(setItem -> !right.containsIn(setItem, evaluation));
+            }
+            default:
+                return Stream.empty();
+        }
+    }
+
+    private boolean containsIn(NestedSetItem<T> setItem, Evaluation<T> evaluation) {
+        switch (this.operator) {
+            case SET:
+                return this.set.containsSetItem(setItem);
+            case UNION:
+                return evaluation.remembered(this, setItem, () -> anyContains(this.operands, setItem, evaluation));
+            case INTERSECTION:
+                return evaluation.remembered(this, setItem, () -> allContain(this.operands, setItem, evaluation));
+            case DIFFERENCE:
+                return evaluation.remembered(this, setItem, () -> this.operands.get(0).containsIn(setItem, evaluation)
+                        && !this.operands.get(1).containsIn(setItem, evaluation));
+            default:
+                return false;
+        }
+    }
+
+    // Loops rather than streams, since these run once per item
+    private static <T> boolean anyContains(List<SetExpression<T>> operands, NestedSetItem<T> setItem,
+                                           Evaluation<T> evaluation) {
+        for (int i = 0; i < operands.size(); i++) {
+            if(operands.get(i).containsIn(setItem, evaluation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> boolean allContain(List<SetExpression<T>> operands, NestedSetItem<T> setItem,
+                                          Evaluation<T> evaluation) {
+        for (int i = 0; i < operands.size(); i++) {
+            if(!operands.get(i).containsIn(setItem, evaluation)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // An upper bound on how many values this expression holds, from the sizes of the sets it names
+    private long sizeBound() {
+        switch (this.operator) {
+            case SET:
+                return this.set.size();
+            case UNION:
+                return this.operands.stream().mapToLong(SetExpression::sizeBound).sum();
+            case INTERSECTION:
+                return this.operands.stream().mapToLong(SetExpression::sizeBound).min().orElse(0);
+            case DIFFERENCE:
+                return this.operands.get(0).sizeBound();
+            default:
+                return 0;
+        }
+    }
+
+    // One pass over a planned expression.  A node reached along more than one path remembers its answer for the last
+    //      item it was asked about, since the paths through it tend to ask about the same item one after another.
+    private static final class Evaluation<T> {
+        private final Map<SetExpression<T>, Answer<T>> shared;
+
+        Evaluation(SetExpression<T> planned) {
+            Map<SetExpression<T>, Integer> paths = new IdentityHashMap<>();
+            countPaths(planned, paths);
+            this.shared = new IdentityHashMap<>();
+            for (Map.Entry<SetExpression<T>, Integer> entry : paths.entrySet()) {
+                if(entry.getValue() > 1) {
+                    this.shared.put(entry.getKey(), new Answer<>());
+                }
+            }
+        }
+
+        private static <T> void countPaths(SetExpression<T> node, Map<SetExpression<T>, Integer> paths) {
+            if(paths.merge(node, 1, Integer::sum) == 1) {
+                for (SetExpression<T> operand : node.operands) {
+                    countPaths(operand, paths);
+                }
+            }
+        }
+
+        boolean remembered(SetExpression<T> node, NestedSetItem<T> setItem, BooleanSupplier answer) {
+            Answer<T> last = this.shared.isEmpty() ? null : this.shared.get(node);
+            if(last == null) {
+                return answer.getAsBoolean();
+            }
+
+            synchronized (last) {
+                if(last.setItem != setItem) {
+                    last.setItem = setItem;
+                    last.contained = answer.getAsBoolean();
+                }
+                return last.contained;
+            }
+        }
+    }
+
+    private static final class Answer<T> {
+        private NestedSetItem<T> setItem;
+        private boolean contained;
+    }
+
+    /*
+    Equal expressions name the same sets in the same way.  The order of the operands of a union or intersection
+        doesn't matter.
+     */
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof SetExpression)) {
+            return false;
+        }
+        SetExpression<?> other = (SetExpression<?>) o;
+        if(other.operator != this.operator) {
+            return false;
+        }
+        switch (this.operator) {
+            case SET:
+                return other.set == (Object) this.set;
+            case UNION:
+            case INTERSECTION:
+                return new HashSet<>(other.operands).equals(new HashSet<>(this.operands));
+            default:
+                return other.operands.equals(this.operands);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        switch (this.operator) {
+            case SET:
+                return System.identityHashCode(this.set);
+            case UNION:
+            case INTERSECTION:
+                return this.operator.hashCode() * 31 + new HashSet<>(this.operands).hashCode();
+            default:
+                return this.operator.hashCode() * 31 + this.operands.hashCode();
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (this.operator) {
+            case SET:
+                return this.name != null ? this.name : "#" + Integer.toHexString(System.identityHashCode(this.set));
+            case UNION:
+                return this.operands.stream().map(SetExpression::toString)
+                        .collect(Collectors.joining(" \u222a ", "(", ")"));
+            case INTERSECTION:
+                return this.operands.stream().map(SetExpression::toString)
+                        .collect(Collectors.joining(" \u2229 ", "(", ")"));
+            case DIFFERENCE:
+                return "(" + this.operands.get(0) + " \\ " + this.operands.get(1) + ")";
+            default:
+                return "\u2205";
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open-addressing hash map from set ids to values, with linear probing, used for a set's relatives and memo maps.
+ *
+ * Keys and values are stored inline in two parallel arrays, so there is no boxing and no per-entry node.  Set ids are
+ *      handed out from one upwards, which leaves zero free to mark an empty slot.  As in LongOpenHashSet, removal
+ *      shifts later entries of the probe run back rather than leaving tombstones.
+ */
+class SetIdMap<V> {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    SetIdMap() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new Object[INITIAL_CAPACITY];
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long id) {
+        int index = indexOf(id);
+        return index < 0 ? null : (V) this.values[index];
+    }
+
+    boolean containsKey(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    // Returns the value the id had before, if any
+    @SuppressWarnings("unchecked")
+    V put(long id, V value) {
+        int mask = this.keys.length - 1;
+        int index = mix(id) & mask;
+        while(this.keys[index] != 0) {
+            if(this.keys[index] == id) {
+                V previous = (V) this.values[index];
+                this.values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+
+        this.keys[index] = id;
+        this.values[index] = value;
+        if(++this.size > this.keys.length * LOAD_FACTOR) {
+            rehash(this.keys.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long id) {
+        int index = indexOf(id);
+        if(index < 0) {
+            return null;
+        }
+        V removed = (V) this.values[index];
+        shiftBack(index);
+        this.size--;
+        return removed;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // A read-only view of the values, in slot order.  It shouldn't be iterated while the map is being written to.
+    Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+
+            @Override
+            public int size() {
+                return SetIdMap.this.size;
+            }
+        };
+    }
+
+    private final class ValueIterator implements Iterator<V> {
+        private int index = nextOccupied(0);
+
+        @Override
+        public boolean hasNext() {
+            return this.index < SetIdMap.this.keys.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            V value = (V) SetIdMap.this.values[this.index];
+            this.index = nextOccupied(this.index + 1);
+            return value;
+        }
+    }
+
+    private int nextOccupied(int from) {
+        int index = from;
+        while(index < this.keys.length && this.keys[index] == 0) {
+            index++;
+        }
+        return index;
+    }
+
+    /*
+    Probing
+     */
+
+    private int indexOf(long id) {
+        int mask = this.keys.length - 1;
+        int index = mix(id) & mask;
+        while(this.keys[index] != 0) {
+            if(this.keys[index] == id) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Closes the gap left at index by moving back any later entry of the run that would no longer be reachable
+    private void shiftBack(int gap) {
+        int mask = this.keys.length - 1;
+        int index = (gap + 1) & mask;
+        while(this.keys[index] != 0) {
+            int home = mix(this.keys[index]) & mask;
+            // Move the entry if its home slot is not cyclically within (gap, index]
+            if(((index - home) & mask) >= ((index - gap) & mask)) {
+                this.keys[gap] = this.keys[index];
+                this.values[gap] = this.values[index];
+                gap = index;
+            }
+            index = (index + 1) & mask;
+        }
+        this.keys[gap] = 0;
+        this.values[gap] = null;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        int mask = capacity - 1;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != 0) {
+                int index = mix(oldKeys[i]) & mask;
+                while(this.keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                this.keys[index] = oldKeys[i];
+                this.values[index] = oldValues[i];
+            }
+        }
+    }
+
+    // Spreads sequential ids across the table, as in LongOpenHashSet
+    private static int mix(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
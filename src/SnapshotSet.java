@@ -0,0 +1,142 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * One NestedSet as it stood when a NestedSetSnapshot was taken.  Never changes, and never locks.
+ */
+public class SnapshotSet<T> {
+    private final NestedSetSnapshot<T> snapshot;
+    private final long setId;
+    private final CompressedLongBitmap ancestorIds;
+
+    // The frozen store of a materialized set.  A lazy view holds nothing of its own, so is frozen as its operation,
+    //      and answers from its frozen operands.
+    private final ItemStore<T> store;
+    private final LazyViewStore.Operation operation;
+    private SnapshotSet<T> left;
+    private SnapshotSet<T> right;
+
+    // Immediate relations, filled in by the snapshot once every set is frozen
+    private List<SnapshotSet<T>> parents;
+    private List<SnapshotSet<T>> children;
+
+    // Set once the hierarchy has been joined onto another (see NestedSetSnapshot.detach)
+    private volatile Collection<T> detachedValues;
+
+    SnapshotSet(NestedSetSnapshot<T> snapshot, long setId, CompressedLongBitmap ancestorIds, ItemStore<T> store) {
+        this(snapshot, setId, ancestorIds, store, null);
+    }
+
+    SnapshotSet(NestedSetSnapshot<T> snapshot, long setId, CompressedLongBitmap ancestorIds,
+                LazyViewStore.Operation operation) {
+        this(snapshot, setId, ancestorIds, null, operation);
+    }
+
+    private SnapshotSet(NestedSetSnapshot<T> snapshot, long setId, CompressedLongBitmap ancestorIds,
+                        ItemStore<T> store, LazyViewStore.Operation operation) {
+        this.snapshot = snapshot;
+        this.setId = setId;
+        this.ancestorIds = ancestorIds;
+        this.store = store;
+        this.operation = operation;
+    }
+
+    void link(List<SnapshotSet<T>> parents, List<SnapshotSet<T>> children, SnapshotSet<T> left,
+              SnapshotSet<T> right) {
+        this.parents = parents;
+        this.children = children;
+        this.left = left;
+        this.right = right;
+    }
+
+    void detach(Collection<T> values) {
+        this.detachedValues = values;
+    }
+
+    long setId() {
+        return this.setId;
+    }
+
+    // Null for a lazy view
+    ItemStore<T> frozenStore() {
+        return this.store;
+    }
+
+    /*
+    Membership
+     */
+
+    public boolean containsItem(T value) {
+        Collection<T> detached = this.detachedValues;
+        if(detached != null) {
+            return detached.contains(value);
+        }
+
+        // The registry keeps every item a snapshot can see until the snapshot is closed, so the item found here is
+        //      the one that was frozen
+        NestedSetItem<T> setItem = this.snapshot.registry().lookup(value);
+        return setItem != null && holds(setItem);
+    }
+
+    private boolean holds(NestedSetItem<T> setItem) {
+        if(this.store != null) {
+            return this.store.contains(setItem);
+        } else if(this.operation == LazyViewStore.Operation.UNION) {
+            return this.left.holds(setItem) || this.right.holds(setItem);
+        } else {
+            return this.left.holds(setItem) && this.right.holds(setItem);
+        }
+    }
+
+    public int size() {
+        Collection<T> detached = this.detachedValues;
+        if(detached != null) {
+            return detached.size();
+        }
+        return this.store != null ? this.store.size() : getValues().size();
+    }
+
+    public HashSet<T> getValues() {
+        Collection<T> detached = this.detachedValues;
+        if(detached != null) {
+            return new HashSet<>(detached);
+        }
+
+        HashSet<T> output = new HashSet<>();
+        if(this.store != null) {
+            for(Iterator<NestedSetItem<T>> items = this.store.iterator(); items.hasNext(); ) {
+                output.add(items.next().getValue());
+            }
+        } else if(this.operation == LazyViewStore.Operation.UNION) {
+            output.addAll(this.left.getValues());
+            output.addAll(this.right.getValues());
+        } else {
+            output.addAll(this.left.getValues());
+            output.retainAll(this.right.getValues());
+        }
+        return output;
+    }
+
+    /*
+    Relations
+     */
+
+    public boolean isChildOf(SnapshotSet<T> other) {
+        return this.ancestorIds.contains(other.setId);
+    }
+
+    public boolean isParentOf(SnapshotSet<T> other) {
+        return other.ancestorIds.contains(this.setId);
+    }
+
+    public Collection<SnapshotSet<T>> getParents() {
+        return Collections.unmodifiableList(this.parents);
+    }
+
+    public Collection<SnapshotSet<T>> getChildren() {
+        return Collections.unmodifiableList(this.children);
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A blocked Bloom filter of a set's values, for turning away values a set can't hold without probing its store.
+ *
+ * Each value's bits all fall in one 512-bit block, a cache line, so a lookup costs a single cache miss at most.  At
+ *      ten bits per value and seven bits per lookup, about one value in a hundred that isn't there gets through.
+ * Filters are sized for twice the values they start with.  They can't forget values, so once a filter has taken
+ *      more than a quarter as many removals as it holds values, or has filled up, it asks to be rebuilt.
+ *
+ * Bits are set with compare-and-set, so concurrent writers never lose each other's bits.
+ */
+class ValueFilter {
+    private static final int BITS_PER_VALUE = 10;
+    private static final int BITS_PER_LOOKUP = 7;
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = BLOCK_WORDS * Long.SIZE;
+    private static final int MIN_CAPACITY = 64;
+
+    private final AtomicLongArray words;
+    private final int blocks;
+    private final int capacity;
+
+    private final AtomicInteger added;
+    private final AtomicInteger removed;
+
+    ValueFilter(int expected) {
+        this.capacity = Math.max(MIN_CAPACITY, 2 * expected);
+        this.blocks = (int) (((long) this.capacity * BITS_PER_VALUE + BLOCK_BITS - 1) / BLOCK_BITS);
+        this.words = new AtomicLongArray(this.blocks * BLOCK_WORDS);
+        this.added = new AtomicInteger();
+        this.removed = new AtomicInteger();
+    }
+
+    // Both of these take a value's 64-bit fingerprint (see HashingStrategy)
+    void add(long hash) {
+        int base = blockOf(hash) * BLOCK_WORDS;
+        long bits = bitsOf(hash);
+        for(int i = 0; i < BITS_PER_LOOKUP; i++) {
+            int bit = (int) (bits >>> (9 * i)) & (BLOCK_BITS - 1);
+            int word = base + (bit >>> 6);
+            long mask = 1L << bit;
+
+            long old = this.words.get(word);
+            while((old & mask) == 0 && !this.words.compareAndSet(word, old, old | mask)) {
+                old = this.words.get(word);
+            }
+        }
+        this.added.incrementAndGet();
+    }
+
+    boolean mightContain(long hash) {
+        int base = blockOf(hash) * BLOCK_WORDS;
+        long bits = bitsOf(hash);
+        for(int i = 0; i < BITS_PER_LOOKUP; i++) {
+            int bit = (int) (bits >>> (9 * i)) & (BLOCK_BITS - 1);
+            if((this.words.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void noteRemoved(int count) {
+        this.removed.addAndGet(count);
+    }
+
+    boolean needsRebuild() {
+        return this.added.get() > this.capacity || 4L * this.removed.get() > this.added.get();
+    }
+
+    // The block comes from the high half of the hash, scaled onto the blocks without a division
+    private int blockOf(long hash) {
+        return (int) (((hash >>> 32) * this.blocks) >>> 32);
+    }
+
+    // The bits within the block come from a second mix of the hash, nine bits at a time
+    private static long bitsOf(long hash) {
+        return hash * 0x9e3779b97f4a7c15L;
+    }
+}
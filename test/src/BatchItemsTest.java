@@ -0,0 +1,100 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Tests adding and removing many values at once
+ */
+public class BatchItemsTest {
+    @Test
+    public void TestAddAllPropagatesToAncestors() {
+        NestedSet<Integer> root = new NestedSet<>();
+        NestedSet<Integer> middle = root.spawnChild();
+        NestedSet<Integer> leaf = middle.spawnChild();
+        root.addItem(3);
+
+        Assert.assertTrue(leaf.addAllItems(Arrays.asList(1, 2, 3, 3, 2)));
+        Assert.assertFalse(leaf.addAllItems(Arrays.asList(1, 2)));
+
+        Assert.assertEquals(3, leaf.size());
+        Assert.assertEquals(3, middle.size());
+        Assert.assertEquals(3, root.size());
+        Assert.assertTrue(root.containsItem(1));
+        Assert.assertTrue(root.containsItem(2));
+    }
+
+    @Test
+    public void TestRemoveAllPropagatesToDescendants() {
+        NestedSet<Integer> root = new NestedSet<>();
+        NestedSet<Integer> middle = root.spawnChild();
+        NestedSet<Integer> leaf = middle.spawnChild();
+        leaf.addAllItems(Arrays.asList(1, 2, 3, 4));
+
+        Assert.assertTrue(root.removeAllItems(Arrays.asList(1, 3, 5)));
+
+        Assert.assertEquals(2, root.size());
+        Assert.assertEquals(2, middle.size());
+        Assert.assertEquals(2, leaf.size());
+        Assert.assertFalse(leaf.containsItem(1));
+        Assert.assertTrue(leaf.containsItem(2));
+
+        // Values no longer in any set are released
+        Assert.assertEquals(2, root.registry().size());
+    }
+
+    @Test
+    public void TestStreamVariants() {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.BITMAP);
+        NestedSet<Integer> child = parent.spawnChild();
+
+        child.addAllItems(IntStream.range(0, 1000).boxed());
+        Assert.assertEquals(1000, parent.size());
+
+        child.removeAllItems(IntStream.range(0, 500).boxed());
+        Assert.assertEquals(1000, parent.size());
+        Assert.assertEquals(500, child.size());
+    }
+
+    @Test
+    public void TestBatchesKeepDerivedSetsUpToDate() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addAllItems(Arrays.asList(2, 3));
+        NestedSet<Integer> union = setA.unionWith(setB);
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+        NestedSet<Integer> lazyUnion = setA.spawnChild().lazyUnionWith(setB.spawnChild());
+
+        setA.addAllItems(Arrays.asList(1, 2));
+        Assert.assertEquals(3, union.size());
+        Assert.assertEquals(1, intersection.size());
+        Assert.assertTrue(intersection.containsItem(2));
+        Assert.assertFalse(lazyUnion.isMaterialized());
+
+        setB.removeAllItems(Arrays.asList(2, 3));
+        Assert.assertEquals(2, union.size());
+        Assert.assertFalse(union.containsItem(3));
+        Assert.assertTrue(union.containsItem(2));
+        Assert.assertEquals(0, intersection.size());
+    }
+
+    @Test
+    public void TestBatchMatchesOneAtATime() {
+        List<Integer> values = Arrays.asList(5, 1, 9, 1, 7, 3, 9);
+
+        NestedSet<Integer> batched = new NestedSet<>();
+        NestedSet<Integer> batchedChild = batched.spawnChild();
+        batchedChild.addAllItems(values);
+
+        NestedSet<Integer> single = new NestedSet<>();
+        NestedSet<Integer> singleChild = single.spawnChild();
+        for(Integer value : values) {
+            singleChild.addItem(value);
+        }
+
+        Assert.assertEquals(single.getValues(), batched.getValues());
+        Assert.assertEquals(singleChild.getValues(), batchedChild.getValues());
+    }
+}
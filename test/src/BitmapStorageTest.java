@@ -0,0 +1,116 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests NestedSets backed by compressed bitmaps of item ids, and the bitmap itself
+ */
+public class BitmapStorageTest {
+    @Test
+    public void TestBitmapInsertionAndDeletion() {
+        NestedSet<Integer> set = new NestedSet<>(NestedSet.Storage.BITMAP);
+
+        Assert.assertTrue(set.addItem(1));
+        Assert.assertTrue(set.addItem(12));
+        Assert.assertFalse(set.addItem(1));
+        Assert.assertEquals(2, set.size());
+
+        Assert.assertTrue(set.containsItem(12));
+        Assert.assertTrue(set.removeItem(12));
+        Assert.assertFalse(set.containsItem(12));
+        Assert.assertEquals(1, set.size());
+    }
+
+    @Test
+    public void TestBitmapParentChild() {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.BITMAP);
+        parent.addItem(1);
+        NestedSet<Integer> child = parent.spawnChild();
+
+        child.addItem(2);
+        parent.removeItem(1);
+
+        Assert.assertEquals(1, parent.size());
+        Assert.assertEquals(1, child.size());
+        Assert.assertTrue(parent.containsItem(2));
+    }
+
+    @Test
+    public void TestBitmapUnionAndIntersection() {
+        NestedSet<Integer> setA = new NestedSet<>(NestedSet.Storage.BITMAP);
+        NestedSet<Integer> setB = new NestedSet<>(NestedSet.Storage.BITMAP);
+
+        for(int i = 0; i < 10000; i++) {
+            setA.addItem(i);
+        }
+        for(int i = 5000; i < 20000; i++) {
+            setB.addItem(i);
+        }
+
+        NestedSet<Integer> union = setA.unionWith(setB);
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+
+        Assert.assertEquals(20000, union.size());
+        Assert.assertEquals(5000, intersection.size());
+        Assert.assertTrue(intersection.containsItem(5000));
+        Assert.assertFalse(intersection.containsItem(4999));
+    }
+
+    @Test
+    public void TestBitmapHierarchiesMerge() {
+        NestedSet<Integer> setA = new NestedSet<>(NestedSet.Storage.BITMAP);
+        setA.addItem(10);
+        setA.addItem(20);
+
+        NestedSet<Integer> setB = new NestedSet<>(NestedSet.Storage.BITMAP);
+        setB.addItem(30);
+        setB.addItem(20);
+
+        // The two sets were given overlapping ids by their own registries, which must be reconciled
+        NestedSet<Integer> union = setA.unionWith(setB);
+
+        Assert.assertEquals(3, union.size());
+        Assert.assertEquals(2, setB.size());
+        Assert.assertTrue(setB.containsItem(30));
+        Assert.assertTrue(setB.containsItem(20));
+        Assert.assertFalse(setB.containsItem(10));
+    }
+
+    @Test
+    public void TestBitmapContainerConversions() {
+        CompressedIntBitmap bitmap = new CompressedIntBitmap();
+
+        // Enough values in one container to switch it to the dense representation, plus one in another container
+        for(int i = 0; i < 5000; i++) {
+            Assert.assertTrue(bitmap.add(i * 2));
+        }
+        bitmap.add(1 << 20);
+        Assert.assertEquals(5001, bitmap.cardinality());
+
+        for(int i = 0; i < 2000; i++) {
+            Assert.assertTrue(bitmap.remove(i * 2));
+        }
+        Assert.assertEquals(3001, bitmap.cardinality());
+        Assert.assertFalse(bitmap.contains(0));
+        Assert.assertTrue(bitmap.contains(4000));
+
+        Assert.assertEquals(4000, bitmap.nextValue(0));
+        Assert.assertEquals(1 << 20, bitmap.nextValue(9999));
+        Assert.assertEquals(-1, bitmap.nextValue((1 << 20) + 1));
+    }
+
+    @Test
+    public void TestBitmapOrAnd() {
+        CompressedIntBitmap evens = new CompressedIntBitmap();
+        CompressedIntBitmap small = new CompressedIntBitmap();
+        for(int i = 0; i < 100000; i += 2) {
+            evens.add(i);
+        }
+        for(int i = 0; i < 100; i++) {
+            small.add(i);
+        }
+
+        Assert.assertEquals(50050, evens.or(small).cardinality());
+        Assert.assertEquals(50, evens.and(small).cardinality());
+        Assert.assertEquals(50000, evens.and(evens).cardinality());
+    }
+}
@@ -0,0 +1,153 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests estimating the sizes of unions and intersections without building them
+ */
+public class CardinalityEstimateTest {
+    private static NestedSet<Integer> filled(NestedSet.Storage storage, int from, int to) {
+        NestedSet<Integer> set = new NestedSet<>(storage);
+        for(int i = from; i < to; i++) {
+            set.addItem(i);
+        }
+        return set;
+    }
+
+    // Estimates of intersections carry the error of the unions they are worked out from, so are checked against
+    //      the size of the union
+    private static void assertClose(String message, long expected, long estimate, long scale) {
+        Assert.assertTrue(message + ": expected about " + expected + " but was " + estimate,
+                Math.abs(estimate - expected) <= Math.max(20, scale * 0.04));
+    }
+
+    private static void assertClose(String message, long expected, long estimate) {
+        assertClose(message, expected, estimate, expected);
+    }
+
+    @Test
+    public void TestEstimatesOfTwoSets() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> setA = filled(storage, 0, 20000);
+            NestedSet<Integer> setB = filled(storage, 10000, 40000);
+
+            assertClose(storage.name(), 40000, NestedSet.estimateUnionSize(setA, setB));
+            assertClose(storage.name(), 10000, NestedSet.estimateIntersectionSize(setA, setB), 40000);
+
+            // Nothing was built, so the two sets are still separate hierarchies
+            Assert.assertNotSame(setA.registry(), setB.registry());
+        }
+    }
+
+    @Test
+    public void TestSketchesFollowWrites() {
+        NestedSet<Integer> setA = filled(NestedSet.Storage.HASH, 0, 1000);
+        NestedSet<Integer> child = setA.spawnChild();
+        NestedSet<Integer> setB = filled(NestedSet.Storage.HASH, 0, 1000);
+        assertClose("before", 1000, NestedSet.estimateUnionSize(setA, setB));
+
+        // The child's additions reach setA, and so setA's sketch
+        for(int i = 1000; i < 5000; i++) {
+            child.addItem(i);
+        }
+        assertClose("after adding", 5000, NestedSet.estimateUnionSize(setA, setB));
+        child.addAllItems(Collections.singletonList(-1));
+        Assert.assertEquals(5001, NestedSet.estimateUnionSize(setA, child));
+
+        // Removals leave the sketch stale, so it is rebuilt
+        for(int i = 0; i < 1000; i++) {
+            setA.removeItem(i);
+        }
+        NestedSet<Integer> setC = filled(NestedSet.Storage.HASH, 0, 5000);
+        assertClose("after removing", 4000, NestedSet.estimateIntersectionSize(setA, setC), 5000);
+        assertClose("after removing", 5000, NestedSet.estimateUnionSize(setA, setB));
+    }
+
+    @Test
+    public void TestExactAnswers() {
+        NestedSet<Integer> parent = filled(NestedSet.Storage.BITMAP, 0, 300);
+        NestedSet<Integer> child = parent.spawnChild();
+        child.removeItem(0);
+        NestedSet<Integer> other = filled(NestedSet.Storage.BITMAP, 100, 700);
+
+        // Implied operands are dropped, leaving a single set
+        Assert.assertEquals(300, NestedSet.estimateUnionSize(parent, child));
+        Assert.assertEquals(299, NestedSet.estimateIntersectionSize(parent, child));
+
+        // A pair that was already combined is answered from the built set
+        NestedSet<Integer> union = parent.unionWith(other);
+        NestedSet<Integer> intersection = parent.intersectionWith(other);
+        Assert.assertEquals(union.size(), NestedSet.estimateUnionSize(other, parent));
+        Assert.assertEquals(intersection.size(), NestedSet.estimateIntersectionSize(parent, other));
+    }
+
+    @Test
+    public void TestShrunkIntersectionIsNotReadFrom() {
+        NestedSet<Integer> setA = filled(NestedSet.Storage.HASH, 0, 2);
+        NestedSet<Integer> setB = filled(NestedSet.Storage.HASH, 1, 3);
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+
+        // Removing from a set spawned above the intersection takes the item out of it, but not out of the operands
+        intersection.spawnParent().removeItem(1);
+        Assert.assertEquals(0, intersection.size());
+        Assert.assertEquals(1, NestedSet.estimateIntersectionSize(setA, setB));
+    }
+
+    @Test
+    public void TestUnionKeptThroughSpawnedSetIsNotReadFrom() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> union = setA.unionWith(setB);
+
+        // The union gets the item through a parent spawned above setA, which keeps it once setA loses it
+        setA.addItem(2);
+        setA.spawnParent();
+        setA.removeItem(2);
+        Assert.assertEquals(1, union.size());
+        Assert.assertEquals(0, NestedSet.estimateUnionSize(setA, setB));
+    }
+
+    @Test
+    public void TestManyOperands() {
+        List<NestedSet<Integer>> sets = new ArrayList<>();
+        for(int i = 0; i < 6; i++) {
+            sets.add(filled(NestedSet.Storage.HASH, i * 1000, 20000 + i * 1000));
+        }
+        assertClose("union", 25000, NestedSet.estimateUnionSize(sets));
+        assertClose("intersection", 15000, NestedSet.estimateIntersectionSize(sets), 25000);
+    }
+
+    @Test
+    public void TestLazyViews() {
+        NestedSet<Integer> setA = filled(NestedSet.Storage.HASH, 0, 2000);
+        NestedSet<Integer> setB = filled(NestedSet.Storage.HASH, 1000, 3000);
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+        NestedSet<Integer> other = filled(NestedSet.Storage.HASH, 2500, 4000);
+        assertClose("lazy union", 4000, NestedSet.estimateUnionSize(union, other));
+        Assert.assertFalse(union.isMaterialized());
+    }
+
+    @Test
+    public void TestUnsupportedGroups() {
+        try {
+            NestedSet.estimateUnionSize(Collections.<NestedSet<Integer>>emptyList());
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+
+        List<NestedSet<Integer>> sets = new ArrayList<>();
+        for(int i = 0; i <= NestedSet.MAX_ESTIMATED_INTERSECTION_OPERANDS; i++) {
+            sets.add(filled(NestedSet.Storage.HASH, i, i + 10));
+        }
+        try {
+            NestedSet.estimateIntersectionSize(sets);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests hierarchies built with concurrent storage
+ */
+public class ConcurrentNestedSetTest {
+    private static final int THREADS = 8;
+    private static final int VALUES_PER_THREAD = 2000;
+
+    // Starts every task at once and waits for all of them, rethrowing the first failure
+    private static void runConcurrently(List<Runnable> tasks) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for(Runnable task : tasks) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run();
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        if(!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+    }
+
+    @Test
+    public void TestConcurrentAddsPropagateToParents() throws InterruptedException {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> child = parent.spawnChild();
+        NestedSet<Integer> grandchild = child.spawnChild();
+
+        List<Runnable> tasks = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++) {
+            int offset = t * VALUES_PER_THREAD;
+            NestedSet<Integer> target = t % 2 == 0 ? child : grandchild;
+            tasks.add(() -> {
+                for(int i = 0; i < VALUES_PER_THREAD; i++) {
+                    target.addItem(offset + i);
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        Assert.assertEquals(THREADS * VALUES_PER_THREAD, parent.size());
+        Assert.assertEquals(THREADS * VALUES_PER_THREAD, child.size());
+        Assert.assertEquals(THREADS * VALUES_PER_THREAD / 2, grandchild.size());
+    }
+
+    @Test
+    public void TestOverlappingAddsShareOneItem() throws InterruptedException {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> child = parent.spawnChild();
+
+        List<Runnable> tasks = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++) {
+            NestedSet<Integer> target = t % 2 == 0 ? parent : child;
+            tasks.add(() -> {
+                for(int i = 0; i < VALUES_PER_THREAD; i++) {
+                    target.addItem(i);
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        Assert.assertEquals(VALUES_PER_THREAD, parent.size());
+        Assert.assertEquals(VALUES_PER_THREAD, child.size());
+        for(NestedSetItem<Integer> item : child) {
+            Assert.assertTrue(parent.contains(item));
+        }
+    }
+
+    @Test
+    public void TestConcurrentRemovesAndReads() throws InterruptedException {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> child = parent.spawnChild();
+        for(int i = 0; i < THREADS * VALUES_PER_THREAD; i++) {
+            child.addItem(i);
+        }
+
+        List<Runnable> tasks = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++) {
+            int offset = t * VALUES_PER_THREAD;
+            tasks.add(() -> {
+                for(int i = 0; i < VALUES_PER_THREAD; i++) {
+                    // Removing from the parent removes from its children too
+                    parent.removeItem(offset + i);
+                    Assert.assertFalse(child.containsItem(offset + i));
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        Assert.assertEquals(0, parent.size());
+        Assert.assertEquals(0, child.size());
+    }
+
+    @Test
+    public void TestDerivedSetsFollowConcurrentWrites() throws InterruptedException {
+        NestedSet<Integer> setA = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> setB = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+
+        // Lazy views are never used in a concurrent hierarchy
+        Assert.assertTrue(union.isMaterialized());
+
+        List<Runnable> tasks = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++) {
+            int offset = t * VALUES_PER_THREAD;
+            NestedSet<Integer> target = t % 2 == 0 ? setA : setB;
+            tasks.add(() -> {
+                for(int i = 0; i < VALUES_PER_THREAD; i++) {
+                    target.addItem(offset + i);
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        Assert.assertEquals(THREADS * VALUES_PER_THREAD, union.size());
+    }
+
+    @Test
+    public void TestCannotCombineWithNonConcurrentSet() {
+        NestedSet<Integer> concurrent = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> plain = new NestedSet<>();
+        try {
+            concurrent.unionWith(plain);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals(0, concurrent.derivedSetCache().size());
+        }
+    }
+}
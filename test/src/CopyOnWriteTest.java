@@ -0,0 +1,95 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+/**
+ * Tests that spawned sets share storage with their source without either seeing the other's later writes
+ */
+public class CopyOnWriteTest {
+    @Test
+    public void TestSpawnedChildDivergesFromParent() {
+        for(NestedSet.Storage storage : new NestedSet.Storage[] { NestedSet.Storage.HASH, NestedSet.Storage.BITMAP }) {
+            NestedSet<Integer> parent = new NestedSet<>(storage);
+            for(int i = 0; i < 100; i++) {
+                parent.addItem(i);
+            }
+
+            NestedSet<Integer> child = parent.spawnChild();
+            NestedSet<Integer> sibling = parent.spawnParent();
+            Assert.assertEquals(100, child.size());
+
+            parent.removeItem(5);
+            child.addItem(500);
+            parent.addItem(600);
+
+            Assert.assertFalse(child.containsItem(5));
+            Assert.assertTrue(parent.containsItem(500));
+            Assert.assertFalse(child.containsItem(600));
+            Assert.assertTrue(sibling.containsItem(5));
+            Assert.assertTrue(sibling.containsItem(600));
+            Assert.assertEquals(100, child.size());
+            Assert.assertEquals(101, parent.size());
+        }
+    }
+
+    @Test
+    public void TestRemovingThroughIteratorOfSharedSet() {
+        NestedSet<Integer> parent = new NestedSet<>();
+        for(int i = 0; i < 10; i++) {
+            parent.addItem(i);
+        }
+        NestedSet<Integer> newParent = parent.spawnParent();
+
+        Iterator<NestedSetItem<Integer>> iterator = parent.iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().getValue() % 2 == 0) {
+                iterator.remove();
+            }
+        }
+
+        Assert.assertEquals(5, parent.size());
+        Assert.assertEquals(10, newParent.size());
+    }
+
+    @Test
+    public void TestBitmapCopiesShareContainers() {
+        CompressedIntBitmap original = new CompressedIntBitmap();
+        for(int i = 0; i < 200000; i += 3) {
+            original.add(i);
+        }
+
+        CompressedIntBitmap copy = original.copy();
+        CompressedIntBitmap combined = original.or(new CompressedIntBitmap());
+        copy.add(1);
+        original.remove(0);
+        combined.add(199999);
+
+        Assert.assertTrue(copy.contains(0));
+        Assert.assertTrue(copy.contains(1));
+        Assert.assertFalse(original.contains(0));
+        Assert.assertFalse(original.contains(1));
+        Assert.assertFalse(original.contains(199999));
+        Assert.assertFalse(copy.contains(199999));
+        Assert.assertTrue(combined.contains(0));
+        Assert.assertEquals(original.cardinality() + 2, copy.cardinality());
+    }
+
+    @Test
+    public void TestItemsReleasedAcrossRoots() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        setA.addItem(1);
+        setB.addItem(2);
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+
+        // Both operands are still roots of the joined hierarchy
+        setB.addItem(1);
+        Assert.assertTrue(intersection.containsItem(1));
+        setA.removeItem(1);
+        Assert.assertEquals(2, setA.registry().size());
+
+        setB.removeItem(1);
+        Assert.assertEquals(1, setA.registry().size());
+    }
+}
@@ -0,0 +1,307 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests removals whose fan-out to descendant sets is deferred and compacted later
+ */
+public class DeferredRemovalTest {
+    @Test
+    public void TestRemovalIsSeenRightAway() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> parent = new NestedSet<>(storage);
+            NestedSet<Integer> child = parent.spawnChild();
+            NestedSet<Integer> grandchild = child.spawnChild();
+            parent.deferredRemovals().setEnabled(true);
+            grandchild.addItem(1);
+            grandchild.addItem(2);
+
+            Assert.assertTrue(storage.name(), parent.removeItem(1));
+            Assert.assertFalse(parent.containsItem(1));
+            Assert.assertFalse(child.containsItem(1));
+            Assert.assertFalse(grandchild.containsItem(1));
+            Assert.assertTrue(grandchild.containsItem(2));
+            Assert.assertFalse(child.removeItem(1));
+
+            // The descendants' stores are only cleaned up once compacted
+            Assert.assertEquals(2, grandchild.size());
+            Assert.assertEquals(new HashSet<>(Arrays.asList(2)), grandchild.getValues());
+            Assert.assertEquals(new HashSet<>(Arrays.asList(2)), grandchild.values());
+            Assert.assertEquals(1, grandchild.values().size());
+            Assert.assertEquals(2, grandchild.values().stream().mapToInt(Integer::intValue).sum());
+
+            parent.deferredRemovals().flush();
+            Assert.assertEquals(1, grandchild.size());
+            Assert.assertEquals(1, child.size());
+            Assert.assertFalse(grandchild.containsItem(1));
+        }
+    }
+
+    @Test
+    public void TestUnionsLeftWithoutTheItem() {
+        NestedSet<Integer> parent = new NestedSet<>();
+        NestedSet<Integer> child = parent.spawnChild();
+        NestedSet<Integer> other = new NestedSet<>();
+        NestedSet<Integer> union = child.unionWith(other);
+        child.addItem(1);
+        child.addItem(2);
+        other.addItem(2);
+        parent.deferredRemovals().setEnabled(true);
+
+        parent.removeItem(1);
+        parent.removeItem(2);
+        Assert.assertFalse(union.containsItem(1));
+        Assert.assertTrue(union.containsItem(2));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(union, other)), parent.setsContaining(2));
+        Assert.assertTrue(parent.setsContaining(1).isEmpty());
+
+        parent.deferredRemovals().flush();
+        Assert.assertEquals(1, union.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(2)), union.getValues());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(union, other)), parent.setsContaining(2));
+    }
+
+    @Test
+    public void TestWritingAValueSettlesIt() {
+        NestedSet<Integer> parent = new NestedSet<>();
+        NestedSet<Integer> child = parent.spawnChild();
+        child.addItem(1);
+        parent.deferredRemovals().setEnabled(true);
+
+        parent.removeItem(1);
+        Assert.assertEquals(1, parent.deferredRemovals().pendingCount());
+
+        // Had the child kept its stale copy, adding the value back to it would not have reached the parent
+        child.addItem(1);
+        Assert.assertEquals(0, parent.deferredRemovals().pendingCount());
+        Assert.assertTrue(child.containsItem(1));
+        Assert.assertTrue(parent.containsItem(1));
+    }
+
+    @Test
+    public void TestBacklogCounters() {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.BITMAP);
+        NestedSet<Integer> child = parent.spawnChild();
+        child.addAllItems(Arrays.asList(1, 2, 3, 4));
+        DeferredRemovals<Integer> removals = parent.deferredRemovals();
+        removals.setEnabled(true);
+
+        parent.removeAllItems(Arrays.asList(1, 2, 3));
+        child.addItem(5);
+        parent.removeItem(5);
+        Assert.assertEquals(4, removals.pendingCount());
+        Assert.assertEquals(4, removals.pendingValueCount());
+        Assert.assertEquals(4, removals.recordedCount());
+
+        Assert.assertEquals(3, removals.compact(3));
+        Assert.assertEquals(1, removals.pendingCount());
+        Assert.assertEquals(3, removals.compactedCount());
+        Assert.assertNull(parent.registry().lookup(1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(4)), child.getValues());
+
+        // Turning deferred removal off carries out whatever is left
+        removals.setEnabled(false);
+        Assert.assertEquals(0, removals.pendingCount());
+        Assert.assertEquals(1, child.size());
+        Assert.assertNull(parent.registry().lookup(5));
+    }
+
+    @Test
+    public void TestSnapshotsFlushFirst() {
+        NestedSet<Integer> parent = new NestedSet<>();
+        NestedSet<Integer> child = parent.spawnChild();
+        child.addItem(1);
+        parent.deferredRemovals().setEnabled(true);
+        parent.removeItem(1);
+
+        try (NestedSetSnapshot<Integer> snapshot = parent.snapshot()) {
+            Assert.assertEquals(0, parent.deferredRemovals().pendingCount());
+            Assert.assertEquals(0, snapshot.of(child).size());
+        }
+    }
+
+    @Test
+    public void TestSpawningFlushesFirst() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> union = setA.unionWith(setB);
+        setA.addItem(0);
+        setA.deferredRemovals().setEnabled(true);
+        setA.removeItem(0);
+
+        // The spawned set now stands between the union and the set the value was removed from
+        setA.spawnParent();
+        Assert.assertEquals(0, setA.deferredRemovals().pendingCount());
+        Assert.assertFalse(union.containsItem(0));
+        Assert.assertTrue(union.getValues().isEmpty());
+    }
+
+    @Test
+    public void TestMatchesImmediateRemoval() {
+        Random random = new Random(17);
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            List<NestedSet<Integer>> immediate = hierarchy(storage);
+            List<NestedSet<Integer>> deferred = hierarchy(storage);
+            deferred.get(0).deferredRemovals().setEnabled(true);
+
+            for(int step = 0; step < 2000; step++) {
+                int set = random.nextInt(immediate.size());
+                int value = random.nextInt(20);
+                if(random.nextInt(3) == 0) {
+                    Assert.assertEquals(immediate.get(set).addItem(value), deferred.get(set).addItem(value));
+                } else {
+                    Assert.assertEquals(immediate.get(set).removeItem(value), deferred.get(set).removeItem(value));
+                }
+                if(step % 97 == 0) {
+                    deferred.get(0).deferredRemovals().compact(3);
+                }
+
+                for(int i = 0; i < immediate.size(); i++) {
+                    Assert.assertEquals(storage.name(), immediate.get(i).getValues(), deferred.get(i).getValues());
+                }
+            }
+
+            deferred.get(0).deferredRemovals().flush();
+            for(int i = 0; i < immediate.size(); i++) {
+                Assert.assertEquals(immediate.get(i).size(), deferred.get(i).size());
+            }
+        }
+    }
+
+    @Test
+    public void TestMatchesImmediateRemovalAroundSpawnedSets() {
+        Random random = new Random(29);
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            List<NestedSet<Integer>> immediate = new ArrayList<>();
+            List<NestedSet<Integer>> deferred = new ArrayList<>();
+            for(List<NestedSet<Integer>> sets : Arrays.asList(immediate, deferred)) {
+                NestedSet<Integer> setS0 = new NestedSet<>(storage);
+                NestedSet<Integer> setS1 = new NestedSet<>(storage);
+                NestedSet<Integer> setS2 = new NestedSet<>(storage);
+                NestedSet<Integer> setS4 = new NestedSet<>(storage);
+                setS0.addItem(8);
+                setS1.addItem(8);
+                NestedSet<Integer> setS3 = setS1.unionWith(setS0);
+                sets.addAll(Arrays.asList(setS0, setS1, setS2, setS3, setS4));
+                sets.add(NestedSet.unionOf(setS1, setS0, setS4, setS2));
+                sets.add(setS3.spawnParent());
+            }
+            deferred.get(0).deferredRemovals().setEnabled(true);
+
+            // The spawned parent sits between setS3 and the four-way union, which loses the value along with it
+            for(List<NestedSet<Integer>> sets : Arrays.asList(immediate, deferred)) {
+                sets.get(0).removeItem(8);
+                sets.get(6).removeItem(8);
+            }
+            Assert.assertFalse(immediate.get(5).containsItem(8));
+            assertSameValues(storage, immediate, deferred);
+
+            for(int step = 0; step < 300; step++) {
+                int set = random.nextInt(immediate.size());
+                int other = random.nextInt(immediate.size());
+                int value = random.nextInt(10);
+                switch(random.nextInt(6)) {
+                    case 0:
+                        immediate.add(immediate.get(set).spawnParent());
+                        deferred.add(deferred.get(set).spawnParent());
+                        break;
+                    case 1:
+                        immediate.add(immediate.get(set).spawnChild());
+                        deferred.add(deferred.get(set).spawnChild());
+                        break;
+                    case 2:
+                        immediate.add(immediate.get(set).unionWith(immediate.get(other)));
+                        deferred.add(deferred.get(set).unionWith(deferred.get(other)));
+                        break;
+                    case 3:
+                        Assert.assertEquals(immediate.get(set).addItem(value), deferred.get(set).addItem(value));
+                        break;
+                    default:
+                        Assert.assertEquals(immediate.get(set).removeItem(value), deferred.get(set).removeItem(value));
+                        break;
+                }
+                assertSameValues(storage, immediate, deferred);
+            }
+        }
+    }
+
+    private static void assertSameValues(NestedSet.Storage storage, List<NestedSet<Integer>> immediate,
+                                         List<NestedSet<Integer>> deferred) {
+        for(int i = 0; i < immediate.size(); i++) {
+            Assert.assertEquals(storage.name(), immediate.get(i).getValues(), deferred.get(i).getValues());
+        }
+    }
+
+    @Test
+    public void TestBackgroundCompaction() throws Exception {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> child = parent.spawnChild();
+        for(int i = 0; i < 100; i++) {
+            child.addItem(i);
+        }
+        DeferredRemovals<Integer> removals = parent.deferredRemovals();
+        removals.setEnabled(true);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ScheduledFuture<?> compaction = removals.scheduleCompaction(executor, 1, TimeUnit.MILLISECONDS, 10);
+            for(int i = 0; i < 100; i += 2) {
+                parent.removeItem(i);
+                Assert.assertFalse(child.containsItem(i));
+            }
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while(removals.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            compaction.cancel(false);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(0, removals.pendingCount());
+        Assert.assertEquals(50, child.size());
+        Assert.assertFalse(child.containsItem(0));
+        Assert.assertTrue(child.containsItem(1));
+    }
+
+    @Test
+    public void TestBackgroundCompactionNeedsConcurrentHierarchy() {
+        NestedSet<Integer> set = new NestedSet<>();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            set.deferredRemovals().scheduleCompaction(executor, 1, TimeUnit.MILLISECONDS, 10);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // Expected
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // A root with children and grandchildren, unions of some of them, pairwise, n-ary and lazy, and an intersection
+    private static List<NestedSet<Integer>> hierarchy(NestedSet.Storage storage) {
+        List<NestedSet<Integer>> sets = new ArrayList<>();
+        NestedSet<Integer> root = new NestedSet<>(storage);
+        NestedSet<Integer> left = root.spawnChild();
+        NestedSet<Integer> right = new NestedSet<>(storage);
+        NestedSet<Integer> leftChild = left.spawnChild();
+        NestedSet<Integer> rightChild = right.spawnChild();
+        NestedSet<Integer> extra = new NestedSet<>(storage);
+        sets.addAll(Arrays.asList(root, left, right, leftChild, rightChild, extra));
+        sets.add(leftChild.unionWith(rightChild));
+        sets.add(NestedSet.unionOf(leftChild, rightChild, extra));
+        sets.add(left.intersectionWith(right));
+        sets.add(rightChild.lazyUnionWith(extra));
+        return sets;
+    }
+}
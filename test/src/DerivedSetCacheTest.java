@@ -0,0 +1,122 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the bounded cache of materialized unions and intersections
+ */
+public class DerivedSetCacheTest {
+    @Test
+    public void TestCountsHitsAndMisses() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+
+        setA.unionWith(setB);
+        setA.unionWith(setB);
+        setB.unionWith(setA);
+
+        DerivedSetCache<Integer> cache = setA.derivedSetCache();
+        Assert.assertEquals(1, cache.missCount());
+        Assert.assertEquals(2, cache.hitCount());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void TestEvictionDemotesToLazyView() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(10);
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addItem(20);
+        NestedSet<Integer> setC = new NestedSet<>();
+        setC.addItem(30);
+
+        setA.derivedSetCache().setMaxEntries(1);
+        NestedSet<Integer> first = setA.unionWith(setB);
+        NestedSet<Integer> second = setA.unionWith(setC);
+
+        Assert.assertFalse(first.isMaterialized());
+        Assert.assertTrue(second.isMaterialized());
+        Assert.assertEquals(1, setA.derivedSetCache().evictionCount());
+
+        // The evicted union is still the same set, with the same contents
+        Assert.assertEquals(first, setB.unionWith(setA));
+        Assert.assertTrue(first.containsItem(10));
+        Assert.assertTrue(first.containsItem(20));
+        Assert.assertEquals(2, first.size());
+    }
+
+    @Test
+    public void TestWeightBound() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        for(int i = 0; i < 100; i++) {
+            setA.addItem(i);
+            setB.addItem(i + 50);
+        }
+
+        setA.derivedSetCache().setMaxWeight(100);
+        NestedSet<Integer> union = setA.unionWith(setB);
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+
+        Assert.assertFalse(union.isMaterialized());
+        Assert.assertTrue(intersection.isMaterialized());
+        Assert.assertEquals(50, setA.derivedSetCache().weight());
+    }
+
+    @Test
+    public void TestDivergedSetsAreNotDemoted() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> setC = new NestedSet<>();
+
+        NestedSet<Integer> union = setA.unionWith(setB);
+        union.addItem(10);
+
+        setA.derivedSetCache().setMaxEntries(0);
+        setA.unionWith(setC);
+
+        Assert.assertTrue(union.isMaterialized());
+        Assert.assertTrue(union.containsItem(10));
+    }
+
+    @Test
+    public void TestGainThroughSpawnedSetIsNotDemoted() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> setC = new NestedSet<>();
+
+        NestedSet<Integer> union = setA.unionWith(setB);
+        NestedSet<Integer> spawned = setA.spawnParent();
+        spawned.addItem(5);
+        Assert.assertTrue(union.isDiverged());
+
+        setA.derivedSetCache().setMaxEntries(0);
+        setA.unionWith(setC);
+
+        Assert.assertTrue(union.isMaterialized());
+        Assert.assertTrue(union.containsItem(5));
+        Assert.assertTrue(spawned.containsItem(5));
+    }
+
+    @Test
+    public void TestLossKeptThroughSpawnedSetIsNotDemoted() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> setC = new NestedSet<>();
+
+        NestedSet<Integer> union = setA.unionWith(setB);
+        setA.addItem(2);
+        NestedSet<Integer> spawned = setA.spawnParent();
+        setA.removeItem(2);
+
+        // The union keeps the item for as long as the spawned set does, though its operands no longer call for it
+        Assert.assertTrue(union.containsItem(2));
+        Assert.assertTrue(union.isDiverged());
+
+        setA.derivedSetCache().setMaxEntries(0);
+        setA.unionWith(setC);
+
+        Assert.assertTrue(union.isMaterialized());
+        Assert.assertTrue(union.containsItem(2));
+        Assert.assertTrue(spawned.containsItem(2));
+    }
+}
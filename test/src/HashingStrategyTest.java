@@ -0,0 +1,120 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests hierarchies telling their values apart by a HashingStrategy
+ */
+public class HashingStrategyTest {
+    // Strings equal but for case, counting how often a value is hashed
+    private static final class CaseInsensitive implements HashingStrategy<String> {
+        private final AtomicInteger hashes = new AtomicInteger();
+
+        @Override
+        public int hash(String value) {
+            this.hashes.incrementAndGet();
+            return value.toLowerCase(Locale.ROOT).hashCode();
+        }
+
+        @Override
+        public boolean equivalent(String left, String right) {
+            return left.equalsIgnoreCase(right);
+        }
+    }
+
+    @Test
+    public void TestEquivalentValuesShareAnItem() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<String> set = new NestedSet<>(storage, new CaseInsensitive());
+            NestedSet<String> child = set.spawnChild();
+            Assert.assertTrue(child.addItem("Apple"));
+            Assert.assertFalse(set.addItem("APPLE"));
+            Assert.assertTrue(set.addItem("pear"));
+
+            Assert.assertEquals(storage.name(), 2, set.size());
+            Assert.assertTrue(set.containsItem("apple"));
+            Assert.assertTrue(set.mightContainItem("aPPle"));
+            Assert.assertEquals(new HashSet<>(Arrays.asList("Apple")), child.getValues());
+
+            Assert.assertTrue(set.removeItem("PEAR"));
+            Assert.assertTrue(set.removeItem("apple"));
+            Assert.assertFalse(child.containsItem("Apple"));
+        }
+    }
+
+    @Test
+    public void TestEqualValuesNotSameObject() {
+        // Outside the Integer cache, so each of these is its own object
+        Integer first = Integer.valueOf(100000);
+        Integer second = Integer.valueOf(100000);
+        Assert.assertNotSame(first, second);
+
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        setA.addItem(first);
+        setB.addItem(second);
+        Assert.assertFalse(setB.addItem(new Integer(100000)));
+        Assert.assertEquals(1, setB.size());
+
+        // Items of separate hierarchies compare by value too
+        Assert.assertEquals(new HashSet<>(setA), new HashSet<>(setB));
+        Assert.assertTrue(setB.containsAll(setA));
+    }
+
+    @Test
+    public void TestValuesHashedOnce() {
+        CaseInsensitive hashing = new CaseInsensitive();
+        NestedSet<String> parent = new NestedSet<>(NestedSet.Storage.HASH, hashing);
+        NestedSet<String> other = new NestedSet<>(NestedSet.Storage.HASH, hashing);
+        for(int i = 0; i < 100; i++) {
+            parent.addItem("value" + i);
+            other.addItem("VALUE" + (i + 50));
+        }
+        Assert.assertEquals(200, hashing.hashes.get());
+
+        // Adding by value hashes the values again, but joining the two hierarchies and filling the union and
+        //      intersection uses the hashes kept in the items
+        NestedSet<String> child = parent.spawnChild();
+        child.addAllItems(parent.getValues());
+        NestedSet<String> union = parent.unionWith(other);
+        NestedSet<String> intersection = parent.intersectionWith(other);
+        Assert.assertEquals(150, union.size());
+        Assert.assertEquals(50, intersection.size());
+        Assert.assertEquals(300, hashing.hashes.get());
+    }
+
+    @Test
+    public void TestStrategiesMustMatchToCombine() {
+        NestedSet<String> natural = new NestedSet<>();
+        NestedSet<String> caseInsensitive = new NestedSet<>(NestedSet.Storage.HASH, new CaseInsensitive());
+        try {
+            natural.unionWith(caseInsensitive);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void TestItemsComeAndGo() {
+        NestedSet<Integer> set = new NestedSet<>();
+        for(int round = 0; round < 5; round++) {
+            for(int i = 0; i < 1000; i++) {
+                set.addItem(i);
+            }
+            for(int i = 0; i < 1000; i += 2) {
+                set.removeItem(i);
+            }
+            Assert.assertEquals(500, set.size());
+            Assert.assertEquals(500, set.registry().size());
+            for(int i = 1; i < 1000; i += 2) {
+                set.removeItem(i);
+            }
+            Assert.assertEquals(0, set.registry().size());
+        }
+    }
+}
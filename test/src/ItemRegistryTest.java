@@ -0,0 +1,94 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that every set in a hierarchy shares a single NestedSetItem per value
+ */
+public class ItemRegistryTest {
+    @Test
+    public void TestSameItemAcrossHierarchy() {
+        NestedSet<Integer> parent = new NestedSet<>();
+        NestedSet<Integer> child = parent.spawnChild();
+
+        child.addItem(5);
+        parent.addItem(5);
+
+        NestedSetItem<Integer> fromParent = parent.iterator().next();
+        NestedSetItem<Integer> fromChild = child.iterator().next();
+
+        Assert.assertSame(fromParent, fromChild);
+        Assert.assertEquals(1, parent.registry().size());
+    }
+
+    @Test
+    public void TestRemovedValuesAreReleased() {
+        NestedSet<Integer> parent = new NestedSet<>();
+        NestedSet<Integer> child = parent.spawnChild();
+
+        child.addItem(5);
+        child.removeItem(5);
+
+        // Still held by the parent
+        Assert.assertEquals(1, parent.registry().size());
+
+        parent.removeItem(5);
+        Assert.assertEquals(0, parent.registry().size());
+    }
+
+    @Test
+    public void TestRemoveFromAllSets() {
+        NestedSet<Integer> grandparent = new NestedSet<>();
+        NestedSet<Integer> parent = grandparent.spawnChild();
+        NestedSet<Integer> child = parent.spawnChild();
+
+        child.addItem(7);
+        child.iterator().next().removeFromAllSets();
+
+        Assert.assertFalse(grandparent.containsItem(7));
+        Assert.assertFalse(parent.containsItem(7));
+        Assert.assertFalse(child.containsItem(7));
+        Assert.assertEquals(0, grandparent.registry().size());
+    }
+
+    @Test
+    public void TestRegistriesMergeOnUnion() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(10);
+        setA.addItem(20);
+
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addItem(20);
+
+        NestedSet<Integer> union = setA.unionWith(setB);
+
+        Assert.assertSame(setA.registry(), setB.registry());
+        Assert.assertSame(setA.registry(), union.registry());
+        Assert.assertEquals(2, union.registry().size());
+
+        // Removing from the union should reach both operands through the single canonical item
+        union.removeItem(20);
+        Assert.assertFalse(setA.containsItem(20));
+        Assert.assertFalse(setB.containsItem(20));
+    }
+
+    @Test
+    public void TestSmallerRegistryFoldsIntoLarger() {
+        NestedSet<Integer> big = new NestedSet<>();
+        for(int i = 0; i < 100; i++) {
+            big.addItem(i);
+        }
+        NestedSetItemRegistry<Integer> bigRegistry = big.registry();
+        NestedSetItem<Integer> item = bigRegistry.lookup(50);
+
+        NestedSet<Integer> tiny = new NestedSet<>();
+        tiny.addItem(50);
+
+        // The join is asked for from the smaller side, but the larger registry is the one kept
+        NestedSet<Integer> intersection = tiny.intersectionWith(big);
+
+        Assert.assertSame(bigRegistry, tiny.registry());
+        Assert.assertSame(item, tiny.iterator().next());
+        Assert.assertTrue(intersection.containsItem(50));
+        Assert.assertEquals(100, tiny.registry().size());
+    }
+}
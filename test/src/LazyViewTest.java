@@ -0,0 +1,161 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests unions and intersections built as lazy views over their operands
+ */
+public class LazyViewTest {
+    @Test
+    public void TestLazyUnionReadsThrough() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(10);
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addItem(20);
+
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+        Assert.assertFalse(union.isMaterialized());
+
+        Assert.assertTrue(union.containsItem(10));
+        Assert.assertTrue(union.containsItem(20));
+        Assert.assertFalse(union.containsItem(30));
+        Assert.assertEquals(2, union.size());
+
+        // Items added below show up without materializing
+        setA.addItem(30);
+        Assert.assertTrue(union.containsItem(30));
+        Assert.assertFalse(union.isMaterialized());
+
+        Assert.assertTrue(union.isParentOf(setA));
+        Assert.assertEquals(union, setB.unionWith(setA));
+    }
+
+    @Test
+    public void TestLazyIntersectionReadsThrough() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(10);
+        setA.addItem(20);
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addItem(20);
+        setB.addItem(30);
+
+        NestedSet<Integer> intersection = setA.lazyIntersectionWith(setB);
+
+        Assert.assertEquals(1, intersection.size());
+        Assert.assertTrue(intersection.containsItem(20));
+        Assert.assertFalse(intersection.containsItem(10));
+
+        // Removing from an operand is reflected right away, just as it would be pushed down to a real intersection
+        setA.removeItem(20);
+        Assert.assertEquals(0, intersection.size());
+        Assert.assertFalse(intersection.isMaterialized());
+    }
+
+    @Test
+    public void TestLazyUnionTracksRemovalsBelow() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(10);
+        setA.addItem(20);
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addItem(20);
+
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+        setA.removeItem(10);
+        setA.removeItem(20);
+
+        Assert.assertFalse(union.isMaterialized());
+        Assert.assertFalse(union.containsItem(10));
+        Assert.assertTrue(union.containsItem(20));
+    }
+
+    @Test
+    public void TestWritingMaterializes() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+
+        union.addItem(10);
+
+        Assert.assertTrue(union.isMaterialized());
+        Assert.assertEquals(1, union.size());
+        Assert.assertEquals(0, setA.size());
+    }
+
+    @Test
+    public void TestRepeatedReadsMaterialize() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(1);
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+
+        for(int i = 0; i <= LazyViewStore.DEFAULT_READ_LIMIT; i++) {
+            Assert.assertTrue(union.containsItem(1));
+        }
+
+        Assert.assertTrue(union.isMaterialized());
+        Assert.assertTrue(union.containsItem(1));
+    }
+
+    @Test
+    public void TestLazyIntersectionPassesGainsUp() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> setC = new NestedSet<>();
+        NestedSet<Integer> intersection = setA.lazyIntersectionWith(setB);
+        NestedSet<Integer> union = intersection.unionWith(setC);
+        NestedSet<Integer> belowA = setA.spawnChild();
+
+        // The intersection only gains 1 through its operands, but the sets above it must hold it too
+        setA.addItem(1);
+        setB.addItem(1);
+        Assert.assertFalse(intersection.isMaterialized());
+        Assert.assertTrue(intersection.containsItem(1));
+        Assert.assertTrue(union.containsItem(1));
+        Assert.assertTrue(belowA.containsItem(1));
+
+        setA.addAllItems(Arrays.asList(2, 3));
+        setB.addAllItems(Arrays.asList(3, 4));
+        Assert.assertTrue(union.containsItem(3));
+        Assert.assertFalse(union.containsItem(2));
+        Assert.assertTrue(belowA.containsItem(3));
+    }
+
+    @Test
+    public void TestLazyUnionPassesLossesDown() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> setC = new NestedSet<>();
+        setC.addItem(1);
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+        NestedSet<Integer> belowUnion = union.intersectionWith(setC);
+
+        setA.addItem(1);
+        Assert.assertTrue(belowUnion.getValues().contains(1));
+
+        // The union only loses 1 through its operands, but the sets below it must lose it too
+        setA.removeItem(1);
+        Assert.assertFalse(union.isMaterialized());
+        Assert.assertFalse(union.containsItem(1));
+        Assert.assertTrue(belowUnion.getValues().isEmpty());
+    }
+
+    @Test
+    public void TestPassingChangesOnIsNotARead() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> setC = new NestedSet<>();
+        NestedSet<Integer> intersection = setA.lazyIntersectionWith(setB);
+        NestedSet<Integer> belowBoth = intersection.intersectionWith(setC);
+
+        // Each item setC gains is checked against the view, which mustn't count towards materializing it
+        for(int i = 0; i <= LazyViewStore.DEFAULT_READ_LIMIT; i++) {
+            setC.addItem(i);
+        }
+        Assert.assertFalse(intersection.isMaterialized());
+
+        setA.addItem(1);
+        setB.addItem(1);
+        Assert.assertTrue(belowBoth.containsItem(1));
+    }
+}
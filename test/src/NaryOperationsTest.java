@@ -0,0 +1,115 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests unionOf and intersectionOf over many sets at once
+ */
+public class NaryOperationsTest {
+    private static NestedSet<Integer> setOf(NestedSet.Storage storage, Integer... values) {
+        NestedSet<Integer> set = new NestedSet<>(storage);
+        set.addAllItems(Arrays.asList(values));
+        return set;
+    }
+
+    @Test
+    public void TestUnionOfManySets() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> setA = setOf(storage, 1, 2);
+            NestedSet<Integer> setB = setOf(storage, 2, 3);
+            NestedSet<Integer> setC = setOf(storage, 4);
+            NestedSet<Integer> setD = setOf(storage, 5, 6, 7);
+
+            NestedSet<Integer> union = NestedSet.unionOf(setA, setB, setC, setD);
+            Assert.assertEquals(storage.name(), 7, union.size());
+            Assert.assertTrue(union.isParentOf(setA));
+            Assert.assertTrue(union.isParentOf(setD));
+
+            // Only the final set is registered, with no intermediates between it and the operands
+            Assert.assertEquals(1, setA.numberOfParentSets());
+            Assert.assertEquals(4, union.numberOfChildrenSets());
+            Assert.assertSame(union, NestedSet.unionOf(Arrays.asList(setD, setC, setB, setA)));
+        }
+    }
+
+    @Test
+    public void TestIntersectionOfManySets() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> setA = setOf(storage, 1, 2, 3, 4, 5);
+            NestedSet<Integer> setB = setOf(storage, 2, 3, 4, 5);
+            NestedSet<Integer> setC = setOf(storage, 3, 4, 5, 6);
+            NestedSet<Integer> setD = setOf(storage, 4, 5, 7);
+
+            NestedSet<Integer> intersection = NestedSet.intersectionOf(setA, setB, setC, setD);
+            Assert.assertEquals(storage.name(), 2, intersection.size());
+            Assert.assertTrue(intersection.containsItem(4));
+            Assert.assertTrue(intersection.containsItem(5));
+            Assert.assertTrue(intersection.isChildOf(setA));
+            Assert.assertEquals(4, intersection.numberOfParentSets());
+            Assert.assertEquals(1, setD.numberOfChildrenSets());
+        }
+    }
+
+    @Test
+    public void TestEmptyIntersection() {
+        NestedSet<Integer> setA = setOf(NestedSet.Storage.HASH, 1);
+        NestedSet<Integer> setB = setOf(NestedSet.Storage.HASH, 2);
+        NestedSet<Integer> setC = setOf(NestedSet.Storage.HASH, 1, 2, 3);
+
+        NestedSet<Integer> intersection = NestedSet.intersectionOf(setA, setB, setC);
+        Assert.assertTrue(intersection.isEmpty());
+        Assert.assertTrue(intersection.isChildOf(setC));
+    }
+
+    @Test
+    public void TestImpliedOperandsAreDropped() {
+        NestedSet<Integer> setA = setOf(NestedSet.Storage.HASH, 1);
+        NestedSet<Integer> child = setA.spawnChild();
+        NestedSet<Integer> setB = setOf(NestedSet.Storage.HASH, 2);
+
+        // With the child implied by its parent, what's left is a pairwise union or intersection
+        Assert.assertSame(setA.unionWith(setB), NestedSet.unionOf(setA, child, setB));
+        Assert.assertSame(child.intersectionWith(setB), NestedSet.intersectionOf(setA, child, setB));
+        Assert.assertSame(setA, NestedSet.unionOf(child, setA, child));
+        Assert.assertSame(child, NestedSet.intersectionOf(setA, child));
+    }
+
+    @Test
+    public void TestKeptUpToDate() {
+        NestedSet<Integer> setA = setOf(NestedSet.Storage.HASH, 1, 2);
+        NestedSet<Integer> setB = setOf(NestedSet.Storage.HASH, 2, 3);
+        NestedSet<Integer> setC = setOf(NestedSet.Storage.HASH, 2, 4);
+
+        NestedSet<Integer> union = NestedSet.unionOf(setA, setB, setC);
+        NestedSet<Integer> intersection = NestedSet.intersectionOf(setA, setB, setC);
+
+        // An item every operand gains joins the intersection
+        setA.addItem(5);
+        setB.addItem(5);
+        Assert.assertFalse(intersection.containsItem(5));
+        setC.addAllItems(Arrays.asList(5, 6));
+        Assert.assertTrue(intersection.containsItem(5));
+        Assert.assertTrue(union.containsItem(6));
+
+        // An item leaves the union only once no operand holds it
+        setA.removeItem(1);
+        Assert.assertFalse(union.containsItem(1));
+        setB.removeItem(2);
+        Assert.assertTrue(union.containsItem(2));
+        Assert.assertFalse(intersection.containsItem(2));
+        setC.removeAllItems(Arrays.asList(2, 6));
+        Assert.assertTrue(union.containsItem(2));
+        Assert.assertFalse(union.containsItem(6));
+    }
+
+    @Test
+    public void TestNeedsAnOperand() {
+        try {
+            NestedSet.unionOf();
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Nothing to combine
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the batched stream of changes to a hierarchy's sets
+ */
+public class NestedSetChangesTest {
+    @Test
+    public void TestChangesCoalescedPerSet() throws InterruptedException {
+        NestedSet<Integer> parent = new NestedSet<>();
+        NestedSet<Integer> child = parent.spawnChild();
+        Collector collector = new Collector(Long.MAX_VALUE);
+        parent.changes().subscribe(collector, 1000, 1, TimeUnit.HOURS);
+
+        child.addItem(1);
+        child.addItem(2);
+        child.removeItem(2);
+        NestedSet<Integer> grandchild = child.spawnChild();
+        parent.changes().flush();
+
+        Map<NestedSet<Integer>, SetChange<Integer>> batch = byCollectedSet(collector.batches.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singleton(1), batch.get(child).added());
+        Assert.assertTrue(batch.get(child).removed().isEmpty());
+        // Taking a value out of a child leaves it in the parent
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1, 2)), batch.get(parent).added());
+        Assert.assertEquals(Collections.singleton(grandchild), batch.get(child).linkedChildren());
+        Assert.assertTrue(batch.get(grandchild).created());
+        Assert.assertEquals(Collections.singleton(child), batch.get(grandchild).linkedParents());
+        Assert.assertTrue(collector.batches.isEmpty());
+    }
+
+    @Test
+    public void TestBackpressure() throws InterruptedException {
+        NestedSet<Integer> set = new NestedSet<>();
+        Collector collector = new Collector(1);
+        set.changes().subscribe(collector, 2, 1, TimeUnit.HOURS);
+
+        for(int i = 0; i < 10; i++) {
+            set.addItem(i);
+        }
+        set.changes().flush();
+        Assert.assertEquals(1, collector.batches.size());
+
+        // Everything since has been held back, and coalesced into the one batch that follows
+        for(int i = 10; i < 20; i++) {
+            set.addItem(i);
+        }
+        set.removeItem(15);
+        set.changes().flush();
+        Assert.assertEquals(1, collector.batches.size());
+
+        collector.subscription.request(1);
+        set.changes().flush();
+        Set<Integer> added = new HashSet<>(collector.batches.poll().get(0).added());
+        added.addAll(collector.batches.poll().get(0).added());
+        Assert.assertEquals(19, added.size());
+        Assert.assertFalse(added.contains(15));
+        Assert.assertTrue(collector.batches.isEmpty());
+    }
+
+    @Test
+    public void TestBatchesSentByCountAndByTime() throws InterruptedException {
+        NestedSet<Integer> set = new NestedSet<>();
+        Collector byCount = new Collector(Long.MAX_VALUE);
+        Collector byTime = new Collector(Long.MAX_VALUE);
+        set.changes().subscribe(byCount, 3, 1, TimeUnit.HOURS);
+        set.changes().subscribe(byTime, 1000, 10, TimeUnit.MILLISECONDS);
+
+        set.addAllItems(Arrays.asList(1, 2, 3));
+        Assert.assertEquals(3, byCount.batches.poll(5, TimeUnit.SECONDS).get(0).added().size());
+        Assert.assertEquals(3, byTime.batches.poll(5, TimeUnit.SECONDS).get(0).added().size());
+    }
+
+    @Test
+    public void TestFailingSubscriberCancelled() throws InterruptedException {
+        NestedSet<Integer> set = new NestedSet<>();
+        Collector collector = new Collector(Long.MAX_VALUE) {
+            @Override
+            public void onNext(List<SetChange<Integer>> batch) {
+                throw new IllegalStateException("Broken");
+            }
+        };
+        set.changes().subscribe(collector);
+        set.addItem(1);
+        set.changes().flush();
+
+        Assert.assertTrue(collector.errors.poll(5, TimeUnit.SECONDS) instanceof IllegalStateException);
+        Assert.assertEquals(0, set.changes().subscriberCount());
+    }
+
+    @Test
+    public void TestSubscribersFollowJoinedHierarchies() throws InterruptedException {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        Collector collector = new Collector(Long.MAX_VALUE);
+        setB.changes().subscribe(collector, 1000, 1, TimeUnit.HOURS);
+
+        NestedSet<Integer> union = setA.unionWith(setB);
+        setA.addItem(7);
+        setA.changes().flush();
+
+        Map<NestedSet<Integer>, SetChange<Integer>> batch = byCollectedSet(collector.batches.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singleton(7), batch.get(setA).added());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(setA, setB)), batch.get(union).linkedChildren());
+    }
+
+    @Test
+    public void TestWriteToLazyViewRecordedOnce() throws InterruptedException {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> union = setA.lazyUnionWith(new NestedSet<>());
+        Collector collector = new Collector(Long.MAX_VALUE);
+        setA.changes().subscribe(collector, 2, 1, TimeUnit.HOURS);
+
+        // Materializing the union to take the write counts as no change of its own
+        union.addItem(1);
+        Assert.assertNull(collector.batches.poll(200, TimeUnit.MILLISECONDS));
+
+        setA.changes().flush();
+        Map<NestedSet<Integer>, SetChange<Integer>> batch = byCollectedSet(collector.batches.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singleton(1), batch.get(union).added());
+    }
+
+    private static Map<NestedSet<Integer>, SetChange<Integer>> byCollectedSet(List<SetChange<Integer>> batch) {
+        Assert.assertNotNull(batch);
+        Map<NestedSet<Integer>, SetChange<Integer>> changes = new HashMap<>();
+        for(SetChange<Integer> change : batch) {
+            changes.put(change.set(), change);
+        }
+        return changes;
+    }
+
+    // Asks for a fixed number of batches up front, and keeps whatever it is sent
+    private static class Collector implements NestedSetChanges.Subscriber<Integer> {
+        private final long initialDemand;
+        private volatile NestedSetChanges.Subscription subscription;
+        final BlockingQueue<List<SetChange<Integer>>> batches = new LinkedBlockingQueue<>();
+        final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+
+        Collector(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(NestedSetChanges.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(this.initialDemand);
+        }
+
+        @Override
+        public void onNext(List<SetChange<Integer>> batch) {
+            this.batches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.errors.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
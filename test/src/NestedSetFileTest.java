@@ -0,0 +1,188 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tests saving whole hierarchies to a NestedSetFile and loading them back
+ */
+public class NestedSetFileTest {
+    @Test
+    public void TestHierarchyRoundTrips() throws IOException {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> setA = new NestedSet<>(storage);
+            NestedSet<Integer> setB = new NestedSet<>(storage);
+            NestedSet<Integer> setC = new NestedSet<>(storage);
+            for(int i = 0; i < 100; i++) {
+                setA.addItem(i);
+                setB.addItem(i + 50);
+            }
+            setC.addItem(150);
+            setC.addItem(160);
+            NestedSet<Integer> union = setA.unionWith(setB);
+            NestedSet<Integer> intersection = setA.intersectionWith(setB);
+            NestedSet<Integer> lazy = setA.lazyUnionWith(setC);
+            NestedSet<Integer> nary = NestedSet.unionOf(setA, setB, setC);
+            NestedSet<Integer> child = setA.spawnChild();
+            child.removeItem(0);
+
+            Path path = Files.createTempFile("nested-set", ".bin");
+            try {
+                List<NestedSet<Integer>> saved = NestedSetFile.write(child, path, NestedSetFile.integers());
+                List<NestedSet<Integer>> loaded = NestedSetFile.load(path, NestedSetFile.integers());
+                Assert.assertEquals(storage.name(), 8, saved.size());
+                Assert.assertEquals(saved.size(), loaded.size());
+
+                NestedSet<Integer> loadedA = loaded.get(saved.indexOf(setA));
+                NestedSet<Integer> loadedB = loaded.get(saved.indexOf(setB));
+                NestedSet<Integer> loadedC = loaded.get(saved.indexOf(setC));
+                NestedSet<Integer> loadedChild = loaded.get(saved.indexOf(child));
+                NestedSet<Integer> loadedLazy = loaded.get(saved.indexOf(lazy));
+
+                // Memoized unions and intersections come back as the same sets, and lazy views stay lazy
+                Assert.assertSame(loaded.get(saved.indexOf(union)), loadedA.unionWith(loadedB));
+                Assert.assertSame(loaded.get(saved.indexOf(intersection)), loadedB.intersectionWith(loadedA));
+                Assert.assertSame(loadedLazy, loadedC.lazyUnionWith(loadedA));
+                Assert.assertSame(loaded.get(saved.indexOf(nary)), NestedSet.unionOf(loadedC, loadedB, loadedA));
+                Assert.assertEquals(lazy.isMaterialized(), loadedLazy.isMaterialized());
+
+                Assert.assertTrue(loadedChild.isChildOf(loadedA));
+                Assert.assertTrue(loadedLazy.isParentOf(loadedChild));
+                Assert.assertFalse(loadedA.isChildOf(loadedB));
+                Assert.assertEquals(setA.numberOfParentSets(), loadedA.numberOfParentSets());
+                Assert.assertEquals(child.numberOfChildrenSets(), loadedChild.numberOfChildrenSets());
+                for(int i = 0; i < saved.size(); i++) {
+                    Assert.assertEquals(saved.get(i).getValues(), loaded.get(i).getValues());
+                    Assert.assertEquals(saved.get(i).size(), loaded.get(i).size());
+                }
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void TestLoadedSetsStayInStep() throws IOException {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<String> child = new NestedSet<>(storage);
+            NestedSet<String> other = new NestedSet<>(storage);
+            child.addAllItems(Arrays.asList("a", "b", "c"));
+            other.addAllItems(Arrays.asList("c", "d"));
+            NestedSet<String> root = child.unionWith(other);
+            NestedSet<String> intersection = child.intersectionWith(other);
+
+            Path first = Files.createTempFile("nested-set", ".bin");
+            Path second = Files.createTempFile("nested-set", ".bin");
+            try {
+                List<NestedSet<String>> saved = NestedSetFile.write(root, first, NestedSetFile.strings());
+                List<NestedSet<String>> loaded = NestedSetFile.load(first, NestedSetFile.strings());
+                NestedSet<String> loadedRoot = loaded.get(saved.indexOf(root));
+                NestedSet<String> loadedChild = loaded.get(saved.indexOf(child));
+                NestedSet<String> loadedOther = loaded.get(saved.indexOf(other));
+                NestedSet<String> loadedIntersection = loaded.get(saved.indexOf(intersection));
+
+                Assert.assertTrue(storage.name(), loadedChild.addItem("e"));
+                Assert.assertTrue(loadedRoot.containsItem("e"));
+                Assert.assertTrue(loadedOther.addItem("a"));
+                Assert.assertTrue(loadedIntersection.containsItem("a"));
+                Assert.assertTrue(loadedRoot.removeItem("c"));
+                Assert.assertFalse(loadedIntersection.containsItem("c"));
+                Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b", "d", "e")), loadedRoot.getValues());
+
+                // The originals are untouched, and the loaded hierarchy saves just as well
+                Assert.assertTrue(child.containsItem("c"));
+                List<NestedSet<String>> resaved = NestedSetFile.write(loadedChild, second, NestedSetFile.strings());
+                List<NestedSet<String>> reloaded = NestedSetFile.load(second, NestedSetFile.strings());
+                for(int i = 0; i < resaved.size(); i++) {
+                    Assert.assertEquals(resaved.get(i).getValues(), reloaded.get(i).getValues());
+                }
+            } finally {
+                Files.delete(first);
+                Files.delete(second);
+            }
+        }
+    }
+
+    @Test
+    public void TestFreedIdsHandedOutAgain() throws IOException {
+        NestedSet<Long> set = new NestedSet<>(NestedSet.Storage.BITMAP);
+        for(long i = 0; i < 10000; i++) {
+            set.addItem(i);
+        }
+        for(long i = 0; i < 10000; i += 3) {
+            set.removeItem(i);
+        }
+
+        Path path = Files.createTempFile("nested-set", ".bin");
+        try {
+            NestedSetFile.write(set, path, NestedSetFile.longs());
+            NestedSet<Long> loaded = NestedSetFile.load(path, NestedSetFile.longs()).get(0);
+            Assert.assertEquals(set.size(), loaded.size());
+
+            // New values take the ids the removed ones left, without disturbing the values saved around them
+            for(long i = 20000; i < 25000; i++) {
+                Assert.assertTrue(loaded.addItem(i));
+            }
+            Assert.assertEquals(set.size() + 5000, loaded.size());
+            Assert.assertTrue(loaded.containsItem(1L));
+            Assert.assertFalse(loaded.containsItem(3L));
+            Assert.assertTrue(loaded.containsItem(24999L));
+            Assert.assertEquals(loaded.size(), loaded.registry().size());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void TestStrategyMustTellValuesApart() throws IOException {
+        NestedSet<String> set = new NestedSet<>();
+        set.addItem("apple");
+        set.addItem("APPLE");
+
+        Path path = Files.createTempFile("nested-set", ".bin");
+        try {
+            NestedSetFile.write(set, path, NestedSetFile.strings());
+            HashingStrategy<String> caseInsensitive = new HashingStrategy<String>() {
+                @Override
+                public int hash(String value) {
+                    return value.toLowerCase(Locale.ROOT).hashCode();
+                }
+
+                @Override
+                public boolean equivalent(String left, String right) {
+                    return left.equalsIgnoreCase(right);
+                }
+            };
+            try {
+                NestedSetFile.load(path, NestedSetFile.strings(), caseInsensitive);
+                Assert.fail();
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void TestNotANestedSetFile() throws IOException {
+        Path path = Files.createTempFile("nested-set", ".bin");
+        try {
+            Files.write(path, new byte[64]);
+            try {
+                NestedSetFile.load(path, NestedSetFile.strings());
+                Assert.fail();
+            } catch(IOException e) {
+                // Expected
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Tests that unions and intersections built across fork-join workers match the ones built on one thread
+ */
+public class ParallelBuildTest {
+    private static NestedSet<Integer> filled(NestedSet.Storage storage, int from, int to) {
+        NestedSet<Integer> set = new NestedSet<>(storage);
+        set.addAllItems(IntStream.range(from, to).boxed());
+        return set;
+    }
+
+    @Test
+    public void TestParallelUnionAndIntersection() {
+        int previous = NestedSet.parallelBuildThreshold();
+        NestedSet.setParallelBuildThreshold(0);
+        try {
+            for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+                NestedSet<Integer> setA = filled(storage, 0, 300000);
+                NestedSet<Integer> setB = setA.spawnParent();
+                setB.addAllItems(IntStream.range(300000, 600000).boxed());
+                NestedSet<Integer> setC = filled(storage, 200000, 400000);
+
+                NestedSet<Integer> union = setA.unionWith(setC);
+                NestedSet<Integer> intersection = setB.intersectionWith(setC);
+                Assert.assertEquals(storage.name(), 400000, union.size());
+                Assert.assertEquals(200000, intersection.size());
+                Assert.assertTrue(union.containsItem(399999));
+                Assert.assertFalse(union.containsItem(400000));
+                Assert.assertTrue(intersection.containsItem(200000));
+                Assert.assertFalse(intersection.containsItem(199999));
+
+                // Still kept up to date like any other union
+                setC.removeItem(399999);
+                Assert.assertFalse(union.containsItem(399999));
+            }
+        } finally {
+            NestedSet.setParallelBuildThreshold(previous);
+        }
+    }
+
+    @Test
+    public void TestParallelBitmapsMatchSequential() {
+        Random random = new Random(15);
+        CompressedIntBitmap left = new CompressedIntBitmap();
+        CompressedIntBitmap right = new CompressedIntBitmap();
+        for(int i = 0; i < 200000; i++) {
+            left.add(random.nextInt(1 << 24));
+            right.add(random.nextInt(1 << 23));
+        }
+
+        CompressedIntBitmap or = left.or(right);
+        CompressedIntBitmap parallelOr = left.parallelOr(right);
+        CompressedIntBitmap and = left.and(right);
+        CompressedIntBitmap parallelAnd = left.parallelAnd(right);
+        Assert.assertEquals(or.cardinality(), parallelOr.cardinality());
+        Assert.assertEquals(and.cardinality(), parallelAnd.cardinality());
+        for(int value = or.nextValue(0); value >= 0; value = or.nextValue(value + 1)) {
+            Assert.assertTrue(parallelOr.contains(value));
+            Assert.assertEquals(and.contains(value), parallelAnd.contains(value));
+        }
+
+        // The parallel union shares containers copy-on-write just like the sequential one
+        int first = left.nextValue(0);
+        parallelOr.remove(first);
+        Assert.assertTrue(left.contains(first));
+    }
+
+    @Test
+    public void TestThresholdMustNotBeNegative() {
+        try {
+            NestedSet.setParallelBuildThreshold(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Zero already means always
+        }
+    }
+}
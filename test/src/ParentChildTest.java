@@ -218,4 +218,59 @@ public class ParentChildTest {
         Assert.assertEquals(2, parent.size());
         Assert.assertEquals(1, child.size());
     }
+
+    @Test
+    public void TestSpawnedChildSitsAboveExistingChildren() {
+        NestedSet<Integer> parent = new NestedSet<>();
+        NestedSet<Integer> oldChild = parent.spawnChild();
+        NestedSet<Integer> newChild = parent.spawnChild();
+
+        // The new child inherits the old one as its own child
+        Assert.assertTrue(newChild.isParentOf(oldChild));
+        Assert.assertTrue(oldChild.isChildOf(parent));
+        Assert.assertEquals(2, oldChild.numberOfParentSets());
+        Assert.assertEquals(2, parent.numberOfChildrenSets());
+
+        // Inserts and deletes still reach every relative
+        oldChild.addItem(5);
+        Assert.assertTrue(newChild.containsItem(5));
+        Assert.assertTrue(parent.containsItem(5));
+
+        parent.removeItem(5);
+        Assert.assertFalse(newChild.containsItem(5));
+        Assert.assertFalse(oldChild.containsItem(5));
+    }
+
+    @Test
+    public void TestUnionAboveSpawnedParentLosesItsItems() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> union = setA.unionWith(setB);
+
+        // The spawned parent sits between setA and the union, and is the only set below the union holding the item
+        NestedSet<Integer> spawned = setA.spawnParent();
+        spawned.addItem(1);
+        Assert.assertTrue(union.containsItem(1));
+
+        spawned.removeItem(1);
+        Assert.assertFalse(union.containsItem(1));
+        Assert.assertTrue(union.getValues().isEmpty());
+    }
+
+    @Test
+    public void TestDeepChainRelationships() {
+        NestedSet<Integer> root = new NestedSet<>();
+        NestedSet<Integer> leaf = root;
+        for(int i = 0; i < 50; i++) {
+            leaf = leaf.spawnChild();
+        }
+
+        Assert.assertTrue(leaf.isChildOf(root));
+        Assert.assertTrue(root.isParentOf(leaf));
+        Assert.assertEquals(50, leaf.numberOfParentSets());
+        Assert.assertEquals(50, root.numberOfChildrenSets());
+
+        leaf.addItem(1);
+        Assert.assertTrue(root.containsItem(1));
+    }
 }
@@ -0,0 +1,197 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests hierarchies whose values are split by hash across shards
+ */
+public class PartitionedNestedSetTest {
+    @Test
+    public void TestValuesAndPropagation() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            PartitionedNestedSet<Integer> parent = new PartitionedNestedSet<>(4, storage);
+            PartitionedNestedSet<Integer> child = parent.spawnChild();
+            PartitionedNestedSet<Integer> grandchild = child.spawnChild();
+            for(int i = 0; i < 100; i++) {
+                grandchild.addItem(i);
+            }
+
+            Assert.assertEquals(storage.name(), 100, parent.size());
+            Assert.assertTrue(parent.containsItem(42));
+            Assert.assertTrue(grandchild.isChildOf(parent));
+            Assert.assertTrue(parent.isParentOf(child));
+
+            Assert.assertTrue(child.removeItem(42));
+            Assert.assertFalse(grandchild.containsItem(42));
+            Assert.assertTrue(parent.containsItem(42));
+            Assert.assertEquals(99, grandchild.getValues().size());
+            parent.close();
+        }
+    }
+
+    @Test
+    public void TestBatches() {
+        PartitionedNestedSet<Integer> parent = new PartitionedNestedSet<>(3);
+        PartitionedNestedSet<Integer> child = parent.spawnChild();
+        List<Integer> values = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) {
+            values.add(i);
+        }
+
+        Assert.assertTrue(child.addAllItems(values));
+        Assert.assertFalse(child.addAllItems(values));
+        Assert.assertEquals(new HashSet<>(values), parent.getValues());
+
+        Assert.assertTrue(parent.removeAllItems(values.subList(0, 500)));
+        Assert.assertEquals(new HashSet<>(values.subList(500, 1000)), child.getValues());
+        parent.close();
+    }
+
+    @Test
+    public void TestUnionsAndIntersections() {
+        PartitionedNestedSet<Integer> setA = new PartitionedNestedSet<>(4);
+        PartitionedNestedSet<Integer> setB = setA.newSet();
+        setA.addAllItems(Arrays.asList(1, 2, 3, 4));
+        setB.addAllItems(Arrays.asList(3, 4, 5));
+
+        PartitionedNestedSet<Integer> union = setA.unionWith(setB);
+        PartitionedNestedSet<Integer> intersection = setA.intersectionWith(setB);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4, 5)), union.getValues());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(3, 4)), intersection.getValues());
+
+        // Memoized, and kept up to date, in every shard
+        Assert.assertEquals(union, setB.unionWith(setA));
+        setB.addItem(6);
+        setA.addItem(5);
+        Assert.assertTrue(union.containsItem(6));
+        Assert.assertTrue(intersection.containsItem(5));
+        Assert.assertTrue(intersection.isChildOf(union));
+        setA.close();
+    }
+
+    @Test
+    public void TestOtherPartitionsRejected() {
+        PartitionedNestedSet<Integer> setA = new PartitionedNestedSet<>(2);
+        PartitionedNestedSet<Integer> setB = new PartitionedNestedSet<>(2);
+        try {
+            setA.unionWith(setB);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+        setA.close();
+        setB.close();
+    }
+
+    @Test
+    public void TestShardsCanBeSwappedOut() {
+        List<CountingShard> shards = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            shards.add(new CountingShard(new LocalNestedSetShard<>(NestedSet.Storage.BITMAP)));
+        }
+        PartitionedNestedSet<Integer> set = new PartitionedNestedSet<>(shards);
+        for(int i = 0; i < 30; i++) {
+            set.addItem(i);
+        }
+
+        // Each value went to exactly one shard, and between them the shards saw every value
+        int writes = 0;
+        for(CountingShard shard : shards) {
+            Assert.assertTrue(shard.writes.get() > 0);
+            writes += shard.writes.get();
+        }
+        Assert.assertEquals(30, writes);
+        Assert.assertEquals(30, set.size());
+        set.close();
+    }
+
+    // Passes everything through to another shard, counting writes of single values
+    private static final class CountingShard implements NestedSetShard<Integer> {
+        private final NestedSetShard<Integer> inner;
+        private final AtomicInteger writes = new AtomicInteger();
+
+        CountingShard(NestedSetShard<Integer> inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public CompletableFuture<Integer> newSet() {
+            return this.inner.newSet();
+        }
+
+        @Override
+        public CompletableFuture<Integer> spawnChild(int set) {
+            return this.inner.spawnChild(set);
+        }
+
+        @Override
+        public CompletableFuture<Integer> spawnParent(int set) {
+            return this.inner.spawnParent(set);
+        }
+
+        @Override
+        public CompletableFuture<Integer> unionWith(int set, int other) {
+            return this.inner.unionWith(set, other);
+        }
+
+        @Override
+        public CompletableFuture<Integer> intersectionWith(int set, int other) {
+            return this.inner.intersectionWith(set, other);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> addItem(int set, Integer value) {
+            this.writes.incrementAndGet();
+            return this.inner.addItem(set, value);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> removeItem(int set, Integer value) {
+            this.writes.incrementAndGet();
+            return this.inner.removeItem(set, value);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> addAllItems(int set, Collection<Integer> values) {
+            return this.inner.addAllItems(set, values);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> removeAllItems(int set, Collection<Integer> values) {
+            return this.inner.removeAllItems(set, values);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> containsItem(int set, Integer value) {
+            return this.inner.containsItem(set, value);
+        }
+
+        @Override
+        public CompletableFuture<Integer> size(int set) {
+            return this.inner.size(set);
+        }
+
+        @Override
+        public CompletableFuture<Set<Integer>> getValues(int set) {
+            return this.inner.getValues(set);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> isChildOf(int set, int other) {
+            return this.inner.isChildOf(set, other);
+        }
+
+        @Override
+        public void close() {
+            this.inner.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests the int and long specializations of NestedSet
+ */
+public class PrimitiveNestedSetTest {
+    @Test
+    public void TestIntPropagation() {
+        IntNestedSet parent = new IntNestedSet();
+        IntNestedSet child = parent.spawnChild();
+        IntNestedSet grandchild = child.spawnChild();
+
+        grandchild.addItem(0);
+        grandchild.addItem(-7);
+        Assert.assertTrue(parent.containsItem(0));
+        Assert.assertTrue(parent.containsItem(-7));
+        Assert.assertTrue(grandchild.isChildOf(parent));
+        Assert.assertEquals(2, parent.numberOfChildrenSets());
+
+        parent.removeItem(-7);
+        Assert.assertFalse(grandchild.containsItem(-7));
+        Assert.assertEquals(1, child.size());
+    }
+
+    @Test
+    public void TestIntSpawnMidHierarchy() {
+        IntNestedSet top = new IntNestedSet();
+        IntNestedSet middle = top.spawnChild();
+        IntNestedSet bottom = middle.spawnChild();
+        bottom.addItem(5);
+
+        IntNestedSet below = middle.spawnChild();
+        IntNestedSet above = middle.spawnParent();
+        Assert.assertTrue(bottom.isChildOf(below));
+        Assert.assertTrue(below.isChildOf(above));
+        Assert.assertTrue(above.isChildOf(top));
+        Assert.assertFalse(above.isChildOf(middle));
+        Assert.assertEquals(4, top.numberOfChildrenSets());
+        Assert.assertEquals(4, bottom.numberOfParentSets());
+        Assert.assertTrue(below.containsItem(5));
+        Assert.assertTrue(above.containsItem(5));
+
+        top.removeItem(5);
+        Assert.assertFalse(bottom.containsItem(5));
+        Assert.assertEquals(0, below.size());
+    }
+
+    @Test
+    public void TestIntUnionAndIntersection() {
+        IntNestedSet setA = new IntNestedSet();
+        IntNestedSet setB = new IntNestedSet();
+        setA.addItem(1);
+        setA.addItem(2);
+        setB.addItem(2);
+        setB.addItem(3);
+
+        IntNestedSet union = setA.unionWith(setB);
+        IntNestedSet intersection = setA.intersectionWith(setB);
+        Assert.assertSame(union, setB.unionWith(setA));
+        Assert.assertEquals(3, union.size());
+        Assert.assertEquals(1, intersection.size());
+        Assert.assertTrue(union.isParentOf(intersection));
+
+        // Derived sets keep up with their operands
+        setB.addItem(1);
+        Assert.assertTrue(intersection.containsItem(1));
+        setA.removeItem(2);
+        Assert.assertTrue(union.containsItem(2));
+        setB.removeItem(2);
+        Assert.assertFalse(union.containsItem(2));
+        Assert.assertEquals(2, union.size());
+    }
+
+    @Test
+    public void TestLongHierarchy() {
+        LongNestedSet parent = new LongNestedSet();
+        LongNestedSet child = parent.spawnChild();
+        LongNestedSet newParent = child.spawnParent();
+
+        child.addItem(Long.MAX_VALUE);
+        child.addItem(1L << 40);
+        Assert.assertTrue(newParent.containsItem(Long.MAX_VALUE));
+        Assert.assertTrue(parent.containsItem(1L << 40));
+        Assert.assertTrue(newParent.isChildOf(parent));
+
+        LongNestedSet other = new LongNestedSet();
+        other.addItem(1L << 40);
+        Assert.assertEquals(1, child.intersectionWith(other).size());
+        Assert.assertEquals(2, child.unionWith(other).size());
+    }
+
+    @Test
+    public void TestTablesAgainstHashSet() {
+        Random random = new Random(42);
+        IntOpenHashSet ints = new IntOpenHashSet();
+        LongOpenHashSet longs = new LongOpenHashSet();
+        Set<Integer> expected = new HashSet<>();
+
+        for(int i = 0; i < 100000; i++) {
+            int value = random.nextInt(2000) - 1000;
+            if(random.nextBoolean()) {
+                Assert.assertEquals(expected.add(value), ints.add(value));
+                longs.add(value);
+            } else {
+                Assert.assertEquals(expected.remove(value), ints.remove(value));
+                longs.remove(value);
+            }
+        }
+
+        Assert.assertEquals(expected.size(), ints.size());
+        Assert.assertEquals(expected.size(), longs.size());
+        for(int value = -1000; value < 1000; value++) {
+            Assert.assertEquals(expected.contains(value), ints.contains(value));
+            Assert.assertEquals(expected.contains(value), longs.contains(value));
+        }
+    }
+}
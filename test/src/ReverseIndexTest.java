@@ -0,0 +1,65 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Tests finding the sets of a hierarchy that hold given values
+ */
+public class ReverseIndexTest {
+    @Test
+    public void TestSetsContainingValue() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> setA = new NestedSet<>(storage);
+            NestedSet<Integer> child = setA.spawnChild();
+            NestedSet<Integer> grandchild = child.spawnChild();
+            NestedSet<Integer> setB = new NestedSet<>(storage);
+            NestedSet<Integer> union = setA.unionWith(setB);
+
+            grandchild.addItem(1);
+            child.addItem(2);
+            setB.addItem(3);
+
+            Assert.assertEquals(storage.name(), new HashSet<>(Arrays.asList(grandchild, child, setA, union)),
+                    setA.setsContaining(1));
+            Assert.assertEquals(new HashSet<>(Arrays.asList(child, setA, union)), setB.setsContaining(2));
+            Assert.assertEquals(new HashSet<>(Arrays.asList(setB, union)), grandchild.setsContaining(3));
+            Assert.assertTrue(setA.setsContaining(4).isEmpty());
+
+            grandchild.removeItem(1);
+            Assert.assertEquals(new HashSet<>(Arrays.asList(child, setA, union)), setA.setsContaining(1));
+        }
+    }
+
+    @Test
+    public void TestSetsContainingAllAndAny() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+        intersection.addItem(1);
+        setA.addItem(2);
+        setB.addItem(3);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(setA, setB, intersection)),
+                setA.setsContainingAll(Collections.singleton(1)));
+        Assert.assertEquals(Collections.singleton(setA), setA.setsContainingAll(Arrays.asList(1, 2)));
+        Assert.assertTrue(setA.setsContainingAll(Arrays.asList(2, 3)).isEmpty());
+        Assert.assertTrue(setA.setsContainingAll(Arrays.asList(1, 99)).isEmpty());
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(setA, setB)), setA.setsContainingAny(Arrays.asList(2, 3, 99)));
+        Assert.assertTrue(setA.setsContainingAny(Collections.singleton(99)).isEmpty());
+    }
+
+    @Test
+    public void TestLazyViewsAreFound() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+        setB.addItem(1);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(setB, union)), setA.setsContaining(1));
+        Assert.assertFalse(union.isMaterialized());
+    }
+}
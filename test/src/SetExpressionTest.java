@@ -0,0 +1,148 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Tests planning and evaluating expressions over NestedSets
+ */
+public class SetExpressionTest {
+    private static NestedSet<Integer> setOf(NestedSet.Storage storage, Integer... values) {
+        NestedSet<Integer> set = new NestedSet<>(storage);
+        set.addAllItems(Arrays.asList(values));
+        return set;
+    }
+
+    @Test
+    public void TestEvaluation() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            Map<String, NestedSet<Integer>> sets = new HashMap<>();
+            sets.put("A", setOf(storage, 1, 2, 3));
+            sets.put("B", setOf(storage, 3, 4, 5));
+            sets.put("C", setOf(storage, 2, 3, 4, 9));
+            sets.put("D", setOf(storage, 5, 6));
+            sets.put("E", setOf(storage, 4));
+
+            SetExpression<Integer> expression = SetExpression.parse("(A | B) & (C \u222a D) - E", sets);
+            Assert.assertEquals(storage.name(), new HashSet<>(Arrays.asList(2, 3, 5)), expression.getValues());
+            Assert.assertTrue(expression.contains(5));
+            Assert.assertFalse(expression.contains(4));
+
+            // Nothing was built or linked along the way
+            Assert.assertEquals(0, sets.get("A").numberOfParentSets());
+            Assert.assertEquals(0, sets.get("C").numberOfParentSets());
+
+            // Intersection binds more tightly than union
+            Assert.assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4)),
+                    SetExpression.parse("A | B & C", sets).getValues());
+        }
+    }
+
+    @Test
+    public void TestPlanReusesHierarchy() {
+        NestedSet<Integer> parent = setOf(NestedSet.Storage.HASH, 1, 2, 3);
+        NestedSet<Integer> child = parent.spawnChild();
+        child.removeItem(3);
+
+        // The parent is the union, and the child is the intersection
+        Assert.assertEquals(SetExpression.of(parent), SetExpression.of(child).union(parent).plan());
+        Assert.assertEquals(SetExpression.of(child), SetExpression.of(parent).intersection(child).plan());
+        Assert.assertEquals(SetExpression.empty(), SetExpression.of(child).difference(parent).plan());
+
+        // Built unions and intersections are read from directly
+        NestedSet<Integer> other = setOf(NestedSet.Storage.HASH, 3, 4);
+        NestedSet<Integer> union = parent.unionWith(other);
+        NestedSet<Integer> third = setOf(NestedSet.Storage.HASH, 3, 9);
+        NestedSet<Integer> threeWay = NestedSet.intersectionOf(parent, other, third);
+        Assert.assertEquals(SetExpression.of(union), SetExpression.of(other).union(parent).plan());
+        Assert.assertEquals(SetExpression.of(union), SetExpression.of(child).union(parent).union(other).plan());
+        Assert.assertEquals(SetExpression.of(threeWay),
+                SetExpression.of(third).intersection(SetExpression.of(parent).intersection(other)).plan());
+    }
+
+    @Test
+    public void TestPlanSkipsShrunkIntersection() {
+        NestedSet<Integer> setA = setOf(NestedSet.Storage.HASH, 1, 2);
+        NestedSet<Integer> setB = setOf(NestedSet.Storage.HASH, 2, 3);
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+        intersection.spawnParent().removeItem(2);
+
+        SetExpression<Integer> expression = SetExpression.of(setA).intersection(setB);
+        Assert.assertNotEquals(SetExpression.of(intersection), expression.plan());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(2)), expression.getValues());
+    }
+
+    @Test
+    public void TestPlanSkipsUnionKeptThroughSpawnedSet() {
+        NestedSet<Integer> setA = setOf(NestedSet.Storage.HASH);
+        NestedSet<Integer> setB = setOf(NestedSet.Storage.HASH);
+        NestedSet<Integer> union = setA.unionWith(setB);
+
+        // A parent spawned between setA and the union keeps the item in the union once setA loses it
+        setA.addItem(2);
+        setA.spawnParent();
+        setA.removeItem(2);
+
+        Map<String, NestedSet<Integer>> sets = new HashMap<>();
+        sets.put("A", setA);
+        sets.put("B", setB);
+        SetExpression<Integer> expression = SetExpression.parse("A | B", sets);
+        Assert.assertNotEquals(SetExpression.of(union), expression.plan());
+        Assert.assertTrue(expression.getValues().isEmpty());
+    }
+
+    @Test
+    public void TestCommonSubexpressions() {
+        Map<String, NestedSet<Integer>> sets = new HashMap<>();
+        sets.put("A", setOf(NestedSet.Storage.HASH, 1, 2));
+        sets.put("B", setOf(NestedSet.Storage.HASH, 2, 3));
+        sets.put("C", setOf(NestedSet.Storage.HASH, 3, 4));
+        sets.put("D", setOf(NestedSet.Storage.HASH, 1, 5));
+
+        // Equal however the operands are ordered or grouped
+        Assert.assertEquals(SetExpression.parse("A | B | C", sets).plan(),
+                SetExpression.parse("C | (B | A)", sets).plan());
+        Assert.assertEquals(SetExpression.parse("A | B", sets).plan(),
+                SetExpression.parse("(A | B) & (B | A)", sets).plan());
+
+        SetExpression<Integer> shared = SetExpression.parse("(A | B) & C | (B | A) & D", sets);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1, 3)), shared.getValues());
+    }
+
+    @Test
+    public void TestRegister() {
+        NestedSet<Integer> setA = setOf(NestedSet.Storage.HASH, 1, 2, 3, 4);
+        NestedSet<Integer> setB = setOf(NestedSet.Storage.HASH, 3, 4, 5);
+        NestedSet<Integer> setC = setOf(NestedSet.Storage.HASH, 4, 6);
+
+        // Unions and intersections of plain sets are built as usual, and kept up to date
+        NestedSet<Integer> union = SetExpression.of(setA).union(setB).union(setC).register();
+        Assert.assertSame(NestedSet.unionOf(setA, setB, setC), union);
+
+        // Anything else is a copy, adopted below the sets it sits within, which takes their removals
+        NestedSet<Integer> registered = SetExpression.of(setA).intersection(setB).difference(setC).register();
+        Assert.assertEquals(new HashSet<>(Arrays.asList(3)), registered.getValues());
+        Assert.assertTrue(registered.isChildOf(setA));
+        Assert.assertTrue(registered.isChildOf(setB));
+        Assert.assertFalse(registered.isChildOf(setC));
+        setA.removeItem(3);
+        Assert.assertTrue(registered.getValues().isEmpty());
+    }
+
+    @Test
+    public void TestParseErrors() {
+        Map<String, NestedSet<Integer>> sets = new HashMap<>();
+        sets.put("A", new NestedSet<>());
+        for(String text : Arrays.asList("A | B", "(A | A", "A |", "A A", "")) {
+            try {
+                SetExpression.parse(text, sets);
+                Assert.fail(text);
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
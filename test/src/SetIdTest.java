@@ -0,0 +1,89 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests the ids sets are told apart by, and the id-keyed tables built on them
+ */
+public class SetIdTest {
+    @Test
+    public void TestIdsUniqueAndOrdered() {
+        NestedSet<Integer> root = new NestedSet<>();
+        long last = root.getSetId();
+        Assert.assertTrue(last > 0);
+        for(int i = 0; i < 100; i++) {
+            NestedSet<Integer> child = root.spawnChild();
+            Assert.assertTrue(child.getSetId() > last);
+            last = child.getSetId();
+        }
+    }
+
+    @Test
+    public void TestEqualityByIdNotContents() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        setA.addItem(1);
+        setB.addItem(1);
+
+        Assert.assertNotEquals(setA, setB);
+        Assert.assertEquals(setA, setA);
+        Assert.assertFalse(setA.equals(new HashSet<>(setA)));
+        Assert.assertFalse(setA.equals(null));
+
+        // Two sets with the same values still get separate unions and intersections
+        NestedSet<Integer> setC = new NestedSet<>();
+        NestedSet<Integer> unionAC = setA.unionWith(setC);
+        NestedSet<Integer> unionBC = setB.unionWith(setC);
+        Assert.assertNotSame(unionAC, unionBC);
+        Assert.assertSame(unionAC, setC.unionWith(setA));
+        Assert.assertEquals(2, setC.numberOfParentSets());
+    }
+
+    @Test
+    public void TestSetIdMapMatchesHashMap() {
+        SetIdMap<String> ids = new SetIdMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(23);
+        for(int i = 0; i < 20000; i++) {
+            long id = 1 + random.nextInt(500);
+            if(random.nextBoolean()) {
+                Assert.assertEquals(expected.put(id, "v" + i), ids.put(id, "v" + i));
+            } else {
+                Assert.assertEquals(expected.remove(id), ids.remove(id));
+            }
+            Assert.assertEquals(expected.size(), ids.size());
+        }
+
+        for(long id = 1; id <= 500; id++) {
+            Assert.assertEquals(expected.get(id), ids.get(id));
+            Assert.assertEquals(expected.containsKey(id), ids.containsKey(id));
+        }
+        List<String> values = new ArrayList<>(ids.values());
+        Assert.assertEquals(new HashSet<>(expected.values()), new HashSet<>(values));
+        Assert.assertEquals(expected.size(), values.size());
+    }
+
+    @Test
+    public void TestLongBitmapPastIntRange() {
+        CompressedLongBitmap bitmap = new CompressedLongBitmap();
+        long[] values = { 1, 70000, 1L << 31, (1L << 32) + 1, 1L << 40, Long.MAX_VALUE };
+        for(long value : values) {
+            Assert.assertTrue(bitmap.add(value));
+            Assert.assertFalse(bitmap.add(value));
+        }
+
+        CompressedLongBitmap copied = bitmap.copy();
+        for(long value : values) {
+            Assert.assertTrue(copied.contains(value));
+        }
+        Assert.assertFalse(copied.contains(1L << 41));
+        Assert.assertFalse(copied.contains(1L + (1L << 32) * 2));
+        Assert.assertEquals(values.length, copied.cardinality());
+    }
+}
@@ -0,0 +1,187 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests immutable, versioned snapshots of a whole hierarchy
+ */
+public class SnapshotTest {
+    @Test
+    public void TestSnapshotIgnoresLaterWrites() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> parent = new NestedSet<>(storage);
+            parent.addItem(1);
+            parent.addItem(2);
+            NestedSet<Integer> child = parent.spawnChild();
+            child.addItem(3);
+
+            NestedSetSnapshot<Integer> snapshot = parent.snapshot();
+            parent.addItem(4);
+            child.removeItem(3);
+            parent.removeItem(1);
+
+            SnapshotSet<Integer> frozenParent = snapshot.of(parent);
+            SnapshotSet<Integer> frozenChild = snapshot.of(child);
+            Assert.assertEquals(storage.name(), 3, frozenParent.size());
+            Assert.assertTrue(frozenParent.containsItem(1));
+            Assert.assertTrue(frozenParent.containsItem(3));
+            Assert.assertFalse(frozenParent.containsItem(4));
+            Assert.assertEquals(3, frozenChild.size());
+            Assert.assertTrue(frozenChild.getValues().contains(3));
+
+            Assert.assertEquals(3, parent.size());
+            Assert.assertEquals(1, child.size());
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void TestSnapshotFreezesRelations() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> child = setA.spawnChild();
+
+        NestedSetSnapshot<Integer> snapshot = setA.snapshot();
+        NestedSet<Integer> grandchild = child.spawnChild();
+
+        Assert.assertTrue(snapshot.of(child).isChildOf(snapshot.of(setA)));
+        Assert.assertTrue(snapshot.of(setA).isParentOf(snapshot.of(child)));
+        Assert.assertTrue(snapshot.of(child).getChildren().isEmpty());
+        Assert.assertEquals(2, snapshot.sets().size());
+        try {
+            snapshot.of(grandchild);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // The grandchild didn't exist yet
+        }
+    }
+
+    @Test
+    public void TestRemovedValuesAreKeptUntilClosed() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> set = new NestedSet<>(storage);
+            set.addItem(1);
+            set.addItem(2);
+
+            NestedSetSnapshot<Integer> snapshot = set.snapshot();
+            set.removeItem(1);
+            Assert.assertEquals(2, set.registry().size());
+
+            // Adding another value must not take over the removed value's id while the snapshot can see it
+            set.addItem(3);
+            Assert.assertTrue(storage.name(), snapshot.of(set).containsItem(1));
+            Assert.assertFalse(snapshot.of(set).containsItem(3));
+
+            snapshot.close();
+            Assert.assertEquals(2, set.registry().size());
+            Assert.assertFalse(set.containsItem(1));
+        }
+    }
+
+    @Test
+    public void TestReAddedValueInConcurrentSnapshot() {
+        NestedSet<Integer> set = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        set.addItem(1);
+
+        NestedSetSnapshot<Integer> first = set.snapshot();
+        set.removeItem(1);
+        NestedSetSnapshot<Integer> second = set.snapshot();
+        set.addItem(1);
+        NestedSetSnapshot<Integer> third = set.snapshot();
+
+        Assert.assertTrue(first.of(set).containsItem(1));
+        Assert.assertFalse(second.of(set).containsItem(1));
+        Assert.assertEquals(0, second.of(set).size());
+        Assert.assertTrue(third.of(set).containsItem(1));
+
+        first.close();
+        second.close();
+        Assert.assertTrue(third.of(set).containsItem(1));
+        third.close();
+        Assert.assertTrue(set.containsItem(1));
+        Assert.assertEquals(1, set.size());
+    }
+
+    @Test
+    public void TestLazyViewsAreFrozenThroughTheirOperands() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(1);
+        NestedSet<Integer> setB = setA.spawnParent().spawnChild();
+        setB.addItem(2);
+        NestedSet<Integer> setC = new NestedSet<>();
+        setC.addItem(3);
+        NestedSet<Integer> union = setA.lazyUnionWith(setC);
+
+        NestedSetSnapshot<Integer> snapshot = union.snapshot();
+        setC.addItem(4);
+
+        Assert.assertFalse(union.isMaterialized());
+        Assert.assertEquals(2, snapshot.of(union).size());
+        Assert.assertTrue(snapshot.of(union).containsItem(3));
+        Assert.assertFalse(snapshot.of(union).containsItem(4));
+    }
+
+    @Test
+    public void TestJoiningHierarchiesDetachesSnapshots() {
+        NestedSet<Integer> setA = new NestedSet<>(NestedSet.Storage.BITMAP);
+        setA.addItem(1);
+        NestedSet<Integer> setB = new NestedSet<>(NestedSet.Storage.BITMAP);
+        setB.addItem(1);
+        setB.addItem(2);
+
+        NestedSetSnapshot<Integer> snapshot = setB.snapshot();
+        setA.unionWith(setB);
+        setB.removeItem(2);
+
+        Assert.assertEquals(2, snapshot.of(setB).size());
+        Assert.assertTrue(snapshot.of(setB).containsItem(1));
+        Assert.assertTrue(snapshot.of(setB).containsItem(2));
+        snapshot.close();
+    }
+
+    @Test
+    public void TestConsistentReadsWhileWriting() throws InterruptedException {
+        NestedSet<Integer> parent = new NestedSet<>(NestedSet.Storage.CONCURRENT);
+        NestedSet<Integer> child = parent.spawnChild();
+
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>();
+        for(int w = 0; w < 4; w++) {
+            int offset = w;
+            Thread writer = new Thread(() -> {
+                for(int i = offset; !done.get(); i += 4) {
+                    child.addItem(i % 4000);
+                    parent.addItem(4000 + i % 4000);
+                    child.removeItem((i + 2000) % 4000);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        for(int round = 0; round < 50; round++) {
+            try (NestedSetSnapshot<Integer> snapshot = parent.snapshot()) {
+                SnapshotSet<Integer> frozenParent = snapshot.of(parent);
+                SnapshotSet<Integer> frozenChild = snapshot.of(child);
+
+                // Repeated reads agree, and the child is still a subset of the parent
+                if(frozenChild.size() != frozenChild.getValues().size()
+                        || !frozenParent.getValues().containsAll(frozenChild.getValues())
+                        || !frozenParent.getValues().equals(frozenParent.getValues())) {
+                    failure.set("Inconsistent snapshot in round " + round);
+                }
+            }
+        }
+
+        done.set(true);
+        for(Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(parent.containsAll(child));
+    }
+}
@@ -279,4 +279,72 @@ public class UnionIntersectionTest {
         Assert.assertEquals(1, sets[1].numberOfParentSets());
     }
 
+    @Test
+    public void TestIntersectionPicksUpLaterInserts() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+
+        // Once a value is in both sets, it belongs in their intersection too
+        setA.addItem(10);
+        Assert.assertFalse(intersection.containsItem(10));
+
+        setB.addItem(10);
+        Assert.assertTrue(intersection.containsItem(10));
+    }
+
+    @Test
+    public void TestIntersectionPicksUpInsertsFromBelow() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> childOfA = setA.spawnChild();
+        NestedSet<Integer> intersection = setA.intersectionWith(setB);
+
+        setB.addItem(10);
+        childOfA.addItem(10);
+
+        Assert.assertTrue(intersection.containsItem(10));
+    }
+
+    @Test
+    public void TestUnionDropsLaterRemovals() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        setA.addItem(10);
+        setA.addItem(20);
+
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addItem(20);
+
+        NestedSet<Integer> union = setA.unionWith(setB);
+
+        // 10 is no longer in either set, but 20 still is
+        setA.removeItem(10);
+        setA.removeItem(20);
+
+        Assert.assertFalse(union.containsItem(10));
+        Assert.assertTrue(union.containsItem(20));
+        Assert.assertEquals(1, union.size());
+    }
+
+    @Test
+    public void TestDeltasCascadeThroughDerivedSets() {
+        NestedSet<Integer> setA = new NestedSet<>();
+        NestedSet<Integer> setB = new NestedSet<>();
+        NestedSet<Integer> setC = new NestedSet<>();
+        setC.addItem(10);
+
+        // (A & B) | C
+        NestedSet<Integer> outer = setA.intersectionWith(setB).unionWith(setC);
+
+        setA.addItem(20);
+        setB.addItem(20);
+        Assert.assertTrue(outer.containsItem(20));
+
+        setC.removeItem(10);
+        Assert.assertFalse(outer.containsItem(10));
+
+        setA.removeItem(20);
+        Assert.assertFalse(outer.containsItem(20));
+        Assert.assertEquals(0, outer.size());
+    }
 }
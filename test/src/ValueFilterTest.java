@@ -0,0 +1,99 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests the per-set filters that turn away values a set can't hold
+ */
+public class ValueFilterTest {
+    @Test
+    public void TestNoFalseNegatives() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> parent = new NestedSet<>(storage);
+            NestedSet<Integer> child = parent.spawnChild();
+            for(int i = 0; i < 1000; i++) {
+                child.addItem(i);
+            }
+            Assert.assertTrue(storage.name(), parent.mightContainItem(0));
+
+            // Both sets have filters now, which have to follow what propagation and batches add
+            for(int i = 1000; i < 5000; i++) {
+                child.addItem(i);
+            }
+            List<Integer> batch = new ArrayList<>();
+            for(int i = 5000; i < 6000; i++) {
+                batch.add(i);
+            }
+            child.addAllItems(batch);
+
+            for(int i = 0; i < 6000; i++) {
+                Assert.assertTrue(storage.name(), parent.mightContainItem(i));
+                Assert.assertTrue(storage.name(), child.mightContainItem(i));
+            }
+        }
+    }
+
+    @Test
+    public void TestMostNegativesTurnedAway() {
+        NestedSet<Integer> set = new NestedSet<>(NestedSet.Storage.BITMAP);
+        for(int i = 0; i < 10000; i++) {
+            set.addItem(i);
+        }
+
+        int passed = 0;
+        for(int i = 10000; i < 110000; i++) {
+            if(set.mightContainItem(i)) {
+                passed++;
+            }
+        }
+        Assert.assertTrue("let through " + passed, passed < 2000);
+    }
+
+    @Test
+    public void TestRebuiltAfterRemovals() {
+        NestedSet<Integer> set = new NestedSet<>();
+        for(int i = 0; i < 1000; i++) {
+            set.addItem(i);
+        }
+        Assert.assertTrue(set.mightContainItem(1));
+
+        for(int i = 0; i < 1000; i++) {
+            set.removeItem(i);
+        }
+        set.addItem(5000);
+
+        int passed = 0;
+        for(int i = 0; i < 1000; i++) {
+            if(set.mightContainItem(i)) {
+                passed++;
+            }
+        }
+        Assert.assertTrue("let through " + passed, passed < 100);
+        Assert.assertTrue(set.mightContainItem(5000));
+    }
+
+    @Test
+    public void TestCandidateSetsForValue() {
+        NestedSet<Integer> left = new NestedSet<>();
+        NestedSet<Integer> right = new NestedSet<>();
+        NestedSet<Integer> leftChild = left.spawnChild();
+        NestedSet<Integer> lazy = left.lazyUnionWith(right);
+        leftChild.addItem(1);
+        right.addItem(2);
+
+        Set<NestedSet<Integer>> candidates = right.candidateSetsFor(1);
+        Assert.assertTrue(candidates.containsAll(Arrays.asList(left, leftChild, lazy)));
+        Assert.assertTrue(right.candidateSetsFor(3).isEmpty());
+        Assert.assertFalse(lazy.isMaterialized());
+
+        List<NestedSet<Integer>> sets = Arrays.asList(left, right, leftChild);
+        Assert.assertTrue(NestedSet.candidateSetsFor(2, sets).contains(right));
+        Assert.assertTrue(new HashSet<>(NestedSet.candidateSetsFor(1, sets))
+                .containsAll(Arrays.asList(left, leftChild)));
+    }
+}
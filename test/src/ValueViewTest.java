@@ -0,0 +1,104 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Tests the read-only value view and its splitting streams
+ */
+public class ValueViewTest {
+    private static NestedSet<Integer> filled(NestedSet.Storage storage, int count) {
+        NestedSet<Integer> set = new NestedSet<>(storage);
+        set.addAllItems(IntStream.range(0, count).boxed());
+        return set;
+    }
+
+    @Test
+    public void TestViewReadsThrough() {
+        NestedSet<Integer> set = new NestedSet<>();
+        set.addItem(1);
+        Set<Integer> values = set.values();
+
+        set.addItem(2);
+        Assert.assertEquals(2, values.size());
+        Assert.assertTrue(values.contains(2));
+        Assert.assertFalse(values.contains(3));
+        Assert.assertFalse(values.contains("2"));
+        Assert.assertEquals(set.getValues(), new HashSet<>(values));
+    }
+
+    @Test
+    public void TestViewIsReadOnly() {
+        NestedSet<Integer> set = new NestedSet<>();
+        set.addItem(1);
+        Set<Integer> values = set.values();
+
+        try {
+            values.add(2);
+            Assert.fail();
+        } catch (UnsupportedOperationException expected) {
+            // Writes go through the NestedSet, so relatives stay in sync
+        }
+
+        Iterator<Integer> iterator = values.iterator();
+        iterator.next();
+        try {
+            iterator.remove();
+            Assert.fail();
+        } catch (UnsupportedOperationException expected) {
+            // Likewise
+        }
+        Assert.assertTrue(set.containsItem(1));
+    }
+
+    @Test
+    public void TestParallelStreams() {
+        for(NestedSet.Storage storage : NestedSet.Storage.values()) {
+            NestedSet<Integer> set = filled(storage, 200000);
+            NestedSet<Integer> child = set.spawnChild();
+            child.removeAllItems(IntStream.range(0, 100000).boxed());
+
+            long expected = 200000L * 199999L / 2;
+            Assert.assertEquals(storage.name(), expected, set.values().parallelStream().mapToLong(i -> i).sum());
+            Assert.assertEquals(100000, child.values().parallelStream().filter(i -> i >= 100000).count());
+            Assert.assertEquals(set.getValues(), set.values().parallelStream().collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    public void TestBitmapSplitsExactly() {
+        NestedSet<Integer> set = filled(NestedSet.Storage.BITMAP, 300000);
+        Spliterator<Integer> values = set.values().spliterator();
+        Assert.assertTrue(values.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT));
+        Assert.assertEquals(300000, values.getExactSizeIfKnown());
+
+        // Skip a few, then split between containers
+        for(int i = 0; i < 10; i++) {
+            values.tryAdvance(value -> { });
+        }
+        Spliterator<Integer> prefix = values.trySplit();
+        Assert.assertNotNull(prefix);
+        Assert.assertEquals(299990, prefix.getExactSizeIfKnown() + values.getExactSizeIfKnown());
+
+        long[] counted = new long[1];
+        prefix.forEachRemaining(value -> counted[0]++);
+        values.forEachRemaining(value -> counted[0]++);
+        Assert.assertEquals(299990, counted[0]);
+    }
+
+    @Test
+    public void TestLazyViewStreams() {
+        NestedSet<Integer> setA = filled(NestedSet.Storage.HASH, 10);
+        NestedSet<Integer> setB = new NestedSet<>();
+        setB.addAllItems(IntStream.range(5, 15).boxed());
+
+        NestedSet<Integer> union = setA.lazyUnionWith(setB);
+        Assert.assertEquals(15, union.values().stream().count());
+        Assert.assertEquals(5, setA.lazyIntersectionWith(setB).values().parallelStream().count());
+    }
+}